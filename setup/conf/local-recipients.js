@@ -21,9 +21,26 @@ localRecipientDestinations = deepList([
 	*/
 	setup(GlobalUsersMaildropDestinationMapper, {
 		maildropRepository: maildropRepository,
+		localDelivery: localDelivery,
 		users: globalUsers
 	}),
 	
+	/*
+		Users and aliases stored in a sorted text file instead of
+		global-users.js. The file can be replaced while the server is
+		running. To let these users log in, use a
+		UserDirectoryLoginSpecification with the same directory in pop.js
+		and submission.js.
+
+	setup(UserDirectoryDestinationMapper, {
+		directory: setup(UserDirectory, {
+			file: "conf/users.txt"
+		}),
+		maildropRepository: maildropRepository,
+		localDelivery: localDelivery
+	}),
+	*/
+
 	/*
 		Postmaster alias
 		
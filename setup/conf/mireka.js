@@ -49,9 +49,37 @@ backendServer = setup(BackendServer, {
 	Default maildrop repository. A maildrop corresponds to a POP3
 	account. Maildrops are used to store incoming mails (via SMTP) 
 	and to transfer mails to the user (via POP3). 
+	Set recountSharedBodies to true for one startup to reclaim the 
+	shared mail bodies which were kept after an unexpected stop.
 */
 maildropRepository = setup(MaildropRepository, {
-	dir: "maildrops"
+	dir: "maildrops",
+	//recountSharedBodies: true
+});
+
+/*
+	Enforces the limits of maildrops. Mails older than maxAge days 
+	are removed in the background, and new mails are rejected for 
+	maildrops which are larger than maxSize bytes. 0 means no limit.
+*/
+maildropMaintenance = setup(MaildropMaintenance, {
+	maildropRepository: maildropRepository,
+	maxSize: 0,
+	maxAge: 0
+});
+
+/*
+	Delivers a mail sent to several local users in parallel, by 
+	writing it only once and then adding it to each maildrop. 
+	Set hardLinks to true if the maildrops directory is on a file
+	system which supports hard links. Set singleInstanceStorage to 
+	true to store the mail body only once, in the .blobs subdirectory 
+	of the maildrops directory, shared by all recipients.
+*/
+localDelivery = setup(LocalDelivery, {
+	threads: 8,
+	hardLinks: false,
+	singleInstanceStorage: false
 });
 
 include("conf/domains.js");
@@ -78,6 +106,30 @@ srs = setupDefault(Srs, {
 	localDomains: localDomains
 });
 
+/*
+	Sender Policy Framework (SPF) engine, shared by the SPF filters. 
+	It caches the results of SPF checks, so mails of bulk senders, 
+	coming from the same IP address, sender domain and HELO name, 
+	are checked only once within the time to live of the cache.
+*/
+spfEngine = setupDefault(SpfEngine, {
+	/* maximum count of cached results */
+	// cacheSize: 10000,
+	/* in seconds, 0 switches off caching */
+	// cacheTimeToLive: 300,
+});
+
+/*
+	Cache of DMARC policies, used by mailing lists to decide whether
+	the From address of a post must be replaced by the list address.
+*/
+dmarcPolicyCache = setupDefault(PolicyCache, {
+	/* in seconds */
+	// timeToLive: 3600,
+	/* in seconds, applies to domains without a DMARC policy */
+	// negativeTimeToLive: 900,
+});
+
 /*
 	Default local recipients table. It enumerates all valid local 
 	recipients and assigns destinations to them. The destination
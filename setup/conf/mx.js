@@ -10,6 +10,7 @@
 	a custom filter.
 */
 mxFilters = setup(Filters, {
+	name: "mx",
 	filters: [
 		setup(MeasureTraffic, {
 			incomingSmtpSummary: setup(IncomingSmtpSummary, {
@@ -35,6 +36,9 @@ mxFilters = setup(Filters, {
 			]
 		}),
 		setup(RefuseUnknownRecipient),
+		setup(RefuseOverQuotaRecipient, {
+			maildropMaintenance: maildropMaintenance
+		}),
 		setup(RejectOnFailedSpfCheck),
 		setup(AcceptAllRecipient),
 		setup(SavePostmasterMail, {
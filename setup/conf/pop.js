@@ -5,7 +5,10 @@
 /*
 	Uncomment to import POP3 mails from an existing server at 
 	startup for each user. The user names and the passwords must 
-	match on both systems.
+	match on both systems. The import runs in the background, 
+	threads is the count of users imported in parallel. 
+	checkpointDir records the already imported mails, so an 
+	interrupted import can be restarted safely.
 */
 /*
 setup(PopMailImporter, {
@@ -13,6 +16,8 @@ setup(PopMailImporter, {
 	maildropRepository: maildropRepository,
 	remoteHost: "localhost",
 	remotePort: 110,
+	threads: 4,
+	checkpointDir: "import",
 });
 */
 
@@ -52,6 +52,16 @@ outgoingConnectionRegisty = setup(OutgoingConnectionsRegistry, {
 mailToHostTransmitter = setup(MailToHostTransmitter, {
 	outgoingConnectionRegistry: outgoingConnectionRegisty,
 	logIdFactory: logIdFactory,
+	/*
+		uncomment to tune the staggered, parallel connection attempts 
+		made to the IPv6 and IPv4 addresses of a single MX host
+	*/
+	/*
+	connector: setup(HappyEyeballsConnector, {
+		attemptDelay: 250,
+		maxConcurrentAttempts: 4,
+	}),
+	*/
 });
 
 immediateSender = setup(DirectImmediateSender, {
@@ -56,6 +56,7 @@ submissionRecipientTable = setup(RecipientTable, {
 	a custom filter.
 */
 submissionFilters = setup(Filters, {
+	name: "submission",
 	
 	filters: [
 		setup(MeasureTraffic, {
@@ -14,6 +14,7 @@ importClass(java.lang.System);
  */
 importPackage(Packages.mireka);
 importPackage(Packages.mireka.destination);
+importPackage(Packages.mireka.dmarc);
 importPackage(Packages.mireka.filter);
 importPackage(Packages.mireka.filter.misc);
 importPackage(Packages.mireka.filter.dnsbl);
@@ -75,6 +76,11 @@ function include(file) {
  * order. Start and stop methods must be annotated using the @PostConstruct and
  * @PreDestroy annotations.
  * 
+ * If the configuration is being reloaded and the class of the object is marked
+ * with the @ReusedOnReload annotation, then the corresponding object of the
+ * running configuration is returned instead of the new one. Only its
+ * properties marked with @ReappliedOnReload are assigned, and only after the
+ * new objects have been started, see applyDeferredAssignments.
  */
 function setup(bean, content) {
 	var object;
@@ -86,6 +92,19 @@ function setup(bean, content) {
 		object = bean;
 	}
 	
+	var reused = configuration.reuse(object);
+	if (reused != null) {
+		for(propertyName in content) {
+			if (configuration.isReappliedOnReload(reused, propertyName))
+				deferredAssignments.push({
+					object: reused,
+					propertyName: propertyName,
+					value: content[propertyName]
+				});
+		}
+		return reused;
+	}
+	
 	for(propertyName in content) {
 		try {
 			object[propertyName] = content[propertyName];
@@ -110,6 +129,43 @@ function setup(bean, content) {
 	return object;
 }
 
+/*
+ * Property assignments of reused objects, which are executed by 
+ * applyDeferredAssignments when the configuration is reloaded.
+ */
+var deferredAssignments = [];
+
+/*
+ * Assigns the new property values to the objects reused from the previous 
+ * configuration. It is called by Reload after the new objects have been 
+ * started. If an assignment fails, then the properties which were already 
+ * assigned are restored to their previous values, so the reused objects keep 
+ * using the running configuration.
+ */
+function applyDeferredAssignments() {
+	var applied = [];
+	try {
+		for (var i = 0; i < deferredAssignments.length; i++) {
+			var assignment = deferredAssignments[i];
+			var previousValue = assignment.object[assignment.propertyName];
+			assignment.object[assignment.propertyName] = assignment.value;
+			applied.push({
+				object: assignment.object,
+				propertyName: assignment.propertyName,
+				value: previousValue
+			});
+		}
+	} catch (ex) {
+		for (var j = applied.length - 1; j >= 0; j--) {
+			var restored = applied[j];
+			restored.object[restored.propertyName] = restored.value;
+		}
+		throw ex;
+	} finally {
+		deferredAssignments = [];
+	}
+}
+
 /*
  * Makes the object available for injection. The object will be used as a default
  * value for configuration object properties which are marked with an @Inject 
@@ -0,0 +1,31 @@
+package mireka.destination;
+
+import java.util.List;
+
+import mireka.smtp.RejectExceptionExt;
+import mireka.transmission.Mail;
+
+/**
+ * A DestinationGroup processes a mail for several
+ * {@link GroupedMailDestination} objects at once.
+ */
+public interface DestinationGroup {
+    /**
+     * Processes the mail for each of the destinations, it has the same effect
+     * as calling {@link MailDestination#data(Mail)} for each of them, but
+     * possibly in parallel or sharing work. It is called only if there are
+     * at least two destinations.
+     * 
+     * @param mail
+     *            the mail, its recipient list contains the recipients of all
+     *            the destinations
+     * @param destinations
+     *            the destinations, each of them returns this object from
+     *            {@link GroupedMailDestination#getDestinationGroup()}
+     * @throws RejectExceptionExt
+     *             if the mail could not be processed for at least one of the
+     *             destinations
+     */
+    void data(Mail mail, List<GroupedMailDestination> destinations)
+            throws RejectExceptionExt;
+}
@@ -5,28 +5,127 @@ import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
 
 import mireka.filter.Filter;
 import mireka.filter.FilterSession;
 import mireka.filter.RecipientContext;
+import mireka.maildata.Maildata;
 import mireka.smtp.RejectExceptionExt;
 import mireka.transmission.Mail;
+import mireka.util.NamedThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
 /**
  * DestinationProcessorFilter groups recipients by their destinations and calls
  * the {@link MailDestination} or {@link SessionDestination} objects with the
  * recipients to which they are assigned.
+ * <p>
+ * If a mail has several destinations, then those which are marked as
+ * {@link IndependentDestination} are processed concurrently on a bounded
+ * count of threads, while the others are processed on the SMTP session thread
+ * in their original order. Each of them receives its own overlay of the mail
+ * data, so header modifications and the lazy parsing of header fields are not
+ * shared between threads. A failed destination does not prevent the delivery
+ * to the others. The reply to the DATA command is sent after all of them have
+ * completed, it reports the failure of the first failed destination if there
+ * is any, the other failures are logged. The processing time of each
+ * destination is measured by a timer per destination class.
  */
 public class DestinationProcessorFilter implements Filter {
+    private final ConcurrentMap<Class<?>, Timer> latencyTimers =
+            new ConcurrentHashMap<>();
+    private int threads = 8;
+    @GuardedBy("this")
+    private ThreadPoolExecutor executor;
+    @GuardedBy("this")
+    private boolean shutdown;
 
     @Override
     public FilterSession createSession() {
         return new FilterImpl();
     }
 
+    /**
+     * Returns the executor which runs the independent destinations. There is
+     * no queue, if all threads are busy, then the destination is processed
+     * on the SMTP session thread.
+     */
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            if (shutdown || threads == 0)
+                throw new RejectedExecutionException();
+            executor =
+                    new ThreadPoolExecutor(threads, threads, 60,
+                            TimeUnit.SECONDS,
+                            new SynchronousQueue<Runnable>(),
+                            new NamedThreadFactory("DestinationProcessor",
+                                    true));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        shutdown = true;
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * Returns the timer which measures the processing time of the
+     * destinations or destination groups of the specified class.
+     */
+    private Timer latencyTimer(Class<?> destinationClass) {
+        Timer timer = latencyTimers.get(destinationClass);
+        if (timer == null) {
+            timer =
+                    Metrics.newTimer(new MetricName("mireka",
+                            "DestinationProcessor", "latency",
+                            destinationClass.getSimpleName()),
+                            TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+            latencyTimers.putIfAbsent(destinationClass, timer);
+        }
+        return timer;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the maximum count of threads which process independent
+     * destinations concurrently, the default is 8. The threads are shared by
+     * all SMTP sessions. 0 means that all destinations are processed on the
+     * SMTP session thread.
+     *
+     * @x.category GETSET
+     */
+    public synchronized void setThreads(int threads) {
+        this.threads = threads;
+    }
+
     private class FilterImpl extends FilterSession {
         private final Logger logger = LoggerFactory.getLogger(FilterImpl.class);
         private final Map<ResponsibleDestination, DestinationState> destinations =
@@ -83,24 +182,235 @@ public class DestinationProcessorFilter implements Filter {
             mail.maildata = transaction.data;
             mail.arrivalDate = new Date();
             mail.scheduleDate = mail.arrivalDate;
+            List<Delivery> deliveries = collectDeliveries();
+            if (deliveries.size() > 1 && containsIndependent(deliveries)
+                    && prepareSharedMaildata()) {
+                deliverConcurrently(deliveries);
+            } else {
+                for (Delivery delivery : deliveries)
+                    delivery.call();
+            }
+        }
+
+        /**
+         * Returns the deliveries to the destinations which have accepted at
+         * least one recipient, in the order of the destinations. Grouped
+         * destinations are delivered together, at the position of the first
+         * member of the group.
+         */
+        private List<Delivery> collectDeliveries() {
+            Map<DestinationGroup, List<MailDestinationState>> groups =
+                    collectGroups();
+            List<Delivery> deliveries = new ArrayList<>();
             for (Map.Entry<ResponsibleDestination, DestinationState> entry : destinations
                     .entrySet()) {
                 ResponsibleDestination destination = entry.getKey();
                 DestinationState destinationState = entry.getValue();
-                Mail destinationMail = mail.copy();
                 List<RecipientContext> recipientContexts =
                         destinationState.recipientContexts;
-                for (RecipientContext recipientContext : recipientContexts) {
-                    destinationMail.recipients.add(recipientContext.recipient);
-                }
                 if (recipientContexts.isEmpty()) {
                     logger.debug("Destination {} has not accepted any of the "
                             + "recipients to which it was assigned.",
                             destination);
-                } else {
-                    destinationState.data(destinationMail);
+                    continue;
+                }
+                DestinationGroup group = groupOf(destination);
+                if (group != null && groups.containsKey(group)) {
+                    // the whole group is processed at its first member
+                    List<MailDestinationState> members = groups.remove(group);
+                    if (members.size() > 1) {
+                        deliveries.add(new GroupDelivery(group, members));
+                        continue;
+                    }
+                } else if (group != null) {
+                    continue; // already processed with its group
+                }
+                Mail destinationMail = mail.copy();
+                for (RecipientContext recipientContext : recipientContexts) {
+                    destinationMail.recipients.add(recipientContext.recipient);
+                }
+                deliveries.add(new DestinationDelivery(destination,
+                        destinationState, destinationMail));
+            }
+            return deliveries;
+        }
+
+        private boolean containsIndependent(List<Delivery> deliveries) {
+            for (Delivery delivery : deliveries) {
+                if (delivery.isIndependent())
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Parses the header of the mail data on this thread, so the
+         * destinations running concurrently only read the shared mail data.
+         * 
+         * @return false if the header cannot be parsed, in this case the
+         *         destinations must be processed sequentially, as they were
+         *         before, so the error is reported by the destination which
+         *         actually needs the header.
+         */
+        private boolean prepareSharedMaildata() {
+            try {
+                mail.maildata.headers();
+                return true;
+            } catch (RuntimeException e) {
+                logger.debug("Cannot parse mail header, destinations are "
+                        + "processed sequentially", e);
+                return false;
+            }
+        }
+
+        /**
+         * Gives each delivery its own overlay of the mail data, then submits
+         * the independent deliveries to the executor, and runs the others on
+         * this thread in their original order. It returns only after all
+         * deliveries have completed, because they use the mail data, which is
+         * released when the transaction ends.
+         *
+         * @throws RejectExceptionExt
+         *             the failure of the first failed delivery in the order of
+         *             the destinations
+         */
+        private void deliverConcurrently(List<Delivery> deliveries)
+                throws RejectExceptionExt {
+            List<Maildata> overlays = new ArrayList<>(deliveries.size());
+            try {
+                for (Delivery delivery : deliveries) {
+                    delivery.maildata = mail.maildata.overlay();
+                    overlays.add(delivery.maildata);
+                }
+                deliverOverlays(deliveries);
+            } finally {
+                for (Maildata overlay : overlays)
+                    overlay.close();
+            }
+        }
+
+        private void deliverOverlays(List<Delivery> deliveries)
+                throws RejectExceptionExt {
+            int count = deliveries.size();
+            List<Future<Void>> futures = new ArrayList<>(count);
+            boolean onlyIndependent = true;
+            for (Delivery delivery : deliveries) {
+                if (!delivery.isIndependent())
+                    onlyIndependent = false;
+            }
+            for (int i = 0; i < count; i++) {
+                Delivery delivery = deliveries.get(i);
+                // if all of them are independent, then the last one is run
+                // on this thread instead of waiting idle
+                boolean inline =
+                        !delivery.isIndependent() || onlyIndependent
+                                && i == count - 1;
+                futures.add(inline ? null : submit(delivery));
+            }
+
+            Throwable[] failures = new Throwable[count];
+            for (int i = 0; i < count; i++) {
+                if (futures.get(i) != null)
+                    continue;
+                try {
+                    deliveries.get(i).call();
+                } catch (RejectExceptionExt | RuntimeException e) {
+                    // the remaining destinations are still called, because
+                    // the concurrent ones may have already accepted the mail
+                    failures[i] = e;
+                }
+            }
+            awaitAll(futures, failures);
+
+            Throwable firstFailure = null;
+            for (int i = 0; i < count; i++) {
+                Throwable failure = failures[i];
+                if (failure == null)
+                    continue;
+                if (firstFailure == null)
+                    firstFailure = failure;
+                else
+                    logger.warn("Destination " + deliveries.get(i).target()
+                            + " also failed, only the first failure is "
+                            + "reported to the client", failure);
+            }
+            if (firstFailure instanceof RejectExceptionExt)
+                throw (RejectExceptionExt) firstFailure;
+            if (firstFailure instanceof RuntimeException)
+                throw (RuntimeException) firstFailure;
+            if (firstFailure instanceof Error)
+                throw (Error) firstFailure;
+            if (firstFailure != null)
+                throw new RuntimeException(firstFailure);
+        }
+
+        /**
+         * Submits the delivery to the executor, or returns null if it must be
+         * run on the calling thread, because all threads of the executor are
+         * busy.
+         */
+        private Future<Void> submit(Delivery delivery) {
+            try {
+                return executor().submit(delivery);
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+        }
+
+        private void awaitAll(List<Future<Void>> futures, Throwable[] failures) {
+            boolean interrupted = false;
+            for (int i = 0; i < futures.size(); i++) {
+                Future<Void> future = futures.get(i);
+                if (future == null)
+                    continue;
+                while (true) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        failures[i] = e.getCause();
+                        break;
+                    }
                 }
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        /**
+         * Returns the states of grouped mail destinations which have accepted
+         * recipients, keyed by their group.
+         */
+        private Map<DestinationGroup, List<MailDestinationState>> collectGroups() {
+            Map<DestinationGroup, List<MailDestinationState>> groups =
+                    new LinkedHashMap<>();
+            for (DestinationState destinationState : destinations.values()) {
+                if (!(destinationState instanceof MailDestinationState)
+                        || destinationState.recipientContexts.isEmpty())
+                    continue;
+                MailDestinationState mailDestinationState =
+                        (MailDestinationState) destinationState;
+                DestinationGroup group =
+                        groupOf(mailDestinationState.destination);
+                if (group == null)
+                    continue;
+                List<MailDestinationState> members = groups.get(group);
+                if (members == null) {
+                    members = new ArrayList<>();
+                    groups.put(group, members);
+                }
+                members.add(mailDestinationState);
+            }
+            return groups;
+        }
+
+        private DestinationGroup groupOf(ResponsibleDestination destination) {
+            if (!(destination instanceof GroupedMailDestination))
+                return null;
+            return ((GroupedMailDestination) destination)
+                    .getDestinationGroup();
         }
 
         @Override
@@ -110,6 +420,105 @@ public class DestinationProcessorFilter implements Filter {
             }
         }
 
+        /**
+         * Delivery processes the mail for a single destination or for a group
+         * of destinations, and measures the time it takes.
+         */
+        private abstract class Delivery implements Callable<Void> {
+            /**
+             * The mail data passed to the destination, it is an overlay of
+             * the mail data of the transaction if the deliveries run
+             * concurrently.
+             */
+            Maildata maildata = mail.maildata;
+
+            /**
+             * Returns the destination or the destination group which
+             * processes the mail.
+             */
+            abstract Object target();
+
+            abstract void deliver() throws RejectExceptionExt;
+
+            boolean isIndependent() {
+                return target() instanceof IndependentDestination;
+            }
+
+            @Override
+            public Void call() throws RejectExceptionExt {
+                long start = System.nanoTime();
+                try {
+                    deliver();
+                } finally {
+                    long duration = System.nanoTime() - start;
+                    latencyTimer(target().getClass()).update(duration,
+                            TimeUnit.NANOSECONDS);
+                    logger.debug("Destination {} completed in {} ms",
+                            target(),
+                            TimeUnit.NANOSECONDS.toMillis(duration));
+                }
+                return null;
+            }
+        }
+
+        private class DestinationDelivery extends Delivery {
+            private final ResponsibleDestination destination;
+            private final DestinationState destinationState;
+            private final Mail destinationMail;
+
+            DestinationDelivery(ResponsibleDestination destination,
+                    DestinationState destinationState, Mail destinationMail) {
+                this.destination = destination;
+                this.destinationState = destinationState;
+                this.destinationMail = destinationMail;
+            }
+
+            @Override
+            Object target() {
+                return destination;
+            }
+
+            @Override
+            void deliver() throws RejectExceptionExt {
+                destinationMail.maildata = maildata;
+                destinationState.data(destinationMail);
+            }
+        }
+
+        private class GroupDelivery extends Delivery {
+            private final DestinationGroup group;
+            private final List<MailDestinationState> members;
+
+            GroupDelivery(DestinationGroup group,
+                    List<MailDestinationState> members) {
+                this.group = group;
+                this.members = members;
+            }
+
+            @Override
+            Object target() {
+                return group;
+            }
+
+            @Override
+            void deliver() throws RejectExceptionExt {
+                Mail groupMail = mail.copy();
+                groupMail.maildata = maildata;
+                List<GroupedMailDestination> groupDestinations =
+                        new ArrayList<>(members.size());
+                for (MailDestinationState member : members) {
+                    for (RecipientContext recipientContext : member.recipientContexts)
+                        groupMail.recipients.add(recipientContext.recipient);
+                    groupDestinations
+                            .add((GroupedMailDestination) member.destination);
+                }
+                logger.debug("Sending {} recipients to {} destinations of {}",
+                        new Object[] { groupMail.recipients.size(),
+                                members.size(), group });
+                group.data(groupMail, groupDestinations);
+            }
+        }
+
         private abstract class DestinationState {
             final List<RecipientContext> recipientContexts =
                     new ArrayList<RecipientContext>();
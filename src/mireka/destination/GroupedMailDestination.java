@@ -0,0 +1,16 @@
+package mireka.destination;
+
+/**
+ * A GroupedMailDestination is a {@link MailDestination} which can be served
+ * more efficiently together with other destinations of the same kind, for
+ * example local maildrops which receive the same mail.
+ * {@link DestinationProcessorFilter} passes the destinations which return the
+ * same {@link DestinationGroup} in a single call to the group.
+ */
+public interface GroupedMailDestination extends MailDestination {
+    /**
+     * Returns the group which processes this destination together with the
+     * others, or null if this destination must be processed alone.
+     */
+    DestinationGroup getDestinationGroup();
+}
@@ -0,0 +1,17 @@
+package mireka.destination;
+
+/**
+ * IndependentDestination marks a {@link MailDestination} or a
+ * {@link DestinationGroup} which can process a mail concurrently with the
+ * other destinations of the same mail transaction, on a thread other than the
+ * SMTP session thread. {@link DestinationProcessorFilter} runs such
+ * destinations in parallel if a mail has several destinations, so the client
+ * waits for the slowest destination instead of the sum of their latencies.
+ * <p>
+ * An independent destination must not modify the mail data it receives, it
+ * must make a copy if it needs a different content, and it must not rely on
+ * the order in which the destinations are called.
+ */
+public interface IndependentDestination {
+    // marker interface
+}
@@ -0,0 +1,57 @@
+package mireka.destination;
+
+import mireka.filter.RecipientContext;
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.RejectExceptionExt;
+import mireka.smtp.address.ReversePath;
+import mireka.transmission.Mail;
+
+/**
+ * TemporaryFailureDestination is a special destination which rejects the
+ * recipient with a transient error in the
+ * {@link Session#recipient(RecipientContext)} phase. It is assigned to a
+ * recipient if its real destination cannot be determined at the moment, for
+ * example because a user database cannot be read, so the client will retry
+ * later instead of receiving a permanent "unknown user" reply.
+ */
+public class TemporaryFailureDestination implements SessionDestination {
+    private final EnhancedStatus status;
+
+    public TemporaryFailureDestination(EnhancedStatus status) {
+        this.status = status;
+    }
+
+    @Override
+    public Session createSession() {
+        return new SessionImpl();
+    }
+
+    @Override
+    public String toString() {
+        return "TemporaryFailureDestination";
+    }
+
+    private class SessionImpl implements Session {
+
+        @Override
+        public void from(ReversePath from) throws RejectExceptionExt {
+            // nothing to do
+        }
+
+        @Override
+        public void recipient(RecipientContext recipientContext)
+                throws RejectExceptionExt {
+            throw new RejectExceptionExt(status);
+        }
+
+        @Override
+        public void data(Mail mail) throws RejectExceptionExt {
+            // nothing to do
+        }
+
+        @Override
+        public void done() {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package mireka.dmarc;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.maildata.DotAtomDomainPart;
+import mireka.startup.ReusedOnReload;
+import mireka.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * PolicyCache stores the result of DMARC policy discoveries, so the DNS query
+ * and the parsing of the policy record is done only once for a domain within
+ * the time to live of the cache entry. The absence of a policy record is
+ * cached too, usually for a shorter time. Temporary DNS failures are not
+ * cached.
+ * <p>
+ * Popular domains, which are requested at least {@link #popularityThreshold}
+ * times, are refreshed in the background shortly before their cache entry
+ * expires, so the requests for these domains are never blocked by a DNS query.
+ * If the background refresh fails, then the old entry remains in use until it
+ * expires.
+ */
+@ReusedOnReload
+@ThreadSafe
+public class PolicyCache {
+    private final Logger logger = LoggerFactory.getLogger(PolicyCache.class);
+    private int maxSize = 10000;
+    /**
+     * Time to live of a cached policy record in seconds.
+     */
+    private int timeToLive = 3600;
+    /**
+     * Time to live of the information that a domain has no DMARC policy, in
+     * seconds.
+     */
+    private int negativeTimeToLive = 900;
+    /**
+     * Popular entries are refreshed in the background if they are requested
+     * within this time period, in seconds, before their expiry.
+     */
+    private int refreshAhead = 300;
+    /**
+     * The count of requests after which an entry is considered popular.
+     */
+    private int popularityThreshold = 5;
+    @GuardedBy("cache")
+    private final LinkedHashMap<String, CacheEntry> cache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                private static final long serialVersionUID =
+                        -8474003325745311584L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, CacheEntry> eldest) {
+                    return size() > maxSize;
+                }
+            };
+    private final ThreadPoolExecutor refreshExecutor = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(1000), new NamedThreadFactory(
+                    "DmarcPolicyRefresh", true));
+
+    /**
+     * Returns the DMARC policy record which applies to the supplied From domain
+     * part, or null if no DMARC record is published.
+     *
+     * @see PolicyDiscovery#discoverPolicy(DotAtomDomainPart)
+     */
+    public PolicyRecord getPolicy(DotAtomDomainPart domainPart)
+            throws RecoverableDmarcException {
+        String key = domainPart.domain.toLowerCase(Locale.US);
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        boolean refresh = false;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expiry <= now) {
+                cache.remove(key);
+                entry = null;
+            }
+            if (entry != null) {
+                entry.hits++;
+                if (!entry.refreshing
+                        && entry.hits >= popularityThreshold
+                        && entry.expiry - now <= refreshAhead * 1000L) {
+                    entry.refreshing = true;
+                    refresh = true;
+                }
+            }
+        }
+        if (entry == null)
+            return discoverAndStore(key, domainPart);
+        if (refresh) {
+            try {
+                refreshExecutor.execute(new Refresh(key, domainPart, entry));
+            } catch (RejectedExecutionException e) {
+                logger.debug("Too many pending refreshes or shutting down, "
+                        + "DMARC policy of {} is not refreshed now", key);
+                allowNextRefresh(entry);
+            }
+        }
+        return entry.record;
+    }
+
+    private PolicyRecord discoverAndStore(String key,
+            DotAtomDomainPart domainPart) throws RecoverableDmarcException {
+        PolicyRecord record = new PolicyDiscovery().discoverPolicy(domainPart);
+        long ttl = record == null ? negativeTimeToLive : timeToLive;
+        CacheEntry entry =
+                new CacheEntry(record, System.currentTimeMillis() + ttl
+                        * 1000L);
+        synchronized (cache) {
+            cache.put(key, entry);
+        }
+        return record;
+    }
+
+    /**
+     * Allows a new background refresh of the entry after the current one
+     * ended, whether it succeeded, failed or was not started at all.
+     */
+    private void allowNextRefresh(CacheEntry entry) {
+        synchronized (cache) {
+            entry.refreshing = false;
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum count of cached domains, the default is 10000. If the
+     * cache is full, then the least recently used entry is removed.
+     *
+     * @x.category GETSET
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets the time to live of a cached policy record in seconds, the default
+     * is 3600.
+     *
+     * @x.category GETSET
+     */
+    public void setTimeToLive(int timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getNegativeTimeToLive() {
+        return negativeTimeToLive;
+    }
+
+    /**
+     * Sets the time to live of the information that a domain publishes no
+     * DMARC policy, in seconds, the default is 900.
+     *
+     * @x.category GETSET
+     */
+    public void setNegativeTimeToLive(int negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Sets the length of the time period in seconds before the expiry of a
+     * popular entry, in which a request triggers a background refresh. The
+     * default is 300. Value 0 switches off background refreshing.
+     *
+     * @x.category GETSET
+     */
+    public void setRefreshAhead(int refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getPopularityThreshold() {
+        return popularityThreshold;
+    }
+
+    /**
+     * Sets the count of requests after which an entry is refreshed in the
+     * background, the default is 5.
+     *
+     * @x.category GETSET
+     */
+    public void setPopularityThreshold(int popularityThreshold) {
+        this.popularityThreshold = popularityThreshold;
+    }
+
+    private static final class CacheEntry {
+        /**
+         * Null if the domain has no DMARC policy.
+         */
+        final PolicyRecord record;
+        final long expiry;
+        @GuardedBy("cache")
+        int hits;
+        @GuardedBy("cache")
+        boolean refreshing;
+
+        CacheEntry(PolicyRecord record, long expiry) {
+            this.record = record;
+            this.expiry = expiry;
+        }
+    }
+
+    private class Refresh implements Runnable {
+        private final String key;
+        private final DotAtomDomainPart domainPart;
+        /**
+         * The entry which is refreshed, it may be replaced or removed from
+         * the cache by the time the refresh ends.
+         */
+        private final CacheEntry entry;
+
+        Refresh(String key, DotAtomDomainPart domainPart, CacheEntry entry) {
+            this.key = key;
+            this.domainPart = domainPart;
+            this.entry = entry;
+        }
+
+        @Override
+        public void run() {
+            try {
+                discoverAndStore(key, domainPart);
+                logger.debug("DMARC policy of {} was refreshed", key);
+            } catch (RecoverableDmarcException e) {
+                logger.debug("Refreshing DMARC policy of " + key
+                        + " failed, the cached policy remains in use "
+                        + "until it expires", e);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected exception while refreshing DMARC "
+                        + "policy of " + key, e);
+            } finally {
+                allowNextRefresh(entry);
+            }
+        }
+    }
+}
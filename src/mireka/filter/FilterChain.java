@@ -1,26 +1,68 @@
 package mireka.filter;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * The list of filters. During a mail transaction the first filter will call the
  * second, the second will call the third and so on.
+ * <p>
+ * The list is compiled into a {@link FilterPipeline} when it is first used,
+ * the pipeline is rebuilt only if the list changes. If the chain has a name,
+ * then the latency and the outcome of each filter is published as metrics.
  */
 public class FilterChain {
     private final List<Filter> filters = new ArrayList<Filter>();
+    private String name;
+    private volatile FilterPipeline pipeline;
 
-    public void setFilters(List<Filter> filters) {
+    public synchronized void setFilters(List<Filter> filters) {
         this.filters.clear();
         this.filters.addAll(filters);
+        pipeline = null;
     }
 
-    public List<Filter> getFilters() {
-        return filters;
+    public synchronized List<Filter> getFilters() {
+        return Collections.unmodifiableList(new ArrayList<Filter>(filters));
     }
 
-    public void addFilter(Filter filter) {
+    public synchronized void addFilter(Filter filter) {
         filters.add(filter);
+        pipeline = null;
     }
 
+    /**
+     * Returns the compiled form of the current filter list.
+     */
+    public FilterPipeline getPipeline() {
+        FilterPipeline result = pipeline;
+        if (result == null) {
+            synchronized (this) {
+                if (pipeline == null)
+                    pipeline = new FilterPipeline(filters, name);
+                result = pipeline;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public synchronized String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of the chain, for example "mx", which is used as the scope
+     * of the filter metrics. The default is null, which means that no metrics
+     * are collected.
+     * 
+     * @x.category GETSET
+     */
+    public synchronized void setName(String name) {
+        this.name = name;
+        pipeline = null;
+    }
 }
@@ -0,0 +1,677 @@
+package mireka.filter;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.maildata.io.MaildataFileReadException;
+import mireka.smtp.RejectExceptionExt;
+import mireka.util.AssertionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * FilterPipeline is the compiled, immutable form of a filter chain. It is
+ * created once for a filter list, and it is shared by all mail transactions.
+ * <p>
+ * A {@link StatelessFilter} is called directly on its single, shared instance,
+ * no {@link FilterSession} is created for it. Other filters still get a new
+ * session object for each mail transaction. Each stage of the pipeline records
+ * which hooks its filter or filter session actually overrides, and the
+ * dispatch of a hook skips those stages which do not implement it.
+ * <p>
+ * If the pipeline has a name, then the latency of each filter hook which
+ * follows the steps of the mail transaction, and the count of the rejections,
+ * acceptances and unexpected exceptions are published as metrics. The time
+ * spent in the following filters is not included in the latency of a filter
+ * which explicitly calls its next link.
+ */
+@ThreadSafe
+public final class FilterPipeline {
+    private static final ClassValue<EnumSet<Hook>> SESSION_HOOKS =
+            new ClassValue<EnumSet<Hook>>() {
+                @Override
+                protected EnumSet<Hook> computeValue(Class<?> type) {
+                    return Hook.overriddenBySession(type);
+                }
+            };
+    private final Logger logger = LoggerFactory.getLogger(FilterPipeline.class);
+    private final Stage[] stages;
+    private final boolean hasStatefulStage;
+    private final boolean measured;
+
+    public FilterPipeline(List<Filter> filters) {
+        this(filters, null);
+    }
+
+    /**
+     * @param name
+     *            the name of the filter chain, which is used as the scope of
+     *            the metrics, or null if metrics should not be collected.
+     */
+    public FilterPipeline(List<Filter> filters, String name) {
+        stages = new Stage[filters.size()];
+        boolean hasStatefulStage = false;
+        Map<String, Integer> filterNameCounts = new HashMap<>();
+        for (int i = 0; i < stages.length; i++) {
+            Filter filter = filters.get(i);
+            StageMetrics metrics = null;
+            if (name != null)
+                metrics =
+                        new StageMetrics(name, uniqueFilterName(filter,
+                                filterNameCounts));
+            stages[i] = new Stage(filter, metrics);
+            if (stages[i].statelessFilter == null)
+                hasStatefulStage = true;
+        }
+        this.hasStatefulStage = hasStatefulStage;
+        this.measured = name != null;
+    }
+
+    /**
+     * Returns the simple class name of the filter, followed by a sequence
+     * number if the same filter class occurs more than once in the chain.
+     */
+    private static String uniqueFilterName(Filter filter,
+            Map<String, Integer> filterNameCounts) {
+        String name = filter.getClass().getSimpleName();
+        if (name.isEmpty()) {
+            String className = filter.getClass().getName();
+            name = className.substring(className.lastIndexOf('.') + 1);
+        }
+        Integer count = filterNameCounts.get(name);
+        count = count == null ? 1 : count + 1;
+        filterNameCounts.put(name, count);
+        return count == 1 ? name : name + "-" + count;
+    }
+
+    /**
+     * Returns a new object which dispatches the events of the specified mail
+     * transaction to the filters in this pipeline.
+     */
+    public Transaction newTransaction(MailTransaction transaction) {
+        return new Transaction(transaction);
+    }
+
+    /**
+     * Hooks of a filter which can be skipped if the filter does not override
+     * them.
+     */
+    private enum Hook {
+        BEGIN("begin", "begin"),
+        FROM("from", "from"),
+        VERIFY_RECIPIENT("verifyRecipient", "verifyRecipient",
+                RecipientContext.class),
+        RECIPIENT("recipient", "recipient", RecipientContext.class),
+        DATA_STREAM("dataStream", "dataStream"),
+        DATA("data", "data"),
+        CLOSE("close", "done");
+
+        private final String sessionMethod;
+        private final String statelessMethod;
+        private final Class<?>[] sessionParameters;
+        private final Class<?>[] statelessParameters;
+
+        private Hook(String sessionMethod, String statelessMethod,
+                Class<?>... parameters) {
+            this.sessionMethod = sessionMethod;
+            this.statelessMethod = statelessMethod;
+            this.sessionParameters = parameters;
+            this.statelessParameters = new Class<?>[parameters.length + 1];
+            statelessParameters[0] = MailTransaction.class;
+            System.arraycopy(parameters, 0, statelessParameters, 1,
+                    parameters.length);
+        }
+
+        /**
+         * Returns true if this hook follows a step of the mail transaction,
+         * these hooks are measured.
+         */
+        boolean isStep() {
+            return this != BEGIN && this != CLOSE;
+        }
+
+        static EnumSet<Hook> overriddenBySession(Class<?> type) {
+            EnumSet<Hook> result = EnumSet.noneOf(Hook.class);
+            for (Hook hook : values()) {
+                if (isOverridden(type, FilterSession.class, hook.sessionMethod,
+                        hook.sessionParameters))
+                    result.add(hook);
+            }
+            return result;
+        }
+
+        static EnumSet<Hook> overriddenByStatelessFilter(Class<?> type) {
+            EnumSet<Hook> result = EnumSet.noneOf(Hook.class);
+            for (Hook hook : values()) {
+                if (isOverridden(type, StatelessFilter.class,
+                        hook.statelessMethod, hook.statelessParameters))
+                    result.add(hook);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns true if the specified method is declared in the specified type
+     * or in one of its ancestors below the base class.
+     */
+    private static boolean isOverridden(Class<?> type, Class<?> base,
+            String name, Class<?>... parameterTypes) {
+        for (Class<?> c = type; c != base && c != null; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(name, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // continue with the superclass
+            }
+        }
+        return false;
+    }
+
+    private static final class Stage {
+        private final Filter filter;
+        /**
+         * The filter itself if it is stateless and can be called directly,
+         * null if a session must be created for each mail transaction.
+         */
+        private final StatelessFilter statelessFilter;
+        /**
+         * The hooks overridden by the stateless filter, null for stateful
+         * filters, their hooks are determined by the class of their sessions.
+         */
+        private final EnumSet<Hook> statelessHooks;
+        /**
+         * Null if the pipeline is not measured.
+         */
+        private final StageMetrics metrics;
+
+        Stage(Filter filter, StageMetrics metrics) {
+            this.filter = filter;
+            this.metrics = metrics;
+            if (filter instanceof StatelessFilter
+                    && !isOverridden(filter.getClass(), StatelessFilter.class,
+                            "createSession")) {
+                statelessFilter = (StatelessFilter) filter;
+                statelessHooks =
+                        Hook.overriddenByStatelessFilter(filter.getClass());
+            } else {
+                statelessFilter = null;
+                statelessHooks = null;
+            }
+        }
+    }
+
+    private enum Outcome {
+        PASSED, ACCEPTED, REJECTED, FAILED
+    }
+
+    /**
+     * The metrics of the hooks of a single filter.
+     */
+    private static final class StageMetrics {
+        private final Timer[] latencies = new Timer[Hook.values().length];
+        private final Meter[] rejections = new Meter[Hook.values().length];
+        private final Meter[] failures = new Meter[Hook.values().length];
+        private final Meter acceptances;
+
+        StageMetrics(String chainName, String filterName) {
+            for (Hook hook : Hook.values()) {
+                if (!hook.isStep())
+                    continue;
+                String prefix = filterName + "." + hook.sessionMethod;
+                latencies[hook.ordinal()] =
+                        Metrics.newTimer(
+                                metricName(chainName, prefix + ".latency"),
+                                TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+                rejections[hook.ordinal()] =
+                        Metrics.newMeter(
+                                metricName(chainName, prefix + ".rejections"),
+                                "calls", TimeUnit.MINUTES);
+                failures[hook.ordinal()] =
+                        Metrics.newMeter(
+                                metricName(chainName, prefix + ".exceptions"),
+                                "calls", TimeUnit.MINUTES);
+            }
+            acceptances =
+                    Metrics.newMeter(metricName(chainName, filterName
+                            + ".verifyRecipient.acceptances"), "recipients",
+                            TimeUnit.MINUTES);
+        }
+
+        private static MetricName metricName(String chainName, String name) {
+            return new MetricName("mireka", "FilterChain", name, chainName);
+        }
+
+        void record(Hook hook, long nanos, Outcome outcome) {
+            latencies[hook.ordinal()].update(nanos, TimeUnit.NANOSECONDS);
+            switch (outcome) {
+            case PASSED:
+                break;
+            case ACCEPTED:
+                acceptances.mark();
+                break;
+            case REJECTED:
+                rejections[hook.ordinal()].mark();
+                break;
+            case FAILED:
+                failures[hook.ordinal()].mark();
+                break;
+            default:
+                throw new AssertionException();
+            }
+        }
+    }
+
+    /**
+     * Transaction passes the events of a single mail transaction through the
+     * pipeline. Stateful filter sessions, which explicitly call their next
+     * link, are linked to a lightweight object which continues the dispatch at
+     * the following stage.
+     */
+    public final class Transaction {
+        private final MailTransaction transaction;
+        /**
+         * Filter sessions by stage index, null for stateless stages.
+         */
+        private final FilterSession[] sessions;
+        private final EnumSet<?>[] hooks;
+        /**
+         * The start time of the running call by stage index, null if the
+         * pipeline is not measured. A stage occurs at most once in the nested
+         * calls of a single event, so it can be indexed by stage.
+         */
+        private final long[] startTimes;
+        /**
+         * The value of {@link #downstreamNanos} before the running call by
+         * stage index, null if the pipeline is not measured.
+         */
+        private final long[] savedDownstreamNanos;
+        /**
+         * The time spent in the following stages during the running call of a
+         * stateful session.
+         */
+        private long downstreamNanos;
+        /**
+         * The last exception which was thrown by a following stage and which
+         * passed through a continuation, it must not be attributed to the
+         * filter which called its next link.
+         */
+        private Throwable downstreamException;
+        /**
+         * True if the following stages accepted the recipient in the running
+         * verifyRecipient call of a stateful session.
+         */
+        private boolean downstreamAccepted;
+
+        private Transaction(MailTransaction transaction) {
+            this.transaction = transaction;
+            if (measured) {
+                startTimes = new long[stages.length];
+                savedDownstreamNanos = new long[stages.length];
+            } else {
+                startTimes = null;
+                savedDownstreamNanos = null;
+            }
+            if (!hasStatefulStage) {
+                sessions = null;
+                hooks = null;
+                return;
+            }
+            sessions = new FilterSession[stages.length];
+            hooks = new EnumSet<?>[stages.length];
+            for (int i = 0; i < stages.length; i++) {
+                if (stages[i].statelessFilter != null) {
+                    hooks[i] = stages[i].statelessHooks;
+                } else {
+                    FilterSession session = stages[i].filter.createSession();
+                    session.setNextLink(new Continuation(i + 1));
+                    session.setMailTransaction(transaction);
+                    sessions[i] = session;
+                    hooks[i] = SESSION_HOOKS.get(session.getClass());
+                }
+            }
+        }
+
+        private boolean implementsHook(int i, Hook hook) {
+            if (hooks == null)
+                return stages[i].statelessHooks.contains(hook);
+            return hooks[i].contains(hook);
+        }
+
+        private void enter(int i) {
+            if (startTimes == null)
+                return;
+            savedDownstreamNanos[i] = downstreamNanos;
+            downstreamNanos = 0;
+            startTimes[i] = System.nanoTime();
+        }
+
+        private void exit(int i, Hook hook, Outcome outcome) {
+            if (startTimes == null)
+                return;
+            long nanos = System.nanoTime() - startTimes[i] - downstreamNanos;
+            downstreamNanos = savedDownstreamNanos[i];
+            stages[i].metrics.record(hook, nanos, outcome);
+        }
+
+        private Outcome outcomeOf(Throwable e, Outcome ownOutcome) {
+            return e == downstreamException ? Outcome.PASSED : ownOutcome;
+        }
+
+        /**
+         * Calls the begin hook on all filters, from the end of the chain
+         * towards its head.
+         */
+        public void begin() {
+            for (int i = stages.length - 1; i >= 0; i--) {
+                if (!implementsHook(i, Hook.BEGIN))
+                    continue;
+                if (stages[i].statelessFilter != null)
+                    stages[i].statelessFilter.begin(transaction);
+                else
+                    sessions[i].begin();
+            }
+        }
+
+        public void from() throws RejectExceptionExt {
+            from(0);
+        }
+
+        private void from(int start) throws RejectExceptionExt {
+            for (int i = start; i < stages.length; i++) {
+                if (!implementsHook(i, Hook.FROM))
+                    continue;
+                Outcome outcome = Outcome.FAILED;
+                enter(i);
+                try {
+                    if (stages[i].statelessFilter == null) {
+                        sessions[i].from();
+                        outcome = Outcome.PASSED;
+                        return;
+                    }
+                    stages[i].statelessFilter.from(transaction);
+                    outcome = Outcome.PASSED;
+                } catch (RejectExceptionExt e) {
+                    outcome = outcomeOf(e, Outcome.REJECTED);
+                    throw e;
+                } catch (RuntimeException e) {
+                    outcome = outcomeOf(e, Outcome.FAILED);
+                    throw e;
+                } finally {
+                    exit(i, Hook.FROM, outcome);
+                }
+            }
+        }
+
+        public RecipientVerificationResult verifyRecipient(
+                RecipientContext recipientContext) throws RejectExceptionExt {
+            return verifyRecipient(0, recipientContext);
+        }
+
+        private RecipientVerificationResult verifyRecipient(int start,
+                RecipientContext recipientContext) throws RejectExceptionExt {
+            for (int i = start; i < stages.length; i++) {
+                if (!implementsHook(i, Hook.VERIFY_RECIPIENT))
+                    continue;
+                Outcome outcome = Outcome.FAILED;
+                enter(i);
+                try {
+                    RecipientVerificationResult result;
+                    if (stages[i].statelessFilter == null) {
+                        downstreamAccepted = false;
+                        result = sessions[i].verifyRecipient(recipientContext);
+                        outcome =
+                                result == RecipientVerificationResult.ACCEPT
+                                        && !downstreamAccepted ? Outcome.ACCEPTED
+                                        : Outcome.PASSED;
+                        return result;
+                    }
+                    result =
+                            stages[i].statelessFilter.verifyRecipient(
+                                    transaction, recipientContext);
+                    switch (result) {
+                    case ACCEPT:
+                        outcome = Outcome.ACCEPTED;
+                        return RecipientVerificationResult.ACCEPT;
+                    case NEUTRAL:
+                        outcome = Outcome.PASSED;
+                        break;
+                    default:
+                        throw new AssertionException();
+                    }
+                } catch (RejectExceptionExt e) {
+                    outcome = outcomeOf(e, Outcome.REJECTED);
+                    throw e;
+                } catch (RuntimeException e) {
+                    outcome = outcomeOf(e, Outcome.FAILED);
+                    throw e;
+                } finally {
+                    exit(i, Hook.VERIFY_RECIPIENT, outcome);
+                }
+            }
+            return RecipientVerificationResult.NEUTRAL;
+        }
+
+        public void recipient(RecipientContext recipientContext)
+                throws RejectExceptionExt {
+            recipient(0, recipientContext);
+        }
+
+        private void recipient(int start, RecipientContext recipientContext)
+                throws RejectExceptionExt {
+            for (int i = start; i < stages.length; i++) {
+                if (!implementsHook(i, Hook.RECIPIENT))
+                    continue;
+                Outcome outcome = Outcome.FAILED;
+                enter(i);
+                try {
+                    if (stages[i].statelessFilter == null) {
+                        sessions[i].recipient(recipientContext);
+                        outcome = Outcome.PASSED;
+                        return;
+                    }
+                    stages[i].statelessFilter.recipient(transaction,
+                            recipientContext);
+                    outcome = Outcome.PASSED;
+                } catch (RejectExceptionExt e) {
+                    outcome = outcomeOf(e, Outcome.REJECTED);
+                    throw e;
+                } catch (RuntimeException e) {
+                    outcome = outcomeOf(e, Outcome.FAILED);
+                    throw e;
+                } finally {
+                    exit(i, Hook.RECIPIENT, outcome);
+                }
+            }
+        }
+
+        public void dataStream() {
+            dataStream(0);
+        }
+
+        private void dataStream(int start) {
+            for (int i = start; i < stages.length; i++) {
+                if (!implementsHook(i, Hook.DATA_STREAM))
+                    continue;
+                Outcome outcome = Outcome.FAILED;
+                enter(i);
+                try {
+                    if (stages[i].statelessFilter == null) {
+                        sessions[i].dataStream();
+                        outcome = Outcome.PASSED;
+                        return;
+                    }
+                    stages[i].statelessFilter.dataStream(transaction);
+                    outcome = Outcome.PASSED;
+                } catch (RuntimeException e) {
+                    outcome = outcomeOf(e, Outcome.FAILED);
+                    throw e;
+                } finally {
+                    exit(i, Hook.DATA_STREAM, outcome);
+                }
+            }
+        }
+
+        public void data() throws RejectExceptionExt,
+                MaildataFileReadException {
+            data(0);
+        }
+
+        private void data(int start) throws RejectExceptionExt,
+                MaildataFileReadException {
+            for (int i = start; i < stages.length; i++) {
+                if (!implementsHook(i, Hook.DATA))
+                    continue;
+                Outcome outcome = Outcome.FAILED;
+                enter(i);
+                try {
+                    if (stages[i].statelessFilter == null) {
+                        sessions[i].data();
+                        outcome = Outcome.PASSED;
+                        return;
+                    }
+                    stages[i].statelessFilter.data(transaction);
+                    outcome = Outcome.PASSED;
+                } catch (RejectExceptionExt e) {
+                    outcome = outcomeOf(e, Outcome.REJECTED);
+                    throw e;
+                } catch (RuntimeException e) {
+                    outcome = outcomeOf(e, Outcome.FAILED);
+                    throw e;
+                } finally {
+                    exit(i, Hook.DATA, outcome);
+                }
+            }
+        }
+
+        /**
+         * Calls the close hook on all filters, from the end of the chain
+         * towards its head, even if one or more of them fails.
+         */
+        public void close() {
+            for (int i = stages.length - 1; i >= 0; i--) {
+                if (!implementsHook(i, Hook.CLOSE))
+                    continue;
+                try {
+                    if (stages[i].statelessFilter != null)
+                        stages[i].statelessFilter.done(transaction);
+                    else
+                        sessions[i].close();
+                } catch (RuntimeException e) {
+                    logger.error("Exception in done method of filter. "
+                            + "done method of other filters will still run.",
+                            e);
+                }
+            }
+        }
+
+        /**
+         * Continuation is the next link of a stateful filter session, it
+         * continues the dispatch of the event at the specified stage. If the
+         * pipeline is measured, then it also records the time spent and the
+         * exceptions thrown in the following stages, so they are not
+         * attributed to the calling filter.
+         */
+        private final class Continuation extends FilterSession {
+            private final int start;
+
+            Continuation(int start) {
+                this.start = start;
+            }
+
+            private long startTime() {
+                return startTimes == null ? 0 : System.nanoTime();
+            }
+
+            private void addDownstreamTime(long startTime) {
+                if (startTimes != null)
+                    downstreamNanos += System.nanoTime() - startTime;
+            }
+
+            @Override
+            public void from() throws RejectExceptionExt {
+                long startTime = startTime();
+                try {
+                    Transaction.this.from(start);
+                } catch (RejectExceptionExt | RuntimeException e) {
+                    downstreamException = e;
+                    throw e;
+                } finally {
+                    addDownstreamTime(startTime);
+                }
+            }
+
+            @Override
+            public RecipientVerificationResult verifyRecipient(
+                    RecipientContext recipientContext)
+                    throws RejectExceptionExt {
+                long startTime = startTime();
+                try {
+                    RecipientVerificationResult result =
+                            Transaction.this.verifyRecipient(start,
+                                    recipientContext);
+                    downstreamAccepted =
+                            result == RecipientVerificationResult.ACCEPT;
+                    return result;
+                } catch (RejectExceptionExt | RuntimeException e) {
+                    downstreamException = e;
+                    throw e;
+                } finally {
+                    addDownstreamTime(startTime);
+                }
+            }
+
+            @Override
+            public void recipient(RecipientContext recipientContext)
+                    throws RejectExceptionExt {
+                long startTime = startTime();
+                try {
+                    Transaction.this.recipient(start, recipientContext);
+                } catch (RejectExceptionExt | RuntimeException e) {
+                    downstreamException = e;
+                    throw e;
+                } finally {
+                    addDownstreamTime(startTime);
+                }
+            }
+
+            @Override
+            public void dataStream() {
+                long startTime = startTime();
+                try {
+                    Transaction.this.dataStream(start);
+                } catch (RuntimeException e) {
+                    downstreamException = e;
+                    throw e;
+                } finally {
+                    addDownstreamTime(startTime);
+                }
+            }
+
+            @Override
+            public void data() throws RejectExceptionExt,
+                    MaildataFileReadException {
+                long startTime = startTime();
+                try {
+                    Transaction.this.data(start);
+                } catch (RejectExceptionExt | RuntimeException e) {
+                    downstreamException = e;
+                    throw e;
+                } finally {
+                    addDownstreamTime(startTime);
+                }
+            }
+        }
+    }
+}
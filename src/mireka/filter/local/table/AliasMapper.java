@@ -13,7 +13,7 @@ import mireka.smtp.address.Recipient;
  * AliasMapper is a convenience class used in configuration files to create an
  * alias. It maps a mail address to an {@link AliasDestination}.
  */
-public class AliasMapper implements RecipientDestinationMapper {
+public class AliasMapper implements IndexableRecipientDestinationMapper {
     private final List<RecipientSpecification> aliases =
             new ArrayList<RecipientSpecification>();
     private AliasDestination destination;
@@ -28,6 +28,12 @@ public class AliasMapper implements RecipientDestinationMapper {
         return null;
     }
 
+    @Override
+    public void addTo(RecipientIndex.Builder<Destination> builder) {
+        for (RecipientSpecification alias : aliases)
+            builder.addSpecification(alias, destination);
+    }
+
     /**
      * GETSET
      */
@@ -7,7 +7,7 @@ import mireka.smtp.address.Recipient;
  * irrespective of the remote part. It can even match the special global
  * postmaster address which has no remote part at all.
  */
-public class AnyDomainRecipient implements RecipientSpecification {
+public class AnyDomainRecipient implements IndexableRecipientSpecification {
     private LocalPartSpecification localPart;
 
     @Override
@@ -15,6 +15,19 @@ public class AnyDomainRecipient implements RecipientSpecification {
         return localPart.isSatisfiedBy(recipient.localPart());
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        if (localPart instanceof CaseInsensitiveLocalPartSpecification)
+            builder.addAnyDomainLocalPart(
+                    ((CaseInsensitiveLocalPartSpecification) localPart)
+                            .getValue(), value);
+        else if (localPart instanceof RegexLocalPart)
+            builder.addPatternSpecification(null,
+                    ((RegexLocalPart) localPart).getPattern(), this, value);
+        else
+            builder.addScannedSpecification(this, value);
+    }
+
     /**
      * @x.category GETSET
      */
@@ -6,10 +6,15 @@ import mireka.smtp.address.Recipient;
  * AnyPostmaster matches the special "Postmaster" (without remote part) and
  * "Postmaster@..." type of addresses, irrespective of their remote part.
  */
-public class AnyPostmaster implements RecipientSpecification {
+public class AnyPostmaster implements IndexableRecipientSpecification {
 
     @Override
     public boolean isSatisfiedBy(Recipient recipient) {
         return recipient.isPostmaster();
     }
+
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        builder.addAnyPostmaster(value);
+    }
 }
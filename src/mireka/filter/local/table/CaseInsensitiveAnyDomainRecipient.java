@@ -9,7 +9,7 @@ import mireka.smtp.address.Recipient;
  * postmaster address which has no remote part at all.
  */
 public class CaseInsensitiveAnyDomainRecipient implements
-        RecipientSpecification {
+        IndexableRecipientSpecification {
     private CaseInsensitiveLocalPartSpecification localPart;
 
     @Override
@@ -17,6 +17,11 @@ public class CaseInsensitiveAnyDomainRecipient implements
         return localPart.isSatisfiedBy(recipient.localPart());
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        builder.addAnyDomainLocalPart(localPart.getValue(), value);
+    }
+
     /**
      * @x.category GETSET
      */
@@ -34,6 +34,10 @@ public class CaseInsensitiveLocalPartSpecification implements
         return recipientLocalPartInLowerCase.equals(unescapedTextInLowerCase);
     }
 
+    public String getValue() {
+        return unescapedText;
+    }
+
     public void setValue(String displayableName) {
         this.unescapedText = displayableName;
         this.unescapedTextInLowerCase = displayableName.toLowerCase(Locale.US);
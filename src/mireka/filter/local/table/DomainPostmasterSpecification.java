@@ -8,7 +8,8 @@ import mireka.smtp.address.RemotePart;
  * DomainPostmasterSpecification matches the domain postmaster of the supplied
  * remote part.
  */
-public class DomainPostmasterSpecification implements RecipientSpecification {
+public class DomainPostmasterSpecification implements
+        IndexableRecipientSpecification {
     private RemotePart remotePart;
 
     @Override
@@ -20,6 +21,11 @@ public class DomainPostmasterSpecification implements RecipientSpecification {
         return remotePart.equals(recipientRemotePart);
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        builder.addDomainPostmaster(remotePart, value);
+    }
+
     /**
      * @x.category GETSET
      */
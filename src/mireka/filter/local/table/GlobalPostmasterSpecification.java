@@ -8,11 +8,17 @@ import mireka.smtp.address.Recipient;
  * recipient, i.e a recipient case insensitively named "Postmaster" (without any
  * remote part).
  */
-public class GlobalPostmasterSpecification implements RecipientSpecification {
+public class GlobalPostmasterSpecification implements
+        IndexableRecipientSpecification {
 
     @Override
     public boolean isSatisfiedBy(Recipient recipient) {
         return recipient instanceof GlobalPostmaster;
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        builder.addGlobalPostmaster(value);
+    }
+
 }
@@ -0,0 +1,18 @@
+package mireka.filter.local.table;
+
+import mireka.destination.Destination;
+
+/**
+ * An IndexableRecipientDestinationMapper is able to describe its mappings by
+ * keys of a {@link RecipientIndex}, so a {@link RecipientTable} can find the
+ * destination of a recipient by hash lookups instead of asking each mapper in
+ * turn.
+ */
+public interface IndexableRecipientDestinationMapper extends
+        RecipientDestinationMapper {
+    /**
+     * Adds the mappings of this object to the index, in the order in which
+     * {@link #lookup(mireka.smtp.address.Recipient)} would examine them.
+     */
+    void addTo(RecipientIndex.Builder<Destination> builder);
+}
@@ -0,0 +1,18 @@
+package mireka.filter.local.table;
+
+/**
+ * An IndexableRecipientSpecification is able to describe the recipients which
+ * it matches by keys of a {@link RecipientIndex}, so a collection of
+ * specifications can find the matching one by hash lookups instead of asking
+ * each element in turn.
+ */
+public interface IndexableRecipientSpecification extends
+        RecipientSpecification {
+    /**
+     * Adds the keys describing this specification to the index, each key is
+     * associated with the supplied value. The keys must be added in the order
+     * in which {@link #isSatisfiedBy(mireka.smtp.address.Recipient)} would
+     * examine them.
+     */
+    <T> void addTo(RecipientIndex.Builder<T> builder, T value);
+}
@@ -7,25 +7,38 @@ import mireka.smtp.address.Recipient;
 
 /**
  * InlineRecipientRegistry is a convenience class, it makes easy to specify
- * valid addresses in the configuration files.
+ * valid addresses in the configuration files. The addresses are compiled into
+ * a {@link RecipientIndex} on the first use.
  */
-public class InlineRecipientRegistry implements RecipientSpecification {
+public class InlineRecipientRegistry implements
+        IndexableRecipientSpecification {
     private final List<RecipientSpecification> recipientSpecifications =
             new ArrayList<RecipientSpecification>();
+    private volatile RecipientIndex<Boolean> index;
 
     @Override
     public boolean isSatisfiedBy(Recipient recipient) {
-        for (RecipientSpecification specification : recipientSpecifications) {
-            if (specification.isSatisfiedBy(recipient))
-                return true;
+        RecipientIndex<Boolean> index = this.index;
+        if (index == null) {
+            RecipientIndex.Builder<Boolean> builder =
+                    new RecipientIndex.Builder<Boolean>();
+            addTo(builder, Boolean.TRUE);
+            this.index = index = builder.build();
         }
-        return false;
+        return index.lookup(recipient) != null;
+    }
+
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        for (RecipientSpecification specification : recipientSpecifications)
+            builder.addSpecification(specification, value);
     }
 
     public void addAddress(String address) {
         RecipientSpecification specification =
                 new RecipientSpecificationFactory().create(address);
         recipientSpecifications.add(specification);
+        index = null;
     }
 
     public void setAddresses(List<String> addresses) {
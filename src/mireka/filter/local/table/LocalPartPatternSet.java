@@ -0,0 +1,330 @@
+package mireka.filter.local.table;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * LocalPartPatternSet preselects those regular expressions of an ordered list
+ * which may match a local part, so the rest of them need not be executed. A
+ * literal text which must be present in every matching input is extracted
+ * from each expression, and the literals of all expressions are compiled into
+ * a single Aho-Corasick automaton. The automaton finds the literals present in
+ * a local part in a single pass, the expressions whose literal is missing
+ * cannot match. The preselected expressions still have to be confirmed by
+ * executing them.
+ * <p>
+ * Expressions without an extractable literal, for example those containing a
+ * top level alternation, are always preselected. Literals are compared case
+ * insensitively, and only US-ASCII literals are used. If the local part
+ * contains a non US-ASCII character, then all expressions are preselected,
+ * because Unicode case folding may map such characters to ASCII ones.
+ */
+@ThreadSafe
+class LocalPartPatternSet {
+    private final int patternCount;
+    /**
+     * Expressions without literal.
+     */
+    private final BitSet unfiltered = new BitSet();
+    /**
+     * Maps US-ASCII characters to the alphabet of the automaton, characters
+     * which do not occur in any literal are mapped to 0.
+     */
+    private final int[] alphabet = new int[128];
+    /**
+     * The transitions of the automaton, indexed by state, then by the
+     * alphabet index of the next character. State 0 is the initial state.
+     */
+    private int[][] transitions;
+    /**
+     * The indexes of the expressions whose literal ends in a state, including
+     * the literals which are suffixes of the text matched by the state. Null
+     * if no literal ends in the state.
+     */
+    private int[][] outputs;
+
+    LocalPartPatternSet(List<Pattern> patterns) {
+        this.patternCount = patterns.size();
+        Map<String, List<Integer>> literals =
+                new HashMap<String, List<Integer>>();
+        for (int i = 0; i < patterns.size(); i++) {
+            String literal = requiredLiteral(patterns.get(i));
+            if (literal == null) {
+                unfiltered.set(i);
+                continue;
+            }
+            List<Integer> list = literals.get(literal);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                literals.put(literal, list);
+            }
+            list.add(i);
+        }
+        buildAutomaton(literals);
+    }
+
+    private void buildAutomaton(Map<String, List<Integer>> literals) {
+        int alphabetSize = 1;
+        int stateLimit = 1;
+        for (String literal : literals.keySet()) {
+            stateLimit += literal.length();
+            for (int i = 0; i < literal.length(); i++) {
+                char ch = literal.charAt(i);
+                if (alphabet[ch] == 0)
+                    alphabet[ch] = alphabetSize++;
+            }
+        }
+        int[][] trie = new int[stateLimit][alphabetSize];
+        List<List<Integer>> stateOutputs = new ArrayList<List<Integer>>();
+        stateOutputs.add(null);
+        int stateCount = 1;
+        for (Map.Entry<String, List<Integer>> entry : literals.entrySet()) {
+            String literal = entry.getKey();
+            int state = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                int symbol = alphabet[literal.charAt(i)];
+                if (trie[state][symbol] == 0) {
+                    trie[state][symbol] = stateCount++;
+                    stateOutputs.add(null);
+                }
+                state = trie[state][symbol];
+            }
+            List<Integer> output = stateOutputs.get(state);
+            if (output == null) {
+                output = new ArrayList<Integer>();
+                stateOutputs.set(state, output);
+            }
+            output.addAll(entry.getValue());
+        }
+
+        // breadth first traversal, which turns the trie into a deterministic
+        // automaton by following the failure links
+        int[] failure = new int[stateCount];
+        Queue<Integer> queue = new LinkedList<Integer>();
+        for (int symbol = 1; symbol < alphabetSize; symbol++) {
+            int next = trie[0][symbol];
+            if (next != 0)
+                queue.add(next);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            List<Integer> inherited = stateOutputs.get(failure[state]);
+            if (inherited != null) {
+                List<Integer> output = stateOutputs.get(state);
+                if (output == null) {
+                    output = new ArrayList<Integer>();
+                    stateOutputs.set(state, output);
+                }
+                output.addAll(inherited);
+            }
+            for (int symbol = 1; symbol < alphabetSize; symbol++) {
+                int next = trie[state][symbol];
+                if (next != 0) {
+                    failure[next] = trie[failure[state]][symbol];
+                    queue.add(next);
+                } else {
+                    trie[state][symbol] = trie[failure[state]][symbol];
+                }
+            }
+        }
+
+        transitions = new int[stateCount][];
+        outputs = new int[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            transitions[state] = trie[state];
+            List<Integer> output = stateOutputs.get(state);
+            if (output != null) {
+                outputs[state] = new int[output.size()];
+                for (int i = 0; i < output.size(); i++)
+                    outputs[state][i] = output.get(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the indexes of the expressions which may match the local part.
+     */
+    BitSet candidates(String localPart) {
+        BitSet result = (BitSet) unfiltered.clone();
+        int state = 0;
+        for (int i = 0; i < localPart.length(); i++) {
+            char ch = localPart.charAt(i);
+            if (ch >= 128) {
+                result.set(0, patternCount);
+                return result;
+            }
+            if (ch >= 'A' && ch <= 'Z')
+                ch += 'a' - 'A';
+            state = transitions[state][alphabet[ch]];
+            int[] output = outputs[state];
+            if (output != null) {
+                for (int pattern : output)
+                    result.set(pattern);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The alphanumeric escapes which consist of the backslash and a single
+     * character, like the predefined character classes, boundary matchers
+     * and control characters. Other alphanumeric escapes, like
+     * <code>\x41</code>, <code>\u0041</code>, octal escapes,
+     * <code>\p{Lu}</code> or back references, span more characters.
+     */
+    private static final String SINGLE_CHARACTER_ESCAPES =
+            "dDsSwWhHvVbBAzZGtnrfae";
+
+    /**
+     * Returns the longest literal text in lower case which must be present in
+     * any input matched by the expression, or null if no such literal is
+     * found. The analysis is conservative, it gives up on constructs which
+     * are not simple sequences of characters, including escapes which span
+     * more than one character after the backslash.
+     */
+    static String requiredLiteral(Pattern pattern) {
+        if ((pattern.flags() & (Pattern.COMMENTS | Pattern.LITERAL)) != 0)
+            return null;
+        String regex = pattern.pattern();
+        if (regex.contains("(?") || regex.contains("\\Q"))
+            return null;
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int i = 0;
+        while (i < regex.length()) {
+            char ch = regex.charAt(i);
+            int literal = -1;
+            if (ch == '\\') {
+                if (i + 1 >= regex.length())
+                    return null;
+                char escaped = regex.charAt(i + 1);
+                if (!Character.isLetterOrDigit(escaped))
+                    literal = escaped;
+                else if (SINGLE_CHARACTER_ESCAPES.indexOf(escaped) == -1)
+                    return null;
+                i += 2;
+            } else if (ch == '[') {
+                i = skipCharacterClass(regex, i);
+            } else if (ch == '(') {
+                i = skipGroup(regex, i);
+            } else if (ch == '|') {
+                return null;
+            } else if (ch == ')' || ch == ']' || ch == '{' || ch == '*'
+                    || ch == '+' || ch == '?') {
+                return null;
+            } else {
+                if (ch != '.' && ch != '^' && ch != '$')
+                    literal = ch;
+                i++;
+            }
+            if (i < 0)
+                return null;
+
+            char quantifier = i < regex.length() ? regex.charAt(i) : 0;
+            boolean optional =
+                    quantifier == '?' || quantifier == '*'
+                            || quantifier == '{';
+            boolean repeated = optional || quantifier == '+';
+            if (literal >= 0 && literal < 128 && !optional) {
+                run.append(Character.toLowerCase((char) literal));
+            } else {
+                best = longer(best, run);
+                run.setLength(0);
+            }
+            if (repeated) {
+                best = longer(best, run);
+                run.setLength(0);
+                i = skipQuantifier(regex, i);
+                if (i < 0)
+                    return null;
+            }
+        }
+        best = longer(best, run);
+        return best.isEmpty() ? null : best;
+    }
+
+    private static String longer(String best, StringBuilder run) {
+        return run.length() > best.length() ? run.toString() : best;
+    }
+
+    /**
+     * Returns the index after the character class starting at the specified
+     * index, or -1 if it is not terminated.
+     */
+    private static int skipCharacterClass(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i += 2;
+                continue;
+            }
+            if (ch == '[') {
+                depth++;
+                i++;
+                if (i < regex.length() && regex.charAt(i) == '^')
+                    i++;
+                if (i < regex.length() && regex.charAt(i) == ']')
+                    i++;
+                continue;
+            }
+            if (ch == ']' && --depth == 0)
+                return i + 1;
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index after the group starting at the specified index, or
+     * -1 if it is not terminated.
+     */
+    private static int skipGroup(String regex, int start) {
+        int depth = 0;
+        int i = start;
+        while (i < regex.length()) {
+            char ch = regex.charAt(i);
+            if (ch == '\\') {
+                i += 2;
+            } else if (ch == '[') {
+                i = skipCharacterClass(regex, i);
+                if (i < 0)
+                    return -1;
+            } else {
+                if (ch == '(')
+                    depth++;
+                else if (ch == ')' && --depth == 0)
+                    return i + 1;
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index after the quantifier starting at the specified index,
+     * including its lazy or possessive modifier, or -1 if it is malformed.
+     */
+    private static int skipQuantifier(String regex, int start) {
+        int i = start;
+        if (regex.charAt(i) == '{') {
+            i = regex.indexOf('}', i);
+            if (i < 0)
+                return -1;
+        }
+        i++;
+        if (i < regex.length()
+                && (regex.charAt(i) == '?' || regex.charAt(i) == '+'))
+            i++;
+        return i;
+    }
+}
@@ -10,7 +10,7 @@ import mireka.smtp.address.RemotePartContainingRecipient;
  * match to satisfy this specification.
  */
 public class LocalRemoteCombinedRecipientSpecification implements
-        RecipientSpecification {
+        IndexableRecipientSpecification {
     private LocalPartSpecification localPartSpecification;
     private RemotePart remotePart;
 
@@ -32,4 +32,18 @@ public class LocalRemoteCombinedRecipientSpecification implements
         return remotePart.equals(recipientRemotePart);
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        if (localPartSpecification instanceof CaseInsensitiveLocalPartSpecification)
+            builder.addMailbox(
+                    ((CaseInsensitiveLocalPartSpecification) localPartSpecification)
+                            .getValue(), remotePart, value);
+        else if (localPartSpecification instanceof RegexLocalPart)
+            builder.addPatternSpecification(remotePart,
+                    ((RegexLocalPart) localPartSpecification).getPattern(),
+                    this, value);
+        else
+            builder.addDomainSpecification(remotePart, this, value);
+    }
+
 }
@@ -12,7 +12,8 @@ import mireka.smtp.address.Recipient;
  * assign a Postmaster alias. It maps the global postmaster and any domain
  * specific postmaster addresses to an {@link AliasDestination}.
  */
-public class PostmasterAliasMapper implements RecipientDestinationMapper {
+public class PostmasterAliasMapper implements
+        IndexableRecipientDestinationMapper {
     private final RecipientSpecification postmasterSpecification =
             new AnyPostmaster();
     private AliasDestination destination;
@@ -23,6 +24,11 @@ public class PostmasterAliasMapper implements RecipientDestinationMapper {
                 : null;
     }
 
+    @Override
+    public void addTo(RecipientIndex.Builder<Destination> builder) {
+        builder.addSpecification(postmasterSpecification, destination);
+    }
+
     /**
      * @x.category GETSET
      */
@@ -7,7 +7,8 @@ import mireka.smtp.address.Recipient;
  * RecipientDestinationPair is a configuration helper object which assigns a
  * destination to a mailbox address which is supplied in text form.
  */
-public class RecipientDestinationPair implements RecipientDestinationMapper {
+public class RecipientDestinationPair implements
+        IndexableRecipientDestinationMapper {
     private RecipientSpecification recipientSpecification;
     private Destination destination;
 
@@ -18,6 +19,11 @@ public class RecipientDestinationPair implements RecipientDestinationMapper {
         return null;
     }
 
+    @Override
+    public void addTo(RecipientIndex.Builder<Destination> builder) {
+        builder.addSpecification(recipientSpecification, destination);
+    }
+
     public void setRecipient(String recipient) {
         this.recipientSpecification =
                 new RecipientSpecificationFactory().create(recipient);
@@ -0,0 +1,353 @@
+package mireka.filter.local.table;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.smtp.address.GlobalPostmaster;
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.RemotePart;
+import mireka.smtp.address.RemotePartContainingRecipient;
+
+/**
+ * RecipientIndex is a compiled form of an ordered list of recipient
+ * specifications or mappers, it returns the same value for a recipient as the
+ * first matching element of the list would return. Case insensitive mailbox
+ * addresses and local parts are stored in hash maps, mailboxes are grouped by
+ * their remote part. Only those elements are asked one by one which cannot be
+ * described by keys, for example regular expressions, and even these are only
+ * asked if they precede the best match found by the hash lookups. Elements
+ * which are bound to a specific remote part are only asked if the recipient
+ * has that remote part. Regular expressions on the local part are preselected
+ * together by a {@link LocalPartPatternSet}, so only those are executed which
+ * may match.
+ * <p>
+ * An index is created by a {@link Builder}, it cannot be changed later.
+ *
+ * @param <T>
+ *            the type of the values associated with the keys
+ */
+@ThreadSafe
+public class RecipientIndex<T> {
+    private final Map<String, Entry<T>> anyDomainLocalParts;
+    private final Entry<T> globalPostmaster;
+    private final Entry<T> anyPostmaster;
+    private final Map<RemotePart, DomainIndex<T>> domains;
+    private final ScanList<T> fallbacks;
+
+    private RecipientIndex(Builder<T> builder) {
+        this.anyDomainLocalParts = builder.anyDomainLocalParts;
+        this.globalPostmaster = builder.globalPostmaster;
+        this.anyPostmaster = builder.anyPostmaster;
+        this.domains = builder.domains;
+        this.fallbacks = builder.fallbacks;
+    }
+
+    /**
+     * Returns the value of the first element which matches the recipient, or
+     * null if none of them matches.
+     */
+    public T lookup(Recipient recipient) {
+        String localPart =
+                recipient.localPart().displayableName().toLowerCase(Locale.US);
+        Entry<T> best = anyDomainLocalParts.get(localPart);
+        if (recipient.isPostmaster())
+            best = earlier(best, anyPostmaster);
+        if (recipient instanceof GlobalPostmaster)
+            best = earlier(best, globalPostmaster);
+        if (recipient instanceof RemotePartContainingRecipient) {
+            RemotePart remotePart =
+                    ((RemotePartContainingRecipient) recipient).getMailbox()
+                            .getRemotePart();
+            DomainIndex<T> domain = domains.get(remotePart);
+            if (domain != null) {
+                best = earlier(best, domain.mailboxes.get(localPart));
+                if (recipient.isDomainPostmaster())
+                    best = earlier(best, domain.postmaster);
+                best = scan(domain.fallbacks, best, recipient);
+            }
+        }
+        best = scan(fallbacks, best, recipient);
+        return best == null ? null : best.value;
+    }
+
+    private static <T> Entry<T> earlier(Entry<T> a, Entry<T> b) {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        return a.position <= b.position ? a : b;
+    }
+
+    /**
+     * Asks the ordered fallback elements which precede the current best
+     * match, and returns the first matching one, or the current best match if
+     * none of them matches.
+     */
+    private static <T> Entry<T> scan(ScanList<T> list, Entry<T> best,
+            Recipient recipient) {
+        BitSet candidates = null;
+        for (int i = 0; i < list.entries.size(); i++) {
+            FallbackEntry<T> entry = list.entries.get(i);
+            if (best != null && entry.position >= best.position)
+                break;
+            if (entry.pattern >= 0) {
+                if (candidates == null)
+                    candidates =
+                            list.patternSet.candidates(recipient.localPart()
+                                    .displayableName());
+                if (!candidates.get(entry.pattern))
+                    continue;
+            }
+            T value = entry.fallback.lookup(recipient);
+            if (value != null)
+                return new Entry<T>(entry.position, value);
+        }
+        return best;
+    }
+
+    /**
+     * Fallback is an element of the index which cannot be described by keys,
+     * it is asked directly if it is relevant for a recipient.
+     */
+    public interface Fallback<T> {
+        /**
+         * Returns the value associated with the recipient, or null if this
+         * element does not match the recipient.
+         */
+        T lookup(Recipient recipient);
+    }
+
+    /**
+     * Builder collects the keys of a {@link RecipientIndex}. The order of the
+     * add calls is significant, if a recipient matches more than one key, then
+     * the value of the key which was added first is returned.
+     */
+    @NotThreadSafe
+    public static class Builder<T> {
+        private final Map<String, Entry<T>> anyDomainLocalParts =
+                new HashMap<String, Entry<T>>();
+        private Entry<T> globalPostmaster;
+        private Entry<T> anyPostmaster;
+        private final Map<RemotePart, DomainIndex<T>> domains =
+                new HashMap<RemotePart, DomainIndex<T>>();
+        private final ScanList<T> fallbacks = new ScanList<T>();
+        private int position;
+
+        /**
+         * Adds a mailbox address, the local part is case insensitive.
+         */
+        public void addMailbox(String localPart, RemotePart remotePart,
+                T value) {
+            putIfAbsent(domain(remotePart).mailboxes, lowerCase(localPart),
+                    value);
+        }
+
+        /**
+         * Adds a local part which is matched case insensitively irrespective
+         * of the remote part, even in case of the global postmaster.
+         */
+        public void addAnyDomainLocalPart(String localPart, T value) {
+            putIfAbsent(anyDomainLocalParts, lowerCase(localPart), value);
+        }
+
+        /**
+         * Adds the postmaster address of a domain.
+         */
+        public void addDomainPostmaster(RemotePart remotePart, T value) {
+            DomainIndex<T> domain = domain(remotePart);
+            if (domain.postmaster == null)
+                domain.postmaster = new Entry<T>(position, value);
+            position++;
+        }
+
+        /**
+         * Adds the special "Postmaster" recipient which has no remote part.
+         */
+        public void addGlobalPostmaster(T value) {
+            if (globalPostmaster == null)
+                globalPostmaster = new Entry<T>(position, value);
+            position++;
+        }
+
+        /**
+         * Adds the global and all domain postmaster addresses.
+         */
+        public void addAnyPostmaster(T value) {
+            if (anyPostmaster == null)
+                anyPostmaster = new Entry<T>(position, value);
+            position++;
+        }
+
+        /**
+         * Adds a specification, if it is an
+         * {@link IndexableRecipientSpecification} then its own keys are
+         * added, otherwise it will be asked directly during lookups.
+         */
+        public void addSpecification(RecipientSpecification specification,
+                T value) {
+            if (specification instanceof IndexableRecipientSpecification)
+                ((IndexableRecipientSpecification) specification).addTo(this,
+                        value);
+            else
+                addScannedSpecification(specification, value);
+        }
+
+        /**
+         * Adds a specification which will be asked directly during lookups.
+         */
+        public void addScannedSpecification(
+                RecipientSpecification specification, T value) {
+            addFallback(new SpecificationFallback<T>(specification, value));
+        }
+
+        /**
+         * Adds a specification which can only match recipients having the
+         * specified remote part, it will be asked directly during lookups,
+         * but only for recipients with that remote part.
+         */
+        public void addDomainSpecification(RemotePart remotePart,
+                RecipientSpecification specification, T value) {
+            domain(remotePart).fallbacks.add(position,
+                    new SpecificationFallback<T>(specification, value));
+            position++;
+        }
+
+        /**
+         * Adds a specification which can only match recipients whose local
+         * part matches the specified regular expression. If the remote part
+         * is not null, then it can only match recipients having that remote
+         * part. The specification will be asked directly during lookups, but
+         * only if the expression may match according to a
+         * {@link LocalPartPatternSet}.
+         */
+        public void addPatternSpecification(RemotePart remotePart,
+                Pattern localPartPattern,
+                RecipientSpecification specification, T value) {
+            ScanList<T> list =
+                    remotePart == null ? fallbacks
+                            : domain(remotePart).fallbacks;
+            list.addPattern(position, localPartPattern,
+                    new SpecificationFallback<T>(specification, value));
+            position++;
+        }
+
+        /**
+         * Adds an element which will be asked directly during lookups.
+         */
+        public void addFallback(Fallback<T> fallback) {
+            fallbacks.add(position, fallback);
+            position++;
+        }
+
+        public RecipientIndex<T> build() {
+            fallbacks.compile();
+            for (DomainIndex<T> domain : domains.values())
+                domain.fallbacks.compile();
+            return new RecipientIndex<T>(this);
+        }
+
+        private DomainIndex<T> domain(RemotePart remotePart) {
+            DomainIndex<T> domain = domains.get(remotePart);
+            if (domain == null) {
+                domain = new DomainIndex<T>();
+                domains.put(remotePart, domain);
+            }
+            return domain;
+        }
+
+        private void putIfAbsent(Map<String, Entry<T>> map, String key,
+                T value) {
+            if (!map.containsKey(key))
+                map.put(key, new Entry<T>(position, value));
+            position++;
+        }
+
+        private String lowerCase(String localPart) {
+            return localPart.toLowerCase(Locale.US);
+        }
+    }
+
+    private static class DomainIndex<T> {
+        final Map<String, Entry<T>> mailboxes =
+                new HashMap<String, Entry<T>>();
+        Entry<T> postmaster;
+        final ScanList<T> fallbacks = new ScanList<T>();
+    }
+
+    /**
+     * ScanList contains the elements which must be asked one by one, in the
+     * order of their position.
+     */
+    private static class ScanList<T> {
+        final List<FallbackEntry<T>> entries =
+                new ArrayList<FallbackEntry<T>>();
+        private List<Pattern> patterns = new ArrayList<Pattern>();
+        LocalPartPatternSet patternSet;
+
+        void add(int position, Fallback<T> fallback) {
+            entries.add(new FallbackEntry<T>(position, fallback, -1));
+        }
+
+        void addPattern(int position, Pattern pattern, Fallback<T> fallback) {
+            entries.add(new FallbackEntry<T>(position, fallback, patterns
+                    .size()));
+            patterns.add(pattern);
+        }
+
+        void compile() {
+            if (!patterns.isEmpty())
+                patternSet = new LocalPartPatternSet(patterns);
+            patterns = null;
+        }
+    }
+
+    private static class Entry<T> {
+        final int position;
+        final T value;
+
+        Entry(int position, T value) {
+            this.position = position;
+            this.value = value;
+        }
+    }
+
+    private static class FallbackEntry<T> {
+        final int position;
+        final Fallback<T> fallback;
+        /**
+         * The index of the local part expression of the element in the
+         * pattern set of the list, or -1 if the element has no such
+         * expression.
+         */
+        final int pattern;
+
+        FallbackEntry(int position, Fallback<T> fallback, int pattern) {
+            this.position = position;
+            this.fallback = fallback;
+            this.pattern = pattern;
+        }
+    }
+
+    private static class SpecificationFallback<T> implements Fallback<T> {
+        private final RecipientSpecification specification;
+        private final T value;
+
+        SpecificationFallback(RecipientSpecification specification, T value) {
+            this.specification = specification;
+            this.value = value;
+        }
+
+        @Override
+        public T lookup(Recipient recipient) {
+            return specification.isSatisfiedBy(recipient) ? value : null;
+        }
+    }
+}
@@ -12,7 +12,7 @@ import mireka.smtp.address.Recipient;
  * mail sent to the matching mail addresses.
  */
 public class RecipientSpecificationDestinationPair implements
-        RecipientDestinationMapper {
+        IndexableRecipientDestinationMapper {
     private final List<RecipientSpecification> recipientSpecifications =
             new ArrayList<RecipientSpecification>();
     private Destination destination;
@@ -26,6 +26,12 @@ public class RecipientSpecificationDestinationPair implements
         return null;
     }
 
+    @Override
+    public void addTo(RecipientIndex.Builder<Destination> builder) {
+        for (RecipientSpecification recipientSpecification : recipientSpecifications)
+            builder.addSpecification(recipientSpecification, destination);
+    }
+
     /**
      * @x.category GETSET
      */
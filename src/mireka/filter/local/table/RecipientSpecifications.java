@@ -8,23 +8,36 @@ import mireka.smtp.address.Recipient;
 /**
  * RecipientSpecifications groups {@link RecipientSpecification} instances, it
  * matches a recipient if any of its elements matches it. It is itself a
- * RecipientSpecification.
+ * RecipientSpecification. The elements are compiled into a
+ * {@link RecipientIndex} on the first use.
  */
-public class RecipientSpecifications implements RecipientSpecification {
+public class RecipientSpecifications implements
+        IndexableRecipientSpecification {
     private List<RecipientSpecification> specifications =
             new ArrayList<RecipientSpecification>();
+    private volatile RecipientIndex<Boolean> index;
 
     @Override
     public boolean isSatisfiedBy(Recipient recipient) {
-        for (RecipientSpecification specification : specifications) {
-            if (specification.isSatisfiedBy(recipient))
-                return true;
+        RecipientIndex<Boolean> index = this.index;
+        if (index == null) {
+            RecipientIndex.Builder<Boolean> builder =
+                    new RecipientIndex.Builder<Boolean>();
+            addTo(builder, Boolean.TRUE);
+            this.index = index = builder.build();
         }
-        return false;
+        return index.lookup(recipient) != null;
+    }
+
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        for (RecipientSpecification specification : specifications)
+            builder.addSpecification(specification, value);
     }
 
     public void setSpecifications(List<RecipientSpecification> specifications) {
         this.specifications.clear();
         this.specifications.addAll(specifications);
+        this.index = null;
     }
 }
@@ -8,29 +8,61 @@ import mireka.smtp.address.Recipient;
 
 /**
  * RecipientTable contains a list of other {@link RecipientDestinationMapper}
- * instances, and search each element of the list to lookup the destination
- * assigned to a recipient.
+ * instances, and returns the destination assigned to a recipient by the first
+ * mapper which knows the recipient. On the first lookup the list is compiled
+ * into a {@link RecipientIndex}, so mappers implementing
+ * {@link IndexableRecipientDestinationMapper} are found by hash lookups, only
+ * the other mappers are asked one by one. The mappers must not be changed
+ * after the first lookup, except by replacing them using the methods of this
+ * class.
  */
 public class RecipientTable implements RecipientDestinationMapper {
     private final List<RecipientDestinationMapper> mappers =
             new ArrayList<RecipientDestinationMapper>();
+    private volatile RecipientIndex<Destination> index;
 
     @Override
     public Destination lookup(Recipient recipient) {
+        RecipientIndex<Destination> index = this.index;
+        if (index == null)
+            this.index = index = compile();
+        return index.lookup(recipient);
+    }
+
+    private RecipientIndex<Destination> compile() {
+        RecipientIndex.Builder<Destination> builder =
+                new RecipientIndex.Builder<Destination>();
         for (RecipientDestinationMapper mapper : mappers) {
-            Destination destination = mapper.lookup(recipient);
-            if (destination != null)
-                return destination;
+            if (mapper instanceof IndexableRecipientDestinationMapper)
+                ((IndexableRecipientDestinationMapper) mapper).addTo(builder);
+            else
+                builder.addFallback(new MapperFallback(mapper));
         }
-        return null;
+        return builder.build();
     }
 
     public void addMapper(RecipientDestinationMapper mapper) {
         mappers.add(mapper);
+        index = null;
     }
 
     public void setMappers(List<RecipientDestinationMapper> mappers) {
         this.mappers.clear();
         this.mappers.addAll(mappers);
+        index = null;
+    }
+
+    private static class MapperFallback implements
+            RecipientIndex.Fallback<Destination> {
+        private final RecipientDestinationMapper mapper;
+
+        MapperFallback(RecipientDestinationMapper mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public Destination lookup(Recipient recipient) {
+            return mapper.lookup(recipient);
+        }
     }
 }
@@ -12,7 +12,8 @@ import mireka.smtp.address.RemotePartContainingRecipient;
  * a regular expression and it also requires the remote part to be identical
  * with the specified remote part.
  */
-public class RegexAddressSpecification implements RecipientSpecification {
+public class RegexAddressSpecification implements
+        IndexableRecipientSpecification {
     private String localPartRegex;
     private Pattern pattern;
     private RemotePart remotePartObject;
@@ -32,6 +33,12 @@ public class RegexAddressSpecification implements RecipientSpecification {
                 .matches();
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        builder.addPatternSpecification(remotePartObject, pattern, this,
+                value);
+    }
+
     @Override
     public String toString() {
         return "(Regex: " + localPartRegex + ")@" + remotePartString;
@@ -22,6 +22,10 @@ public class RegexLocalPart implements LocalPartSpecification {
         return "localPart=regex:" + regex;
     }
 
+    Pattern getPattern() {
+        return pattern;
+    }
+
     /**
      * @x.category GETSET
      */
@@ -10,7 +10,8 @@ import mireka.smtp.address.RemotePartContainingRecipient;
  * supplied {@link LocalPartSpecification}. This specification never matches the
  * global Postmaster address, because that has no remote part.
  */
-public class SplitRecipientSpecification implements RecipientSpecification {
+public class SplitRecipientSpecification implements
+        IndexableRecipientSpecification {
     private LocalPartSpecification localPartSpecification;
     private RemotePartSpecification remotePartSpecification;
 
@@ -25,6 +26,16 @@ public class SplitRecipientSpecification implements RecipientSpecification {
         return remotePartSpecification.isSatisfiedBy(mailbox.getRemotePart());
     }
 
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        if (localPartSpecification instanceof RegexLocalPart)
+            builder.addPatternSpecification(null,
+                    ((RegexLocalPart) localPartSpecification).getPattern(),
+                    this, value);
+        else
+            builder.addScannedSpecification(this, value);
+    }
+
     /**
      * @x.category GETSET
      */
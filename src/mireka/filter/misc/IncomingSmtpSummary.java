@@ -4,6 +4,8 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
+import mireka.startup.ReusedOnReload;
+
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.MetricName;
@@ -12,6 +14,7 @@ import com.yammer.metrics.core.MetricName;
  * IncomingSmtpSummary holds and publishes metrics about the traffic on a single
  * SMTP server port of Mireka.
  */
+@ReusedOnReload
 public class IncomingSmtpSummary {
     private String name;
     public Meter mailTransactions;
@@ -1,5 +1,7 @@
 package mireka.filter.spf;
 
+import javax.inject.Inject;
+
 import mireka.filter.MailTransaction;
 import mireka.filter.StatelessFilter;
 
@@ -11,13 +13,30 @@ import org.subethamail.smtp.util.TextUtils;
  * field.
  */
 public class AddReceivedSpfHeader extends StatelessFilter {
+    private SpfEngine spfEngine;
 
     @Override
     protected void dataStream(MailTransaction transaction) {
-        SPFResult spfResult = new SpfChecker(transaction).getResult();
+        SPFResult spfResult =
+                new SpfChecker(spfEngine, transaction).getResult();
         String headerString = spfResult.getHeader() + "\r\n";
         byte[] headerOctets = TextUtils.getAsciiBytes(headerString);
         transaction.dataStream =
                 new PrependingInputStream(headerOctets, transaction.dataStream);
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public SpfEngine getSpfEngine() {
+        return spfEngine;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    @Inject
+    public void setSpfEngine(SpfEngine spfEngine) {
+        this.spfEngine = spfEngine;
+    }
 }
@@ -1,5 +1,7 @@
 package mireka.filter.spf;
 
+import javax.inject.Inject;
+
 import mireka.filter.MailTransaction;
 import mireka.filter.RecipientContext;
 import mireka.filter.RecipientVerificationResult;
@@ -17,6 +19,7 @@ import org.subethamail.smtp.RejectException;
  */
 public class RejectOnFailedSpfCheck extends StatelessFilter {
     private boolean rejectOnPermanentError = false;
+    private SpfEngine spfEngine;
 
     /**
      * @x.category GETSET
@@ -36,7 +39,8 @@ public class RejectOnFailedSpfCheck extends StatelessFilter {
     public RecipientVerificationResult verifyRecipient(
             MailTransaction transaction, RecipientContext recipientContext)
             throws RejectExceptionExt {
-        SPFResult spfResult = new SpfChecker(transaction).getResult();
+        SPFResult spfResult =
+                new SpfChecker(spfEngine, transaction).getResult();
         String spfResultCode = spfResult.getResult();
 
         if (spfResultCode.equals(SPFErrorConstants.FAIL_CONV)) {
@@ -56,4 +60,19 @@ public class RejectOnFailedSpfCheck extends StatelessFilter {
             return RecipientVerificationResult.NEUTRAL;
         }
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public SpfEngine getSpfEngine() {
+        return spfEngine;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    @Inject
+    public void setSpfEngine(SpfEngine spfEngine) {
+        this.spfEngine = spfEngine;
+    }
 }
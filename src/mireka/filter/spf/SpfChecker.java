@@ -3,19 +3,17 @@ package mireka.filter.spf;
 import mireka.filter.MailTransaction;
 
 import org.apache.james.jspf.executor.SPFResult;
-import org.apache.james.jspf.impl.DefaultSPF;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
- * SpfChecker executes an SPF check and caches the result in the
- * {@link MailTransaction#spfResult} object.
+ * SpfChecker executes an SPF check using the shared {@link SpfEngine} and
+ * caches the result in the {@link MailTransaction#spfResult} object.
  */
 public class SpfChecker {
-    private final Logger logger = LoggerFactory.getLogger(SpfChecker.class);
+    private final SpfEngine spfEngine;
     private final MailTransaction mailTransaction;
 
-    public SpfChecker(MailTransaction mailTransaction) {
+    public SpfChecker(SpfEngine spfEngine, MailTransaction mailTransaction) {
+        this.spfEngine = spfEngine;
         this.mailTransaction = mailTransaction;
     }
 
@@ -34,8 +32,6 @@ public class SpfChecker {
     }
 
     private SPFResult check() {
-        DefaultSPF spf = new DefaultSPF(new Slf4jToJspfLoggerAdapter());
-        spf.setUseBestGuess(false);
         // null reverse path should correspond to empty string
         String fromNonNull = mailTransaction.reversePath.getSmtpText();
         String helo = mailTransaction.getMessageContext().getHelo();
@@ -43,11 +39,7 @@ public class SpfChecker {
                 helo == null ? "["
                         + mailTransaction.getRemoteInetAddress()
                                 .getHostAddress() + "]" : helo;
-        SPFResult result =
-                spf.checkSPF(mailTransaction.getRemoteInetAddress()
-                        .getHostAddress(), fromNonNull, heloNonNull);
-        logger.debug("SPF check result: {} {}", result.getResult(),
-                result.getExplanation());
-        return result;
+        return spfEngine.check(mailTransaction.getRemoteInetAddress()
+                .getHostAddress(), fromNonNull, heloNonNull);
     }
 }
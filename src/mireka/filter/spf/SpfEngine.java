@@ -0,0 +1,268 @@
+package mireka.filter.spf;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.startup.ReappliedOnReload;
+import mireka.startup.ReusedOnReload;
+
+import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.DefaultSPF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * SpfEngine evaluates SPF policies using a single, shared jSPF engine, and it
+ * caches the results for a short time. Bulk senders usually send many mails
+ * from the same IP address, with the same reverse-path domain and the same
+ * HELO name, these mails are checked only once within the time to live of the
+ * cache.
+ * <p>
+ * The cache key is the client IP address, the domain of the reverse-path and
+ * the HELO name. The local part of the reverse-path is not part of the key.
+ * SPF records which refer to the local part by the <code>%{l}</code> or
+ * <code>%{s}</code> macros are very rare, but if they must be supported
+ * precisely, then the cache can be switched off by setting the time to live to
+ * 0. Temporary errors are never cached.
+ * <p>
+ * The cache hit rate and the latency of the SPF evaluations which were not
+ * served from the cache are published as metrics. The gauges refer to this
+ * object, so the same instance is kept when the configuration is reloaded.
+ */
+@ThreadSafe
+@ReusedOnReload
+public class SpfEngine {
+    private final Logger logger = LoggerFactory.getLogger(SpfEngine.class);
+    private final DefaultSPF spf;
+    private volatile int cacheSize = 10000;
+    /**
+     * Time to live of cache entries in seconds.
+     */
+    private volatile int cacheTimeToLive = 300;
+    @GuardedBy("cache")
+    private final LinkedHashMap<Key, CacheEntry> cache =
+            new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 7506313812963838658L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Key, CacheEntry> eldest) {
+            return size() > cacheSize;
+        }
+    };
+    private final Meter cacheHits = Metrics.newMeter(
+            metricName("cacheHits"), "checks", TimeUnit.MINUTES);
+    private final Meter cacheMisses = Metrics.newMeter(
+            metricName("cacheMisses"), "checks", TimeUnit.MINUTES);
+    private final Timer evaluations = Metrics
+            .newTimer(metricName("evaluations"), TimeUnit.MILLISECONDS,
+                    TimeUnit.MINUTES);
+
+    public SpfEngine() {
+        spf = new DefaultSPF(new Slf4jToJspfLoggerAdapter());
+        spf.setUseBestGuess(false);
+        Metrics.newGauge(metricName("cacheHitPercentage"), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return cacheHitPercentage();
+            }
+        });
+        Metrics.newGauge(metricName("cacheSize"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                synchronized (cache) {
+                    return cache.size();
+                }
+            }
+        });
+    }
+
+    private double cacheHitPercentage() {
+        double total =
+                cacheHits.fifteenMinuteRate() + cacheMisses.fifteenMinuteRate();
+        if (total == 0)
+            return 0;
+        return Math.round(1000.0 * cacheHits.fifteenMinuteRate() / total)
+                / 10.0;
+    }
+
+    private static MetricName metricName(String name) {
+        return new MetricName("mireka", "SpfEngine", name);
+    }
+
+    /**
+     * Returns the result of the SPF check, either from the cache or by
+     * executing the SPF check, including the necessary DNS queries.
+     *
+     * @param ipAddress
+     *            the IP address of the SMTP client in textual form
+     * @param mailFrom
+     *            the reverse-path, empty string for the null reverse-path
+     * @param helo
+     *            the HELO name
+     */
+    public SPFResult check(String ipAddress, String mailFrom, String helo) {
+        if (cacheTimeToLive <= 0)
+            return evaluate(ipAddress, mailFrom, helo);
+
+        Key key = new Key(ipAddress, senderDomain(mailFrom), helo);
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expiry <= now) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            cacheHits.mark();
+            return entry.resultFor(mailFrom);
+        }
+
+        cacheMisses.mark();
+        SPFResult result = evaluate(ipAddress, mailFrom, helo);
+        if (!SPFErrorConstants.TEMP_ERROR_CONV.equals(result.getResult())) {
+            synchronized (cache) {
+                cache.put(key, new CacheEntry(result, mailFrom, now + 1000L
+                        * cacheTimeToLive));
+            }
+        }
+        return result;
+    }
+
+    private SPFResult evaluate(String ipAddress, String mailFrom, String helo) {
+        TimerContext timerContext = evaluations.time();
+        try {
+            SPFResult result = spf.checkSPF(ipAddress, mailFrom, helo);
+            logger.debug("SPF check result: {} {}", result.getResult(),
+                    result.getExplanation());
+            return result;
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    private String senderDomain(String mailFrom) {
+        int at = mailFrom.lastIndexOf('@');
+        String domain = at == -1 ? mailFrom : mailFrom.substring(at + 1);
+        return domain.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum count of cached results. The default is 10000. If the
+     * cache is full, then the least recently used result is removed.
+     *
+     * @x.category GETSET
+     */
+    @ReappliedOnReload
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getCacheTimeToLive() {
+        return cacheTimeToLive;
+    }
+
+    /**
+     * Sets the time in seconds after a cached result expires. The default is
+     * 300 seconds. Value 0 switches off caching.
+     *
+     * @x.category GETSET
+     */
+    @ReappliedOnReload
+    public void setCacheTimeToLive(int cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
+    }
+
+    private static final class Key {
+        private final String ipAddress;
+        private final String senderDomain;
+        private final String helo;
+
+        Key(String ipAddress, String senderDomain, String helo) {
+            this.ipAddress = ipAddress;
+            this.senderDomain = senderDomain;
+            this.helo = helo;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = ipAddress.hashCode();
+            result = prime * result + senderDomain.hashCode();
+            result = prime * result + helo.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return ipAddress.equals(other.ipAddress)
+                    && senderDomain.equals(other.senderDomain)
+                    && helo.equals(other.helo);
+        }
+    }
+
+    private static final class CacheEntry {
+        private final SPFResult result;
+        private final String mailFrom;
+        private final long expiry;
+
+        CacheEntry(SPFResult result, String mailFrom, long expiry) {
+            this.result = result;
+            this.mailFrom = mailFrom;
+            this.expiry = expiry;
+        }
+
+        /**
+         * Returns the cached result adapted to the specified reverse-path,
+         * which may differ from the original one in its local part. Only the
+         * envelope-from field of the header must be replaced.
+         */
+        SPFResult resultFor(String mailFrom) {
+            if (this.mailFrom.equals(mailFrom))
+                return result;
+            return new CachedSpfResult(result, this.mailFrom, mailFrom);
+        }
+    }
+
+    private static final class CachedSpfResult extends SPFResult {
+        CachedSpfResult(SPFResult original, String originalMailFrom,
+                String mailFrom) {
+            this.result = original.getResult();
+            this.explanation = original.getExplanation();
+            this.headerTextAsString =
+                    original.getHeaderText().replace(
+                            "envelope-from=" + originalMailFrom + ";",
+                            "envelope-from=" + mailFrom + ";");
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package mireka.forward;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import javax.inject.Inject;
 
+import mireka.destination.IndependentDestination;
 import mireka.destination.MailDestination;
 import mireka.smtp.RejectExceptionExt;
+import mireka.smtp.address.Recipient;
 import mireka.transmission.LocalMailSystemException;
 import mireka.transmission.Mail;
 import mireka.transmission.Transmitter;
@@ -21,7 +24,8 @@ import org.slf4j.LoggerFactory;
  * @see <a href="http://tools.ietf.org/html/rfc5321#section-3.9">RFC 5321 3.9
  *      Mailing Lists and Aliases</a>
  */
-public class ForwardDestination implements MailDestination {
+public class ForwardDestination implements MailDestination,
+        IndependentDestination {
     private Logger logger = LoggerFactory.getLogger(ForwardDestination.class);
 
     /**
@@ -30,6 +34,13 @@ public class ForwardDestination implements MailDestination {
      */
     private final List<Member> members = new ArrayList<Member>();
 
+    /**
+     * The recipients of the members which are not disabled, in the order of
+     * the members. It is computed when the members are set and it cannot be
+     * modified, so it is shared by all forwarded mails.
+     */
+    private volatile List<Recipient> recipients = Collections.emptyList();
+
     /**
      * The transmitter which will be used to redistribute the incoming mail to
      * the members.
@@ -48,18 +59,16 @@ public class ForwardDestination implements MailDestination {
      */
     public void forward(Mail srcMail) throws RejectExceptionExt {
         logger.debug("Mail is received for {} from {}", toString(), srcMail);
-        if (members.isEmpty()) {
-            logger.debug("Forward list has no members, dropping mail");
+        List<Recipient> currentRecipients = recipients;
+        if (currentRecipients.isEmpty()) {
+            logger.debug("Forward list has no enabled members, dropping mail");
             return;
         }
 
         Mail mail = srcMail.copy();
-        mail.recipients.clear();
-        for (Member member : members) {
-            if (member.isDisabled())
-                continue;
-            mail.recipients.add(member.getRecipient());
-        }
+        // the shared list is unmodifiable, but the mail may be modified
+        // by the transmitter
+        mail.recipients = new ArrayList<Recipient>(currentRecipients);
         try {
             mail.from = srs.forward(mail.from, srcMail.recipients.get(0));
             transmitter.transmit(mail);
@@ -72,11 +81,21 @@ public class ForwardDestination implements MailDestination {
     }
 
     /**
+     * Sets the members, which must be completely configured at this point, a
+     * later change of the disabled flag of a member is not taken into account.
+     * 
      * @x.category GETSET
      */
     public void setMembers(List<Member> members) {
         this.members.clear();
         this.members.addAll(members);
+        List<Recipient> enabledRecipients =
+                new ArrayList<Recipient>(members.size());
+        for (Member member : members) {
+            if (!member.isDisabled())
+                enabledRecipients.add(member.getRecipient());
+        }
+        this.recipients = Collections.unmodifiableList(enabledRecipients);
     }
 
     /**
@@ -1,11 +1,15 @@
 package mireka.forward;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -21,7 +25,6 @@ import mireka.smtp.address.RemotePartContainingRecipient;
 import mireka.smtp.address.ReversePath;
 
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 import org.joda.time.DateTimeUtils;
 import org.slf4j.Logger;
@@ -32,6 +35,11 @@ import org.slf4j.LoggerFactory;
  * possible to forward mail without breaking SPF checks.
  * <p>
  * Note: sender rewriting is not necessary if the reverse path is local.
+ * <p>
+ * Each thread uses its own MAC instance, which is initialized with the secret
+ * key only once. Rewritten reverse paths and recipients which were
+ * successfully reversed are cached for the rest of the day, because forwarded
+ * mails and their bounces usually arrive in bursts with the same addresses.
  * 
  * @see <a href="http://www.openspf.org/SRS">SRS</a>
  */
@@ -46,6 +54,9 @@ public class Srs {
     private static final long PRECISION = 1000 * 24 * 60 * 60;
     public static final Pattern SRS0_PREFIX = Pattern.compile("SRS0[=+-]");
     public static final Pattern SRS1_PREFIX = Pattern.compile("SRS1[=+-]");
+    private static final char[] BASE64_DIGITS =
+            ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+                    + "0123456789+/").toCharArray();
     /**
      * Domains which authorizes this server to send mail in their name using the
      * SPF DNS record. If not set, than it is assumed that this server is
@@ -55,6 +66,24 @@ public class Srs {
     private RemotePartSpecification localDomains;
     private RemotePart defaultRemotePart;
     private byte[] secretKey;
+    /**
+     * MAC instances initialized with the {@link #secretKey}, null if the key
+     * is not yet set.
+     */
+    private volatile ThreadLocal<Mac> macs;
+    private int cacheSize = 1000;
+    /**
+     * Maps the SMTP text of the original reverse path and recipient to the
+     * rewritten reverse path.
+     */
+    private final DailyCache<ReversePath> forwardedReversePaths =
+            new DailyCache<>();
+    /**
+     * Maps the SMTP text of SRS recipients which were successfully reversed to
+     * the result.
+     */
+    private final DailyCache<Recipient> reversedRecipients =
+            new DailyCache<>();
     /**
      * Validity of the timestamp in days.
      */
@@ -72,32 +101,107 @@ public class Srs {
      */
     public ReversePath forward(ReversePath reversePath,
             Recipient originalRecipient) {
-        return new ForwardRewriter(reversePath, originalRecipient)
-                .rewriteSender();
+        if (cacheSize <= 0 || reversePath.isNull())
+            return new ForwardRewriter(reversePath, originalRecipient)
+                    .rewriteSender();
+
+        String key = reversePath.getSmtpText() + ' ' + originalRecipient;
+        int today = todayTimeslot();
+        ReversePath result = forwardedReversePaths.get(key, today);
+        if (result == null) {
+            result =
+                    new ForwardRewriter(reversePath, originalRecipient)
+                            .rewriteSender();
+            forwardedReversePaths.put(key, result, today);
+        }
+        return result;
     }
 
     public Recipient reverse(Recipient srsRecipient) throws InvalidSrsException {
-        return new ReverseRewriter(srsRecipient).rewriteRecipient();
+        if (cacheSize <= 0 || srsRecipient.isGlobalPostmaster())
+            return new ReverseRewriter(srsRecipient).rewriteRecipient();
+
+        String key = srsRecipient.toString();
+        int today = todayTimeslot();
+        Recipient result = reversedRecipients.get(key, today);
+        if (result == null) {
+            result = new ReverseRewriter(srsRecipient).rewriteRecipient();
+            reversedRecipients.put(key, result, today);
+        }
+        return result;
     }
 
+    /**
+     * Returns the first four characters of the Base64 encoded HMAC-SHA1 digest
+     * of the lower case version of the source.
+     */
     private String calculateHash(String source) {
-        try {
-            if (secretKey == null)
-                throw new ConfigurationException(
-                        "SRS Secret key is not configured.");
-            byte[] sourceBytes =
-                    source.toLowerCase(Locale.US).getBytes("UTF-8");
-            Mac mac = Mac.getInstance("HmacSHA1");
-            Key key = new SecretKeySpec(secretKey, "HmacSHA1");
-            mac.init(key);
-            byte[] digestBytes = mac.doFinal(sourceBytes);
-            String digestBase64 = Base64.encodeBase64String(digestBytes);
-            return digestBase64.substring(0, 4);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException("Unexpected exception", e);
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("Unexpected exception", e);
+        ThreadLocal<Mac> currentMacs = macs;
+        if (currentMacs == null)
+            throw new ConfigurationException(
+                    "SRS Secret key is not configured.");
+        byte[] digestBytes = currentMacs.get().doFinal(toLowerCaseBytes(source));
+        // four Base64 digits encode the first 24 bits of the digest
+        int bits =
+                (digestBytes[0] & 0xFF) << 16 | (digestBytes[1] & 0xFF) << 8
+                        | (digestBytes[2] & 0xFF);
+        char[] hash =
+                new char[] { BASE64_DIGITS[bits >>> 18],
+                        BASE64_DIGITS[bits >>> 12 & 0x3F],
+                        BASE64_DIGITS[bits >>> 6 & 0x3F],
+                        BASE64_DIGITS[bits & 0x3F] };
+        return new String(hash);
+    }
+
+    /**
+     * Returns the UTF-8 encoded bytes of the lower case version of the source.
+     * Addresses are usually ASCII, those are converted without creating an
+     * intermediate String.
+     */
+    private static byte[] toLowerCaseBytes(String source) {
+        int length = source.length();
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char ch = source.charAt(i);
+            if (ch >= 0x80)
+                return source.toLowerCase(Locale.US).getBytes(
+                        StandardCharsets.UTF_8);
+            if (ch >= 'A' && ch <= 'Z')
+                ch += 'a' - 'A';
+            result[i] = (byte) ch;
         }
+        return result;
+    }
+
+    private static ThreadLocal<Mac> createMacs(final byte[] secretKey) {
+        return new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA1");
+                    Key key = new SecretKeySpec(secretKey, "HmacSHA1");
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new RuntimeException("Unexpected exception", e);
+                }
+            }
+        };
+    }
+
+    private void changeSecretKey(byte[] secretKey) {
+        this.secretKey = secretKey;
+        this.macs = createMacs(secretKey);
+        clearCaches();
+    }
+
+    private void clearCaches() {
+        forwardedReversePaths.clear();
+        reversedRecipients.clear();
+    }
+
+    private static int todayTimeslot() {
+        return (int) ((DateTimeUtils.currentTimeMillis() / PRECISION) % TIMESLOTS);
     }
 
     /**
@@ -365,10 +469,6 @@ public class Srs {
 
         }
 
-        private int todayTimeslot() {
-            return (int) ((DateTimeUtils.currentTimeMillis() / PRECISION) % TIMESLOTS);
-        }
-
         private Recipient rewriteSrs1() throws InvalidSrsException {
             PersedSrs1LocalPart parsedLocalPart =
                     PersedSrs1LocalPart.parse(mailbox);
@@ -389,6 +489,56 @@ public class Srs {
         }
     }
 
+    /**
+     * DailyCache remembers the results of rewrites until the end of the day,
+     * when the SRS timestamp changes, and an SRS0 address may expire.
+     */
+    private class DailyCache<T> {
+        @GuardedBy("this")
+        private final LinkedHashMap<String, CachedResult<T>> map =
+                new LinkedHashMap<String, CachedResult<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID =
+                    -2316207961414727934L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CachedResult<T>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+
+        /**
+         * Returns the cached result, or null if it is not in the cache or it
+         * was stored on another day.
+         */
+        synchronized T get(String key, int today) {
+            CachedResult<T> entry = map.get(key);
+            return entry != null && entry.timeslot == today ? entry.result
+                    : null;
+        }
+
+        synchronized void put(String key, T result, int today) {
+            map.put(key, new CachedResult<T>(result, today));
+        }
+
+        synchronized void clear() {
+            map.clear();
+        }
+    }
+
+    private static final class CachedResult<T> {
+        final T result;
+        /**
+         * The day on which the result was calculated, as a timeslot value.
+         */
+        final int timeslot;
+
+        CachedResult(T result, int timeslot) {
+            this.result = result;
+            this.timeslot = timeslot;
+        }
+    }
+
     private static class PersedSrs1LocalPart {
         String hash;
         String originalHost;
@@ -456,6 +606,7 @@ public class Srs {
      */
     public void setLocalDomains(RemotePartSpecification localDomains) {
         this.localDomains = localDomains;
+        clearCaches();
     }
 
     /**
@@ -475,15 +626,15 @@ public class Srs {
      */
     public void setDefaultRemotePart(RemotePart defaultRemotePart) {
         this.defaultRemotePart = defaultRemotePart;
+        clearCaches();
     }
 
     /**
      * @x.category GETSET
      */
     public void setDefaultRemotePart(String defaultRemotePart) {
-        this.defaultRemotePart =
-                new MailAddressFactory()
-                        .createRemotePartFromDisplayableText(defaultRemotePart);
+        setDefaultRemotePart(new MailAddressFactory()
+                .createRemotePartFromDisplayableText(defaultRemotePart));
     }
 
     /**
@@ -501,7 +652,7 @@ public class Srs {
      */
     public void setSecretKey(String secretKey) {
         try {
-            this.secretKey = Hex.decodeHex(secretKey.toCharArray());
+            changeSecretKey(Hex.decodeHex(secretKey.toCharArray()));
         } catch (DecoderException e) {
             throw new ConfigurationException(
                     "Invalid secret key: " + secretKey, e);
@@ -516,7 +667,7 @@ public class Srs {
      */
     public void setSecretKeyString(String secretKey) {
         try {
-            this.secretKey = secretKey.getBytes("UTF-8");
+            changeSecretKey(secretKey.getBytes("UTF-8"));
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException("Unexpected exception", e);
         }
@@ -527,6 +678,7 @@ public class Srs {
      */
     public void setMaximumAge(int maximumAge) {
         this.maximumAge = maximumAge;
+        clearCaches();
     }
 
     /**
@@ -536,4 +688,23 @@ public class Srs {
         return maximumAge;
     }
 
+    /**
+     * @x.category GETSET
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum number of rewritten reverse paths, and separately the
+     * maximum number of successfully reversed SRS recipients, which are
+     * remembered for the rest of the day. 0 disables the caches. Default is
+     * 1000.
+     * 
+     * @x.category GETSET
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
 }
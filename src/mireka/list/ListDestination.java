@@ -6,9 +6,12 @@ import java.util.List;
 
 import javax.annotation.Nonnull;
 import javax.annotation.PostConstruct;
+import javax.annotation.concurrent.GuardedBy;
 import javax.inject.Inject;
 
+import mireka.destination.IndependentDestination;
 import mireka.destination.MailDestination;
+import mireka.dmarc.PolicyCache;
 import mireka.smtp.RejectExceptionExt;
 import mireka.smtp.address.MailAddressFactory;
 import mireka.smtp.address.Recipient;
@@ -28,7 +31,8 @@ import mireka.transmission.Transmitter;
  * @see <a href="http://tools.ietf.org/html/rfc5321#section-3.9">RFC 5321 3.9
  *      Mailing Lists and Aliases</a>
  */
-public class ListDestination implements MailDestination {
+public class ListDestination implements MailDestination,
+        IndependentDestination {
     /**
      * The address of the list as a Recipient.
      */
@@ -45,7 +49,14 @@ public class ListDestination implements MailDestination {
      * Mails sent to {@link #address} will be redistributed to the member
      * addresses in this list.
      */
-    final List<ListMember> members = new ArrayList<ListMember>();
+    @GuardedBy("this")
+    private final List<ListMember> members = new ArrayList<ListMember>();
+
+    /**
+     * The index of {@link #members}, null if it must be built again, because
+     * the membership has changed.
+     */
+    private volatile MemberIndex memberIndex;
 
     /**
      * A prefix that will be inserted at the front of the subject. Null means no
@@ -78,6 +89,31 @@ public class ListDestination implements MailDestination {
     @Nonnull
     ReversePath reversePath;
 
+    /**
+     * The maximum count of recipients of a single mail sent to the members. If
+     * it is 0, then a single mail is sent to all members. Otherwise the
+     * members are grouped by domain, and each group is divided into batches
+     * of this size. Each batch has its own envelope, so a failing domain does
+     * not delay the others, but they share a single copy of the content in
+     * the queue.
+     */
+    private int recipientsPerMail = 0;
+
+    /**
+     * If true, then each member receives a separate mail, and the address of
+     * the member is encoded into the reverse path, in the form of
+     * list-bounces+jane=example.com@example.org, if the reverse path is
+     * list-bounces@example.org. This way bounces identify the member even if
+     * they are not in a standard format. {@link ListMapper} routes these
+     * addresses to the reverse path of the list. If the list is not
+     * configured by a ListMapper, then map them to the bounce destination
+     * using a {@link VerpRecipientSpecification}.
+     *
+     * @see <a href="http://cr.yp.to/proto/verp.txt">Variable Envelope Return
+     *      Paths</a>
+     */
+    private boolean verp = false;
+
     /**
      * If supplied then it overrides the default error message used when a
      * non-member posts to a members only list.
@@ -99,6 +135,12 @@ public class ListDestination implements MailDestination {
      */
     Transmitter transmitter;
 
+    /**
+     * The cache of DMARC policies, which is used to decide whether the From
+     * address of a post must be replaced.
+     */
+    PolicyCache dmarcPolicyCache;
+
     @PostConstruct
     public void setDefaults() {
         if (listId == null)
@@ -110,6 +152,24 @@ public class ListDestination implements MailDestination {
         new Redistributor(mail, this).distribute();
     }
 
+    /**
+     * Returns the index of the current members, it builds it if the
+     * membership has changed since the last call.
+     */
+    MemberIndex getMemberIndex() {
+        MemberIndex result = memberIndex;
+        if (result == null) {
+            synchronized (this) {
+                result = memberIndex;
+                if (result == null) {
+                    result = new MemberIndex(members);
+                    memberIndex = result;
+                }
+            }
+        }
+        return result;
+    }
+
     String getShortListName() {
         return address.localPart().displayableName();
     }
@@ -152,25 +212,35 @@ public class ListDestination implements MailDestination {
     }
 
     /**
+     * Adds a member to the list. The properties of a member must not be
+     * changed after it is added.
+     * 
      * @x.category GETSET
      */
-    public void addMember(ListMember listMember) {
+    public synchronized void addMember(ListMember listMember) {
         members.add(listMember);
+        memberIndex = null;
     }
 
     /**
+     * Replaces the members of the list. The properties of the members must
+     * not be changed after they are added.
+     * 
      * @x.category GETSET
      */
-    public void setMembers(List<ListMember> members) {
+    public synchronized void setMembers(List<ListMember> members) {
         this.members.clear();
         this.members.addAll(members);
+        memberIndex = null;
     }
 
     /**
+     * Returns a copy of the member list.
+     * 
      * @x.category GETSET
      */
-    public List<ListMember> getMembers() {
-        return this.members;
+    public synchronized List<ListMember> getMembers() {
+        return new ArrayList<ListMember>(this.members);
     }
 
     /**
@@ -245,6 +315,34 @@ public class ListDestination implements MailDestination {
                         .createReversePathAlreadyVerified(reversePath);
     }
 
+    /**
+     * @x.category GETSET
+     */
+    public int getRecipientsPerMail() {
+        return recipientsPerMail;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setRecipientsPerMail(int recipientsPerMail) {
+        this.recipientsPerMail = recipientsPerMail;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public boolean isVerp() {
+        return verp;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setVerp(boolean verp) {
+        this.verp = verp;
+    }
+
     /**
      * @x.category GETSET
      */
@@ -288,4 +386,19 @@ public class ListDestination implements MailDestination {
     public void setTransmitter(Transmitter transmitter) {
         this.transmitter = transmitter;
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public PolicyCache getDmarcPolicyCache() {
+        return dmarcPolicyCache;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    @Inject
+    public void setDmarcPolicyCache(PolicyCache dmarcPolicyCache) {
+        this.dmarcPolicyCache = dmarcPolicyCache;
+    }
 }
@@ -1,23 +1,35 @@
 package mireka.list;
 
+import mireka.destination.AliasDestination;
 import mireka.destination.Destination;
 import mireka.filter.local.table.RecipientDestinationMapper;
 import mireka.filter.local.table.RecipientSpecification;
 import mireka.filter.local.table.RecipientSpecificationFactory;
+import mireka.smtp.address.MailAddressFactory;
 import mireka.smtp.address.Recipient;
 
 /**
  * ListMapper is a configuration helper, which maps the canonical address of the
- * list (in case-insensitive mode) to the list.
+ * list (in case-insensitive mode) to the list. If the list uses VERP, then it
+ * also maps the bounce addresses created by the list, for example
+ * list-bounces+jane=example.com@example.org, to the reverse path of the list,
+ * so bounces are delivered to the same place as those sent to
+ * list-bounces@example.org. The reverse path itself must be a valid local
+ * recipient.
  */
 public class ListMapper implements RecipientDestinationMapper {
     private RecipientSpecification recipientSpecification;
     private ListDestination list;
+    private VerpRecipientSpecification verpRecipientSpecification;
+    private AliasDestination bounceDestination;
 
     @Override
     public Destination lookup(Recipient recipient) {
         if (recipientSpecification.isSatisfiedBy(recipient))
             return list;
+        if (list.isVerp() && verpRecipientSpecification != null
+                && verpRecipientSpecification.isSatisfiedBy(recipient))
+            return bounceDestination;
         return null;
     }
 
@@ -25,5 +37,12 @@ public class ListMapper implements RecipientDestinationMapper {
         this.recipientSpecification =
                 new RecipientSpecificationFactory().create(list.getAddress());
         this.list = list;
+        if (list.reversePath != null && !list.reversePath.isNull()) {
+            verpRecipientSpecification = new VerpRecipientSpecification();
+            verpRecipientSpecification.setReversePath(list.getReversePath());
+            bounceDestination = new AliasDestination();
+            bounceDestination.setRecipient(new MailAddressFactory()
+                    .reversePath2Recipient(list.reversePath));
+        }
     }
 }
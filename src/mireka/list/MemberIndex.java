@@ -0,0 +1,105 @@
+package mireka.list;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.RemotePart;
+import mireka.smtp.address.RemotePartContainingRecipient;
+import mireka.smtp.address.ReversePath;
+
+/**
+ * MemberIndex is a snapshot of the members of a {@link ListDestination},
+ * prepared for the processing of posts. It makes the membership check of the
+ * sender a hash lookup, and it holds the recipients who receive the posts, so
+ * they need not be collected again for each post of a large list.
+ */
+@Immutable
+class MemberIndex {
+    /**
+     * The addresses of all members in lower case, including those who are
+     * disabled or do not receive mails.
+     */
+    private final Set<String> addresses;
+    private final List<Recipient> deliverableRecipients;
+    /**
+     * The deliverable recipients grouped by their remote part, the global
+     * postmaster, if it is a member, is in a group by itself.
+     */
+    private final List<List<Recipient>> deliverableRecipientsByDomain;
+
+    MemberIndex(List<ListMember> members) {
+        addresses = new HashSet<>(members.size() * 2);
+        List<Recipient> recipients = new ArrayList<>(members.size());
+        for (ListMember member : members) {
+            addresses.add(key(member.getRecipient().toString()));
+            if (member.isDisabled() || member.isNoDelivery())
+                continue;
+            recipients.add(member.getRecipient());
+        }
+        deliverableRecipients = Collections.unmodifiableList(recipients);
+        deliverableRecipientsByDomain = groupByDomain(recipients);
+    }
+
+    private static List<List<Recipient>> groupByDomain(
+            List<Recipient> recipients) {
+        // domain names are case insensitive
+        Map<String, List<Recipient>> map = new LinkedHashMap<>();
+        List<List<Recipient>> result = new ArrayList<>();
+        for (Recipient recipient : recipients) {
+            if (!(recipient instanceof RemotePartContainingRecipient)) {
+                result.add(Collections.singletonList(recipient));
+                continue;
+            }
+            RemotePart remotePart =
+                    ((RemotePartContainingRecipient) recipient).getMailbox()
+                            .getRemotePart();
+            String key = remotePart.smtpText().toLowerCase(Locale.US);
+            List<Recipient> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                map.put(key, list);
+            }
+            list.add(recipient);
+        }
+        for (List<Recipient> list : map.values())
+            result.add(Collections.unmodifiableList(list));
+        return Collections.unmodifiableList(result);
+    }
+
+    private static String key(String address) {
+        return address.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns true if the address is the address of a member, which is
+     * compared case insensitively.
+     */
+    boolean isMember(ReversePath reversePath) {
+        return addresses.contains(key(reversePath.toString()));
+    }
+
+    /**
+     * Returns the recipients who receive the posts, in the order of the
+     * members. The returned list cannot be modified.
+     */
+    List<Recipient> getDeliverableRecipients() {
+        return deliverableRecipients;
+    }
+
+    /**
+     * Returns the recipients who receive the posts, grouped by their domain.
+     * The returned lists cannot be modified.
+     */
+    List<List<Recipient>> getDeliverableRecipientsByDomain() {
+        return deliverableRecipientsByDomain;
+    }
+}
@@ -2,14 +2,12 @@ package mireka.list;
 
 import static mireka.maildata.FieldDef.*;
 
-import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
 import mireka.ConfigurationException;
-import mireka.dmarc.PolicyDiscovery;
 import mireka.dmarc.PolicyRecord;
 import mireka.dmarc.PolicyRecord.Request;
 import mireka.dmarc.RecoverableDmarcException;
@@ -21,9 +19,14 @@ import mireka.maildata.LiteralDomainPart;
 import mireka.maildata.Mailbox;
 import mireka.maildata.Maildata;
 import mireka.maildata.MediaType;
+import mireka.maildata.io.MaildataFileReadException;
 import mireka.maildata.field.UnstructuredField;
 import mireka.smtp.EnhancedStatus;
 import mireka.smtp.RejectExceptionExt;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.RealReversePath;
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.RemotePartContainingRecipient;
 import mireka.smtp.address.ReversePath;
 import mireka.transmission.LocalMailSystemException;
 import mireka.transmission.Mail;
@@ -54,10 +57,10 @@ class Redistributor {
             checkListLoop();
             setupNewMaildata();
             sendMail();
-        } catch (IOException e) {
+        } catch (MaildataFileReadException e) {
             // Incoming messages are already saved to disk, so only hardware
             // failure can cause read error.
-            logger.error("Cannot write maildata", e);
+            logger.error("Cannot read maildata", e);
             throw new RejectExceptionExt(
                     EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
         } catch (ParseException e) {
@@ -72,7 +75,7 @@ class Redistributor {
     private void checkPermission() throws RejectExceptionExt {
         if (!list.isMembersOnly())
             return;
-        if (isMember(source.from))
+        if (list.getMemberIndex().isMember(source.from))
             return;
         if (list.getNonMemberSenderValidator() != null
                 && list.getNonMemberSenderValidator().shouldBeAccepted(source))
@@ -81,15 +84,6 @@ class Redistributor {
                 list.getMembersOnlyMessage()));
     }
 
-    private boolean isMember(ReversePath reversePath) {
-        for (ListMember listMember : list.getMembers()) {
-            if (listMember.getRecipient().toString()
-                    .equalsIgnoreCase(reversePath.toString()))
-                return true;
-        }
-        return false;
-    }
-
     private void checkAttachmentsAllowed() throws RejectExceptionExt {
         if (list.isAttachmentsAllowed())
             return;
@@ -115,9 +109,11 @@ class Redistributor {
 
     }
 
-    private void setupNewMaildata() throws IOException, RejectExceptionExt,
+    private void setupNewMaildata() throws RejectExceptionExt,
             ParseException {
-        newMaildata = source.maildata.copy();
+        // Only the header section is duplicated, the body is streamed from the
+        // original mail data when the mails are written into the queue.
+        newMaildata = source.maildata.overlay();
 
         // We need to remove this header from the copy we're sending around
         newMaildata.headers().remove(RETURN_PATH);
@@ -291,9 +287,8 @@ class Redistributor {
         DotAtomDomainPart domain = (DotAtomDomainPart) remotePart;
 
         try {
-            PolicyRecord discoverPolicy =
-                    new PolicyDiscovery().discoverPolicy(domain);
-            return discoverPolicy.request == Request.reject;
+            PolicyRecord policy = list.dmarcPolicyCache.getPolicy(domain);
+            return policy != null && policy.request == Request.reject;
         } catch (RecoverableDmarcException e) {
             throw new RejectExceptionExt(new EnhancedStatus(451, "4.4.3",
                     "Unable to query for a DMARC record"));
@@ -315,32 +310,86 @@ class Redistributor {
     }
 
     private void sendMail() throws RejectExceptionExt {
-        Mail mail = new Mail();
-        mail.from = list.reversePath;
-        for (ListMember member : list.members) {
-            if (member.isDisabled() || member.isNoDelivery())
-                continue;
-            mail.recipients.add(member.getRecipient());
-        }
-        if (mail.recipients.isEmpty()) {
+        MemberIndex memberIndex = list.getMemberIndex();
+        if (memberIndex.getDeliverableRecipients().isEmpty()) {
             logger.debug("Mail list has no such members, "
                     + "who should receive mail, dropping mail");
             return;
         }
 
-        mail.maildata = newMaildata;
+        List<Mail> mails = new ArrayList<>();
+        if (!list.isVerp() && list.getRecipientsPerMail() == 0) {
+            mails.add(createMail(list.reversePath,
+                    memberIndex.getDeliverableRecipients()));
+        } else {
+            for (List<Recipient> domainRecipients : memberIndex
+                    .getDeliverableRecipientsByDomain()) {
+                if (list.isVerp()) {
+                    for (Recipient recipient : domainRecipients)
+                        mails.add(createMail(verpReversePath(recipient),
+                                Collections.singletonList(recipient)));
+                } else {
+                    int batchSize = list.getRecipientsPerMail();
+                    for (int i = 0; i < domainRecipients.size(); i += batchSize) {
+                        mails.add(createMail(list.reversePath,
+                                domainRecipients.subList(i, Math.min(i
+                                        + batchSize, domainRecipients.size()))));
+                    }
+                }
+            }
+        }
+
         try {
-            mail.arrivalDate = source.arrivalDate;
-            mail.scheduleDate = mail.arrivalDate; // try to preserve order
-            list.transmitter.transmit(mail);
-            logger.debug("Mailing list mail was submitted to transmitter: {}",
-                    mail);
+            if (mails.size() == 1)
+                list.transmitter.transmit(mails.get(0));
+            else
+                list.transmitter.transmit(mails);
+            logger.debug("Mailing list mail was submitted to transmitter "
+                    + "in {} envelopes: {}", mails.size(), mails.get(0));
         } catch (LocalMailSystemException e) {
             logger.error("Cannot transmit mail", e);
             throw new RejectExceptionExt(e.errorStatus());
         }
     }
 
+    private Mail createMail(ReversePath reversePath, List<Recipient> recipients) {
+        Mail mail = new Mail();
+        mail.from = reversePath;
+        mail.recipients.addAll(recipients);
+        mail.maildata = newMaildata;
+        mail.arrivalDate = source.arrivalDate;
+        mail.scheduleDate = mail.arrivalDate; // try to preserve order
+        return mail;
+    }
+
+    /**
+     * Returns the reverse path of the list with the address of the member
+     * encoded into its local part. It returns the reverse path of the list
+     * unchanged if the result would not be a valid address, for example if
+     * the local part of the member is a quoted string.
+     */
+    private ReversePath verpReversePath(Recipient recipient) {
+        if (list.reversePath.isNull()
+                || !(recipient instanceof RemotePartContainingRecipient))
+            return list.reversePath;
+        mireka.smtp.address.Mailbox listMailbox =
+                ((RealReversePath) list.reversePath).getMailbox();
+        mireka.smtp.address.Mailbox memberMailbox =
+                ((RemotePartContainingRecipient) recipient).getMailbox();
+        String address =
+                listMailbox.getLocalPart().smtpText() + "+"
+                        + memberMailbox.getLocalPart().smtpText() + "="
+                        + memberMailbox.getRemotePart().smtpText() + "@"
+                        + listMailbox.getRemotePart().smtpText();
+        try {
+            return new MailAddressFactory().createReversePath(address);
+        } catch (ParseException e) {
+            logger.debug("Cannot create VERP reverse path for " + recipient,
+                    e);
+            return list.reversePath;
+        }
+    }
+
     private AddrSpec getListAddrSpec() {
         try {
             return AddrSpec.fromString(list.getAddress());
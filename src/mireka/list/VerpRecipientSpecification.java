@@ -0,0 +1,57 @@
+package mireka.list;
+
+import mireka.ConfigurationException;
+import mireka.filter.local.table.RecipientSpecification;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Mailbox;
+import mireka.smtp.address.RealReversePath;
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.RemotePartContainingRecipient;
+import mireka.smtp.address.ReversePath;
+
+/**
+ * Matches the addresses which a list with VERP switched on creates from its
+ * reverse path, for example list-bounces+jane=example.com@example.org if the
+ * reverse path is list-bounces@example.org. It does not check whether the
+ * encoded member address is valid. The local part of the reverse path is
+ * compared case-insensitively.
+ * 
+ * @see ListDestination#setVerp(boolean)
+ */
+public class VerpRecipientSpecification implements RecipientSpecification {
+    private Mailbox reversePathMailbox;
+
+    @Override
+    public boolean isSatisfiedBy(Recipient recipient) {
+        if (!(recipient instanceof RemotePartContainingRecipient))
+            return false;
+        Mailbox mailbox =
+                ((RemotePartContainingRecipient) recipient).getMailbox();
+        if (!reversePathMailbox.getRemotePart().equals(
+                mailbox.getRemotePart()))
+            return false;
+        String prefix = reversePathMailbox.getLocalPart().smtpText() + "+";
+        String localPart = mailbox.getLocalPart().smtpText();
+        return localPart.length() > prefix.length()
+                && localPart.regionMatches(true, 0, prefix, 0,
+                        prefix.length());
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setReversePath(String reversePath) {
+        ReversePath path =
+                new MailAddressFactory()
+                        .createReversePathAlreadyVerified(reversePath);
+        if (path.isNull())
+            throw new ConfigurationException(
+                    "VERP requires a non-null reverse path");
+        this.reversePathMailbox = ((RealReversePath) path).getMailbox();
+    }
+
+    @Override
+    public String toString() {
+        return "(VERP: " + reversePathMailbox + ")";
+    }
+}
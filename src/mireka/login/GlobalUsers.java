@@ -1,30 +1,42 @@
 package mireka.login;
 
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+
+import mireka.smtp.address.LocalPart;
 
 /**
  * GlobalUsers is a simple collection of GlobalUser instances, this class is
- * useful in CDI XML configuration.
+ * useful in CDI XML configuration. Users are indexed by their case
+ * insensitive name.
  */
 public class GlobalUsers implements Iterable<GlobalUser> {
-    private final Set<GlobalUser> users = new HashSet<GlobalUser>();
+    private final Map<Username, GlobalUser> users =
+            new HashMap<Username, GlobalUser>();
 
     @Override
     public Iterator<GlobalUser> iterator() {
-        return users.iterator();
+        return users.values().iterator();
+    }
+
+    /**
+     * Returns the user whose name case insensitively matches the local part,
+     * or null if there is no such user.
+     */
+    public GlobalUser lookup(LocalPart localPart) {
+        return users.get(new Username(localPart.displayableName()));
     }
 
     public void addUser(GlobalUser user) {
         if (user == null)
             throw new NullPointerException();
-        if (users.contains(user))
+        if (users.containsKey(user.getUsernameObject()))
             throw new IllegalArgumentException("User "
                     + user.getUsernameObject() + " already included");
 
-        users.add(user);
+        users.put(user.getUsernameObject(), user);
     }
 
     public void setUsers(List<GlobalUser> users) {
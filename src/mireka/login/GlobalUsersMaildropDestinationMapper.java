@@ -1,10 +1,11 @@
 package mireka.login;
 
 import mireka.destination.Destination;
-import mireka.filter.local.table.RecipientDestinationMapper;
+import mireka.filter.local.table.IndexableRecipientDestinationMapper;
+import mireka.filter.local.table.RecipientIndex;
+import mireka.pop.LocalDelivery;
 import mireka.pop.MaildropDestination;
 import mireka.pop.store.MaildropRepository;
-import mireka.smtp.address.LocalPart;
 import mireka.smtp.address.Recipient;
 
 /**
@@ -12,25 +13,33 @@ import mireka.smtp.address.Recipient;
  * user. The name of the maildrop is the same as the user's name.
  */
 public class GlobalUsersMaildropDestinationMapper implements
-        RecipientDestinationMapper {
+        IndexableRecipientDestinationMapper {
 
     private GlobalUsers users;
     private MaildropRepository maildropRepository;
+    private LocalDelivery localDelivery;
 
     @Override
     public Destination lookup(Recipient recipient) {
-        LocalPart recipientLocalPart = recipient.localPart();
-        for (GlobalUser user : users) {
-            if (user.getUsernameObject().matches(recipientLocalPart)) {
-                MaildropDestination destination = new MaildropDestination();
-                destination
-                        .setMaildropName(user.getUsernameObject().toString());
-                destination.setMaildropRepository(maildropRepository);
-                return destination;
-            }
-        }
-        return null;
+        GlobalUser user = users.lookup(recipient.localPart());
+        if (user == null)
+            return null;
+        return createDestination(user);
+    }
+
+    @Override
+    public void addTo(RecipientIndex.Builder<Destination> builder) {
+        for (GlobalUser user : users)
+            builder.addAnyDomainLocalPart(user.getUsernameObject().toString(),
+                    createDestination(user));
+    }
 
+    private MaildropDestination createDestination(GlobalUser user) {
+        MaildropDestination destination = new MaildropDestination();
+        destination.setMaildropName(user.getUsernameObject().toString());
+        destination.setMaildropRepository(maildropRepository);
+        destination.setLocalDelivery(localDelivery);
+        return destination;
     }
 
     /**
@@ -53,4 +62,21 @@ public class GlobalUsersMaildropDestinationMapper implements
     public MaildropRepository getMaildropRepository() {
         return maildropRepository;
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public LocalDelivery getLocalDelivery() {
+        return localDelivery;
+    }
+
+    /**
+     * Sets the object which delivers mails sent to several users at once,
+     * null means that maildrops are written one after the other.
+     *
+     * @x.category GETSET
+     */
+    public void setLocalDelivery(LocalDelivery localDelivery) {
+        this.localDelivery = localDelivery;
+    }
 }
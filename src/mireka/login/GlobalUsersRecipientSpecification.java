@@ -1,7 +1,8 @@
 package mireka.login;
 
+import mireka.filter.local.table.IndexableRecipientSpecification;
+import mireka.filter.local.table.RecipientIndex;
 import mireka.filter.local.table.RecipientSpecification;
-import mireka.smtp.address.LocalPart;
 import mireka.smtp.address.Recipient;
 
 /**
@@ -10,7 +11,7 @@ import mireka.smtp.address.Recipient;
  * supplied {@link GlobalUsers} collection.
  */
 public class GlobalUsersRecipientSpecification implements
-        RecipientSpecification {
+        IndexableRecipientSpecification {
     private GlobalUsers users;
 
     public void setUsers(GlobalUsers users) {
@@ -19,11 +20,13 @@ public class GlobalUsersRecipientSpecification implements
 
     @Override
     public boolean isSatisfiedBy(Recipient recipient) {
-        LocalPart recipientLocalPart = recipient.localPart();
-        for (GlobalUser user : users) {
-            if (user.getUsernameObject().matches(recipientLocalPart))
-                return true;
-        }
-        return false;
+        return users.lookup(recipient.localPart()) != null;
+    }
+
+    @Override
+    public <T> void addTo(RecipientIndex.Builder<T> builder, T value) {
+        for (GlobalUser user : users)
+            builder.addAnyDomainLocalPart(user.getUsernameObject().toString(),
+                    value);
     }
 }
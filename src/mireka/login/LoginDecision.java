@@ -4,5 +4,10 @@ package mireka.login;
  * This class represents the result of an authentication attempt.
  */
 public enum LoginDecision {
-    USERNAME_NOT_EXISTS, PASSWORD_DOES_NOT_MATCH, INVALID, VALID;
+    USERNAME_NOT_EXISTS, PASSWORD_DOES_NOT_MATCH, INVALID, VALID,
+    /**
+     * The credentials could not be checked because of a transient local
+     * error, the client should try again later.
+     */
+    TEMPORARY_FAILURE;
 }
@@ -0,0 +1,434 @@
+package mireka.login;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.smtp.EnhancedStatus;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
+/**
+ * UserDirectory looks up users and aliases in a sorted text file, which is
+ * not loaded into the memory, so it can hold much more entries than the
+ * configuration scripts. Each line of the file has three fields separated by
+ * a TAB character:
+ * <ol>
+ * <li>the key, which is either a user name, i.e. a local part valid in all
+ * local domains, or a complete mailbox address. It must be in lower case.
+ * <li>the type of the entry, either <code>user</code> or <code>alias</code>
+ * <li>the password of the user, or the canonical address of the alias
+ * </ol>
+ * The lines must be ordered by their key in the byte order of their UTF-8
+ * encoding, for example by <code>LC_ALL=C sort</code>, lookups use binary
+ * search on the file.
+ * <p>
+ * Results, including the negative ones, are kept in a LRU cache. A read error
+ * is reported to the caller as a transient failure and it is not cached. The
+ * file is checked for modifications periodically and it is reopened if it has
+ * changed, so entries can be added or removed without a restart. The file
+ * should be replaced by renaming a new file over it, so lookups never see a
+ * partially written file.
+ */
+@ThreadSafe
+public class UserDirectory {
+    private static final Entry NOT_FOUND = new Entry("", Type.USER, "");
+    private final Logger logger = LoggerFactory.getLogger(UserDirectory.class);
+    private String name = "default";
+    private File file;
+    private int cacheSize = 10000;
+    private int checkPeriod = 10;
+    private volatile Snapshot snapshot;
+    private volatile long nextCheck;
+    private final LruCache cache = new LruCache();
+    private Timer lookups;
+    private Timer fileLookups;
+    private Counter reloads;
+
+    @PostConstruct
+    public void start() throws IOException {
+        lookups =
+                Metrics.newTimer(metricName("lookups"), TimeUnit.MICROSECONDS,
+                        TimeUnit.MINUTES);
+        fileLookups =
+                Metrics.newTimer(metricName("fileLookups"),
+                        TimeUnit.MICROSECONDS, TimeUnit.MINUTES);
+        reloads = Metrics.newCounter(metricName("reloads"));
+        snapshot = new Snapshot(file);
+        nextCheck = System.currentTimeMillis() + checkPeriod * 1000L;
+    }
+
+    private MetricName metricName(String name) {
+        return new MetricName("mireka", "UserDirectory", name, this.name);
+    }
+
+    @PreDestroy
+    public void stop() {
+        snapshot.close();
+    }
+
+    /**
+     * Returns the entry with the specified key, which is compared case
+     * insensitively, or null if there is no such entry.
+     * 
+     * @throws LocalMailSystemException
+     *             if the file cannot be read, the error is transient
+     */
+    public Entry lookup(String key) throws LocalMailSystemException {
+        key = key.toLowerCase(Locale.US);
+        TimerContext timerContext = lookups.time();
+        try {
+            checkModification();
+            Entry entry;
+            synchronized (cache) {
+                entry = cache.get(key);
+            }
+            if (entry == null) {
+                Snapshot current = snapshot;
+                entry = lookupInFile(key);
+                synchronized (cache) {
+                    // do not cache a result read from a replaced file
+                    if (current == snapshot)
+                        cache.put(key, entry);
+                }
+            }
+            return entry == NOT_FOUND ? null : entry;
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    private void checkModification() {
+        long now = System.currentTimeMillis();
+        if (now < nextCheck)
+            return;
+        synchronized (this) {
+            if (now < nextCheck)
+                return;
+            nextCheck = now + checkPeriod * 1000L;
+            Snapshot current = snapshot;
+            if (!current.isModified())
+                return;
+            try {
+                snapshot = new Snapshot(file);
+            } catch (IOException e) {
+                logger.error("Cannot reopen user directory " + file
+                        + ", the previous version remains in use", e);
+                return;
+            }
+            synchronized (cache) {
+                cache.clear();
+            }
+            current.close();
+            reloads.inc();
+            logger.info("User directory {} is reloaded", file);
+        }
+    }
+
+    private Entry lookupInFile(String key) throws LocalMailSystemException {
+        TimerContext timerContext = fileLookups.time();
+        try {
+            while (true) {
+                Snapshot current = snapshot;
+                try {
+                    Entry entry = current.search(key);
+                    return entry == null ? NOT_FOUND : entry;
+                } catch (ClosedChannelException e) {
+                    // the file was reloaded concurrently
+                    if (current == snapshot)
+                        throw e;
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Cannot read user directory " + file, e);
+            throw new LocalMailSystemException(e,
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        } finally {
+            timerContext.stop();
+        }
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name which distinguishes the metrics of this directory from
+     * the metrics of other directories. The default is "default".
+     *
+     * @x.category GETSET
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public String getFile() {
+        return file.getPath();
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setFile(String file) {
+        this.file = new File(file);
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum count of cached lookup results, including the results
+     * for unknown keys. The default is 10000.
+     *
+     * @x.category GETSET
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getCheckPeriod() {
+        return checkPeriod;
+    }
+
+    /**
+     * Sets how often the file is checked for modifications, in seconds. The
+     * default is 10.
+     *
+     * @x.category GETSET
+     */
+    public void setCheckPeriod(int checkPeriod) {
+        this.checkPeriod = checkPeriod;
+    }
+
+    /**
+     * The type of an entry of the directory.
+     */
+    public enum Type {
+        USER, ALIAS
+    }
+
+    /**
+     * Entry is a line of the directory file.
+     */
+    public static class Entry {
+        private final String key;
+        private final Type type;
+        private final String value;
+
+        Entry(String key, Type type, String value) {
+            this.key = key;
+            this.type = type;
+            this.value = value;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Returns the password of a user, or the canonical address of an
+         * alias.
+         */
+        public String getValue() {
+            return value;
+        }
+    }
+
+    private class LruCache extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        LruCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, UserDirectory.Entry> eldest) {
+            return size() > cacheSize;
+        }
+    }
+
+    /**
+     * Snapshot is an opened version of the directory file.
+     */
+    private class Snapshot {
+        private final long lastModified;
+        private final long length;
+        private final FileChannel channel;
+
+        Snapshot(File file) throws IOException {
+            lastModified = file.lastModified();
+            @SuppressWarnings("resource")
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+            length = channel.size();
+        }
+
+        boolean isModified() {
+            return file.lastModified() != lastModified
+                    || file.length() != length;
+        }
+
+        /**
+         * Returns the entry with the specified key, or null if there is no
+         * such entry. It uses binary search to find the first line whose key
+         * is not lower than the specified key.
+         */
+        Entry search(String key) throws IOException {
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            // lines starting before low have lower keys than the searched
+            // one, the line starting at high, if any, has not a lower key
+            long low = 0;
+            long high = length;
+            while (low < high) {
+                long middle = lineStartAtOrAfter((low + high) >>> 1);
+                if (middle >= high)
+                    break;
+                byte[] line = readLine(middle);
+                if (compareKey(line, keyBytes) < 0)
+                    low = middle + line.length + 1;
+                else
+                    high = middle;
+            }
+            long position = low;
+            while (position < length) {
+                byte[] line = readLine(position);
+                int comparison = compareKey(line, keyBytes);
+                if (comparison == 0)
+                    return parse(line);
+                if (comparison > 0)
+                    return null;
+                position += line.length + 1;
+            }
+            return null;
+        }
+
+        private long lineStartAtOrAfter(long position) throws IOException {
+            if (position == 0)
+                return 0;
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            long bufferStart = position - 1;
+            while (bufferStart < length) {
+                buffer.clear();
+                int count = channel.read(buffer, bufferStart);
+                if (count <= 0)
+                    break;
+                for (int i = 0; i < count; i++) {
+                    if (buffer.get(i) == '\n')
+                        return bufferStart + i + 1;
+                }
+                bufferStart += count;
+            }
+            return length;
+        }
+
+        /**
+         * Returns the bytes of the line starting at the specified position,
+         * without the terminating line feed.
+         */
+        private byte[] readLine(long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            int size = 0;
+            while (true) {
+                int count = channel.read(buffer, position + size);
+                if (count <= 0)
+                    return Arrays.copyOf(buffer.array(), size);
+                for (int i = size; i < size + count; i++) {
+                    if (buffer.get(i) == '\n')
+                        return Arrays.copyOf(buffer.array(), i);
+                }
+                size += count;
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+
+        /**
+         * Compares the key field of the line with the key, bytes are
+         * compared as unsigned values.
+         */
+        private int compareKey(byte[] line, byte[] key) {
+            int i = 0;
+            while (true) {
+                boolean lineKeyEnds = i == line.length || line[i] == '\t';
+                if (lineKeyEnds)
+                    return i == key.length ? 0 : -1;
+                if (i == key.length)
+                    return 1;
+                int difference = (line[i] & 0xFF) - (key[i] & 0xFF);
+                if (difference != 0)
+                    return difference;
+                i++;
+            }
+        }
+
+        private Entry parse(byte[] line) throws IOException {
+            String text = new String(line, StandardCharsets.UTF_8);
+            if (text.endsWith("\r"))
+                text = text.substring(0, text.length() - 1);
+            String[] fields = text.split("\t", 3);
+            if (fields.length != 3)
+                throw new IOException("Invalid line in user directory: "
+                        + fields[0]);
+            Type type;
+            if (fields[1].equals("user"))
+                type = Type.USER;
+            else if (fields[1].equals("alias"))
+                type = Type.ALIAS;
+            else
+                throw new IOException("Invalid entry type in user directory: "
+                        + fields[1]);
+            return new Entry(fields[0], type, fields[2]);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close user directory " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package mireka.login;
+
+import java.text.ParseException;
+
+import mireka.destination.AliasDestination;
+import mireka.destination.Destination;
+import mireka.destination.TemporaryFailureDestination;
+import mireka.filter.local.table.RecipientDestinationMapper;
+import mireka.pop.LocalDelivery;
+import mireka.pop.MaildropDestination;
+import mireka.pop.store.MaildropRepository;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Mailbox;
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.RemotePartContainingRecipient;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class assigns destinations to the entries of a {@link UserDirectory}.
+ * A user receives a {@link MaildropDestination}, the name of the maildrop is
+ * the key of the user entry, an alias receives an {@link AliasDestination}.
+ * An entry keyed by the complete mailbox address takes precedence over an
+ * entry keyed by the local part only. If the directory cannot be read, the
+ * recipient receives a {@link TemporaryFailureDestination}, so it is rejected
+ * with a transient error.
+ */
+public class UserDirectoryDestinationMapper implements
+        RecipientDestinationMapper {
+    private final Logger logger = LoggerFactory
+            .getLogger(UserDirectoryDestinationMapper.class);
+    private UserDirectory directory;
+    private MaildropRepository maildropRepository;
+    private LocalDelivery localDelivery;
+
+    @Override
+    public Destination lookup(Recipient recipient) {
+        UserDirectory.Entry entry;
+        try {
+            entry = lookupEntry(recipient);
+        } catch (LocalMailSystemException e) {
+            logger.error("Cannot look up " + recipient
+                    + " in the user directory", e);
+            return new TemporaryFailureDestination(e.errorStatus());
+        }
+        if (entry == null)
+            return null;
+        switch (entry.getType()) {
+        case USER:
+            MaildropDestination maildropDestination =
+                    new MaildropDestination();
+            maildropDestination.setMaildropName(entry.getKey());
+            maildropDestination.setMaildropRepository(maildropRepository);
+            maildropDestination.setLocalDelivery(localDelivery);
+            return maildropDestination;
+        case ALIAS:
+            AliasDestination aliasDestination = new AliasDestination();
+            try {
+                aliasDestination.setRecipient(new MailAddressFactory()
+                        .createRecipient(entry.getValue()));
+            } catch (ParseException e) {
+                logger.error("Invalid canonical address of alias "
+                        + entry.getKey() + " in the user directory", e);
+                return null;
+            }
+            return aliasDestination;
+        default:
+            throw new RuntimeException("Assertion failed");
+        }
+    }
+
+    private UserDirectory.Entry lookupEntry(Recipient recipient)
+            throws LocalMailSystemException {
+        if (recipient instanceof RemotePartContainingRecipient) {
+            Mailbox mailbox =
+                    ((RemotePartContainingRecipient) recipient).getMailbox();
+            UserDirectory.Entry entry =
+                    directory.lookup(recipient.localPart().displayableName()
+                            + "@" + mailbox.getRemotePart().smtpText());
+            if (entry != null)
+                return entry;
+        }
+        return directory.lookup(recipient.localPart().displayableName());
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public UserDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setDirectory(UserDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public MaildropRepository getMaildropRepository() {
+        return maildropRepository;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setMaildropRepository(MaildropRepository maildropRepository) {
+        this.maildropRepository = maildropRepository;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public LocalDelivery getLocalDelivery() {
+        return localDelivery;
+    }
+
+    /**
+     * Sets the object which delivers mails sent to several users at once,
+     * null means that maildrops are written one after the other.
+     *
+     * @x.category GETSET
+     */
+    public void setLocalDelivery(LocalDelivery localDelivery) {
+        this.localDelivery = localDelivery;
+    }
+}
@@ -0,0 +1,82 @@
+package mireka.login;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import mireka.transmission.LocalMailSystemException;
+
+/**
+ * This class authenticates the users of a {@link UserDirectory}, the
+ * principal is named after the key of the user entry, so it can be used
+ * together with {@link GlobalUsersPrincipalMaildropTable}. Aliases cannot log
+ * in. If the directory cannot be read, the decision is
+ * {@link LoginDecision#TEMPORARY_FAILURE}.
+ */
+public class UserDirectoryLoginSpecification implements LoginSpecification {
+    private UserDirectory directory;
+
+    @Override
+    public LoginResult evaluatePlain(String username, String password) {
+        UserDirectory.Entry entry;
+        try {
+            entry = lookupUser(username);
+        } catch (LocalMailSystemException e) {
+            return new LoginResult(LoginDecision.TEMPORARY_FAILURE, null);
+        }
+        if (entry == null)
+            return new LoginResult(LoginDecision.USERNAME_NOT_EXISTS, null);
+        if (entry.getValue().equals(password))
+            return new LoginResult(LoginDecision.VALID, new Principal(
+                    entry.getKey()));
+        return new LoginResult(LoginDecision.PASSWORD_DOES_NOT_MATCH, null);
+    }
+
+    @Override
+    public LoginResult evaluateApop(String username, String timestamp,
+            byte[] digestBytes) {
+        UserDirectory.Entry entry;
+        try {
+            entry = lookupUser(username);
+        } catch (LocalMailSystemException e) {
+            return new LoginResult(LoginDecision.TEMPORARY_FAILURE, null);
+        }
+        if (entry == null)
+            return new LoginResult(LoginDecision.INVALID, null);
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Assertion failed");
+        }
+        byte[] calculatedDigestBytes =
+                digest.digest((timestamp + entry.getValue())
+                        .getBytes(StandardCharsets.UTF_8));
+        if (MessageDigest.isEqual(digestBytes, calculatedDigestBytes))
+            return new LoginResult(LoginDecision.VALID, new Principal(
+                    entry.getKey()));
+        return new LoginResult(LoginDecision.INVALID, null);
+    }
+
+    private UserDirectory.Entry lookupUser(String username)
+            throws LocalMailSystemException {
+        UserDirectory.Entry entry = directory.lookup(username);
+        if (entry == null || entry.getType() != UserDirectory.Type.USER)
+            return null;
+        return entry;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public UserDirectory getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setDirectory(UserDirectory directory) {
+        this.directory = directory;
+    }
+}
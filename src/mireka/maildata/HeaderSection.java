@@ -192,6 +192,27 @@ public class HeaderSection {
         return entry.parsedField;
     }
 
+    /**
+     * Returns a new HeaderSection with the same fields, which can be modified
+     * independently of this object. Fields extracted from the mail are copied
+     * in their raw form and are parsed again on demand, so modifying a parsed
+     * field of the copy does not affect this header section. Newly created
+     * fields are shared, they must not be modified in place.
+     */
+    HeaderSection copy() {
+        HeaderSection result = new HeaderSection();
+        for (Entry entry : fields) {
+            Entry newEntry = new Entry();
+            newEntry.source = entry.source;
+            newEntry.lowerCaseName = entry.lowerCaseName;
+            if (entry.source == null)
+                newEntry.parsedField = entry.parsedField;
+            result.fields.add(newEntry);
+        }
+        result.isUpdated = isUpdated;
+        return result;
+    }
+
     /**
      * Returns an iterator to the fields either in their parsed or unparsed (
      * {@link UnparsedHeaderField}) form.
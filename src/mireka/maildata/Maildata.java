@@ -59,6 +59,13 @@ public class Maildata implements AutoCloseable {
 
     private DeferredFile resultFile = null;
 
+    /**
+     * False if this object is an overlay which shares the source file of
+     * another Maildata, in this case the source file is closed by that other
+     * object.
+     */
+    private final boolean ownsSourceFile;
+
     /**
      * Creates a new Maildata object which will represent the Mail Data in the
      * MaildataFile. It saves the MaildataFile for later use.
@@ -73,6 +80,15 @@ public class Maildata implements AutoCloseable {
      */
     public Maildata(MaildataFile sourceFile) {
         this.sourceFile = sourceFile;
+        this.ownsSourceFile = true;
+    }
+
+    private Maildata(Maildata base) {
+        this.sourceFile = base.sourceFile;
+        this.ownsSourceFile = false;
+        base.headers();
+        this.sourceFileMap = base.sourceFileMap;
+        this.headerSection = base.headerSection.copy();
     }
 
     public HeaderSection headers() {
@@ -121,6 +137,23 @@ public class Maildata implements AutoCloseable {
         return new Maildata(tmpMaildataFile);
     }
 
+    /**
+     * Returns a new Maildata which has its own copy of the header section, but
+     * reads the body from the same source file as this object. Unlike
+     * {@link #copy()}, it does not write the content anywhere, only the header
+     * section is duplicated, so it is cheap even for a large mail. The
+     * modifications of the headers of the overlay do not affect this object,
+     * and the body is streamed from the original source file when the overlay
+     * is written out.
+     * <p>
+     * The returned object does not close the shared source file, so this
+     * object must remain open as long as the overlay is used. This object must
+     * not be modified concurrently with this call, but it can be read.
+     */
+    public Maildata overlay() {
+        return new Maildata(this);
+    }
+
     /**
      * Returns true if some part of this mail data has been updated, indicating
      * that the source MailData does not reflect the current state.
@@ -153,7 +186,7 @@ public class Maildata implements AutoCloseable {
      */
     @Override
     public void close() {
-        if (sourceFile != null)
+        if (sourceFile != null && ownsSourceFile)
             sourceFile.close();
         if (resultFile != null)
             resultFile.close();
@@ -233,13 +266,13 @@ public class Maildata implements AutoCloseable {
 
     public void setSubject(String s) {
         String subject = s.trim();
-        if (subject.isEmpty())
+        if (subject.isEmpty()) {
             headers().remove(SUBJECT);
-        UnstructuredField field = new UnstructuredField();
+            return;
+        }
         // Conventionally there is a space before the actual text, so the
         // heading looks better, even though this is somewhat wrong, because the
         // space becomes part of the semanantic value.
-        field.body = " " + subject;
-        headers().put(field);
+        headers().put(new UnstructuredField(SUBJECT, " " + subject));
     }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import mireka.pop.command.ApopCommand;
 import mireka.pop.command.CapaCommand;
@@ -23,6 +24,11 @@ import mireka.pop.command.UserCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.core.TimerContext;
+
 /**
  * This class selects and runs the {@link Command} corresponding to the POP3
  * command line received from the client, moreover it processes the connection
@@ -67,12 +73,29 @@ class CommandHandler {
             Command command = commandMap.get(key);
             if (command == null)
                 throw new Pop3Exception(null, "Command is not implemented");
-            command.execute(commandParser);
+            TimerContext timerContext =
+                    commandTimer(key, session.getServer().getPort()).time();
+            try {
+                command.execute(commandParser);
+            } finally {
+                timerContext.stop();
+            }
         } catch (Pop3Exception e) {
             session.getThread().sendResponse(e.toResponse());
         }
     }
 
+    /**
+     * Returns the timer which measures the latency of the specified command,
+     * including the transmission of the response. Like the other metrics of
+     * the POP server, its scope is the port of the server.
+     */
+    private static Timer commandTimer(String command, int port) {
+        return Metrics.newTimer(new MetricName("mireka", "PopServer", command
+                + ".latency", String.valueOf(port)), TimeUnit.MILLISECONDS,
+                TimeUnit.MINUTES);
+    }
+
     /**
      * Displays the welcome message
      */
@@ -0,0 +1,209 @@
+package mireka.pop;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * IdleSessionSelector watches the connections of the sessions which are
+ * waiting for the next command of the client, so these sessions do not occupy
+ * a thread. If a command arrives, then the connection is switched back to
+ * blocking mode and the session is dispatched to a worker thread of the
+ * server. Sessions which remain idle longer than the timeout are ended.
+ */
+class IdleSessionSelector extends Thread {
+    private final Logger logger = LoggerFactory
+            .getLogger(IdleSessionSelector.class);
+    private final ServerThread serverThread;
+    private final long idleTimeoutMillis;
+    private final Selector selector;
+    /**
+     * Sessions which were parked but not registered with the selector yet.
+     */
+    private final Queue<SessionThread> pendingSessions =
+            new ConcurrentLinkedQueue<>();
+    @GuardedBy("this")
+    private boolean shuttingDown;
+    private volatile int idleSessionCount;
+    private long lastTimeoutCheck;
+
+    IdleSessionSelector(ServerThread serverThread, long idleTimeoutMillis)
+            throws IOException {
+        super(IdleSessionSelector.class.getName() + " "
+                + serverThread.getName());
+        this.serverThread = serverThread;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts watching the connection of the session, the calling thread must
+     * not use the session after this function returned true.
+     *
+     * @return false if the selector is shutting down, in this case the
+     *         session must be ended by the caller.
+     */
+    synchronized boolean park(SessionThread session) {
+        if (shuttingDown)
+            return false;
+        pendingSessions.add(session);
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Returns the count of sessions waiting for a command from the client.
+     */
+    int getIdleSessionCount() {
+        return idleSessionCount;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isShuttingDown()) {
+                selector.select(1000);
+                registerPendingSessions();
+                List<SessionThread> readySessions = new ArrayList<>();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    key.cancel();
+                    readySessions.add((SessionThread) key.attachment());
+                }
+                List<SessionThread> timedOutSessions = cancelTimedOutKeys();
+                // deregisters the channels of the cancelled keys, only then
+                // can they be switched back to blocking mode
+                selector.selectNow();
+                for (SessionThread session : readySessions)
+                    unpark(session, false);
+                for (SessionThread session : timedOutSessions)
+                    unpark(session, true);
+                idleSessionCount = selector.keys().size();
+            }
+        } catch (IOException e) {
+            logger.error("POP3 idle session selector failed", e);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected exception in POP3 idle session selector",
+                    e);
+        } finally {
+            synchronized (this) {
+                shuttingDown = true;
+            }
+            endAllSessions();
+        }
+    }
+
+    private synchronized boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    private void registerPendingSessions() {
+        SessionThread session;
+        long now = System.currentTimeMillis();
+        while (null != (session = pendingSessions.poll())) {
+            SocketChannel channel = session.getChannel();
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, session);
+                session.setParkedAt(now);
+            } catch (ClosedChannelException e) {
+                // the session was ended during shutdown
+                session.end();
+            } catch (IOException e) {
+                logger.debug("Cannot watch idle POP3 connection", e);
+                session.end();
+            }
+        }
+    }
+
+    private List<SessionThread> cancelTimedOutKeys() {
+        long now = System.currentTimeMillis();
+        List<SessionThread> result = new ArrayList<>();
+        if (now - lastTimeoutCheck < 1000)
+            return result;
+        lastTimeoutCheck = now;
+        for (SelectionKey key : selector.keys()) {
+            SessionThread session = (SessionThread) key.attachment();
+            if (key.isValid()
+                    && now - session.getParkedAt() >= idleTimeoutMillis) {
+                key.cancel();
+                result.add(session);
+            }
+        }
+        return result;
+    }
+
+    private void unpark(SessionThread session, boolean timedOut) {
+        try {
+            session.getChannel().configureBlocking(true);
+        } catch (IOException e) {
+            logger.debug("Cannot restore blocking mode of POP3 connection", e);
+            session.end();
+            return;
+        }
+        if (timedOut)
+            session.setIdleTimedOut();
+        else
+            session.setInputArrived();
+        serverThread.dispatch(session);
+    }
+
+    private void endAllSessions() {
+        List<SessionThread> sessions = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            key.cancel();
+            sessions.add((SessionThread) key.attachment());
+        }
+        try {
+            selector.selectNow();
+        } catch (IOException e) {
+            logger.debug("Cannot deregister idle POP3 connections", e);
+        }
+        for (SessionThread session : sessions) {
+            try {
+                session.getChannel().configureBlocking(true);
+            } catch (IOException e) {
+                // the connection is closed anyway
+            }
+            session.end();
+        }
+        SessionThread session;
+        while (null != (session = pendingSessions.poll()))
+            session.end();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.debug("Cannot close selector", e);
+        }
+        idleSessionCount = 0;
+    }
+
+    /**
+     * Stops the selector thread and ends the sessions which are still idle.
+     */
+    void shutdown() {
+        synchronized (this) {
+            shuttingDown = true;
+        }
+        selector.wakeup();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
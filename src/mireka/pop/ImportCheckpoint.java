@@ -0,0 +1,100 @@
+package mireka.pop;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ImportCheckpoint records the UIDs of those remote mails of a user which are
+ * already added to the local maildrop, but which may not be deleted yet from
+ * the remote maildrop. The remote server only deletes mails when the POP3
+ * session ends normally, so if the import stops unexpectedly, then these
+ * mails are skipped, only deleted, in the next import.
+ * <p>
+ * The file contains one UID per line, POP3 UIDs consist of printable ASCII
+ * characters.
+ */
+class ImportCheckpoint {
+    private final Logger logger = LoggerFactory
+            .getLogger(ImportCheckpoint.class);
+    private final File file;
+    private final Set<String> uids = new HashSet<String>();
+    private Writer writer;
+
+    ImportCheckpoint(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the UIDs recorded by a previous, interrupted import, if any.
+     */
+    void load() throws IOException {
+        try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                        file), "US-ASCII"))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (!line.isEmpty())
+                    uids.add(line);
+            }
+        } catch (FileNotFoundException e) {
+            // no previous import
+        }
+    }
+
+    boolean contains(String uid) {
+        return uids.contains(uid);
+    }
+
+    /**
+     * Appends the UID of a mail which is added to the local maildrop.
+     */
+    void add(String uid) throws IOException {
+        if (writer == null) {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()
+                    && !dir.isDirectory())
+                throw new IOException("Cannot create directory " + dir);
+            writer =
+                    new OutputStreamWriter(new FileOutputStream(file, true),
+                            "US-ASCII");
+        }
+        writer.write(uid);
+        writer.write("\n");
+        writer.flush();
+        uids.add(uid);
+    }
+
+    void close() {
+        if (writer == null)
+            return;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            logger.error("Cannot close import checkpoint file " + file, e);
+        }
+        writer = null;
+    }
+
+    /**
+     * Deletes the checkpoint file, it must be called after the remote
+     * server deleted the imported mails.
+     */
+    void delete() {
+        close();
+        if (!file.delete() && file.exists())
+            logger.error("Cannot delete import checkpoint file " + file);
+        uids.clear();
+    }
+}
@@ -0,0 +1,311 @@
+package mireka.pop;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.destination.DestinationGroup;
+import mireka.destination.GroupedMailDestination;
+import mireka.destination.IndependentDestination;
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropAppender;
+import mireka.pop.store.MaildropRepository;
+import mireka.pop.store.SharedBody;
+import mireka.pop.store.SpooledMail;
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.RejectExceptionExt;
+import mireka.startup.ReusedOnReload;
+import mireka.transmission.LocalMailSystemException;
+import mireka.transmission.Mail;
+import mireka.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * LocalDelivery puts a mail into several maildrops at once, for example if
+ * it is sent to a local alias with many members. The mail is written into a
+ * spooled file only once, and then it is added to the maildrops in parallel,
+ * on a bounded count of threads, either by copying the file or by creating
+ * hard links to it. Alternatively the mail body can be stored only once in the
+ * repository, and the maildrops only receive a reference to it together with
+ * their own Return-Path header.
+ * <p>
+ * A {@link MaildropDestination} uses this object if its localDelivery property
+ * is set.
+ */
+@ReusedOnReload
+@ThreadSafe
+public class LocalDelivery implements DestinationGroup,
+        IndependentDestination {
+    private final Logger logger = LoggerFactory.getLogger(LocalDelivery.class);
+    private int threads = 8;
+    private boolean hardLinks = false;
+    private boolean singleInstanceStorage = false;
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void data(Mail mail, List<GroupedMailDestination> destinations)
+            throws RejectExceptionExt {
+        Map<MaildropRepository, List<MaildropDestination>> repositories =
+                new LinkedHashMap<>();
+        for (GroupedMailDestination destination : destinations) {
+            MaildropDestination maildropDestination =
+                    (MaildropDestination) destination;
+            List<MaildropDestination> list =
+                    repositories.get(maildropDestination
+                            .getMaildropRepository());
+            if (list == null) {
+                list = new ArrayList<>();
+                repositories.put(maildropDestination.getMaildropRepository(),
+                        list);
+            }
+            list.add(maildropDestination);
+        }
+        for (Map.Entry<MaildropRepository, List<MaildropDestination>> entry : repositories
+                .entrySet()) {
+            deliver(mail, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void deliver(Mail mail, MaildropRepository repository,
+            List<MaildropDestination> destinations) throws RejectExceptionExt {
+        SpooledMail spooledMail = repository.createSpooledMail();
+        try {
+            if (isSingleInstanceStorage()) {
+                spool(mail, spooledMail, false);
+                appendSharedBody(mail, repository, spooledMail, destinations);
+            } else {
+                spool(mail, spooledMail, true);
+                List<Future<?>> futures =
+                        new ArrayList<>(destinations.size());
+                for (MaildropDestination destination : destinations) {
+                    futures.add(executor().submit(
+                            new Append(destination, spooledMail, null, null)));
+                }
+                awaitAll(futures);
+            }
+        } finally {
+            spooledMail.delete();
+        }
+    }
+
+    private void appendSharedBody(Mail mail, MaildropRepository repository,
+            SpooledMail spooledMail, List<MaildropDestination> destinations)
+            throws RejectExceptionExt {
+        SharedBody body;
+        try {
+            body =
+                    repository.createSharedBody(spooledMail,
+                            destinations.size());
+        } catch (LocalMailSystemException e) {
+            logger.error("Cannot accept mail because of a "
+                    + "maildrop failure", e);
+            throw new RejectExceptionExt(e.errorStatus());
+        }
+        try {
+            byte[] prefix = MaildropDestination.constructReturnPathLine(mail);
+            List<Future<?>> futures = new ArrayList<>(destinations.size());
+            for (MaildropDestination destination : destinations) {
+                futures.add(executor().submit(
+                        new Append(destination, null, body, prefix)));
+            }
+            awaitAll(futures);
+        } finally {
+            body.close();
+        }
+    }
+
+    /**
+     * @param withReturnPath
+     *            true if the Return-Path header must be written into the
+     *            spooled file before the mail content
+     */
+    private void spool(Mail mail, SpooledMail spooledMail,
+            boolean withReturnPath) throws RejectExceptionExt {
+        try {
+            OutputStream out = spooledMail.getOutputStream();
+            if (withReturnPath)
+                out.write(MaildropDestination.constructReturnPathLine(mail));
+            mail.maildata.writeTo(out);
+            spooledMail.close();
+        } catch (LocalMailSystemException e) {
+            logger.error("Cannot accept mail because of a "
+                    + "maildrop failure", e);
+            throw new RejectExceptionExt(e.errorStatus());
+        } catch (IOException e) {
+            logger.error("Cannot accept mail because of an IO error "
+                    + "occured while the mail was spooled", e);
+            throw new RejectExceptionExt(
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+    }
+
+    /**
+     * Waits until all appends complete, even if some of them fail, so the
+     * spooled file or the shared body is not released while it is still in
+     * use.
+     *
+     * @throws RejectExceptionExt
+     *             the first failure, if any of the appends failed
+     */
+    private void awaitAll(List<Future<?>> futures) throws RejectExceptionExt {
+        RejectExceptionExt failure = null;
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null)
+                        failure = toRejectException(e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (failure != null)
+            throw failure;
+    }
+
+    private RejectExceptionExt toRejectException(Throwable e) {
+        if (e instanceof RejectExceptionExt)
+            return (RejectExceptionExt) e;
+        logger.error("Unexpected exception while adding mail to a maildrop",
+                e);
+        return new RejectExceptionExt(
+                EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor =
+                    new ThreadPoolExecutor(threads, threads, 60,
+                            TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new NamedThreadFactory("LocalDelivery", true));
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the maximum count of threads which add mails to maildrops, the
+     * default is 8. The threads are shared by all SMTP sessions.
+     *
+     * @x.category GETSET
+     */
+    public synchronized void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public synchronized boolean isHardLinks() {
+        return hardLinks;
+    }
+
+    /**
+     * Sets whether the maildrops should receive hard links to the spooled
+     * mail file instead of copies. The default is false. Hard links save both
+     * time and disk space, but they require that the file system supports
+     * them. If it does not, then the file is copied anyway.
+     *
+     * @x.category GETSET
+     */
+    public synchronized void setHardLinks(boolean hardLinks) {
+        this.hardLinks = hardLinks;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public synchronized boolean isSingleInstanceStorage() {
+        return singleInstanceStorage;
+    }
+
+    /**
+     * Sets whether the mail body should be stored only once in the
+     * repository and shared by the maildrops, which only store their own
+     * Return-Path header and a reference to the body. The default is false.
+     * Identical bodies delivered in separate transactions are also stored
+     * only once. If it is true, then the hardLinks property is ignored.
+     *
+     * @x.category GETSET
+     */
+    public synchronized void setSingleInstanceStorage(
+            boolean singleInstanceStorage) {
+        this.singleInstanceStorage = singleInstanceStorage;
+    }
+
+    /**
+     * Append adds the mail to a single maildrop, either from the spooled
+     * file, or from the shared body.
+     */
+    private class Append implements Callable<Void> {
+        private final MaildropDestination destination;
+        private final SpooledMail spooledMail;
+        private final SharedBody sharedBody;
+        private final byte[] prefix;
+
+        Append(MaildropDestination destination, SpooledMail spooledMail,
+                SharedBody sharedBody, byte[] prefix) {
+            this.destination = destination;
+            this.spooledMail = spooledMail;
+            this.sharedBody = sharedBody;
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Void call() throws RejectExceptionExt {
+            MaildropRepository repository =
+                    destination.getMaildropRepository();
+            Maildrop maildrop =
+                    repository.borrowMaildrop(destination.getMaildropName());
+            try {
+                MaildropAppender appender = maildrop.allocateAppender();
+                if (sharedBody != null)
+                    appender.commitSharedBody(sharedBody, prefix);
+                else
+                    appender.commitSpooledMail(spooledMail, isHardLinks());
+            } catch (LocalMailSystemException e) {
+                logger.error("Cannot accept mail because of a "
+                        + "maildrop failure", e);
+                throw new RejectExceptionExt(e.errorStatus());
+            } finally {
+                repository.releaseMaildrop(maildrop);
+            }
+            return null;
+        }
+    }
+}
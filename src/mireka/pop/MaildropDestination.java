@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
-import mireka.destination.MailDestination;
+import mireka.destination.DestinationGroup;
+import mireka.destination.GroupedMailDestination;
+import mireka.destination.IndependentDestination;
 import mireka.pop.store.Maildrop;
 import mireka.pop.store.MaildropAppender;
 import mireka.pop.store.MaildropRepository;
@@ -17,13 +19,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * MaildropDestination puts the mail into the specified POP3 maildrop.
+ * MaildropDestination puts the mail into the specified POP3 maildrop. If a
+ * {@link LocalDelivery} is configured, then a mail which is sent to several
+ * maildrops is delivered by it in a single step.
  */
-public class MaildropDestination implements MailDestination {
+public class MaildropDestination implements GroupedMailDestination,
+        IndependentDestination {
     private final Logger logger = LoggerFactory
             .getLogger(MaildropDestination.class);
     private MaildropRepository maildropRepository;
     private String maildropName;
+    private LocalDelivery localDelivery;
+
+    @Override
+    public DestinationGroup getDestinationGroup() {
+        return localDelivery;
+    }
 
     @Override
     public void data(Mail mail) throws RejectExceptionExt {
@@ -71,7 +82,7 @@ public class MaildropDestination implements MailDestination {
         }
     }
 
-    private byte[] constructReturnPathLine(Mail mail) {
+    static byte[] constructReturnPathLine(Mail mail) {
         try {
             return ("Return-Path: <" + mail.from + ">\r\n")
                     .getBytes("US-ASCII");
@@ -108,6 +119,24 @@ public class MaildropDestination implements MailDestination {
         return maildropRepository;
     }
 
+    /**
+     * @x.category GETSET
+     */
+    public LocalDelivery getLocalDelivery() {
+        return localDelivery;
+    }
+
+    /**
+     * Sets the object which delivers a mail to this and other maildrops
+     * together. The default is null, which means that the mail is put into
+     * each maildrop one after the other.
+     *
+     * @x.category GETSET
+     */
+    public void setLocalDelivery(LocalDelivery localDelivery) {
+        this.localDelivery = localDelivery;
+    }
+
     @Override
     public String toString() {
         return "MaildropDestination [maildropName=" + maildropName + "]";
@@ -0,0 +1,241 @@
+package mireka.pop;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropException;
+import mireka.pop.store.MaildropRepository;
+import mireka.startup.ReusedOnReload;
+import mireka.transmission.LocalMailSystemException;
+import mireka.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * MaildropMaintenance enforces the size and age limits of the maildrops in a
+ * repository.
+ * <p>
+ * Mails older than the age limit are removed in the background. The
+ * maildrops are visited in a round robin manner, and each run processes only
+ * a limited count of maildrops and removes a limited count of mails, so
+ * maintenance never competes seriously with mail delivery and retrieval.
+ * Maildrops in which a POP3 transaction is running are skipped until the next
+ * round.
+ * <p>
+ * The size limit is not enforced by removing mails, instead recipients whose
+ * maildrop is full are rejected by {@link RefuseOverQuotaRecipient}, based on
+ * the usage figure remembered by the repository.
+ */
+@ReusedOnReload
+@ThreadSafe
+public class MaildropMaintenance {
+    private final Logger logger = LoggerFactory
+            .getLogger(MaildropMaintenance.class);
+    private MaildropRepository maildropRepository;
+    private long maxSize = 0;
+    private int maxAge = 0;
+    private int interval = 60;
+    private int maildropsPerRun = 100;
+    private int deletionsPerRun = 1000;
+    private final Counter expiredMails = Metrics.newCounter(new MetricName(
+            "mireka", "MaildropMaintenance", "expiredMails"));
+    @GuardedBy("this")
+    private ScheduledExecutorService executor;
+    /**
+     * The maildrops which are not yet visited in the current round.
+     */
+    private List<String> remainingMaildrops = Collections.emptyList();
+    private int nextMaildrop;
+
+    @PostConstruct
+    public synchronized void start() {
+        if (maxAge == 0)
+            return;
+        executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        new NamedThreadFactory("MaildropMaintenance", true));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runOnce();
+                } catch (RuntimeException e) {
+                    logger.error("Maildrop maintenance failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    /**
+     * Visits the next maildrops of the round, until the limit of maildrops or
+     * the limit of deletions is reached. It is only called by the maintenance
+     * thread.
+     */
+    void runOnce() {
+        long storedBefore =
+                System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAge);
+        int remainingDeletions = deletionsPerRun;
+        for (int i = 0; i < maildropsPerRun && remainingDeletions > 0; i++) {
+            if (nextMaildrop >= remainingMaildrops.size()) {
+                if (i > 0)
+                    break; // start the next round in the next run
+                remainingMaildrops = maildropRepository.listMaildropNames();
+                nextMaildrop = 0;
+                if (remainingMaildrops.isEmpty())
+                    break;
+            }
+            String maildropName = remainingMaildrops.get(nextMaildrop++);
+            int count = expire(maildropName, storedBefore, remainingDeletions);
+            remainingDeletions -= count;
+            if (remainingDeletions == 0)
+                nextMaildrop--; // it may contain more expired mails
+        }
+    }
+
+    private int expire(String maildropName, long storedBefore, int limit) {
+        Maildrop maildrop = maildropRepository.borrowMaildrop(maildropName);
+        try {
+            int count = maildrop.expireMessages(storedBefore, limit);
+            if (count > 0) {
+                expiredMails.inc(count);
+                logger.debug(count + " expired mails were removed from "
+                        + "maildrop " + maildropName);
+            }
+            return Math.max(count, 0);
+        } catch (MaildropException e) {
+            logger.error("Cannot remove expired mails from maildrop "
+                    + maildropName, e);
+            return 0;
+        } finally {
+            maildropRepository.releaseMaildrop(maildrop);
+        }
+    }
+
+    /**
+     * Returns true if the maildrop has reached the size limit.
+     */
+    public boolean isOverQuota(String maildropName)
+            throws LocalMailSystemException {
+        return maxSize != 0
+                && maildropRepository.getUsage(maildropName) >= maxSize;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public MaildropRepository getMaildropRepository() {
+        return maildropRepository;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setMaildropRepository(MaildropRepository maildropRepository) {
+        this.maildropRepository = maildropRepository;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum total length of the mails in a maildrop in bytes,
+     * the default is 0, which means no limit.
+     * 
+     * @x.category GETSET
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the count of days after which a mail is removed from the
+     * maildrop, the default is 0, which means that mails never expire.
+     * 
+     * @x.category GETSET
+     */
+    public void setMaxAge(int maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets the delay between two maintenance runs in seconds, the default is
+     * 60.
+     * 
+     * @x.category GETSET
+     */
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getMaildropsPerRun() {
+        return maildropsPerRun;
+    }
+
+    /**
+     * Sets the maximum count of maildrops visited in a single run, the
+     * default is 100.
+     * 
+     * @x.category GETSET
+     */
+    public void setMaildropsPerRun(int maildropsPerRun) {
+        this.maildropsPerRun = maildropsPerRun;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getDeletionsPerRun() {
+        return deletionsPerRun;
+    }
+
+    /**
+     * Sets the maximum count of mails removed in a single run, the default is
+     * 1000.
+     * 
+     * @x.category GETSET
+     */
+    public void setDeletionsPerRun(int deletionsPerRun) {
+        this.deletionsPerRun = deletionsPerRun;
+    }
+}
@@ -1,16 +1,26 @@
 package mireka.pop;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.mail.FetchProfile;
 import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
 import javax.mail.URLName;
 
 import mireka.login.GlobalUser;
@@ -18,15 +28,30 @@ import mireka.login.GlobalUsers;
 import mireka.pop.store.Maildrop;
 import mireka.pop.store.MaildropAppender;
 import mireka.pop.store.MaildropRepository;
+import mireka.startup.ReusedOnReload;
 import mireka.transmission.LocalMailSystemException;
+import mireka.util.NamedThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.mail.pop3.POP3Folder;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
 /**
- * Import mails from remote POP3 servers to the local POP3 maildrops at system
- * startup. This is useful during migration.
+ * Import mails from remote POP3 servers to the local POP3 maildrops. This is
+ * useful during migration.
+ * <p>
+ * The import runs in the background after startup, so the services of Mireka
+ * are available in the meantime. The maildrops of several users are imported
+ * in parallel. The UIDs of the imported mails are recorded in a checkpoint
+ * file for each user, until the remote server deletes them at the end of the
+ * POP3 session, so a restarted import does not import a mail twice.
  */
+@ReusedOnReload
 public class PopMailImporter {
     private final Logger logger = LoggerFactory
             .getLogger(PopMailImporter.class);
@@ -34,28 +59,116 @@ public class PopMailImporter {
     private MaildropRepository maildropRepository;
     private String remoteHost = "localhost";
     private int remotePort = 110;
-    private int totalMailCount = 0;
-    private int totalUsersWithAtLeastOneMail = 0;
+    private int threads = 4;
+    private String checkpointDir = "import";
+    private final AtomicInteger totalMailCount = new AtomicInteger();
+    private final AtomicInteger totalUsersWithAtLeastOneMail =
+            new AtomicInteger();
+    private final AtomicInteger remainingUsers = new AtomicInteger();
+    private final Counter importedMails = Metrics
+            .newCounter(metricName("importedMails"));
+    private final Counter failedMails = Metrics
+            .newCounter(metricName("failedMails"));
+    private final Counter failedUsers = Metrics
+            .newCounter(metricName("failedUsers"));
+    private ThreadPoolExecutor executor;
 
-    @PostConstruct
-    public void doImport() {
-        logger.info("Importing mail from remote POP3 maildrops");
-        for (GlobalUser user : users) {
-            try {
-                importMails(user);
-            } catch (MessagingException e) {
-                logger.error("Importing mails for " + user.getUsernameObject()
-                        + " failed", e);
+    public PopMailImporter() {
+        Metrics.newGauge(metricName("remainingUsers"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return remainingUsers.get();
             }
+        });
+    }
+
+    private static MetricName metricName(String name) {
+        return new MetricName("mireka", "PopMailImporter", name);
+    }
+
+    /**
+     * Starts importing the mails of all users in the background and returns
+     * immediately.
+     */
+    @PostConstruct
+    public synchronized void start() {
+        if (executor != null)
+            throw new IllegalStateException();
+        List<GlobalUser> userList = new ArrayList<GlobalUser>();
+        for (GlobalUser user : users)
+            userList.add(user);
+        logger.info("Importing mail from remote POP3 maildrops of "
+                + userList.size() + " users in the background");
+        remainingUsers.set(userList.size());
+        executor =
+                new ThreadPoolExecutor(threads, threads, 0,
+                        TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new NamedThreadFactory("PopMailImporter", true));
+        for (GlobalUser user : userList)
+            executor.execute(new UserImport(user));
+        executor.shutdown();
+        if (userList.isEmpty())
+            logCompletion();
+    }
+
+    /**
+     * Imports the mails of all users and waits until the import completes.
+     */
+    public void doImport() throws InterruptedException {
+        start();
+        awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the import of all users completes or it is stopped.
+     * 
+     * @return false if the timeout elapsed before the import completed
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            executor = this.executor;
         }
+        if (executor == null)
+            throw new IllegalStateException();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Stops the import. The import of those users whose maildrop is being
+     * imported is stopped after the current mail, the mails imported so far
+     * are deleted on the remote server.
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    private void userCompleted() {
+        if (remainingUsers.decrementAndGet() == 0)
+            logCompletion();
+    }
+
+    private void logCompletion() {
         logger.info("Importing mail from remote POP3 maildrops completed, "
                 + totalMailCount + " mails were imported for "
                 + totalUsersWithAtLeastOneMail
                 + " users who had at least one mail.");
     }
 
-    private void importMails(GlobalUser user) throws MessagingException {
+    private void importMails(GlobalUser user) throws MessagingException,
+            IOException {
         logger.debug("Importing mail for " + user.getUsernameObject());
+        // user name currently equals with the maildrop name, but this is
+        // not necessarily true in general.
+        String maildropName = user.getUsernameObject().toString();
+        ImportCheckpoint checkpoint =
+                new ImportCheckpoint(new File(checkpointDir, maildropName
+                        + ".uids"));
+        checkpoint.load();
         Properties properties = new Properties();
         Session session = Session.getInstance(properties);
         Store store =
@@ -63,28 +176,44 @@ public class PopMailImporter {
                         + user.getUsernameObject() + ":" + user.getPassword()
                         + "@" + remoteHost + ":" + +remotePort + "/INBOX"));
         store.connect();
-        Folder folder = store.getFolder("INBOX");
-        folder.open(Folder.READ_WRITE);
-        Message[] messages = folder.getMessages();
         int cSuccessfulMails = 0;
-        // user name currently equals with the maildrop name, but this is
-        // not necessarily true in general.
-        String maildropName = user.getUsernameObject().toString();
-        for (Message message : messages) {
-            try {
-                importMail(maildropName, message);
-                message.setFlag(Flags.Flag.DELETED, true);
-                cSuccessfulMails++;
-            } catch (Exception e) {
-                logger.error("Importing a mail for " + user.getUsernameObject()
-                        + " failed", e);
+        try {
+            POP3Folder folder = (POP3Folder) store.getFolder("INBOX");
+            folder.open(Folder.READ_WRITE);
+            Message[] messages = folder.getMessages();
+            // a single UIDL command instead of one for each mail
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(messages, fetchProfile);
+            for (Message message : messages) {
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                String uid = folder.getUID(message);
+                try {
+                    if (uid == null || !checkpoint.contains(uid)) {
+                        importMail(maildropName, message);
+                        if (uid != null)
+                            checkpoint.add(uid);
+                        cSuccessfulMails++;
+                        importedMails.inc();
+                    }
+                    message.setFlag(Flags.Flag.DELETED, true);
+                } catch (Exception e) {
+                    failedMails.inc();
+                    logger.error("Importing a mail for "
+                            + user.getUsernameObject() + " failed", e);
+                }
             }
+            // DELE commands are sent now, and committed by QUIT
+            folder.close(true);
+            checkpoint.delete();
+        } finally {
+            checkpoint.close();
+            store.close();
         }
-        folder.close(true);
-        store.close();
-        totalMailCount += cSuccessfulMails;
+        totalMailCount.addAndGet(cSuccessfulMails);
         if (cSuccessfulMails > 0)
-            totalUsersWithAtLeastOneMail++;
+            totalUsersWithAtLeastOneMail.incrementAndGet();
         logger.debug(cSuccessfulMails + " mails were imported for "
                 + user.getUsernameObject());
     }
@@ -165,4 +294,64 @@ public class PopMailImporter {
     public void setRemotePort(int remotePort) {
         this.remotePort = remotePort;
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the count of users whose maildrops are imported in parallel. The
+     * default is 4.
+     * 
+     * @x.category GETSET
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public String getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    /**
+     * Sets the directory where the UIDs of the imported mails are recorded
+     * while the import of a user is running. The default is "import".
+     * 
+     * @x.category GETSET
+     */
+    public void setCheckpointDir(String checkpointDir) {
+        this.checkpointDir = checkpointDir;
+    }
+
+    private class UserImport implements Runnable {
+        private final GlobalUser user;
+
+        UserImport(GlobalUser user) {
+            this.user = user;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!Thread.currentThread().isInterrupted())
+                    importMails(user);
+            } catch (MessagingException e) {
+                failedUsers.inc();
+                logger.error("Importing mails for " + user.getUsernameObject()
+                        + " failed", e);
+            } catch (IOException e) {
+                failedUsers.inc();
+                logger.error("Importing mails for " + user.getUsernameObject()
+                        + " failed", e);
+            } finally {
+                userCompleted();
+            }
+        }
+    }
 }
@@ -5,12 +5,15 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import mireka.login.LoginSpecification;
 import mireka.pop.store.MaildropRepository;
+import mireka.startup.ReappliedOnReload;
+import mireka.startup.ReusedOnReload;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,6 +22,7 @@ import org.slf4j.LoggerFactory;
  * PopServer contains configuration information and lifecycle management for the
  * POP3 service.
  */
+@ReusedOnReload
 public class PopServer {
     /** Host name used if we can't find one */
     private final static String UNKNOWN_HOSTNAME = "localhost";
@@ -36,6 +40,8 @@ public class PopServer {
 
     private int maximumConnections = 100;
 
+    private int maximumThreads = 20;
+
     private TlsConfiguration tlsConfiguration = new PrivateTlsConfiguration();
 
     /**
@@ -45,9 +51,9 @@ public class PopServer {
 
     private ServerThread serverThread;
 
-    private LoginSpecification loginSpecification;
+    private volatile LoginSpecification loginSpecification;
 
-    private PrincipalMaildropTable principalMaildropTable;
+    private volatile PrincipalMaildropTable principalMaildropTable;
 
     private MaildropRepository maildropRepository;
 
@@ -65,14 +71,11 @@ public class PopServer {
         if (serverThread != null)
             throw new IllegalStateException("POP server already started");
 
-        ServerSocket serverSocket;
         try {
-            serverSocket = createServerSocket();
+            serverThread = new ServerThread(createServerSocket(), this);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
-
-        serverThread = new ServerThread(serverSocket, this);
         serverThread.start();
     }
 
@@ -85,7 +88,10 @@ public class PopServer {
             isa = new InetSocketAddress(this.bindAddress, this.port);
         }
 
-        ServerSocket serverSocket = new ServerSocket();
+        // The socket is created by a channel, so the accepted sockets also
+        // have channels, which makes it possible to send mail files using
+        // FileChannel.transferTo.
+        ServerSocket serverSocket = ServerSocketChannel.open().socket();
         // http://java.sun.com/j2se/1.5.0/docs/api/java/net/ServerSocket.html#setReuseAddress(boolean)
         serverSocket.setReuseAddress(true);
         serverSocket.bind(isa, 0);
@@ -153,6 +159,25 @@ public class PopServer {
         this.maximumConnections = maximumConnections;
     }
 
+    /**
+     * @x.category GETSET
+     */
+    public int getMaximumThreads() {
+        return maximumThreads;
+    }
+
+    /**
+     * Sets the maximum count of threads which execute POP3 commands, the
+     * default is 20. Sessions waiting for the next command of the client do
+     * not occupy a thread, so this value can be much lower than the maximum
+     * count of connections.
+     *
+     * @x.category GETSET
+     */
+    public void setMaximumThreads(int maximumThreads) {
+        this.maximumThreads = maximumThreads;
+    }
+
     /** @return the host name that will be reported to SMTP clients */
     public String getHostName() {
         if (this.hostName == null)
@@ -169,6 +194,7 @@ public class PopServer {
     /**
      * @x.category GETSET
      */
+    @ReappliedOnReload
     public void setLoginSpecification(LoginSpecification loginSpecification) {
         this.loginSpecification = loginSpecification;
     }
@@ -204,6 +230,7 @@ public class PopServer {
     /**
      * @x.category GETSET
      */
+    @ReappliedOnReload
     public void setPrincipalMaildropTable(
             PrincipalMaildropTable principalMaildropTable) {
         this.principalMaildropTable = principalMaildropTable;
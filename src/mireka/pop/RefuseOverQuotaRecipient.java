@@ -0,0 +1,64 @@
+package mireka.pop;
+
+import mireka.filter.MailTransaction;
+import mireka.filter.RecipientContext;
+import mireka.filter.RecipientVerificationResult;
+import mireka.filter.StatelessFilter;
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.RejectExceptionExt;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The RefuseOverQuotaRecipient filter temporarily rejects recipients whose
+ * destination is a maildrop which has reached its size limit. A destination
+ * must be assigned to the recipient before the {@link #verifyRecipient}
+ * method of this class is called. The check uses the usage figure remembered
+ * by the maildrop repository, so it usually does not touch the disk.
+ * 
+ * @see MaildropMaintenance#setMaxSize(long)
+ */
+public class RefuseOverQuotaRecipient extends StatelessFilter {
+    private final Logger logger = LoggerFactory
+            .getLogger(RefuseOverQuotaRecipient.class);
+    private MaildropMaintenance maildropMaintenance;
+
+    @Override
+    public RecipientVerificationResult verifyRecipient(
+            MailTransaction transaction, RecipientContext recipientContext)
+            throws RejectExceptionExt {
+        if (!recipientContext.isDestinationAssigned()
+                || !(recipientContext.getDestination() instanceof MaildropDestination))
+            return RecipientVerificationResult.NEUTRAL;
+        MaildropDestination destination =
+                (MaildropDestination) recipientContext.getDestination();
+        try {
+            if (maildropMaintenance.isOverQuota(destination.getMaildropName())) {
+                logger.debug("Maildrop " + destination.getMaildropName()
+                        + " is over quota, rejecting "
+                        + recipientContext.recipient);
+                throw new RejectExceptionExt(EnhancedStatus.MAILBOX_FULL);
+            }
+        } catch (LocalMailSystemException e) {
+            logger.error("Cannot determine maildrop usage", e);
+            throw new RejectExceptionExt(e.errorStatus());
+        }
+        return RecipientVerificationResult.NEUTRAL;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public MaildropMaintenance getMaildropMaintenance() {
+        return maildropMaintenance;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setMaildropMaintenance(MaildropMaintenance maildropMaintenance) {
+        this.maildropMaintenance = maildropMaintenance;
+    }
+}
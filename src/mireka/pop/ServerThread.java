@@ -3,30 +3,51 @@ package mireka.pop;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import mireka.util.NamedThreadFactory;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
 /**
- * The POP3 server thread accepts connections on the server port.
+ * The POP3 server thread accepts connections on the server port. The sessions
+ * are run by a bounded pool of worker threads, and the sessions which are
+ * waiting for the next command of the client are watched by an
+ * {@link IdleSessionSelector}, so the count of threads does not depend on the
+ * count of connections.
  */
 class ServerThread extends Thread {
+    private static final int IDLE_TIMEOUT = 10 * 60 * 1000;
     private final Logger logger = LoggerFactory.getLogger(ServerThread.class);
     private final ServerSocket serverSocket;
     private final PopServer server;
     private final Semaphore connectionPermits;
+    private final ThreadPoolExecutor workers;
+    private final IdleSessionSelector idleSessionSelector;
+    private final List<MetricName> metricNames = new ArrayList<>();
     private volatile boolean shuttingDown;
     @GuardedBy("this")
     private final Set<SessionThread> sessionThreads =
             new HashSet<SessionThread>(200);
 
-    ServerThread(ServerSocket serverSocket, PopServer server) {
+    ServerThread(ServerSocket serverSocket, PopServer server)
+            throws IOException {
         super(ServerThread.class.getName() + " "
                 + server.getDisplayableLocalSocketAddress());
         this.serverSocket = serverSocket;
@@ -35,12 +56,53 @@ class ServerThread extends Thread {
         // messages
         this.connectionPermits =
                 new Semaphore(server.getMaximumConnections() + 10);
+        this.workers =
+                new ThreadPoolExecutor(server.getMaximumThreads(),
+                        server.getMaximumThreads(), 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new NamedThreadFactory(SessionThread.class.getName()
+                                + " "
+                                + server.getDisplayableLocalSocketAddress(),
+                                false));
+        workers.allowCoreThreadTimeOut(true);
+        this.idleSessionSelector = new IdleSessionSelector(this, IDLE_TIMEOUT);
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        metricNames.add(metricName("sessions"));
+        Metrics.newGauge(metricName("sessions"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return getNumberOfConnections();
+            }
+        });
+        metricNames.add(metricName("idleSessions"));
+        Metrics.newGauge(metricName("idleSessions"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return idleSessionSelector.getIdleSessionCount();
+            }
+        });
+        metricNames.add(metricName("activeThreads"));
+        Metrics.newGauge(metricName("activeThreads"), new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return workers.getActiveCount();
+            }
+        });
+    }
+
+    private MetricName metricName(String name) {
+        return new MetricName("mireka", "PopServer", name,
+                String.valueOf(server.getPort()));
     }
 
     @Override
     public void run() {
         MDC.put("localServerSocketAddress",
                 server.getDisplayableLocalSocketAddress());
+        idleSessionSelector.start();
         logger.info("POP server {} started",
                 server.getDisplayableLocalSocketAddress());
         while (!shuttingDown) {
@@ -65,12 +127,12 @@ class ServerThread extends Thread {
                 }
                 continue;
             }
-            // add thread before starting it,
+            // add session before starting it,
             // because it will check the count of sessions
             synchronized (this) {
                 sessionThreads.add(sessionThread);
             }
-            sessionThread.start();
+            dispatch(sessionThread);
         }
 
         closeServerSocket();
@@ -82,11 +144,14 @@ class ServerThread extends Thread {
     public void shutdown() {
         shutdownServerSocket();
         shutdownSessions();
+        idleSessionSelector.shutdown();
         try {
             awaitTermination();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        for (MetricName metricName : metricNames)
+            Metrics.defaultRegistry().removeMetric(metricName);
     }
 
     private void shutdownServerSocket() {
@@ -109,15 +174,34 @@ class ServerThread extends Thread {
     }
 
     private void awaitTermination() throws InterruptedException {
-        Set<SessionThread> stillRunningSessionThreads;
-        synchronized (this) {
-            stillRunningSessionThreads = new HashSet<>(this.sessionThreads);
-        }
-        for (SessionThread sessionThread : stillRunningSessionThreads) {
-            sessionThread.join();
+        workers.shutdown();
+        if (!workers.awaitTermination(1, TimeUnit.MINUTES))
+            logger.warn("POP sessions did not end within a minute");
+    }
+
+    /**
+     * Runs the session on a worker thread.
+     */
+    void dispatch(SessionThread sessionThread) {
+        try {
+            workers.execute(sessionThread);
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down
+            sessionThread.end();
         }
     }
 
+    /**
+     * Passes the session, which is waiting for the next command of the
+     * client, to the idle session selector.
+     *
+     * @return false if the session cannot be parked, because the server is
+     *         shutting down.
+     */
+    boolean park(SessionThread sessionThread) {
+        return idleSessionSelector.park(sessionThread);
+    }
+
     public boolean hasTooManyConnections() {
         synchronized (this) {
             return sessionThreads.size() > server.getMaximumConnections();
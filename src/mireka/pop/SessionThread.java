@@ -10,6 +10,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.Locale;
 
 import org.slf4j.Logger;
@@ -19,12 +20,24 @@ import org.subethamail.smtp.io.CRLFTerminatedReader;
 /**
  * SessionThread manages the TCP connection to the POP3 client and contains the
  * loop which processes the incoming commands.
+ * <p>
+ * Despite its name, a session does not own a thread. It is run by a worker
+ * thread of the server as long as the client sends commands. If no further
+ * command is waiting in the input, and the connection has a channel, then the
+ * session is parked in the {@link IdleSessionSelector} of the server and the
+ * worker thread is released. The session is run again, possibly by another
+ * worker thread, when the next command arrives.
  */
-public class SessionThread extends Thread {
+public class SessionThread implements Runnable {
     private static final int TEN_MINUTES = 10 * 60 * 1000;
     private final Logger log = LoggerFactory.getLogger(SessionThread.class);
     private final ServerThread serverThread;
     private final CommandHandler commandHandler;
+    /**
+     * The channel of the original, plain socket, or null if the socket was
+     * not created by a channel. It remains the same after TLS is started.
+     */
+    private final SocketChannel channel;
     /** I/O to the client */
     private Socket socket;
     private InputStream input;
@@ -36,47 +49,93 @@ public class SessionThread extends Thread {
     /** Set this true when doing an ordered shutdown */
     private volatile boolean quitting = false;
     private Session session;
+    private boolean welcomeMessageSent;
+    /**
+     * Set by the idle session selector if the client did not send a command
+     * within the timeout.
+     */
+    private boolean idleTimedOut;
+    /**
+     * Set by the idle session selector if input arrived while the session was
+     * parked. In this case the session must read before it is parked again,
+     * because {@link InputStream#available()} may not report data which is
+     * available on the socket.
+     */
+    private boolean inputArrived;
+    /**
+     * The time when the session was parked, it is only used by the idle
+     * session selector.
+     */
+    private long parkedAt;
 
     public SessionThread(PopServer server, ServerThread serverThread,
             Socket socket) throws IOException {
-        super(SessionThread.class.getName() + "-" + socket.getInetAddress()
-                + ":" + socket.getPort());
         this.serverThread = serverThread;
+        this.channel = socket.getChannel();
         setSocket(socket);
         session = new Session(server, this);
         this.commandHandler = new CommandHandler(session);
     }
 
+    /**
+     * Processes the commands of the client until the session ends or the
+     * client has no more pending commands, in which case the session is
+     * parked.
+     */
     @Override
     public void run() {
+        boolean parked = false;
         try {
-            doRun();
+            parked = doRun();
         } finally {
-            serverThread.sessionEnded(this);
+            if (!parked)
+                end();
         }
     }
 
-    private void doRun() {
-        if (log.isDebugEnabled()) {
-            InetAddress remoteInetAddress =
-                    this.getRemoteAddress().getAddress();
-            remoteInetAddress.getHostName(); // Causes future toString() to
-                                             // print the name too
-            log.debug("POP3 connection from {}, new connection count: {}",
-                    remoteInetAddress, serverThread.getNumberOfConnections());
-        }
-
+    /**
+     * @return true if the session was parked, in this case the session must
+     *         not be touched by the current thread anymore.
+     */
+    private boolean doRun() {
         try {
-            if (serverThread.hasTooManyConnections()) {
-                log.debug("POP3 Too many connections!");
+            if (!welcomeMessageSent) {
+                if (log.isDebugEnabled()) {
+                    InetAddress remoteInetAddress =
+                            this.getRemoteAddress().getAddress();
+                    remoteInetAddress.getHostName(); // Causes future
+                                                     // toString() to print
+                                                     // the name too
+                    log.debug("POP3 connection from {}, new connection "
+                            + "count: {}", remoteInetAddress,
+                            serverThread.getNumberOfConnections());
+                }
 
-                this.sendResponse("-ERR [SYS/TEMP] Too many connections, try again later");
-                return;
+                if (serverThread.hasTooManyConnections()) {
+                    log.debug("POP3 Too many connections!");
+
+                    this.sendResponse("-ERR [SYS/TEMP] Too many connections, try again later");
+                    return false;
+                }
+
+                commandHandler.sendWelcomeMessage();
+                welcomeMessageSent = true;
             }
 
-            commandHandler.sendWelcomeMessage();
+            if (idleTimedOut) {
+                // according to RFC 1939 no response should be sent on
+                // timeout
+                log.debug("Idle timeout");
+                return false;
+            }
 
+            boolean mayPark = !inputArrived;
+            inputArrived = false;
             while (!this.quitting) {
+                if (mayPark && channel != null && input.available() == 0
+                        && serverThread.park(this))
+                    return true;
+                mayPark = true;
                 try {
                     String line = null;
                     try {
@@ -90,12 +149,12 @@ public class SessionThread extends Thread {
                                     "Error reading client command: "
                                             + ex.getMessage(), ex);
 
-                        return;
+                        return false;
                     }
 
                     if (line == null) {
                         log.debug("no more lines from client");
-                        return;
+                        return false;
                     }
 
                     logClientLineSecurely(line);
@@ -104,7 +163,7 @@ public class SessionThread extends Thread {
                     // according to RFC 1939 no response should be sent on
                     // timeout
                     log.debug("Socket timeout: " + ex.getMessage());
-                    return;
+                    return false;
                 } catch (CRLFTerminatedReader.TerminationException te) {
                     String msg =
                             "-ERR Syntax error at character position "
@@ -115,7 +174,7 @@ public class SessionThread extends Thread {
                     this.sendResponse(msg);
 
                     // if people are screwing with things, close connection
-                    return;
+                    return false;
                 } catch (CRLFTerminatedReader.MaxLineLengthException mlle) {
                     String msg = "-ERR " + mlle.getMessage();
 
@@ -123,7 +182,7 @@ public class SessionThread extends Thread {
                     this.sendResponse(msg);
 
                     // if people are screwing with things, close connection
-                    return;
+                    return false;
                 }
             }
         } catch (IOException e1) {
@@ -141,11 +200,22 @@ public class SessionThread extends Thread {
                 if (log.isWarnEnabled())
                     log.warn("Exception during POP session", e1);
             }
-        } finally {
+        }
+        return false;
+    }
+
+    /**
+     * Closes the connection and releases the resources of the session. It is
+     * called exactly once, either by the worker thread which ran the session
+     * last, or by the idle session selector.
+     */
+    void end() {
+        try {
             this.closeConnection();
             this.notifyCommandHandlerOnDisconnect();
+        } finally {
+            serverThread.sessionEnded(this);
         }
-
     }
 
     /** Sends the response to the client */
@@ -244,6 +314,29 @@ public class SessionThread extends Thread {
         this.socket.setSoTimeout(TEN_MINUTES);
     }
 
+    /**
+     * Returns the channel of the original socket, or null.
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    long getParkedAt() {
+        return parkedAt;
+    }
+
+    void setParkedAt(long parkedAt) {
+        this.parkedAt = parkedAt;
+    }
+
+    void setIdleTimedOut() {
+        idleTimedOut = true;
+    }
+
+    void setInputArrived() {
+        inputArrived = true;
+    }
+
     private InetSocketAddress getRemoteAddress() {
         return (InetSocketAddress) this.socket.getRemoteSocketAddress();
     }
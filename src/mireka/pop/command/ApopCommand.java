@@ -71,6 +71,10 @@ public class ApopCommand extends AbstractLoginCommand {
                 loginSpecification.evaluateApop(user, timestamp, digestBytes);
         if (result.decision == LoginDecision.VALID) {
             startTransaction(result.principal);
+        } else if (result.decision == LoginDecision.TEMPORARY_FAILURE) {
+            session.getThread().sendResponse(
+                    "-ERR [SYS/TEMP] Authentication is temporarily unavailable");
+            session.setSessionState(AUTHORIZATION);
         } else {
             logger.debug("Unsuccessful login result: {}", result.decision);
             session.getThread().sendResponse("-ERR [AUTH] permission denied");
@@ -9,6 +9,8 @@ import mireka.pop.IllegalSessionStateException;
 import mireka.pop.Pop3Exception;
 import mireka.pop.Session;
 import mireka.pop.SessionState;
+import mireka.pop.store.ListingVisitor;
+import mireka.pop.store.Maildrop;
 import mireka.pop.store.MaildropPopException;
 import mireka.pop.store.ScanListing;
 
@@ -34,20 +36,19 @@ public class ListCommand implements Command {
     }
 
     private void displayList() throws IOException {
-        List<ScanListing> scanListings =
-                session.getMaildrop().getScanListings();
-        long totalOctets = 0;
-        for (ScanListing scanListing : scanListings) {
-            totalOctets += scanListing.length;
-        }
+        Maildrop maildrop = session.getMaildrop();
         session.getThread().sendResponse(
-                "+OK " + scanListings.size() + " messages (" + totalOctets
-                        + ")");
-        ResultListWriter out =
+                "+OK " + maildrop.getCountOfMessages() + " messages ("
+                        + maildrop.getTotalOctets() + ")");
+        final ResultListWriter out =
                 new ResultListWriter(session.getThread().getOutputStream());
-        for (ScanListing scanListing : scanListings) {
-            out.writeLine(scanListing.toString());
-        }
+        maildrop.visitListings(new ListingVisitor() {
+            @Override
+            public void visit(int messageNumber, long uid, long length)
+                    throws IOException {
+                out.writeLine(messageNumber, length);
+            }
+        });
         out.endList();
     }
 
@@ -36,6 +36,10 @@ public class PassCommand extends AbstractLoginCommand {
                 loginSpecification.evaluatePlain(userCommand.user, password);
         if (result.decision == LoginDecision.VALID) {
             startTransaction(result.principal);
+        } else if (result.decision == LoginDecision.TEMPORARY_FAILURE) {
+            session.getThread().sendResponse(
+                    "-ERR [SYS/TEMP] Authentication is temporarily unavailable");
+            session.setSessionState(AUTHORIZATION);
         } else {
             logger.debug("Unsuccessful login result: {}", result.decision);
             session.getThread().sendResponse(
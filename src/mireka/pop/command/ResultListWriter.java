@@ -20,6 +20,7 @@ public class ResultListWriter {
     private final Logger logger = LoggerFactory
             .getLogger(ResultListWriter.class);
     private final Writer writer;
+    private final StringBuilder lineBuilder = new StringBuilder(32);
     private int lineCount = 0;
 
     public ResultListWriter(OutputStream outStream) {
@@ -45,6 +46,21 @@ public class ResultListWriter {
         lineCount++;
     }
 
+    /**
+     * Sends and - depending on the log level - logs a line which consists of
+     * two numbers separated by a space, like the lines of the LIST and UIDL
+     * responses, without creating a string for the line.
+     */
+    public void writeLine(long first, long second) throws IOException {
+        lineBuilder.setLength(0);
+        lineBuilder.append(first).append(' ').append(second);
+        if (logger.isTraceEnabled())
+            logger.trace("Server: " + lineBuilder);
+        lineBuilder.append("\r\n");
+        writer.append(lineBuilder);
+        lineCount++;
+    }
+
     /**
      * Writes out the closing dot only line, flushes the buffer, and logs the
      * count of lines sent.
@@ -2,6 +2,7 @@ package mireka.pop.command;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SocketChannel;
 
 import mireka.pop.Command;
 import mireka.pop.CommandParser;
@@ -9,6 +10,8 @@ import mireka.pop.IllegalSessionStateException;
 import mireka.pop.Pop3Exception;
 import mireka.pop.Session;
 import mireka.pop.SessionState;
+import mireka.pop.store.MailContent;
+import mireka.pop.store.MessageLayout;
 import mireka.pop.store.ScanListing;
 
 import org.slf4j.Logger;
@@ -34,7 +37,39 @@ public class RetrCommand implements Command {
         int messageNumber = commandParser.parseSingleNumericArgument();
         ScanListing scanListing =
                 session.getMaildrop().getScanListing(messageNumber);
+        MessageLayout layout =
+                session.getMaildrop().getMessageLayout(messageNumber);
+        if (layout.isCanonical())
+            sendCanonicalMail(messageNumber, scanListing, layout);
+        else
+            sendConvertedMail(messageNumber, scanListing);
+    }
+
+    /**
+     * Sends a mail which is known to use CRLF line endings, dot-stuffing it
+     * according to its layout.
+     */
+    private void sendCanonicalMail(int messageNumber, ScanListing scanListing,
+            MessageLayout layout) throws IOException, Pop3Exception {
+        try (MailContent mail =
+                session.getMaildrop().getMailContent(messageNumber)) {
+            session.getThread().sendResponse(
+                    "+OK " + scanListing.length + " octets");
+            SocketChannel channel =
+                    session.isTlsStarted() ? null : session.getThread()
+                            .getSocket().getChannel();
+            new StuffedMailWriter(channel, session.getThread()
+                    .getOutputStream()).write(mail, layout);
+            logger.debug("Message sent");
+        }
+    }
 
+    /**
+     * Sends a mail which may contain bare CR or LF characters, these must be
+     * converted to CRLF while the mail is dot-stuffed.
+     */
+    private void sendConvertedMail(int messageNumber, ScanListing scanListing)
+            throws IOException, Pop3Exception {
         try (InputStream mailAsStream =
                 session.getMaildrop().getMailAsStream(messageNumber)) {
             session.getThread().sendResponse(
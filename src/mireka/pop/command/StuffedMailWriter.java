@@ -0,0 +1,126 @@
+package mireka.pop.command;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import mireka.pop.store.MailContent;
+import mireka.pop.store.MessageLayout;
+
+/**
+ * StuffedMailWriter sends a stored mail in a POP3 multi-line response using
+ * its precomputed {@link MessageLayout}, so the content does not have to be
+ * inspected byte by byte. The mail must be in canonical form, i.e. it must use
+ * CRLF line endings exclusively.
+ * <p>
+ * If the connection has a socket channel, i.e. it is a plain TCP connection,
+ * then the ranges between the dot-stuffed lines are transferred by
+ * {@link MailContent#transferTo}, which allows the operating system to send
+ * the file directly. Otherwise, for example on TLS connections, the content is
+ * copied through a large buffer.
+ */
+class StuffedMailWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] DOT = { '.' };
+    private static final byte[] TERMINATOR = { '.', '\r', '\n' };
+    private static final byte[] CRLF_TERMINATOR =
+            { '\r', '\n', '.', '\r', '\n' };
+    /**
+     * Null if the content must be written to the output stream.
+     */
+    private final SocketChannel channel;
+    private final OutputStream out;
+    private ByteBuffer buffer;
+
+    /**
+     * @param channel
+     *            the channel of the connection, or null if the connection has
+     *            no channel or it must not be written directly
+     * @param out
+     *            the output stream of the connection, it is used if the
+     *            channel is null
+     */
+    StuffedMailWriter(SocketChannel channel, OutputStream out) {
+        this.channel = channel;
+        this.out = out;
+    }
+
+    /**
+     * Writes the content of the mail followed by the terminating line.
+     */
+    void write(MailContent mail, MessageLayout layout) throws IOException {
+        write(mail, layout, mail.size());
+    }
+
+    /**
+     * Writes the beginning of the mail up to the specified offset followed by
+     * the terminating line. The offset must be at the start of a line or at
+     * the end of the mail.
+     */
+    void write(MailContent mail, MessageLayout layout, long end)
+            throws IOException {
+        if (!layout.isCanonical())
+            throw new IllegalArgumentException();
+        long position = 0;
+        for (long dotOffset : layout.getDotOffsets()) {
+            if (dotOffset >= end)
+                break;
+            copy(mail, position, dotOffset - position);
+            write(DOT);
+            position = dotOffset;
+        }
+        copy(mail, position, end - position);
+        boolean terminated = end < mail.size() || layout.endsWithCrLf();
+        write(terminated ? TERMINATOR : CRLF_TERMINATOR);
+        if (channel == null)
+            out.flush();
+    }
+
+    private void copy(MailContent mail, long position, long count)
+            throws IOException {
+        if (channel != null)
+            transfer(mail, position, count);
+        else
+            copyThroughBuffer(mail, position, count);
+    }
+
+    private void transfer(MailContent mail, long position, long count)
+            throws IOException {
+        while (count > 0) {
+            long cTransferred = mail.transferTo(position, count, channel);
+            if (cTransferred <= 0)
+                throw new EOFException("Mail file is shorter than expected");
+            position += cTransferred;
+            count -= cTransferred;
+        }
+    }
+
+    private void copyThroughBuffer(MailContent mail, long position,
+            long count) throws IOException {
+        if (buffer == null)
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (count > 0) {
+            buffer.clear();
+            if (count < buffer.capacity())
+                buffer.limit((int) count);
+            int cRead = mail.read(buffer, position);
+            if (cRead <= 0)
+                throw new EOFException("Mail file is shorter than expected");
+            out.write(buffer.array(), 0, cRead);
+            position += cRead;
+            count -= cRead;
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (channel == null) {
+            out.write(bytes);
+            return;
+        }
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+        while (byteBuffer.hasRemaining())
+            channel.write(byteBuffer);
+    }
+}
@@ -2,6 +2,7 @@ package mireka.pop.command;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.SocketChannel;
 import java.util.List;
 
 import mireka.pop.Command;
@@ -11,6 +12,8 @@ import mireka.pop.IllegalSessionStateException;
 import mireka.pop.Pop3Exception;
 import mireka.pop.Session;
 import mireka.pop.SessionState;
+import mireka.pop.store.MailContent;
+import mireka.pop.store.MessageLayout;
 
 import org.subethamail.smtp.io.CRLFTerminatedReader.MaxLineLengthException;
 import org.subethamail.smtp.io.ExtraDotOutputStream;
@@ -46,6 +49,39 @@ public class TopCommand implements Command {
             throw new CommandSyntaxException(
                     "Two numeric arguments are expected");
 
+        MessageLayout layout =
+                session.getMaildrop().getMessageLayout(messageNumber);
+        if (layout.isCanonical())
+            sendCanonicalTop(messageNumber, lines, layout);
+        else
+            sendConvertedTop(messageNumber, lines);
+    }
+
+    /**
+     * Sends the header and the first lines of a mail which is known to use
+     * CRLF line endings. The end of the range is determined by the layout, so
+     * the header is not read at all.
+     */
+    private void sendCanonicalTop(int messageNumber, int lines,
+            MessageLayout layout) throws IOException, Pop3Exception {
+        try (MailContent mail =
+                session.getMaildrop().getMailContent(messageNumber)) {
+            long end = layout.findEndOfTop(mail, lines);
+            session.getThread().sendResponse("+OK");
+            SocketChannel channel =
+                    session.isTlsStarted() ? null : session.getThread()
+                            .getSocket().getChannel();
+            new StuffedMailWriter(channel, session.getThread()
+                    .getOutputStream()).write(mail, layout, end);
+        }
+    }
+
+    /**
+     * Sends the header and the first lines of a mail which may contain bare
+     * CR or LF characters, reading it line by line.
+     */
+    private void sendConvertedTop(int messageNumber, int lines)
+            throws IOException, Pop3Exception {
         try (InputStream mailAsStream =
                 session.getMaildrop().getMailAsStream(messageNumber)) {
             session.getThread().sendResponse("+OK");
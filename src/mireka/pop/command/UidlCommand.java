@@ -9,6 +9,7 @@ import mireka.pop.IllegalSessionStateException;
 import mireka.pop.Pop3Exception;
 import mireka.pop.Session;
 import mireka.pop.SessionState;
+import mireka.pop.store.ListingVisitor;
 import mireka.pop.store.MaildropPopException;
 import mireka.pop.store.UidListing;
 
@@ -33,15 +34,17 @@ public class UidlCommand implements Command {
     }
 
     private void displayList() throws IOException {
-        List<UidListing> listings = session.getMaildrop().getUidListings();
         session.getThread().sendResponse("+OK");
-        ResultListWriter writer =
+        final ResultListWriter writer =
                 new ResultListWriter(session.getThread().getOutputStream());
-        for (UidListing listing : listings) {
-            writer.writeLine(listing.toString());
-        }
+        session.getMaildrop().visitListings(new ListingVisitor() {
+            @Override
+            public void visit(int messageNumber, long uid, long length)
+                    throws IOException {
+                writer.writeLine(messageNumber, uid);
+            }
+        });
         writer.endList();
-
     }
 
     private void displaySingleListing(int messageNumber) throws IOException,
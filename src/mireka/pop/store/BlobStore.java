@@ -0,0 +1,261 @@
+package mireka.pop.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.smtp.EnhancedStatus;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * BlobStore keeps mail bodies which are shared by several maildrops of the
+ * same repository. Each body is stored only once, in a file named after the
+ * SHA-256 hash of its content, and a separate file counts the maildrop
+ * messages which refer to it. The body is deleted when the last reference is
+ * released.
+ * <p>
+ * The reference count is always incremented before a reference is created,
+ * and decremented after a reference is removed, so if Mireka stops
+ * unexpectedly, then a body may be kept unnecessarily, but a body which is
+ * still in use is never deleted. The files left behind by an interrupted
+ * operation are removed by {@link #sweep()}, and the counts which were left
+ * too high can be rebuilt from the maildrops by {@link #recount(Map)}.
+ */
+@ThreadSafe
+class BlobStore {
+    private static final int LOCK_COUNT = 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef"
+            .toCharArray();
+    private final Logger logger = LoggerFactory.getLogger(BlobStore.class);
+    private final File dir;
+    /**
+     * Guards the body and reference count file of the hashes mapped to it.
+     */
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    BlobStore(File dir) {
+        this.dir = dir;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    /**
+     * Moves the content of a closed spooled mail into the store, unless an
+     * identical body is already stored, and acquires the specified count of
+     * references to it.
+     */
+    SharedBody store(SpooledMail spooledMail, int references)
+            throws LocalMailSystemException {
+        String hash;
+        try {
+            hash = digest(spooledMail.getFile());
+        } catch (IOException e) {
+            throw new LocalMailSystemException(e,
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+        synchronized (lockOf(hash)) {
+            try {
+                if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+                    throw new IOException("Cannot create directory " + dir);
+                File blobFile = getBlobFile(hash);
+                if (!blobFile.exists())
+                    Files.move(spooledMail.getFile().toPath(),
+                            blobFile.toPath());
+                writeReferenceCount(hash, readReferenceCount(hash)
+                        + references);
+            } catch (IOException e) {
+                throw new LocalMailSystemException(e,
+                        EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+            }
+        }
+        return new SharedBody(this, hash, spooledMail.getLength(),
+                spooledMail.getLayout(), references);
+    }
+
+    /**
+     * Releases the specified count of references to a body, and deletes the
+     * body if no reference remains. Failures are only logged, they leave an
+     * unused body in the store at worst.
+     */
+    void release(String hash, int references) {
+        synchronized (lockOf(hash)) {
+            try {
+                long remaining = readReferenceCount(hash) - references;
+                if (remaining > 0) {
+                    writeReferenceCount(hash, remaining);
+                    return;
+                }
+                Files.deleteIfExists(getBlobFile(hash).toPath());
+                Files.deleteIfExists(getReferenceCountFile(hash).toPath());
+            } catch (IOException e) {
+                logger.error("Cannot release shared mail body " + hash, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary reference count files, the bodies which have no
+     * reference count file, and the reference count files which have no
+     * body. These are left behind if Mireka stops in the middle of storing or
+     * releasing a body. No maildrop refers to such a body, because the
+     * reference count is written before a reference is created, and the body
+     * is deleted only after the last reference was removed.
+     */
+    void sweep() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        int countOfDeletedFiles = 0;
+        for (File file : files) {
+            String name = file.getName();
+            int extensionStart = name.lastIndexOf('.');
+            if (extensionStart == -1)
+                continue;
+            String hash = name.substring(0, extensionStart);
+            if (hash.startsWith("temp."))
+                hash = hash.substring("temp.".length());
+            synchronized (lockOf(hash)) {
+                boolean stale;
+                if (name.startsWith("temp."))
+                    stale = true;
+                else if (name.endsWith(".eml"))
+                    stale = !getReferenceCountFile(hash).exists();
+                else if (name.endsWith(".refs"))
+                    stale = !getBlobFile(hash).exists();
+                else
+                    stale = false;
+                if (!stale)
+                    continue;
+                if (file.delete())
+                    countOfDeletedFiles++;
+                else
+                    logger.warn("Cannot delete stale blob store file " + file);
+            }
+        }
+        if (countOfDeletedFiles > 0)
+            logger.warn(countOfDeletedFiles
+                    + " stale files were deleted in " + dir);
+    }
+
+    /**
+     * Replaces the stored reference counts with the specified ones, and
+     * deletes the bodies which are not referenced at all. It must be called
+     * while no mail is delivered into or deleted from the maildrops, otherwise
+     * a body which is about to be referenced may be deleted.
+     * 
+     * @param references
+     *            the count of maildrop messages which refer to the body, by
+     *            hash
+     */
+    void recount(Map<String, Long> references) {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        int countOfDeletedBodies = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(".eml"))
+                continue;
+            String hash = name.substring(0, name.length() - ".eml".length());
+            Long count = references.get(hash);
+            synchronized (lockOf(hash)) {
+                try {
+                    if (count == null) {
+                        Files.deleteIfExists(file.toPath());
+                        Files.deleteIfExists(getReferenceCountFile(hash)
+                                .toPath());
+                        countOfDeletedBodies++;
+                    } else {
+                        writeReferenceCount(hash, count);
+                    }
+                } catch (IOException e) {
+                    logger.error("Cannot recount shared mail body " + hash, e);
+                }
+            }
+        }
+        logger.info("Shared mail bodies were recounted, "
+                + countOfDeletedBodies + " unreferenced bodies were deleted in "
+                + dir);
+    }
+
+    File getBlobFile(String hash) {
+        return new File(dir, hash + ".eml");
+    }
+
+    private File getReferenceCountFile(String hash) {
+        return new File(dir, hash + ".refs");
+    }
+
+    /**
+     * Returns 0 if the reference count file does not exist.
+     */
+    private long readReferenceCount(String hash) throws IOException {
+        File file = getReferenceCountFile(hash);
+        String content;
+        try {
+            content =
+                    new String(Files.readAllBytes(file.toPath()),
+                            StandardCharsets.US_ASCII).trim();
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(content);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid reference count file " + file);
+        }
+    }
+
+    /**
+     * Writes the reference count file atomically, by writing a temporary
+     * file first and then renaming it.
+     */
+    private void writeReferenceCount(String hash, long count)
+            throws IOException {
+        File tempFile = new File(dir, "temp." + hash + ".refs");
+        Files.write(tempFile.toPath(),
+                Long.toString(count).getBytes(StandardCharsets.US_ASCII));
+        Files.move(tempFile.toPath(), getReferenceCountFile(hash).toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Object lockOf(String hash) {
+        return locks[(hash.hashCode() & 0x7fffffff) % locks.length];
+    }
+
+    private static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int cRead;
+            while (-1 != (cRead = in.read(buffer)))
+                digest.update(buffer, 0, cRead);
+        }
+        byte[] hash = digest.digest();
+        char[] result = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            result[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+        }
+        return new String(result);
+    }
+}
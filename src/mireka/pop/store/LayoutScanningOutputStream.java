@@ -0,0 +1,36 @@
+package mireka.pop.store;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * LayoutScanningOutputStream collects the {@link MessageLayout} of the mail
+ * while it is written into the file.
+ */
+class LayoutScanningOutputStream extends FilterOutputStream {
+    private final MessageLayout.Scanner scanner = new MessageLayout.Scanner();
+
+    LayoutScanningOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        scanner.update(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        scanner.update(b, off, len);
+    }
+
+    /**
+     * Returns the layout of the content written so far.
+     */
+    MessageLayout finishLayout() {
+        return scanner.finish();
+    }
+}
@@ -0,0 +1,17 @@
+package mireka.pop.store;
+
+import java.io.IOException;
+
+/**
+ * ListingVisitor receives the data of the reply lines of the POP3 LIST and
+ * UIDL commands one by one.
+ * 
+ * @see Maildrop#visitListings(ListingVisitor)
+ */
+public interface ListingVisitor {
+    /**
+     * Called for each mail which is not marked for deletion, in the order of
+     * message numbers.
+     */
+    void visit(int messageNumber, long uid, long length) throws IOException;
+}
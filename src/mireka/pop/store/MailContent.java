@@ -0,0 +1,127 @@
+package mireka.pop.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MailContent provides random access to the content of a stored mail, which
+ * is either a single file, or a small prefix stored in the maildrop followed
+ * by a body shared with other maildrops. It offers the subset of the
+ * {@link FileChannel} operations which are needed to send a mail to a POP3
+ * client.
+ */
+public abstract class MailContent implements Closeable {
+
+    /**
+     * Returns the length of the mail in bytes.
+     */
+    public abstract long size() throws IOException;
+
+    /**
+     * Reads bytes starting at the specified position into the buffer.
+     * 
+     * @return the count of bytes read, or -1 if the position is at or beyond
+     *         the end of the mail
+     * @see FileChannel#read(ByteBuffer, long)
+     */
+    public abstract int read(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Transfers bytes starting at the specified position to the target
+     * channel, which allows the operating system to send file content
+     * directly.
+     * 
+     * @return the count of bytes actually transferred, which may be less than
+     *         requested
+     * @see FileChannel#transferTo(long, long, WritableByteChannel)
+     */
+    public abstract long transferTo(long position, long count,
+            WritableByteChannel target) throws IOException;
+
+    static MailContent of(FileChannel channel) {
+        return new FileContent(channel);
+    }
+
+    static MailContent of(byte[] prefix, FileChannel body) {
+        return new StitchedContent(prefix, body);
+    }
+
+    private static class FileContent extends MailContent {
+        private final FileChannel channel;
+
+        FileContent(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count,
+                WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * StitchedContent is a prefix in memory followed by the content of a body
+     * file.
+     */
+    private static class StitchedContent extends MailContent {
+        private final byte[] prefix;
+        private final FileChannel body;
+
+        StitchedContent(byte[] prefix, FileChannel body) {
+            this.prefix = prefix;
+            this.body = body;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return prefix.length + body.size();
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position < prefix.length) {
+                int count =
+                        (int) Math.min(dst.remaining(), prefix.length
+                                - position);
+                dst.put(prefix, (int) position, count);
+                return count;
+            }
+            return body.read(dst, position - prefix.length);
+        }
+
+        @Override
+        public long transferTo(long position, long count,
+                WritableByteChannel target) throws IOException {
+            if (position < prefix.length) {
+                int length = (int) Math.min(count, prefix.length - position);
+                return target.write(ByteBuffer.wrap(prefix, (int) position,
+                        length));
+            }
+            return body.transferTo(position - prefix.length, count, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package mireka.pop.store;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -7,6 +8,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -26,11 +32,20 @@ import org.slf4j.LoggerFactory;
  * where it stores each mail in separate files in addition to some control
  * files. All operations are as atomic as possible, preventing leaving the
  * maildrop in an inconsistent state.
+ * <p>
+ * The list of messages is loaded from the index file of the maildrop if it
+ * exists, otherwise the directory is scanned.
+ * <p>
+ * A mail which was delivered to several maildrops may be stored as a
+ * reference to a body in the {@link BlobStore} of the repository, together
+ * with those header lines which are specific to this maildrop. Such mails are
+ * stitched together when they are read.
  */
 public class Maildrop {
     private final Logger logger = LoggerFactory.getLogger(Maildrop.class);
     private final String name;
     private final File dir;
+    private final BlobStore blobStore;
     @GuardedBy("this")
     private boolean isTransactionRunning;
     @GuardedBy("this")
@@ -41,21 +56,44 @@ public class Maildrop {
      */
     private boolean isInitialized;
     /**
-     * Sorted list of messages ordered by the numeric value of the file name.
-     * Items must not be appended if a transaction is running.
+     * Messages ordered by the numeric value of the file name. Items must not
+     * be appended if a transaction is running.
      */
     @GuardedBy("this")
-    private List<Message> messages;
+    private MessageTable messages;
     @GuardedBy("this")
     private final List<Message> pendingMessages =
             new ArrayList<Maildrop.Message>();
     @GuardedBy("this")
     private final UidManager uidManager;
+    @GuardedBy("this")
+    private final MaildropIndex index;
+    /**
+     * True if the layout of a message was determined after the index was
+     * read, so it is worth to rewrite the index even if it is still valid.
+     */
+    @GuardedBy("this")
+    private boolean isIndexIncomplete;
+
+    /**
+     * Constructs a maildrop which uses the shared bodies in the blob
+     * directory next to the maildrop directory. It has its own
+     * {@link BlobStore} instance, which is not synchronized with the store of
+     * a {@link MaildropRepository}, so it must only be used in tests, where no
+     * repository uses the same directory.
+     */
+    Maildrop(String name, File maildropDir) {
+        this(name, maildropDir, new BlobStore(new File(maildropDir
+                .getAbsoluteFile().getParentFile(),
+                MaildropRepository.BLOB_DIRECTORY_NAME)));
+    }
 
-    public Maildrop(String name, File maildropDir) {
+    Maildrop(String name, File maildropDir, BlobStore blobStore) {
         this.name = name;
         this.dir = maildropDir;
+        this.blobStore = blobStore;
         this.uidManager = new UidManager(maildropDir);
+        this.index = new MaildropIndex(maildropDir);
     }
 
     public synchronized void beginTransaction() throws MaildropLockedException,
@@ -84,10 +122,40 @@ public class Maildrop {
             constructNewMaildropDir();
 
         uidManager.init();
-        readDirectory();
+        if (!readIndex())
+            readDirectory();
         isInitialized = true;
     }
 
+    /**
+     * Loads the list of messages from the index file.
+     * 
+     * @return false if there is no usable index
+     */
+    private boolean readIndex() throws MaildropException {
+        MaildropIndex.Content content = index.read();
+        if (content == null)
+            return false;
+        MessageTable indexedMessages = new MessageTable(content.uids.length);
+        long previousUid = 0;
+        for (int i = 0; i < content.uids.length; i++) {
+            long uid = content.uids[i];
+            long length = content.lengths[i];
+            if (uid <= previousUid || uid > uidManager.getHighestAllocatedUid()
+                    || length <= 0) {
+                logger.warn("Maildrop index is inconsistent, "
+                        + "the maildrop directory will be scanned " + dir);
+                index.invalidate();
+                return false;
+            }
+            previousUid = uid;
+            indexedMessages.add(uid, length, content.layouts[i],
+                    content.shared[i]);
+        }
+        messages = indexedMessages;
+        return true;
+    }
+
     private boolean isFullyConstructed() {
         return new File(dir, "constructed").exists();
     }
@@ -114,7 +182,7 @@ public class Maildrop {
 
     private void readDirectory() throws MaildropException {
         int countOfDeletedTemporaryFiles = 0;
-        messages = new ArrayList<Message>();
+        List<Message> scannedMessages = new ArrayList<Message>();
         File[] files = dir.listFiles();
         if (files == null)
             throw new MaildropException(
@@ -133,130 +201,206 @@ public class Maildrop {
             }
             if (!Character.isDigit(name.charAt(0)))
                 continue;
-            if (!name.endsWith(".eml"))
+            Message message = new Message();
+            if (name.endsWith(".ref"))
+                message.shared = true;
+            else if (!name.endsWith(".eml"))
                 throw new MaildropException("Invalid mail file name: " + file);
             String baseName = name.substring(0, name.length() - 4);
-            Message message = new Message();
             try {
                 message.id = Long.valueOf(baseName);
             } catch (NumberFormatException e) {
                 throw new MaildropException("Invalid mail file name: " + file);
             }
-            message.length = file.length();
+            message.length =
+                    message.shared ? sharedMailLength(file) : file.length();
+            if (message.length == 0 && message.shared) {
+                logger.error("The shared body referenced by " + file
+                        + " is missing, the mail is skipped");
+                continue;
+            }
             if (message.length == 0)
                 throw new MaildropException("Cannot determine length of file "
                         + file);
-            messages.add(message);
+            scannedMessages.add(message);
         }
-        Collections.sort(messages, new MessageIdComparator());
+        Collections.sort(scannedMessages, new MessageIdComparator());
+        messages = new MessageTable(scannedMessages.size());
+        for (Message message : scannedMessages)
+            messages.add(message);
         if (countOfDeletedTemporaryFiles > 0)
             logger.warn(countOfDeletedTemporaryFiles
                     + " temporary mail files were deleted in " + dir);
     }
 
-    public synchronized long getCountOfMessages() {
-        if (!isTransactionRunning)
-            throw new IllegalStateException("Assertion failed");
-
-        long result = 0;
-        for (Message message : messages) {
-            if (!message.deleted)
-                result++;
+    /**
+     * Returns 0 if the shared body does not exist.
+     */
+    private long sharedMailLength(File referenceFile) throws MaildropException {
+        try {
+            SharedMailReference reference =
+                    SharedMailReference.read(referenceFile);
+            long bodyLength = blobStore.getBlobFile(reference.hash).length();
+            return bodyLength == 0 ? 0 : reference.prefix.length + bodyLength;
+        } catch (IOException e) {
+            throw new MaildropException("Cannot read shared mail reference "
+                    + referenceFile, e);
         }
-        return result;
     }
 
-    public synchronized long getTotalOctets() {
+    public synchronized long getCountOfMessages() {
         if (!isTransactionRunning)
             throw new IllegalStateException("Assertion failed");
 
-        long result = 0;
-        for (Message message : messages) {
-            if (!message.deleted)
-                result += message.length;
-        }
-        return result;
+        return messages.getCountOfUndeleted();
     }
 
-    public synchronized List<ScanListing> getScanListings() {
+    public synchronized long getTotalOctets() {
         if (!isTransactionRunning)
             throw new IllegalStateException("Assertion failed");
 
-        List<ScanListing> result = new ArrayList<ScanListing>();
-        for (int i = 0; i < messages.size(); i++) {
-            Message message = messages.get(i);
-            if (!message.deleted)
-                result.add(new ScanListing(i + 1, message.length));
-        }
-        return result;
+        return messages.getUndeletedLength();
     }
 
     public synchronized ScanListing getScanListing(int messageNumber)
             throws MaildropPopException, IllegalStateException {
-        Message message = getMessageByMessageNumber(messageNumber);
-        return new ScanListing(messageNumber, message.length);
+        int i = getMessageIndex(messageNumber);
+        return new ScanListing(messageNumber, messages.getLength(i));
     }
 
-    public synchronized List<UidListing> getUidListings() {
-        if (!isTransactionRunning)
-            throw new IllegalStateException("Assertion failed");
+    public synchronized UidListing getUidListing(int messageNumber)
+            throws MaildropPopException, IllegalStateException {
+        int i = getMessageIndex(messageNumber);
+        return new UidListing(messageNumber, messages.getUid(i));
+    }
 
-        List<UidListing> result = new ArrayList<UidListing>();
-        for (int i = 0; i < messages.size(); i++) {
-            Message message = messages.get(i);
-            if (!message.deleted)
-                result.add(new UidListing(i + 1, message.id));
+    /**
+     * Passes the message number, UID and length of each mail which is not
+     * marked for deletion to the visitor, in the order of message numbers,
+     * without creating a listing object for each mail. The listings are
+     * copied while the lock of the maildrop is held, but the visitor is called
+     * after it is released, so a visitor which writes to a slow client does
+     * not block deliveries into this maildrop.
+     */
+    public void visitListings(ListingVisitor visitor) throws IOException {
+        int count;
+        int[] messageNumbers;
+        long[] uids;
+        long[] lengths;
+        synchronized (this) {
+            if (!isTransactionRunning)
+                throw new IllegalStateException("Assertion failed");
+
+            count = messages.getCountOfUndeleted();
+            messageNumbers = new int[count];
+            uids = new long[count];
+            lengths = new long[count];
+            int j = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                if (!messages.isDeleted(i)) {
+                    messageNumbers[j] = i + 1;
+                    uids[j] = messages.getUid(i);
+                    lengths[j] = messages.getLength(i);
+                    j++;
+                }
+            }
         }
-        return result;
+        for (int j = 0; j < count; j++)
+            visitor.visit(messageNumbers[j], uids[j], lengths[j]);
     }
 
-    public synchronized UidListing getUidListing(int messageNumber)
+    /**
+     * Returns the content of the specified mail for random access, which
+     * must be closed after use.
+     */
+    public synchronized MailContent getMailContent(int messageNumber)
             throws MaildropPopException, IllegalStateException {
-        Message message = getMessageByMessageNumber(messageNumber);
-        return new UidListing(messageNumber, message.id);
+        int i = getMessageIndex(messageNumber);
+        try {
+            return openMailContent(i);
+        } catch (IOException e) {
+            logger.error("Cannot open mail file " + getFile(i), e);
+            throw new MaildropPopException("SYS/PERM", "Corrupted mailbox");
+        }
+    }
+
+    private MailContent openMailContent(int i) throws IOException {
+        if (!messages.isShared(i))
+            return MailContent.of(FileChannel.open(getFile(i).toPath(),
+                    StandardOpenOption.READ));
+        SharedMailReference reference = SharedMailReference.read(getFile(i));
+        return MailContent.of(reference.prefix, FileChannel.open(blobStore
+                .getBlobFile(reference.hash).toPath(), StandardOpenOption.READ));
+    }
+
+    /**
+     * Returns the layout of the specified mail. The layout is usually
+     * collected when the mail is appended, but mails which were stored by an
+     * earlier version of Mireka are scanned when this function is called the
+     * first time for them.
+     */
+    public synchronized MessageLayout getMessageLayout(int messageNumber)
+            throws MaildropPopException, IllegalStateException {
+        int i = getMessageIndex(messageNumber);
+        if (messages.getLayout(i) == null) {
+            try (MailContent content = openMailContent(i)) {
+                messages.setLayout(i, MessageLayout.scan(content));
+            } catch (IOException e) {
+                logger.error("Cannot read mail file " + getFile(i), e);
+                throw new MaildropPopException("SYS/PERM",
+                        "Corrupted mailbox");
+            }
+            isIndexIncomplete = true;
+        }
+        return messages.getLayout(i);
     }
 
     public synchronized InputStream getMailAsStream(int messageNumber)
             throws MaildropPopException, IllegalStateException {
-        Message message = getMessageByMessageNumber(messageNumber);
+        int i = getMessageIndex(messageNumber);
         try {
-            return new FileInputStream(message.getFile());
-        } catch (FileNotFoundException e) {
-            logger.error("Cannot open mail file " + message.getFile(), e);
+            if (!messages.isShared(i))
+                return new FileInputStream(getFile(i));
+            SharedMailReference reference =
+                    SharedMailReference.read(getFile(i));
+            return new SequenceInputStream(new ByteArrayInputStream(
+                    reference.prefix), new FileInputStream(
+                    blobStore.getBlobFile(reference.hash)));
+        } catch (IOException e) {
+            logger.error("Cannot open mail file " + getFile(i), e);
             throw new MaildropPopException("SYS/PERM", "Corrupted mailbox");
         }
     }
 
     /**
-     * Throws an exception if the maildrop is not in transaction mode, the
-     * message number is invalid, or refers to a deleted mail.
+     * Returns the index of the message in the message table. Throws an
+     * exception if the maildrop is not in transaction mode, the message
+     * number is invalid, or refers to a deleted mail.
      */
-    private Message getMessageByMessageNumber(int messageNumber)
+    private int getMessageIndex(int messageNumber)
             throws MaildropPopException, IllegalStateException {
         if (!isTransactionRunning)
             throw new IllegalStateException();
         if (messageNumber < 1 || messageNumber > messages.size())
             throw new MaildropPopException(null, "No such message");
-        Message message = messages.get(messageNumber - 1);
-        if (message.deleted)
+        int i = messageNumber - 1;
+        if (messages.isDeleted(i))
             throw new MaildropPopException(null, "Deleted message");
-        return message;
+        return i;
+    }
+
+    private File getFile(int i) {
+        return new File(dir, messages.getUid(i)
+                + (messages.isShared(i) ? ".ref" : ".eml"));
     }
 
     public synchronized void delete(int messageNumber)
             throws MaildropPopException, IllegalStateException {
-        Message message = getMessageByMessageNumber(messageNumber);
-        message.deleted = true;
+        messages.setDeleted(getMessageIndex(messageNumber));
     }
 
     public synchronized void resetDeletions() {
-        resetDeletedFlags();
-    }
-
-    private void resetDeletedFlags() {
-        for (Message message : messages) {
-            message.deleted = false;
-        }
+        messages.resetDeletions();
     }
 
     public synchronized void commitTransaction() throws MaildropPopException,
@@ -265,6 +409,8 @@ public class Maildrop {
             throw new IllegalStateException();
 
         try {
+            if (messages.hasDeleted())
+                invalidateIndex();
             removeDeletedMessages();
         } finally {
             appendPendingMessages();
@@ -272,25 +418,28 @@ public class Maildrop {
         }
     }
 
+    private void invalidateIndex() throws MaildropPopException {
+        try {
+            index.invalidate();
+        } catch (MaildropException e) {
+            logger.error("Cannot invalidate maildrop index", e);
+            throw new MaildropPopException("SYS/TEMP", "Mailbox index error");
+        }
+    }
+
     private void removeDeletedMessages() throws MaildropPopException {
-        List<Message> keptMessages = new ArrayList<Maildrop.Message>();
         int cFailedDeletions = 0;
-        for (Message message : messages) {
-            if (message.deleted) {
-                boolean success = message.getFile().delete();
-                if (!success) {
-                    message.deleted = false;
-                    keptMessages.add(message);
-                    cFailedDeletions++;
-                    if (cFailedDeletions <= 3)
-                        logger.error("Mail cannot be deleted: "
-                                + message.getFile());
-                }
-            } else {
-                keptMessages.add(message);
+        for (int i = messages.nextDeleted(0); i != -1; i =
+                messages.nextDeleted(i + 1)) {
+            boolean success = deleteMessageFile(i);
+            if (!success) {
+                messages.clearDeleted(i);
+                cFailedDeletions++;
+                if (cFailedDeletions <= 3)
+                    logger.error("Mail cannot be deleted: " + getFile(i));
             }
         }
-        messages = keptMessages;
+        messages.removeDeleted();
 
         if (cFailedDeletions > 3)
             logger.error((cFailedDeletions - 3)
@@ -300,8 +449,34 @@ public class Maildrop {
                     + cFailedDeletions + " deleted mails");
     }
 
+    /**
+     * Deletes the file of the message, and releases the shared body it
+     * refers to, if any.
+     * 
+     * @return false if the file cannot be deleted
+     */
+    private boolean deleteMessageFile(int i) {
+        File file = getFile(i);
+        if (!messages.isShared(i))
+            return file.delete();
+        SharedMailReference reference;
+        try {
+            reference = SharedMailReference.read(file);
+        } catch (IOException e) {
+            logger.error("Cannot read shared mail reference, the shared "
+                    + "body will not be released " + file, e);
+            reference = null;
+        }
+        if (!file.delete())
+            return false;
+        if (reference != null)
+            blobStore.release(reference.hash, 1);
+        return true;
+    }
+
     private void appendPendingMessages() {
-        messages.addAll(pendingMessages);
+        for (Message message : pendingMessages)
+            messages.add(message);
         pendingMessages.clear();
     }
 
@@ -309,11 +484,67 @@ public class Maildrop {
         if (!isTransactionRunning)
             throw new IllegalStateException();
 
-        resetDeletedFlags();
+        messages.resetDeletions();
         appendPendingMessages();
         isTransactionRunning = false;
     }
 
+    /**
+     * Removes those of the oldest mails which were stored before the
+     * specified time, but at most the specified count of them. Mails are
+     * ordered by UID, which reflects the order of arrival, so the scan stops
+     * at the first mail which is not expired. Nothing is removed if a POP3
+     * transaction is running, so the lock of the maildrop is only held while
+     * a bounded count of files are deleted.
+     * 
+     * @return the count of removed mails, or -1 if a transaction is running
+     */
+    public synchronized int expireMessages(long storedBefore, int limit)
+            throws MaildropException {
+        if (isTransactionRunning)
+            return -1;
+        initialize();
+        int count = 0;
+        while (count < limit && count < messages.size()
+                && getFile(count).lastModified() < storedBefore) {
+            messages.setDeleted(count);
+            count++;
+        }
+        if (count == 0)
+            return 0;
+        index.invalidate();
+        try {
+            removeDeletedMessages();
+        } catch (MaildropPopException e) {
+            throw new MaildropException("Cannot remove expired mails in "
+                    + dir, e);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the total length of the mails in the maildrop, including those
+     * which are being appended or which are marked for deletion. The maildrop
+     * is loaded if necessary.
+     */
+    public synchronized long getUsage() throws MaildropException {
+        initialize();
+        return getKnownUsage();
+    }
+
+    /**
+     * Returns the same as {@link #getUsage()}, or -1 if the maildrop is not
+     * loaded yet.
+     */
+    synchronized long getKnownUsage() {
+        if (!isInitialized)
+            return -1;
+        long result = messages.getTotalLength();
+        for (Message message : pendingMessages)
+            result += message.length;
+        return result;
+    }
+
     public synchronized MaildropAppender allocateAppender()
             throws LocalMailSystemException {
         try {
@@ -326,6 +557,25 @@ public class Maildrop {
         return new Appender();
     }
 
+    /**
+     * Writes the index file, if the maildrop was loaded and it was changed
+     * since the index was read or written last time. It should be called
+     * before the in-memory state of this object is discarded, when no
+     * transaction and no appender is running.
+     */
+    public synchronized void saveIndex() {
+        if (!isInitialized || (index.isValid() && !isIndexIncomplete)
+                || isTransactionRunning || appenderCount > 0)
+            return;
+        try {
+            index.write(messages);
+            isIndexIncomplete = false;
+        } catch (MaildropException e) {
+            logger.warn("Cannot save maildrop index, the maildrop "
+                    + "directory will be scanned on the next load", e);
+        }
+    }
+
     public synchronized void checkReleasedState() {
         if (isTransactionRunning)
             throw new IllegalStateException("Properly released maildrop was "
@@ -344,7 +594,11 @@ public class Maildrop {
         return name;
     }
 
-    private class Message {
+    /**
+     * Message describes a mail which is found by a directory scan or which is
+     * appended, before it is added to the {@link MessageTable}.
+     */
+    static class Message {
         /**
          * UID
          */
@@ -354,14 +608,13 @@ public class Maildrop {
          */
         long length;
         /**
-         * True if the mail is marked for deletion in the currently running
-         * transaction.
+         * Null if it is not known yet.
          */
-        boolean deleted;
-
-        File getFile() {
-            return new File(dir, id + ".eml");
-        }
+        MessageLayout layout;
+        /**
+         * True if the file of the message is a {@link SharedMailReference}.
+         */
+        boolean shared;
     }
 
     /**
@@ -380,7 +633,7 @@ public class Maildrop {
         private long uid;
         private File tempFile;
         private File finalFile;
-        private FileOutputStream outputStream;
+        private LayoutScanningOutputStream outputStream;
 
         @Override
         public OutputStream getOutputStream() throws LocalMailSystemException {
@@ -389,13 +642,15 @@ public class Maildrop {
             synchronized (Maildrop.this) {
                 try {
                     allocateFileNames();
-                } catch (InvalidUidFileException e) {
+                } catch (MaildropException e) {
                     throw new LocalMailSystemException(e,
                             EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
                 }
             }
             try {
-                outputStream = new FileOutputStream(tempFile);
+                outputStream =
+                        new LayoutScanningOutputStream(new FileOutputStream(
+                                tempFile));
             } catch (FileNotFoundException e) {
                 throw new LocalMailSystemException(e,
                         EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
@@ -404,7 +659,8 @@ public class Maildrop {
             return outputStream;
         }
 
-        private void allocateFileNames() throws InvalidUidFileException {
+        private void allocateFileNames() throws MaildropException {
+            index.invalidate();
             uid = uidManager.allocateUid();
             tempFile = new File(dir, "temp.mail." + uid + ".eml");
             finalFile = new File(dir, uid + ".eml");
@@ -428,43 +684,160 @@ public class Maildrop {
                 Message message = new Message();
                 message.id = uid;
                 message.length = tempFile.length();
+                message.layout = outputStream.finishLayout();
                 if (message.length == 0)
                     throw new LocalMailSystemException(
                             "Cannot retrieve file length " + tempFile,
                             EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
-                boolean success = tempFile.renameTo(finalFile);
-                if (!success) {
-                    if (tempFile.delete()) {
-                        throw new LocalMailSystemException(
-                                "Cannot move temporary file to final "
-                                        + "destination, but at least it could be deleted "
-                                        + tempFile,
-                                EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
-                    } else {
-                        throw new LocalMailSystemException(
-                                "Cannot move temporary file to final destination, nor it can be deleted "
-                                        + tempFile,
+                moveTempFileToFinal();
+                addMessage(message);
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void commitSpooledMail(SpooledMail spooledMail,
+                boolean hardLink) throws LocalMailSystemException {
+            if (status != AppenderStatus.NEW)
+                throw new IllegalStateException();
+            try {
+                synchronized (Maildrop.this) {
+                    try {
+                        allocateFileNames();
+                    } catch (MaildropException e) {
+                        throw new LocalMailSystemException(e,
                                 EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
                     }
                 }
+                if (!hardLink || !linkSpooledMail(spooledMail))
+                    copySpooledMail(spooledMail);
+                Message message = new Message();
+                message.id = uid;
+                message.length = spooledMail.getLength();
+                message.layout = spooledMail.getLayout();
+                addMessage(message);
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void commitSharedBody(SharedBody body, byte[] prefix)
+                throws LocalMailSystemException {
+            if (status != AppenderStatus.NEW)
+                throw new IllegalStateException();
+            if (body.getBlobStore() != blobStore)
+                throw new IllegalArgumentException(
+                        "Shared body belongs to another repository");
+            try {
                 synchronized (Maildrop.this) {
-                    pendingMessages.add(message);
-                    if (!isTransactionRunning) {
-                        appendPendingMessages();
+                    try {
+                        allocateFileNames();
+                    } catch (MaildropException e) {
+                        throw new LocalMailSystemException(e,
+                                EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
                     }
                 }
-                logger.debug("Message " + message.id + " is added to maildrop "
-                        + name);
+                finalFile = new File(dir, uid + ".ref");
+                try {
+                    new SharedMailReference(body.getHash(), prefix)
+                            .write(tempFile);
+                } catch (IOException e) {
+                    if (!tempFile.delete() && tempFile.exists())
+                        logger.error("Cannot delete temporary file "
+                                + tempFile);
+                    throw new LocalMailSystemException(e,
+                            EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+                }
+                moveTempFileToFinal();
+                body.takeReference();
+                Message message = new Message();
+                message.id = uid;
+                message.shared = true;
+                message.length = prefix.length + body.getLength();
+                message.layout = body.getLayout().withPrefix(prefix.length);
+                addMessage(message);
             } finally {
-                synchronized (Maildrop.this) {
-                    if (appenderCount < 1)
-                        throw new RuntimeException("Assertion failed");
-                    appenderCount--;
+                release();
+            }
+        }
+
+        /**
+         * @return false if the file system does not support hard links
+         */
+        private boolean linkSpooledMail(SpooledMail spooledMail)
+                throws LocalMailSystemException {
+            try {
+                Files.createLink(finalFile.toPath(), spooledMail.getFile()
+                        .toPath());
+                return true;
+            } catch (UnsupportedOperationException e) {
+                logger.debug("Hard links are not supported, copying "
+                        + spooledMail.getFile(), e);
+                return false;
+            } catch (FileSystemException e) {
+                // e.g. the directories are on different file systems
+                logger.debug("Cannot create hard link, copying "
+                        + spooledMail.getFile(), e);
+                return false;
+            } catch (IOException e) {
+                throw new LocalMailSystemException(e,
+                        EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+            }
+        }
+
+        private void copySpooledMail(SpooledMail spooledMail)
+                throws LocalMailSystemException {
+            try {
+                Files.copy(spooledMail.getFile().toPath(), tempFile.toPath());
+            } catch (IOException e) {
+                if (!tempFile.delete() && tempFile.exists())
+                    logger.error("Cannot delete temporary file " + tempFile);
+                throw new LocalMailSystemException(e,
+                        EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+            }
+            moveTempFileToFinal();
+        }
+
+        private void moveTempFileToFinal() throws LocalMailSystemException {
+            boolean success = tempFile.renameTo(finalFile);
+            if (!success) {
+                if (tempFile.delete()) {
+                    throw new LocalMailSystemException(
+                            "Cannot move temporary file to final "
+                                    + "destination, but at least it could be deleted "
+                                    + tempFile,
+                            EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+                } else {
+                    throw new LocalMailSystemException(
+                            "Cannot move temporary file to final destination, nor it can be deleted "
+                                    + tempFile,
+                            EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
                 }
-                status = AppenderStatus.CLOSED;
             }
         }
 
+        private void addMessage(Message message) {
+            synchronized (Maildrop.this) {
+                pendingMessages.add(message);
+                if (!isTransactionRunning) {
+                    appendPendingMessages();
+                }
+            }
+            logger.debug("Message " + message.id + " is added to maildrop "
+                    + name);
+        }
+
+        private void release() {
+            synchronized (Maildrop.this) {
+                if (appenderCount < 1)
+                    throw new RuntimeException("Assertion failed");
+                appenderCount--;
+            }
+            status = AppenderStatus.CLOSED;
+        }
+
         public void rollback() {
             if (status == AppenderStatus.CLOSED)
                 return;
@@ -489,12 +862,7 @@ public class Maildrop {
                         + " is rolled back, temporary file is deleted.");
                 return;
             } finally {
-                synchronized (Maildrop.this) {
-                    if (appenderCount < 1)
-                        throw new RuntimeException("Assertion failed");
-                    appenderCount--;
-                }
-                status = AppenderStatus.CLOSED;
+                release();
             }
 
         }
@@ -27,6 +27,47 @@ public interface MaildropAppender {
      */
     public void commit() throws LocalMailSystemException;
 
+    /**
+     * Adds a spooled mail to the maildrop instead of the content of the output
+     * stream, and releases the appender. {@link #getOutputStream()} must not
+     * be called before this function. Even if it throws an exception, the
+     * appender is always released.
+     * 
+     * @param spooledMail
+     *            the closed spooled mail, which must be created by the
+     *            repository of this maildrop
+     * @param hardLink
+     *            true if a hard link should be created to the spooled file
+     *            instead of copying it. If the file system does not support
+     *            it, then the file is copied anyway.
+     * @throws LocalMailSystemException
+     *             if the mail couldn't be added to the maildrop for some
+     *             reason.
+     */
+    public void commitSpooledMail(SpooledMail spooledMail, boolean hardLink)
+            throws LocalMailSystemException;
+
+    /**
+     * Adds a mail to the maildrop which consists of the specified prefix
+     * followed by a body shared with other maildrops, and releases the
+     * appender. Only the prefix is stored in the maildrop, and one of the
+     * references acquired by the shared body is taken over.
+     * {@link #getOutputStream()} must not be called before this function.
+     * Even if it throws an exception, the appender is always released.
+     * 
+     * @param body
+     *            the shared body, which must be created by the repository of
+     *            this maildrop
+     * @param prefix
+     *            complete header lines, each terminated by CRLF, which are
+     *            specific to this maildrop, for example the Return-Path
+     * @throws LocalMailSystemException
+     *             if the mail couldn't be added to the maildrop for some
+     *             reason.
+     */
+    public void commitSharedBody(SharedBody body, byte[] prefix)
+            throws LocalMailSystemException;
+
     /**
      * It closes the output stream if it is open, removes any temporary files
      * and releases the appender. It does not add the mail to the maildrop.
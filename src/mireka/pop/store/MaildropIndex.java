@@ -0,0 +1,218 @@
+package mireka.pop.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * MaildropIndex reads and writes the index file of a maildrop, which lists the
+ * UID, the length, whether the mail refers to a shared body and, if it is
+ * known, the {@link MessageLayout} of each mail, so a maildrop can be loaded
+ * without listing the directory and querying the length of each mail file.
+ * <p>
+ * The index is only valid if it exists. It is written when the in-memory
+ * state of the maildrop is discarded, and it is deleted before the first
+ * modification of the maildrop directory after it was read or written. If
+ * Mireka stops unexpectedly, then the index is missing and the directory is
+ * scanned on the next load.
+ */
+class MaildropIndex {
+    private static final int MAGIC = 0x4d444958;
+    private static final int VERSION = 4;
+    private static final int FLAG_LAYOUT_KNOWN = 1;
+    private static final int FLAG_CANONICAL = 2;
+    private static final int FLAG_ENDS_WITH_CRLF = 4;
+    private static final int FLAG_SHARED = 8;
+    private final Logger logger = LoggerFactory.getLogger(MaildropIndex.class);
+    private final File file;
+    private final File tempFile;
+    /**
+     * True if the index file is known to exist and to reflect the current
+     * content of the maildrop.
+     */
+    private boolean isValid;
+    /**
+     * False if the index file is known to be absent.
+     */
+    private boolean mayExist = true;
+
+    MaildropIndex(File dir) {
+        file = new File(dir, "index");
+        tempFile = new File(dir, "temp.index");
+    }
+
+    /**
+     * Returns the content of the index file, or null if it does not exist or
+     * it is invalid.
+     */
+    Content read() {
+        if (!file.exists()) {
+            mayExist = false;
+            return null;
+        }
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.warn("Unknown maildrop index format, ignoring " + file);
+                return null;
+            }
+            int count = in.readInt();
+            if (count < 0 || file.length() < 12 + 17L * count) {
+                logger.warn("Maildrop index length is invalid, ignoring "
+                        + file);
+                return null;
+            }
+            Content content = new Content(count);
+            for (int i = 0; i < count; i++) {
+                content.uids[i] = in.readLong();
+                content.lengths[i] = in.readLong();
+                int flags = in.readByte();
+                content.shared[i] = (flags & FLAG_SHARED) != 0;
+                content.layouts[i] = readLayout(in, flags);
+            }
+            if (in.read() != -1) {
+                logger.warn("Maildrop index has trailing garbage, ignoring "
+                        + file);
+                return null;
+            }
+            isValid = true;
+            return content;
+        } catch (EOFException e) {
+            logger.warn("Maildrop index is truncated, ignoring " + file);
+            return null;
+        } catch (IOException e) {
+            logger.warn("Cannot read maildrop index, ignoring " + file, e);
+            return null;
+        }
+    }
+
+    private MessageLayout readLayout(DataInputStream in, int flags)
+            throws IOException {
+        if ((flags & FLAG_LAYOUT_KNOWN) == 0)
+            return null;
+        long[] dotOffsets = readOffsets(in);
+        long headerLength = in.readLong();
+        long[] bodyLineCheckpoints = readOffsets(in);
+        return new MessageLayout(dotOffsets, (flags & FLAG_CANONICAL) != 0,
+                (flags & FLAG_ENDS_WITH_CRLF) != 0, headerLength,
+                bodyLineCheckpoints);
+    }
+
+    private long[] readOffsets(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > file.length() / 8)
+            throw new IOException("Invalid count of offsets");
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; i++)
+            offsets[i] = in.readLong();
+        return offsets;
+    }
+
+    /**
+     * Returns true if the index file reflects the current content of the
+     * maildrop, so it need not be written.
+     */
+    boolean isValid() {
+        return isValid;
+    }
+
+    /**
+     * Writes the index file atomically, by writing a temporary file first and
+     * then renaming it.
+     */
+    void write(MessageTable messages) throws MaildropException {
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(messages.size());
+            for (int i = 0; i < messages.size(); i++) {
+                out.writeLong(messages.getUid(i));
+                out.writeLong(messages.getLength(i));
+                writeLayout(out, messages.getLayout(i),
+                        messages.isShared(i) ? FLAG_SHARED : 0);
+            }
+        } catch (FileNotFoundException e) {
+            throw new MaildropException("Cannot create maildrop index "
+                    + tempFile, e);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new MaildropException("Cannot write maildrop index "
+                    + tempFile, e);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new MaildropException("Cannot rename temporary index file "
+                    + tempFile);
+        }
+        isValid = true;
+        mayExist = true;
+    }
+
+    private void writeLayout(DataOutputStream out, MessageLayout layout,
+            int flags) throws IOException {
+        if (layout == null) {
+            out.writeByte(flags);
+            return;
+        }
+        flags |= FLAG_LAYOUT_KNOWN;
+        if (layout.isCanonical())
+            flags |= FLAG_CANONICAL;
+        if (layout.endsWithCrLf())
+            flags |= FLAG_ENDS_WITH_CRLF;
+        out.writeByte(flags);
+        writeOffsets(out, layout.getDotOffsets());
+        out.writeLong(layout.getHeaderLength());
+        writeOffsets(out, layout.getBodyLineCheckpoints());
+    }
+
+    private void writeOffsets(DataOutputStream out, long[] offsets)
+            throws IOException {
+        out.writeInt(offsets.length);
+        for (long offset : offsets)
+            out.writeLong(offset);
+    }
+
+    /**
+     * Deletes the index file if it may exist, it must be called before the
+     * content of the maildrop directory is changed.
+     */
+    void invalidate() throws MaildropException {
+        if (!mayExist)
+            return;
+        if (!file.delete() && file.exists())
+            throw new MaildropException("Cannot delete maildrop index " + file);
+        isValid = false;
+        mayExist = false;
+    }
+
+    /**
+     * The UIDs, lengths, shared flags and layouts of the mails listed in the
+     * index, in the order of their UID. A layout is null if it is not known.
+     */
+    static class Content {
+        final long[] uids;
+        final long[] lengths;
+        final boolean[] shared;
+        final MessageLayout[] layouts;
+
+        Content(int count) {
+            uids = new long[count];
+            lengths = new long[count];
+            shared = new boolean[count];
+            layouts = new MessageLayout[count];
+        }
+    }
+}
@@ -1,52 +1,255 @@
 package mireka.pop.store;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.smtp.EnhancedStatus;
+import mireka.startup.ReusedOnReload;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * MaildropRepository represents a collection of maildrops within the same file
  * system directory, it maintains a list of the currently used maildrops in
  * order to make possible the synchronization of access to a maildrop.
+ * <p>
+ * Maildrops which are not used currently are kept in memory in a least
+ * recently used cache, so a subsequent POP3 session or local delivery does not
+ * have to load them from disk again. When a maildrop is removed from the
+ * cache, or the repository is shut down, its index is saved, so even the next
+ * load is fast. This requires that no other process changes the maildrop
+ * directories while Mireka is running.
+ * <p>
+ * The repository is divided into stripes, each of them has its own lock and
+ * its own part of the cache, so threads which access different maildrops
+ * rarely wait for each other.
+ * <p>
+ * Mail bodies which are shared by several maildrops are stored in the .blobs
+ * subdirectory, see {@link BlobStore}. Names which start with a dot are
+ * reserved for the repository, they cannot be used as maildrop names.
+ * <p>
+ * The repository remembers the total length of the mails in each cached
+ * maildrop, so it can be checked against a quota without borrowing the
+ * maildrop. The figure is updated whenever a maildrop is released, and it is
+ * forgotten when the maildrop is removed from the cache.
  */
+@ReusedOnReload
+@ThreadSafe
 public class MaildropRepository {
+    /**
+     * The count of independently locked partitions of the repository. A
+     * maildrop always belongs to the same stripe, which is selected by the
+     * hash code of its name.
+     */
+    private static final int STRIPE_COUNT = 16;
+    /**
+     * The name of the subdirectory of the shared mail bodies, it cannot clash
+     * with a maildrop name, because those cannot start with a dot.
+     */
+    static final String BLOB_DIRECTORY_NAME = ".blobs";
+    private final Logger logger = LoggerFactory
+            .getLogger(MaildropRepository.class);
     /**
      * The directory where the individual maildrop directories are residing.
      */
     private String dir;
-    @GuardedBy("this")
-    private Map<String, MaildropSlot> openMaildrops =
-            new HashMap<String, MaildropSlot>();
-
-    public synchronized Maildrop borrowMaildrop(String maildropName) {
-        Maildrop maildrop = getOrCreateMaildrop(maildropName);
-        return maildrop;
-    }
-
-    private Maildrop getOrCreateMaildrop(String maildropName) {
-        MaildropSlot maildropSlot = openMaildrops.get(maildropName);
-        if (maildropSlot == null) {
-            maildropSlot = new MaildropSlot();
-            File maildropDir = new File(dir, maildropName);
-            maildropSlot.maildrop = new Maildrop(maildropName, maildropDir);
-            openMaildrops.put(maildropName, maildropSlot);
+    private volatile BlobStore blobStore;
+    private volatile int cacheSize = 1000;
+    private volatile boolean recountSharedBodies = false;
+    private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+    private final AtomicLong spoolFileCounter = new AtomicLong(
+            System.currentTimeMillis());
+    /**
+     * The last known usage of the cached maildrops, by maildrop name.
+     */
+    private final ConcurrentHashMap<String, Long> usages =
+            new ConcurrentHashMap<String, Long>();
+
+    public MaildropRepository() {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the name starts with a dot, which is reserved for the
+     *             directories of the repository itself
+     */
+    public Maildrop borrowMaildrop(String maildropName) {
+        if (maildropName.startsWith("."))
+            throw new IllegalArgumentException("Invalid maildrop name: "
+                    + maildropName);
+        Stripe stripe = stripeOf(maildropName);
+        synchronized (stripe) {
+            return stripe.getOrCreateMaildrop(maildropName);
         }
-        maildropSlot.borrowCount++;
-        return maildropSlot.maildrop;
-    }
-
-    public synchronized void releaseMaildrop(Maildrop maildrop) {
-        MaildropSlot maildropSlot = openMaildrops.get(maildrop.getName());
-        if (maildropSlot == null)
-            throw new IllegalStateException("Maildrop is already released");
-        maildropSlot.borrowCount--;
-        if (maildropSlot.borrowCount < 0)
-            throw new RuntimeException("Assertion failed");
-        else if (maildropSlot.borrowCount == 0) {
-            openMaildrops.remove(maildrop.getName());
-            maildrop.checkReleasedState();
+    }
+
+    public void releaseMaildrop(Maildrop maildrop) {
+        long usage = maildrop.getKnownUsage();
+        Stripe stripe = stripeOf(maildrop.getName());
+        synchronized (stripe) {
+            if (usage != -1)
+                usages.put(maildrop.getName(), usage);
+            stripe.releaseMaildrop(maildrop);
+        }
+    }
+
+    /**
+     * Returns the total length of the mails in the specified maildrop. The
+     * figure recorded when the maildrop was last released is returned if
+     * there is one, otherwise the maildrop is loaded.
+     */
+    public long getUsage(String maildropName) throws LocalMailSystemException {
+        Long usage = usages.get(maildropName);
+        if (usage != null)
+            return usage;
+        Maildrop maildrop = borrowMaildrop(maildropName);
+        try {
+            return maildrop.getUsage();
+        } catch (MaildropException e) {
+            throw new LocalMailSystemException(e,
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        } finally {
+            releaseMaildrop(maildrop);
+        }
+    }
+
+    /**
+     * Returns the names of the maildrops which exist on the disk, in
+     * alphabetical order.
+     */
+    public List<String> listMaildropNames() {
+        List<String> result = new ArrayList<String>();
+        File[] files = new File(dir).listFiles();
+        if (files == null)
+            return result;
+        for (File file : files) {
+            if (file.isDirectory() && !file.getName().startsWith("."))
+                result.add(file.getName());
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private Stripe stripeOf(String maildropName) {
+        int h = maildropName.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Deletes the spooled mail files which were left in the repository
+     * directory when Mireka stopped unexpectedly during a local delivery, and
+     * the similar leftovers of the shared mail bodies. If requested, it also
+     * rebuilds the reference counts of the shared bodies.
+     */
+    @PostConstruct
+    public void start() {
+        deleteSpooledMails();
+        blobStore.sweep();
+        if (recountSharedBodies)
+            recountSharedBodies();
+    }
+
+    private void deleteSpooledMails() {
+        File[] files = new File(dir).listFiles();
+        if (files == null)
+            return;
+        int countOfDeletedSpoolFiles = 0;
+        for (File file : files) {
+            if (!file.getName().startsWith("temp.spool."))
+                continue;
+            if (file.delete())
+                countOfDeletedSpoolFiles++;
+            else
+                logger.warn("Cannot delete spooled mail file " + file);
+        }
+        if (countOfDeletedSpoolFiles > 0)
+            logger.warn(countOfDeletedSpoolFiles
+                    + " spooled mail files were deleted in " + dir);
+    }
+
+    /**
+     * Counts the references to the shared bodies in all maildrops, and passes
+     * the result to the blob store. Nothing is changed if a reference cannot
+     * be read, because then a body in use could be deleted.
+     */
+    private void recountSharedBodies() {
+        Map<String, Long> references = new HashMap<String, Long>();
+        for (String maildropName : listMaildropNames()) {
+            File[] files = new File(dir, maildropName).listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(".ref")
+                        || !Character.isDigit(name.charAt(0)))
+                    continue;
+                String hash;
+                try {
+                    hash = SharedMailReference.read(file).hash;
+                } catch (IOException e) {
+                    logger.error("Shared mail bodies are not recounted, "
+                            + "because a reference cannot be read", e);
+                    return;
+                }
+                Long count = references.get(hash);
+                references.put(hash, count == null ? 1 : count + 1);
+            }
+        }
+        blobStore.recount(references);
+    }
+
+    /**
+     * Creates a new, empty spooled mail file in the repository directory,
+     * which can be added to several maildrops.
+     * 
+     * @see MaildropAppender#commitSpooledMail(SpooledMail, boolean)
+     */
+    public SpooledMail createSpooledMail() {
+        return new SpooledMail(new File(dir, "temp.spool."
+                + spoolFileCounter.incrementAndGet() + ".eml"));
+    }
+
+    /**
+     * Stores the content of a closed spooled mail as a body which can be
+     * shared by the specified count of maildrops of this repository. If an
+     * identical body is already stored, then it is reused. The spooled mail
+     * must still be deleted after this call, and the returned body must be
+     * closed after it was added to the maildrops.
+     * 
+     * @see MaildropAppender#commitSharedBody(SharedBody, byte[])
+     */
+    public SharedBody createSharedBody(SpooledMail spooledMail,
+            int references) throws LocalMailSystemException {
+        return blobStore.store(spooledMail, references);
+    }
+
+    /**
+     * Saves the index of the cached maildrops.
+     */
+    @PreDestroy
+    public void close() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.close();
+            }
         }
     }
 
@@ -55,6 +258,126 @@ public class MaildropRepository {
      */
     public void setDir(String dir) {
         this.dir = dir;
+        this.blobStore = new BlobStore(new File(dir, BLOB_DIRECTORY_NAME));
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Sets the maximum count of unused maildrops which are kept in memory. The
+     * default is 1000. Value 0 means that a maildrop is unloaded as soon as it
+     * is released, but its index is still saved. The limit is divided evenly
+     * among the stripes of the repository, rounded up, so it is only
+     * approximately kept.
+     * 
+     * @x.category GETSET
+     */
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.evictIdleMaildrops();
+            }
+        }
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public boolean isRecountSharedBodies() {
+        return recountSharedBodies;
+    }
+
+    /**
+     * Sets whether the reference counts of the shared mail bodies are rebuilt
+     * on startup, by reading every shared mail of every maildrop. The default
+     * is false. The counts are never too low, but if Mireka stops
+     * unexpectedly while a mail is delivered or deleted, then a count may
+     * remain too high, and the body is kept forever. Switching this on once,
+     * after such an event, reclaims these bodies. It only has effect at
+     * startup, not on configuration reload.
+     * 
+     * @x.category GETSET
+     */
+    public void setRecountSharedBodies(boolean recountSharedBodies) {
+        this.recountSharedBodies = recountSharedBodies;
+    }
+
+    /**
+     * Stripe contains those maildrops whose name is mapped to it, all of its
+     * methods must be called while the lock of the stripe is held.
+     */
+    private class Stripe {
+        @GuardedBy("this")
+        private final Map<String, MaildropSlot> openMaildrops =
+                new HashMap<String, MaildropSlot>();
+        /**
+         * Maildrops which are not borrowed currently, in least recently used
+         * order.
+         */
+        @GuardedBy("this")
+        private final LinkedHashMap<String, Maildrop> idleMaildrops =
+                new LinkedHashMap<String, Maildrop>(16, 0.75f, true);
+
+        Maildrop getOrCreateMaildrop(String maildropName) {
+            MaildropSlot maildropSlot = openMaildrops.get(maildropName);
+            if (maildropSlot == null) {
+                maildropSlot = new MaildropSlot();
+                maildropSlot.maildrop = idleMaildrops.remove(maildropName);
+                if (maildropSlot.maildrop == null) {
+                    File maildropDir = new File(dir, maildropName);
+                    maildropSlot.maildrop =
+                            new Maildrop(maildropName, maildropDir,
+                                    blobStore);
+                }
+                openMaildrops.put(maildropName, maildropSlot);
+            }
+            maildropSlot.borrowCount++;
+            return maildropSlot.maildrop;
+        }
+
+        void releaseMaildrop(Maildrop maildrop) {
+            MaildropSlot maildropSlot = openMaildrops.get(maildrop.getName());
+            if (maildropSlot == null)
+                throw new IllegalStateException("Maildrop is already released");
+            maildropSlot.borrowCount--;
+            if (maildropSlot.borrowCount < 0)
+                throw new RuntimeException("Assertion failed");
+            else if (maildropSlot.borrowCount == 0) {
+                openMaildrops.remove(maildrop.getName());
+                maildrop.checkReleasedState();
+                idleMaildrops.put(maildrop.getName(), maildrop);
+                evictIdleMaildrops();
+            }
+        }
+
+        /**
+         * Removes the least recently used maildrops from the cache until it
+         * is not larger than its share of the maximum size. The index is
+         * written while the lock of the stripe is held, so a maildrop cannot
+         * be borrowed and changed before its index is written.
+         */
+        void evictIdleMaildrops() {
+            int maxSize = (cacheSize + STRIPE_COUNT - 1) / STRIPE_COUNT;
+            while (idleMaildrops.size() > maxSize) {
+                Map.Entry<String, Maildrop> eldest =
+                        idleMaildrops.entrySet().iterator().next();
+                idleMaildrops.remove(eldest.getKey());
+                usages.remove(eldest.getKey());
+                eldest.getValue().saveIndex();
+            }
+        }
+
+        void close() {
+            for (Maildrop maildrop : idleMaildrops.values())
+                maildrop.saveIndex();
+            idleMaildrops.clear();
+        }
     }
 
     private static class MaildropSlot {
@@ -0,0 +1,247 @@
+package mireka.pop.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MessageLayout describes those properties of a stored mail which are needed
+ * to send it over the wire in a POP3 multi-line response without inspecting
+ * each byte: the offsets of the lines which start with a dot, and so must be
+ * dot-stuffed, and whether the mail uses CRLF line endings exclusively. For
+ * the TOP command it also records the length of the header and the offsets
+ * of every {@value #CHECKPOINT_INTERVAL}th line of the body.
+ * <p>
+ * Instances are immutable. They are collected while a mail is appended to the
+ * maildrop, or, for mails stored by an earlier version, when the mail is
+ * first retrieved.
+ */
+public final class MessageLayout {
+    /**
+     * The count of body lines between two recorded line offsets.
+     */
+    static final int CHECKPOINT_INTERVAL = 256;
+    private static final long[] NO_OFFSETS = new long[0];
+    private final long[] dotOffsets;
+    private final boolean canonical;
+    private final boolean endsWithCrLf;
+    private final long headerLength;
+    private final long[] bodyLineCheckpoints;
+
+    MessageLayout(long[] dotOffsets, boolean canonical, boolean endsWithCrLf,
+            long headerLength, long[] bodyLineCheckpoints) {
+        this.dotOffsets = dotOffsets;
+        this.canonical = canonical;
+        this.endsWithCrLf = endsWithCrLf;
+        this.headerLength = headerLength;
+        this.bodyLineCheckpoints = bodyLineCheckpoints;
+    }
+
+    /**
+     * Returns the offsets of the dot characters which are at the beginning of
+     * a line, in ascending order. The returned array must not be modified.
+     */
+    public long[] getDotOffsets() {
+        return dotOffsets;
+    }
+
+    /**
+     * Returns true if the mail contains no bare CR or LF characters, so it can
+     * be sent without line ending conversion.
+     */
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /**
+     * Returns true if the last line of the mail is terminated by CRLF. An
+     * empty mail is considered to be terminated.
+     */
+    public boolean endsWithCrLf() {
+        return endsWithCrLf;
+    }
+
+    /**
+     * Returns the length of the header including the empty line which
+     * separates it from the body. If the mail has no body, then this is the
+     * length of the whole mail.
+     */
+    public long getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * Returns the offset of the start of the body line with index
+     * <code>(i + 1) * CHECKPOINT_INTERVAL</code>. The returned array must not
+     * be modified.
+     */
+    long[] getBodyLineCheckpoints() {
+        return bodyLineCheckpoints;
+    }
+
+    /**
+     * Returns the offset where the response to a TOP command ends, i.e. the
+     * end of the header and the specified count of body lines. At most
+     * {@value #CHECKPOINT_INTERVAL} lines are read from the mail, starting
+     * from the nearest checkpoint.
+     * 
+     * @param mail
+     *            the content of the mail
+     * @param lines
+     *            the count of body lines to include
+     */
+    public long findEndOfTop(MailContent mail, int lines) throws IOException {
+        long length = mail.size();
+        if (lines == 0 || headerLength >= length)
+            return headerLength;
+        int checkpointIndex = lines / CHECKPOINT_INTERVAL;
+        if (checkpointIndex > bodyLineCheckpoints.length)
+            return length;
+        long position =
+                checkpointIndex == 0 ? headerLength
+                        : bodyLineCheckpoints[checkpointIndex - 1];
+        int remainingLines = lines - checkpointIndex * CHECKPOINT_INTERVAL;
+        if (remainingLines == 0)
+            return position;
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        int cRead;
+        while (-1 != (cRead = mail.read(buffer, position))) {
+            byte[] array = buffer.array();
+            for (int i = 0; i < cRead; i++) {
+                if (array[i] == '\n' && --remainingLines == 0)
+                    return position + i + 1;
+            }
+            position += cRead;
+            buffer.clear();
+        }
+        return length;
+    }
+
+    /**
+     * Returns the layout of a mail which consists of a prefix of the
+     * specified length followed by the mail described by this layout. The
+     * prefix must consist of complete header lines terminated by CRLF, none
+     * of which starts with a dot.
+     */
+    MessageLayout withPrefix(long prefixLength) {
+        long[] shiftedDotOffsets = shift(dotOffsets, prefixLength);
+        long[] shiftedCheckpoints = shift(bodyLineCheckpoints, prefixLength);
+        return new MessageLayout(shiftedDotOffsets, canonical, endsWithCrLf,
+                prefixLength + headerLength, shiftedCheckpoints);
+    }
+
+    private static long[] shift(long[] offsets, long distance) {
+        if (offsets.length == 0)
+            return offsets;
+        long[] result = new long[offsets.length];
+        for (int i = 0; i < offsets.length; i++)
+            result[i] = offsets[i] + distance;
+        return result;
+    }
+
+    /**
+     * Scans the content of the specified mail.
+     */
+    static MessageLayout scan(MailContent channel) throws IOException {
+        Scanner scanner = new Scanner();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int cRead;
+        while (-1 != (cRead = channel.read(buffer, position))) {
+            scanner.update(buffer.array(), 0, cRead);
+            position += cRead;
+            buffer.clear();
+        }
+        return scanner.finish();
+    }
+
+    /**
+     * Scanner collects the layout of a mail incrementally, as its content is
+     * written.
+     */
+    static final class Scanner {
+        private long[] dotOffsets = NO_OFFSETS;
+        private int dotCount;
+        private long position;
+        private boolean canonical = true;
+        private boolean startOfLine = true;
+        private boolean lastWasCr;
+        private long lineStart;
+        /**
+         * -1 while the header is scanned.
+         */
+        private long headerLength = -1;
+        private int bodyLineCount;
+        private long[] checkpoints = NO_OFFSETS;
+        private int checkpointCount;
+
+        void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                byte c = b[i];
+                if (startOfLine && c == '.')
+                    addDotOffset(position + i - off);
+                if (c == '\n') {
+                    if (!lastWasCr)
+                        canonical = false;
+                    endOfLine(position + i - off);
+                    startOfLine = true;
+                    lastWasCr = false;
+                } else {
+                    if (lastWasCr)
+                        canonical = false;
+                    startOfLine = false;
+                    lastWasCr = c == '\r';
+                }
+            }
+            position += len;
+        }
+
+        /**
+         * Records the header end or a body line checkpoint if necessary.
+         * 
+         * @param lfOffset
+         *            the offset of the LF character which terminates the line
+         */
+        private void endOfLine(long lfOffset) {
+            long nextLineStart = lfOffset + 1;
+            if (headerLength == -1) {
+                long lineLength = lfOffset - lineStart;
+                if (lineLength == 0 || (lineLength == 1 && lastWasCr))
+                    headerLength = nextLineStart;
+            } else {
+                bodyLineCount++;
+                if (bodyLineCount % CHECKPOINT_INTERVAL == 0)
+                    addCheckpoint(nextLineStart);
+            }
+            lineStart = nextLineStart;
+        }
+
+        private void addCheckpoint(long offset) {
+            if (checkpointCount == checkpoints.length)
+                checkpoints =
+                        Arrays.copyOf(checkpoints,
+                                Math.max(8, checkpoints.length * 2));
+            checkpoints[checkpointCount++] = offset;
+        }
+
+        private void addDotOffset(long offset) {
+            if (dotCount == dotOffsets.length)
+                dotOffsets =
+                        Arrays.copyOf(dotOffsets,
+                                Math.max(8, dotOffsets.length * 2));
+            dotOffsets[dotCount++] = offset;
+        }
+
+        MessageLayout finish() {
+            if (lastWasCr)
+                canonical = false;
+            return new MessageLayout(trim(dotOffsets, dotCount), canonical,
+                    startOfLine, headerLength == -1 ? position : headerLength,
+                    trim(checkpoints, checkpointCount));
+        }
+
+        private static long[] trim(long[] array, int count) {
+            return count == 0 ? NO_OFFSETS : Arrays.copyOf(array, count);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package mireka.pop.store;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * MessageTable stores the properties of the mails of a maildrop in parallel
+ * arrays, ordered by UID, and maintains the count and the total length of
+ * the mails which are not marked for deletion, so STAT and LIST need not walk
+ * the whole table. Entries are addressed by their zero based index, which is
+ * the POP3 message number minus one.
+ */
+@NotThreadSafe
+class MessageTable {
+    private static final int INITIAL_CAPACITY = 16;
+    private long[] uids;
+    private long[] lengths;
+    /**
+     * An element is null if the layout of the mail is not known yet.
+     */
+    private MessageLayout[] layouts;
+    /**
+     * Entries whose file is a {@link SharedMailReference}.
+     */
+    private final BitSet shared = new BitSet();
+    /**
+     * Entries which are marked for deletion in the currently running
+     * transaction.
+     */
+    private final BitSet deleted = new BitSet();
+    private int size;
+    private int deletedCount;
+    private long totalLength;
+    private long deletedLength;
+
+    MessageTable() {
+        this(INITIAL_CAPACITY);
+    }
+
+    MessageTable(int capacity) {
+        capacity = Math.max(capacity, INITIAL_CAPACITY);
+        uids = new long[capacity];
+        lengths = new long[capacity];
+        layouts = new MessageLayout[capacity];
+    }
+
+    /**
+     * Appends an entry, its UID must be higher than the UID of any existing
+     * entry.
+     */
+    void add(long uid, long length, MessageLayout layout, boolean isShared) {
+        if (size == uids.length) {
+            int capacity = size * 2;
+            uids = Arrays.copyOf(uids, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            layouts = Arrays.copyOf(layouts, capacity);
+        }
+        uids[size] = uid;
+        lengths[size] = length;
+        layouts[size] = layout;
+        shared.set(size, isShared);
+        size++;
+        totalLength += length;
+    }
+
+    void add(Maildrop.Message message) {
+        add(message.id, message.length, message.layout, message.shared);
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getUid(int i) {
+        return uids[i];
+    }
+
+    long getLength(int i) {
+        return lengths[i];
+    }
+
+    MessageLayout getLayout(int i) {
+        return layouts[i];
+    }
+
+    void setLayout(int i, MessageLayout layout) {
+        layouts[i] = layout;
+    }
+
+    boolean isShared(int i) {
+        return shared.get(i);
+    }
+
+    boolean isDeleted(int i) {
+        return deleted.get(i);
+    }
+
+    void setDeleted(int i) {
+        if (deleted.get(i))
+            return;
+        deleted.set(i);
+        deletedCount++;
+        deletedLength += lengths[i];
+    }
+
+    void clearDeleted(int i) {
+        if (!deleted.get(i))
+            return;
+        deleted.clear(i);
+        deletedCount--;
+        deletedLength -= lengths[i];
+    }
+
+    void resetDeletions() {
+        deleted.clear();
+        deletedCount = 0;
+        deletedLength = 0;
+    }
+
+    boolean hasDeleted() {
+        return deletedCount > 0;
+    }
+
+    /**
+     * Returns the index of the first entry marked for deletion at or after
+     * the specified index, or -1 if there is none.
+     */
+    int nextDeleted(int fromIndex) {
+        int result = deleted.nextSetBit(fromIndex);
+        return result < size ? result : -1;
+    }
+
+    /**
+     * Returns the total length of all entries.
+     */
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Returns the count of entries which are not marked for deletion.
+     */
+    int getCountOfUndeleted() {
+        return size - deletedCount;
+    }
+
+    /**
+     * Returns the total length of the entries which are not marked for
+     * deletion.
+     */
+    long getUndeletedLength() {
+        return totalLength - deletedLength;
+    }
+
+    /**
+     * Removes the entries which are marked for deletion, the remaining
+     * entries keep their order, but their indexes change.
+     */
+    void removeDeleted() {
+        if (deletedCount == 0)
+            return;
+        int target = 0;
+        for (int i = 0; i < size; i++) {
+            if (deleted.get(i))
+                continue;
+            uids[target] = uids[i];
+            lengths[target] = lengths[i];
+            layouts[target] = layouts[i];
+            shared.set(target, shared.get(i));
+            target++;
+        }
+        Arrays.fill(layouts, target, size, null);
+        shared.clear(target, size);
+        size = target;
+        totalLength -= deletedLength;
+        resetDeletions();
+    }
+}
@@ -0,0 +1,73 @@
+package mireka.pop.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * SharedBody is a mail body stored once in the repository, together with a
+ * fixed count of references to it, which can be handed over to maildrops.
+ * References which are not taken by any maildrop are released by
+ * {@link #close()}.
+ * 
+ * @see MaildropRepository#createSharedBody(SpooledMail, int)
+ * @see MaildropAppender#commitSharedBody(SharedBody, byte[])
+ */
+@ThreadSafe
+public class SharedBody {
+    private final BlobStore blobStore;
+    private final String hash;
+    private final long length;
+    private final MessageLayout layout;
+    private final AtomicInteger unusedReferences;
+
+    SharedBody(BlobStore blobStore, String hash, long length,
+            MessageLayout layout, int references) {
+        this.blobStore = blobStore;
+        this.hash = hash;
+        this.length = length;
+        this.layout = layout;
+        this.unusedReferences = new AtomicInteger(references);
+    }
+
+    /**
+     * Hands over one of the acquired references to a maildrop message.
+     */
+    void takeReference() {
+        while (true) {
+            int count = unusedReferences.get();
+            if (count == 0)
+                throw new IllegalStateException(
+                        "No more references to shared body " + hash);
+            if (unusedReferences.compareAndSet(count, count - 1))
+                return;
+        }
+    }
+
+    /**
+     * Releases the references which were not taken by any maildrop. It must
+     * be called after the body was added to all maildrops, even if some of
+     * them failed.
+     */
+    public void close() {
+        int count = unusedReferences.getAndSet(0);
+        if (count > 0)
+            blobStore.release(hash, count);
+    }
+
+    BlobStore getBlobStore() {
+        return blobStore;
+    }
+
+    String getHash() {
+        return hash;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    MessageLayout getLayout() {
+        return layout;
+    }
+}
@@ -0,0 +1,47 @@
+package mireka.pop.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+/**
+ * SharedMailReference is the content of a maildrop file which refers to a
+ * body in the {@link BlobStore}. The file starts with the hash of the body
+ * in a separate line, followed by those header lines which are specific to
+ * the maildrop, for example the Return-Path. The mail itself is the
+ * concatenation of these header lines and the shared body.
+ */
+class SharedMailReference {
+    final String hash;
+    final byte[] prefix;
+
+    SharedMailReference(String hash, byte[] prefix) {
+        this.hash = hash;
+        this.prefix = prefix;
+    }
+
+    static SharedMailReference read(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int lf = 0;
+        while (lf < content.length && content[lf] != '\n')
+            lf++;
+        if (lf < 2 || lf == content.length || content[lf - 1] != '\r')
+            throw new IOException("Invalid shared mail reference file "
+                    + file);
+        String hash =
+                new String(content, 0, lf - 1, StandardCharsets.US_ASCII);
+        return new SharedMailReference(hash, Arrays.copyOfRange(content,
+                lf + 1, content.length));
+    }
+
+    void write(File file) throws IOException {
+        byte[] hashLine =
+                (hash + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] content =
+                Arrays.copyOf(hashLine, hashLine.length + prefix.length);
+        System.arraycopy(prefix, 0, content, hashLine.length, prefix.length);
+        Files.write(file.toPath(), content);
+    }
+}
@@ -0,0 +1,104 @@
+package mireka.pop.store;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import mireka.smtp.EnhancedStatus;
+import mireka.transmission.LocalMailSystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SpooledMail is a mail file which is written once and then added to several
+ * maildrops of the same repository, either by creating hard links to it, or
+ * by copying it without interpreting its content, or by moving it into the
+ * blob store of the repository as a shared body. The file itself is always
+ * temporary, it must be deleted after the mail was added to the maildrops.
+ *
+ * @see MaildropRepository#createSpooledMail()
+ * @see MaildropAppender#commitSpooledMail(SpooledMail, boolean)
+ * @see MaildropRepository#createSharedBody(SpooledMail, int)
+ */
+public class SpooledMail {
+    private final Logger logger = LoggerFactory.getLogger(SpooledMail.class);
+    private final File file;
+    private LayoutScanningOutputStream outputStream;
+    private long length = -1;
+    private MessageLayout layout;
+
+    SpooledMail(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns an output stream into which the mail must be written. The
+     * stream must be closed by {@link #close()}.
+     */
+    public OutputStream getOutputStream() throws LocalMailSystemException {
+        if (outputStream != null)
+            throw new IllegalStateException();
+        try {
+            outputStream =
+                    new LayoutScanningOutputStream(new FileOutputStream(file));
+        } catch (FileNotFoundException e) {
+            throw new LocalMailSystemException(e,
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Closes the output stream, after this call the mail can be added to
+     * maildrops.
+     */
+    public void close() throws LocalMailSystemException {
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            throw new LocalMailSystemException(e,
+                    EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+        layout = outputStream.finishLayout();
+        length = file.length();
+        if (length == 0)
+            throw new LocalMailSystemException("Cannot retrieve file length "
+                    + file, EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+    }
+
+    /**
+     * Closes the output stream if it is still open and deletes the file. The
+     * maildrops which received a hard link to the file are not affected.
+     */
+    public void delete() {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                logger.error("Cannot close spooled mail file " + file, e);
+            }
+        }
+        if (!file.delete() && file.exists())
+            logger.error("Cannot delete spooled mail file " + file);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the closed mail file.
+     */
+    long getLength() {
+        if (length == -1)
+            throw new IllegalStateException();
+        return length;
+    }
+
+    MessageLayout getLayout() {
+        return layout;
+    }
+}
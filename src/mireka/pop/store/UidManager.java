@@ -16,18 +16,41 @@ import org.slf4j.LoggerFactory;
 
 /**
  * UidManager retrieves and updates the content of the file associated with each
- * maildrop, which contains the last allocated UID.
+ * maildrop, which contains the highest reserved UID.
+ * <p>
+ * UIDs are not persisted one by one, but reserved in batches, so the file is
+ * only rewritten once for each batch. The file always contains a UID which is
+ * at least as high as any allocated UID. If Mireka stops, then the unused UIDs
+ * of the last batch are skipped, which leaves a gap in the sequence, but UIDs
+ * remain unique and increasing.
  */
 class UidManager {
+    /**
+     * The default count of UIDs reserved by a single write of the UID file.
+     */
+    static final int DEFAULT_RESERVATION_SIZE = 1000;
     private final Logger logger = LoggerFactory.getLogger(UidManager.class);
+    private final int reservationSize;
     private long highestAllocatedUid;
+    /**
+     * The UID stored in the file, UIDs up to this value can be allocated
+     * without updating the file.
+     */
+    private long highestReservedUid;
     private final File file;
     private final File tempFile;
     private boolean isInitialized;
 
     UidManager(File dir) {
+        this(dir, DEFAULT_RESERVATION_SIZE);
+    }
+
+    UidManager(File dir, int reservationSize) {
+        if (reservationSize < 1)
+            throw new IllegalArgumentException();
         file = new File(dir, "uid.txt");
         tempFile = new File(dir, "temp.uid.txt");
+        this.reservationSize = reservationSize;
     }
 
     void createInitialUidFile() throws InvalidUidFileException {
@@ -43,7 +66,7 @@ class UidManager {
             }
         }
         try {
-            writeUidFile(file);
+            writeUidFile(file, highestReservedUid);
         } catch (InvalidUidFileException e) {
             throw new InvalidUidFileException(
                     "Initial uid file cannot be created, maildrop is invalid "
@@ -51,7 +74,8 @@ class UidManager {
         }
     }
 
-    private void writeUidFile(File file) throws InvalidUidFileException {
+    private void writeUidFile(File file, long uid)
+            throws InvalidUidFileException {
         Writer writer;
         try {
             writer = new OutputStreamWriter(new FileOutputStream(file));
@@ -60,7 +84,7 @@ class UidManager {
                     e);
         }
         try {
-            writer.append(highestAllocatedUid + "+");
+            writer.append(uid + "+");
         } catch (IOException e) {
             throw new InvalidUidFileException("Error while writing uid file "
                     + file, e);
@@ -77,7 +101,7 @@ class UidManager {
     void init() throws InvalidUidFileException {
 
         try {
-            highestAllocatedUid = readUidFile(file);
+            highestReservedUid = readUidFile(file);
         } catch (InvalidUidFileException e) {
             logger.warn("Cannot find valid uid file, trying to recover", e);
             if (tempFile.exists()) {
@@ -100,7 +124,7 @@ class UidManager {
                     throw e;
                 }
                 try {
-                    highestAllocatedUid = readUidFile(file);
+                    highestReservedUid = readUidFile(file);
                     logger.error("Uid file is successfully recovered");
                 } catch (InvalidUidFileException e1) {
                     logger.error(
@@ -120,6 +144,7 @@ class UidManager {
                 throw new InvalidUidFileException(
                         "Temporary uid file cannot be deleted, maildrop is invalid");
         }
+        highestAllocatedUid = highestReservedUid;
         isInitialized = true;
     }
 
@@ -163,20 +188,36 @@ class UidManager {
         }
     }
 
+    /**
+     * Returns the highest UID which was allocated, all existing mails have a
+     * UID less than or equal to this value.
+     */
+    long getHighestAllocatedUid() {
+        if (!isInitialized)
+            throw new IllegalStateException();
+        return highestAllocatedUid;
+    }
+
     long allocateUid() throws InvalidUidFileException {
         if (!isInitialized)
             throw new IllegalStateException();
+        if (highestAllocatedUid == highestReservedUid)
+            reserveUids();
         highestAllocatedUid++;
-        writeUidFile(tempFile);
+        return highestAllocatedUid;
+    }
+
+    private void reserveUids() throws InvalidUidFileException {
+        long newHighestReservedUid = highestReservedUid + reservationSize;
+        writeUidFile(tempFile, newHighestReservedUid);
         boolean success = file.delete();
-        if (!success)
+        if (!success && file.exists())
             throw new InvalidUidFileException("Cannot delete uid file " + file);
         success = tempFile.renameTo(file);
         if (!success) {
-            highestAllocatedUid--;
             throw new InvalidUidFileException(
                     "Cannot rename temporary file to final file " + tempFile);
         }
-        return highestAllocatedUid;
+        highestReservedUid = newHighestReservedUid;
     }
 }
@@ -32,6 +32,8 @@ public class EnhancedStatus implements MailSystemStatus {
             new EnhancedStatus(451, "4.3.0", "Local error in processing");
     public static final EnhancedStatus MAIL_SYSTEM_FULL = new EnhancedStatus(
             452, "4.3.1", "Mail system full");
+    public static final EnhancedStatus MAILBOX_FULL = new EnhancedStatus(
+            452, "4.2.2", "Mailbox full");
     public static final EnhancedStatus BAD_DESTINATION_MAILBOX_ADDRESS_SYNTAX =
             new EnhancedStatus(553, "5.1.3",
                     "Bad destination mailbox address syntax");
@@ -1,6 +1,7 @@
 package mireka.smtp.client;
 
 import java.io.IOException;
+import java.net.Socket;
 
 import org.subethamail.smtp.client.SMTPException;
 import org.subethamail.smtp.client.SmartClient;
@@ -11,12 +12,44 @@ import org.subethamail.smtp.client.SmartClient;
  */
 public class SmtpClient extends SmartClient {
     private MtaAddress mtaAddress;
+    /**
+     * The socket created by {@link #connect()}, it is remembered so
+     * {@link #abort()} can close it from another thread while the connection
+     * attempt is still in progress.
+     */
+    private volatile Socket socket;
+    private volatile boolean aborted;
     
     public void connect() throws SMTPException, IOException {
     	super.setHostPort(mtaAddress.toString());
         super.connect(mtaAddress.address.getHostAddress(), mtaAddress.port);
     }
 
+    @Override
+    protected Socket createSocket() {
+        socket = super.createSocket();
+        if (aborted)
+            abort();
+        return socket;
+    }
+
+    /**
+     * Closes the underlying socket without sending a QUIT command. It can be
+     * called from another thread, in which case a blocking {@link #connect()}
+     * will fail with an {@link IOException}.
+     */
+    public void abort() {
+        aborted = true;
+        Socket s = socket;
+        if (s == null)
+            return;
+        try {
+            s.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
     public MtaAddress getMtaAddress() {
         return mtaAddress;
     }
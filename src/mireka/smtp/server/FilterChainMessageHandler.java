@@ -4,13 +4,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.List;
 
 import mireka.ConfigurationException;
 import mireka.destination.UnknownRecipientDestination;
-import mireka.filter.Filter;
-import mireka.filter.FilterSession;
+import mireka.filter.FilterPipeline;
 import mireka.filter.MailTransaction;
 import mireka.filter.RecipientContext;
 import mireka.filter.RecipientVerificationResult;
@@ -41,50 +38,31 @@ public class FilterChainMessageHandler implements MessageHandler {
     private final Logger logger = LoggerFactory
             .getLogger(FilterChainMessageHandler.class);
     private final MailTransaction transaction;
-    private final List<FilterSession> sessions = new ArrayList<>();
-    private FilterSession head;
+    private final FilterPipeline.Transaction pipeline;
 
-    public FilterChainMessageHandler(MessageContext ctx, List<Filter> filters) {
+    public FilterChainMessageHandler(MessageContext ctx,
+            FilterPipeline pipeline) {
         this.transaction = new MailTransaction(ctx);
-        setupChain(filters);
+        this.pipeline = pipeline.newTransaction(transaction);
     }
 
     /**
-     * Sets up the filter session chain. It does not call the <code>begin</code>
-     * function of the filters, because if an error happens that can be better
-     * handled in the <code>from</code> function of this object.
+     * The <code>begin</code> function of the filters is not called when the
+     * handler is created, but here, because if an error happens that can be
+     * better handled in the <code>from</code> function of this object.
      */
-    private void setupChain(List<Filter> filters) {
-        // create links and link them together
-        FilterSession nextLink = new ChainEnd();
-        for (int i = filters.size() - 1; i >= 0; i--) {
-            FilterSession session = filters.get(i).createSession();
-            session.setNextLink(nextLink);
-            session.setMailTransaction(transaction);
-            sessions.add(session);
-            nextLink = session;
-        }
-        head = nextLink;
-    }
-
     @Override
     public void from(String from) throws RejectException {
-        callBeginOnFilters();
+        pipeline.begin();
 
         try {
             transaction.reversePath = convertToReversePath(from);
-            head.from();
+            pipeline.from();
         } catch (RejectExceptionExt e) {
             throw e.toRejectException();
         }
     }
 
-    private void callBeginOnFilters() {
-        for (FilterSession filterSession : sessions) {
-            filterSession.begin();
-        }
-    }
-
     private ReversePath convertToReversePath(String reversePath)
             throws RejectException {
         try {
@@ -103,14 +81,14 @@ public class FilterChainMessageHandler implements MessageHandler {
             RecipientContext recipientContext =
                     new RecipientContext(transaction, recipient);
             RecipientVerificationResult filterReply =
-                    head.verifyRecipient(recipientContext);
+                    pipeline.verifyRecipient(recipientContext);
             if (filterReply == RecipientVerificationResult.NEUTRAL) {
                 if (!recipientContext.isDestinationAssigned()
                         || (recipientContext.getDestination() instanceof UnknownRecipientDestination))
                     throw new UnknownUserException(recipientContext.recipient);
             }
 
-            head.recipient(recipientContext);
+            pipeline.recipient(recipientContext);
             transaction.recipientContexts.add(recipientContext);
         } catch (RejectExceptionExt e) {
             throw e.toRejectException();
@@ -132,7 +110,7 @@ public class FilterChainMessageHandler implements MessageHandler {
     public void data(InputStream data) throws RejectException,
             TooMuchDataException, IOException {
         transaction.dataStream = new SmtpDataInputStream(data);
-        head.dataStream();
+        pipeline.dataStream();
 
         try (TmpMaildataFile tmpMaildataFile = new TmpMaildataFile()) {
 
@@ -143,7 +121,7 @@ public class FilterChainMessageHandler implements MessageHandler {
             }
             try (Maildata maildata = new Maildata(tmpMaildataFile)) {
                 transaction.data = maildata;
-                head.data();
+                pipeline.data();
                 checkResponsibilityHasBeenTakenForAllRecipients();
             } catch (MaildataFileReadException e) {
                 // this hides the real checked exception, rethrow the real one
@@ -188,13 +166,6 @@ public class FilterChainMessageHandler implements MessageHandler {
      */
     @Override
     public void done() {
-        for (FilterSession filter : sessions) {
-            try {
-                filter.close();
-            } catch (RuntimeException e) {
-                logger.error("Exception in done method of filter. "
-                        + "done method of other filters will still run.", e);
-            }
-        }
+        pipeline.close();
     }
 }
@@ -1,6 +1,8 @@
 package mireka.smtp.server;
 
 import mireka.filter.FilterChain;
+import mireka.startup.ReappliedOnReload;
+import mireka.startup.ReusedOnReload;
 
 import org.subethamail.smtp.MessageContext;
 import org.subethamail.smtp.MessageHandler;
@@ -13,14 +15,15 @@ import org.subethamail.smtp.MessageHandlerFactory;
  * {@link ErrorHandlerMessageHandler} which handles RuntimeExceptions gracefully
  * from the viewpoint of the client.
  */
+@ReusedOnReload
 public class MessageHandlerFactoryImpl implements MessageHandlerFactory {
 
-    private FilterChain filters;
+    private volatile FilterChain filters;
 
     @Override
     public MessageHandler create(MessageContext ctx) {
         FilterChainMessageHandler filterChainMessageHandler =
-                new FilterChainMessageHandler(ctx, filters.getFilters());
+                new FilterChainMessageHandler(ctx, filters.getPipeline());
         return new ErrorHandlerMessageHandler(filterChainMessageHandler);
     }
 
@@ -34,6 +37,7 @@ public class MessageHandlerFactoryImpl implements MessageHandlerFactory {
     /**
      * @x.category GETSET
      */
+    @ReappliedOnReload
     public void setFilters(FilterChain filters) {
         this.filters = filters;
     }
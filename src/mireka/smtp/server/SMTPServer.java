@@ -7,6 +7,7 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import mireka.Version;
+import mireka.startup.ReusedOnReload;
 
 import org.subethamail.smtp.MessageHandlerFactory;
 
@@ -20,6 +21,7 @@ import org.subethamail.smtp.MessageHandlerFactory;
  * 
  * @see org.subethamail.smtp.server.SMTPServer
  */
+@ReusedOnReload
 public class SMTPServer extends org.subethamail.smtp.server.SMTPServer {
 
     public SMTPServer(MessageHandlerFactory handlerFactory) {
@@ -20,6 +20,19 @@ public class DependencyInjection {
     private static InjectableObjectContainer injectableObjects =
             new InjectableObjectContainer();
 
+    /**
+     * Replaces the collection of injectable objects, it is used when the
+     * configuration is reloaded.
+     *
+     * @return the previous collection
+     */
+    static synchronized InjectableObjectContainer replaceInjectableObjects(
+            InjectableObjectContainer container) {
+        InjectableObjectContainer result = injectableObjects;
+        injectableObjects = container;
+        return result;
+    }
+
     /**
      * Registers the object as an object which can be injected later into
      * uninitialized properties.
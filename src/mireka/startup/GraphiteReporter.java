@@ -15,6 +15,7 @@ import com.yammer.metrics.Metrics;
  * @see <a href="http://metrics.codahale.com/">Metrics library</a>
  * @see <a href="http://graphite.wikidot.com/">Graphite</a>
  */
+@ReusedOnReload
 public class GraphiteReporter {
     private String host;
     private int port = 2003;
@@ -4,6 +4,7 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -22,6 +23,12 @@ public class Lifecycle {
     private static final Logger logger = LoggerFactory
             .getLogger(Lifecycle.class);
     public static final List<ManagedObject> managedObjects = new ArrayList<>();
+    /**
+     * Retired objects of previous configurations which are not stopped yet,
+     * in the order of their retirements.
+     */
+    @GuardedBy("Lifecycle.class")
+    private static final List<RetiredObjects> retirements = new ArrayList<>();
 
     /**
      * Registers the object if it has at least one method which is marked with a
@@ -63,6 +70,7 @@ public class Lifecycle {
     /**
      * Calls the methods of the registered objects which were marked with the
      * {@link PostConstruct} annotation in the order of their registration.
+     * Objects which were already initialized by a previous call are skipped.
      * 
      * @throws InvocationTargetException
      *             thrown if a called method has thrown an exception
@@ -73,6 +81,8 @@ public class Lifecycle {
     public static synchronized void callPostConstructMethods()
             throws InvocationTargetException, InvalidMethodSignatureException {
         for (ManagedObject managedObject : managedObjects) {
+            if (managedObject.initialized)
+                continue;
             for (Method method : managedObject.object.getClass().getMethods()) {
                 if (method.isAnnotationPresent(PostConstruct.class)) {
                     try {
@@ -106,22 +116,114 @@ public class Lifecycle {
      * <li>another object which was registered earlier than this object has
      * thrown an exception in its PostConstruct method.
      * </ul>
+     * Objects retired by a configuration reload which are still not stopped
+     * are stopped first, from the most recent retirement to the oldest one.
      */
     public static synchronized void callPreDestroyMethods() {
+        for (int i = retirements.size() - 1; i >= 0; i--) {
+            retirements.get(i).stop();
+        }
+        for (int i = managedObjects.size() - 1; i >= 0; i--) {
+            callPreDestroyMethods(managedObjects.get(i));
+        }
+    }
+
+    private static void callPreDestroyMethods(ManagedObject managedObject) {
+        if (!managedObject.initialized)
+            return;
+        for (Method method : managedObject.object.getClass().getMethods()) {
+            if (method.isAnnotationPresent(PreDestroy.class)) {
+                try {
+                    method.invoke(managedObject.object);
+                    logger.debug("Object stopped: {}", managedObject.object);
+                } catch (Exception e) {
+                    logger.warn("PreDestroy function call failed on "
+                            + managedObject.object, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the count of registered objects, which can be used later to
+     * discard the objects registered after this call.
+     *
+     * @see #discardManagedObjects(int)
+     */
+    public static synchronized int countManagedObjects() {
+        return managedObjects.size();
+    }
+
+    /**
+     * Stops and unregisters the objects which were registered after the
+     * specified count of objects, in the opposite order of their
+     * registrations. It is used if a reloaded configuration cannot be
+     * started.
+     */
+    public static synchronized void discardManagedObjects(int count) {
+        for (int i = managedObjects.size() - 1; i >= count; i--) {
+            callPreDestroyMethods(managedObjects.get(i));
+            managedObjects.remove(i);
+        }
+    }
+
+    /**
+     * Unregisters the objects which are not included in the specified set. It
+     * is used after a reload to detach the objects of the previous
+     * configuration which are not part of the new configuration. These
+     * objects are not stopped immediately, because mail transactions and POP
+     * sessions which started before the reload may still use them, instead
+     * the caller is expected to stop them later by calling
+     * {@link RetiredObjects#stop()}. Retired objects which are still not
+     * stopped at shutdown are stopped by {@link #callPreDestroyMethods()}.
+     */
+    public static synchronized RetiredObjects retainManagedObjects(
+            Set<Object> objects) {
+        RetiredObjects retiredObjects = new RetiredObjects();
         for (int i = managedObjects.size() - 1; i >= 0; i--) {
             ManagedObject managedObject = managedObjects.get(i);
-            if (!managedObject.initialized)
+            if (objects.contains(managedObject.object))
                 continue;
-            for (Method method : managedObject.object.getClass().getMethods()) {
-                if (method.isAnnotationPresent(PreDestroy.class)) {
-                    try {
-                        method.invoke(managedObject.object);
-                        logger.debug("Object stopped: {}", managedObject.object);
-                    } catch (Exception e) {
-                        logger.warn("PreDestroy function call failed on "
-                                + managedObject.object, e);
-                    }
-                }
+            retiredObjects.objects.add(managedObject);
+            managedObjects.remove(i);
+        }
+        retirements.add(retiredObjects);
+        return retiredObjects;
+    }
+
+    /**
+     * RetiredObjects contains the objects of a previous configuration which
+     * were unregistered by {@link Lifecycle#retainManagedObjects(Set)}, but
+     * which have not been stopped yet.
+     */
+    public static class RetiredObjects {
+        /**
+         * The objects in the opposite order of their registrations.
+         */
+        @GuardedBy("Lifecycle.class")
+        private final List<ManagedObject> objects = new ArrayList<>();
+
+        /**
+         * Calls the {@link PreDestroy} methods of the retired objects in the
+         * opposite order of their registrations. It does nothing if the
+         * objects have already been stopped.
+         */
+        public void stop() {
+            synchronized (Lifecycle.class) {
+                if (!retirements.remove(this))
+                    return;
+                for (ManagedObject managedObject : objects)
+                    callPreDestroyMethods(managedObject);
+            }
+        }
+
+        /**
+         * Returns the count of objects retired, which are stopped by
+         * {@link #stop()}.
+         */
+        public int size() {
+            synchronized (Lifecycle.class) {
+                return objects.size();
             }
         }
     }
@@ -0,0 +1,23 @@
+package mireka.startup;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a property setter of a {@link ReusedOnReload} class, which is called
+ * again with the newly configured value when the configuration is reloaded.
+ * The setter is called after the new objects have been started, and it must
+ * be safe to call it while the object is in use. Sessions which are already
+ * running may continue to use the previous value.
+ *
+ * @see Reload
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReappliedOnReload {
+    // marker annotation
+}
@@ -0,0 +1,135 @@
+package mireka.startup;
+
+import java.lang.management.ManagementFactory;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.script.Invocable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reload rereads the configuration scripts and replaces the running
+ * configuration without stopping the server. It is exposed as a JMX operation
+ * with the name <code>mireka:type=Configuration</code>.
+ * <p>
+ * The scripts are executed in the same way as on startup, but the instances
+ * of {@link ReusedOnReload} classes, for example servers and queues, are
+ * taken over from the running configuration, so listening sockets, threads
+ * and queued mails are not affected. The remaining objects, for example
+ * filters, recipient tables and destinations, are created again, and their
+ * {@link PostConstruct} methods are called. Then the new values of the
+ * {@link ReappliedOnReload} properties are assigned to the reused objects,
+ * which switches them to the new object graph. Finally the objects of the
+ * previous configuration which are not used any more are unregistered, and
+ * their {@link PreDestroy} methods are called after a delay, because mail
+ * transactions and POP sessions which started before the reload may still use
+ * them. The delay is the <code>RetirementDelay</code> JMX attribute, by
+ * default 10 minutes, the inactivity timeout of POP sessions. A session which
+ * is still running after the delay may fail when it uses a stopped object.
+ * <p>
+ * If the scripts fail or a new object cannot be started, then the new objects
+ * are stopped, the property assignments which were already made on the reused
+ * objects are reverted, and the previous configuration remains in effect.
+ * Changes of
+ * properties of reused objects which are not reapplied, for example the port
+ * of a server, still require a restart.
+ */
+public class Reload implements ReloadMBean {
+    private static final Logger logger = LoggerFactory.getLogger(Reload.class);
+    /**
+     * The configuration which is in effect.
+     */
+    private static ScriptApi current;
+    /**
+     * Runs the delayed stop of the objects of previous configurations.
+     */
+    private static final Timer retirementTimer = new Timer(
+            "ConfigurationRetirement", true);
+    /**
+     * The delay in seconds after which the unused objects of the previous
+     * configuration are stopped.
+     */
+    private static volatile int retirementDelay = 600;
+
+    /**
+     * Records the configuration created on startup and registers the JMX
+     * operation which reloads it.
+     */
+    static synchronized void register(ScriptApi configuration) {
+        current = configuration;
+        try {
+            ObjectName objectName =
+                    new ObjectName("mireka:type=Configuration");
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new Reload(), objectName);
+        } catch (JMException e) {
+            logger.error("Cannot register configuration reload MBean", e);
+        }
+    }
+
+    @Override
+    public void reload() throws Exception {
+        reloadConfiguration();
+    }
+
+    @Override
+    public int getRetirementDelay() {
+        return retirementDelay;
+    }
+
+    @Override
+    public void setRetirementDelay(int retirementDelay) {
+        Reload.retirementDelay = retirementDelay;
+    }
+
+    /**
+     * Executes the configuration scripts and replaces the running
+     * configuration with the result.
+     *
+     * @throws Exception
+     *             if the new configuration cannot be created or started, in
+     *             this case the previous configuration remains in effect
+     */
+    public static synchronized void reloadConfiguration() throws Exception {
+        if (current == null)
+            throw new IllegalStateException("Mireka is not started");
+        logger.info("Reloading configuration...");
+        ScriptApi next = new ScriptApi(current);
+        int managedObjectCount = Lifecycle.countManagedObjects();
+        InjectableObjectContainer previousInjectableObjects =
+                DependencyInjection
+                        .replaceInjectableObjects(new InjectableObjectContainer());
+        try {
+            Start.runConfigurationScripts(next);
+            Lifecycle.callPostConstructMethods();
+            ((Invocable) next.engine).invokeFunction("applyDeferredAssignments");
+        } catch (Exception e) {
+            logger.error("Configuration reload failed, the previous "
+                    + "configuration remains in effect. Include stack: "
+                    + next.includeStack, e);
+            Lifecycle.discardManagedObjects(managedObjectCount);
+            DependencyInjection
+                    .replaceInjectableObjects(previousInjectableObjects);
+            throw e;
+        }
+        final Lifecycle.RetiredObjects retiredObjects =
+                Lifecycle.retainManagedObjects(next.configuredObjects);
+        current = next;
+        logger.info("Configuration reloaded, {} objects of the previous "
+                + "configuration will be stopped in {} seconds.",
+                retiredObjects.size(), retirementDelay);
+        retirementTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                retiredObjects.stop();
+                logger.debug("Objects of a previous configuration stopped.");
+            }
+        }, retirementDelay * 1000L);
+    }
+}
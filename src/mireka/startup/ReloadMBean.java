@@ -0,0 +1,13 @@
+package mireka.startup;
+
+/**
+ * JMX interface definition for {@link Reload}.
+ */
+public interface ReloadMBean {
+
+    void reload() throws Exception;
+
+    int getRetirementDelay();
+
+    void setRetirementDelay(int retirementDelay);
+}
@@ -0,0 +1,25 @@
+package mireka.startup;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks configuration classes whose instances own long living resources, like
+ * listening sockets, threads, queue directories or JMX registrations. When
+ * the configuration is reloaded, the configuration scripts receive the
+ * existing instances of these classes, matched by their class and by the
+ * order of their creation, instead of new instances. The properties of a
+ * reused object are not changed, except those which are marked with
+ * {@link ReappliedOnReload}.
+ *
+ * @see Reload
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ReusedOnReload {
+    // marker annotation
+}
@@ -4,7 +4,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 import javax.annotation.PostConstruct;
@@ -22,6 +29,39 @@ public class ScriptApi {
     private final Logger logger = LoggerFactory.getLogger(ScriptApi.class);
     public ScriptEngine engine;
     public final Stack<File> includeStack = new Stack<>();
+    /**
+     * The configuration which is replaced by this one, or null if this is the
+     * initial configuration.
+     */
+    private final ScriptApi previous;
+    /**
+     * The instances of {@link ReusedOnReload} classes in the order of their
+     * creation.
+     */
+    private final List<Object> reusableObjects = new ArrayList<>();
+    /**
+     * The count of reused instances by class.
+     */
+    private final Map<Class<?>, Integer> reuseCounts = new HashMap<>();
+    /**
+     * All objects which were set up by this configuration, including the
+     * reused ones.
+     */
+    final Set<Object> configuredObjects = Collections
+            .newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+    public ScriptApi() {
+        this(null);
+    }
+
+    /**
+     * @param previous
+     *            the running configuration which is replaced by the one
+     *            created by this object.
+     */
+    public ScriptApi(ScriptApi previous) {
+        this.previous = previous;
+    }
 
     /**
      * Include another configuration file.
@@ -67,9 +107,62 @@ public class ScriptApi {
      */
     public Object manage(Object object) {
         Lifecycle.addManagedObject(object);
+        configuredObjects.add(object);
+        if (object.getClass().isAnnotationPresent(ReusedOnReload.class))
+            reusableObjects.add(object);
         return object;
     }
 
+    /**
+     * Returns the instance of the previous configuration which corresponds
+     * to the supplied newly created object, if the configuration is being
+     * reloaded and the class of the object is marked with
+     * {@link ReusedOnReload}. The instances are matched by their class and by
+     * the order of their creation.
+     *
+     * @param object
+     *            the newly created object, which is discarded if an existing
+     *            instance is returned
+     * @return the existing instance, or null if the new object must be used
+     */
+    public Object reuse(Object object) {
+        Class<?> objectClass = object.getClass();
+        if (previous == null
+                || !objectClass.isAnnotationPresent(ReusedOnReload.class))
+            return null;
+        Integer count = reuseCounts.get(objectClass);
+        int ordinal = count == null ? 0 : count;
+        for (Object candidate : previous.reusableObjects) {
+            if (candidate.getClass() != objectClass)
+                continue;
+            if (ordinal-- > 0)
+                continue;
+            reuseCounts.put(objectClass, count == null ? 1 : count + 1);
+            reusableObjects.add(candidate);
+            configuredObjects.add(candidate);
+            logger.debug("Reusing object of the previous configuration: {}",
+                    candidate);
+            return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the setter of the specified property is marked with
+     * {@link ReappliedOnReload}.
+     */
+    public boolean isReappliedOnReload(Object object, String propertyName) {
+        String setterName =
+                "set" + Character.toUpperCase(propertyName.charAt(0))
+                        + propertyName.substring(1);
+        for (Method method : object.getClass().getMethods()) {
+            if (method.getName().equals(setterName)
+                    && method.isAnnotationPresent(ReappliedOnReload.class))
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Registers the object as an object which can be injected later into an
      * uninitialized property.
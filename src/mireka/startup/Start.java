@@ -1,9 +1,11 @@
 package mireka.startup;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 
 import javax.annotation.PostConstruct;
 import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
 
 import mireka.Version;
 
@@ -40,15 +42,24 @@ public class Start {
     private static void configure() {
         ScriptApi scriptApi = new ScriptApi();
         try {
-            ScriptEngineManager factory = new ScriptEngineManager();
-            scriptApi.engine = factory.getEngineByName("rhino");
-            scriptApi.engine.put("configuration", scriptApi);
-            scriptApi.include("conf/mireka.js");
+            runConfigurationScripts(scriptApi);
         } catch (Exception e) {
             logger.error("Cannot read configuration. Include stack: "
                     + scriptApi.includeStack.toString(), e);
             System.exit(78);
         }
+        Reload.register(scriptApi);
+    }
+
+    /**
+     * Executes the main configuration script in a new script engine.
+     */
+    static void runConfigurationScripts(ScriptApi scriptApi)
+            throws IOException, ScriptException {
+        ScriptEngineManager factory = new ScriptEngineManager();
+        scriptApi.engine = factory.getEngineByName("rhino");
+        scriptApi.engine.put("configuration", scriptApi);
+        scriptApi.include("conf/mireka.js");
     }
 
     private static void addShutdownHook() {
@@ -44,6 +44,11 @@ public class UsernamePasswordValidatorImpl implements UsernamePasswordValidator
             logger.debug("User {} - password pair is not valid", username);
             throw new LoginFailedException("No user with name " + username
                     + " and supplied password was found");
+        case TEMPORARY_FAILURE:
+            logger.debug("User {} cannot be authenticated temporarily",
+                    username);
+            throw new LoginFailedException("Authentication of username "
+                    + username + " is temporarily unavailable");
         }
     }
 
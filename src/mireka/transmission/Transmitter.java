@@ -1,5 +1,7 @@
 package mireka.transmission;
 
+import java.util.List;
+
 /**
  * A reliable (as specified by SMTP) mail transmitting service. If it accepts
  * the mail, i.e. it doesn't throw an exception immediately, then it also
@@ -20,4 +22,18 @@ public interface Transmitter {
      *             if it cannot accept the mail, e.g. because the disk is full.
      */
     void transmit(Mail mail) throws LocalMailSystemException;
+
+    /**
+     * Sends several mails asynchronously, which usually have the same mail
+     * data but different envelopes. The transmitter may store the shared mail
+     * data only once.
+     * 
+     * @param mails
+     *            The mails to be sent, with the same ownership rules as in
+     *            case of {@link #transmit(Mail)}.
+     * @throws LocalMailSystemException
+     *             if it cannot accept the mails. Some of the mails may have
+     *             been accepted before the failure.
+     */
+    void transmit(List<Mail> mails) throws LocalMailSystemException;
 }
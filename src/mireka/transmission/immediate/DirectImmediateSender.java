@@ -1,6 +1,8 @@
 package mireka.transmission.immediate;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.inject.Inject;
 
@@ -35,6 +37,10 @@ import org.xbill.DNS.Name;
  * remote domain, except if the remote part is a literal address, or the domain
  * has an implicit MX record only.
  * <p>
+ * If an MX host has more than one address, for example both IPv6 and IPv4
+ * addresses, then connection attempts are made to all of them, see
+ * {@link MailToHostTransmitter#transmit(Mail, List)}.
+ * <p>
  * If it cannot transmit the mail to any of the MX hosts of the domain, then it
  * throws an exception, it does not retry later.
  * <p>
@@ -162,14 +168,18 @@ public class DirectImmediateSender implements ImmediateSender {
                 continue;
             }
 
+            List<SmtpClient> clients =
+                    new ArrayList<SmtpClient>(addresses.length);
+            for (InetAddress hostAddress : addresses) {
+                MtaAddress mtaAddress = new MtaAddress(name, hostAddress);
+                SmtpClient client = clientFactory.create();
+                client.setMtaAddress(mtaAddress);
+                clients.add(client);
+            }
+
             try {
-                for (InetAddress hostAddress : addresses) {
-                    MtaAddress mtaAddress = new MtaAddress(name, hostAddress);
-                    SmtpClient client = clientFactory.create();
-                    client.setMtaAddress(mtaAddress);
-                    mailToHostTransmitter.transmit(mail, client);
-                    return;
-                }
+                mailToHostTransmitter.transmit(mail, clients);
+                return;
             } catch (PostponeException e) {
                 lastPostponeException = e;
                 logger.debug("Sending to SMTP host " + name
@@ -7,11 +7,14 @@ import javax.annotation.concurrent.ThreadSafe;
 import mireka.smtp.EnhancedStatus;
 import mireka.smtp.SendException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
 
 /**
  * The AddressLookup class queries the IP address of an MTA or domain by
@@ -23,15 +26,46 @@ import org.xbill.DNS.Record;
  */
 @ThreadSafe
 public class AddressLookup {
+    private final Logger logger = LoggerFactory.getLogger(AddressLookup.class);
 
+    /**
+     * Returns the IPv4 addresses followed by the IPv6 addresses of the host.
+     * A failed AAAA query does not prevent returning the IPv4 addresses, and
+     * a failed A query is only reported if the host has no IPv6 address
+     * either.
+     */
     public InetAddress[] queryAddresses(Name name) throws SendException {
-        Record[] records = queryAddressRecords(name);
+        Record[] ipv4Records;
+        try {
+            ipv4Records = queryAddressRecords(name, Type.A);
+        } catch (SendException e) {
+            Record[] ipv6Records = queryIpv6RecordsIfAny(name);
+            if (ipv6Records.length == 0)
+                throw e;
+            return convertAddressRecordsToAddresses(ipv6Records);
+        }
+        Record[] ipv6Records = queryIpv6RecordsIfAny(name);
+        Record[] records = new Record[ipv4Records.length + ipv6Records.length];
+        System.arraycopy(ipv4Records, 0, records, 0, ipv4Records.length);
+        System.arraycopy(ipv6Records, 0, records, ipv4Records.length,
+                ipv6Records.length);
         InetAddress[] addresses = convertAddressRecordsToAddresses(records);
         return addresses;
     }
 
-    private Record[] queryAddressRecords(Name name) throws SendException {
-        Lookup lookup = new Lookup(name);
+    private Record[] queryIpv6RecordsIfAny(Name name) {
+        try {
+            return queryAddressRecords(name, Type.AAAA);
+        } catch (SendException e) {
+            logger.debug("Host {} has no usable IPv6 address: {}", name,
+                    e.getMessage());
+            return new Record[0];
+        }
+    }
+
+    private Record[] queryAddressRecords(Name name, int type)
+            throws SendException {
+        Lookup lookup = new Lookup(name, type);
         Record[] records = lookup.run();
         switch (lookup.getResult()) {
         case Lookup.SUCCESSFUL:
@@ -0,0 +1,23 @@
+package mireka.transmission.immediate.host;
+
+import mireka.smtp.client.MtaAddress;
+
+/**
+ * ConnectionFailedException indicates that none of the addresses of a remote
+ * MTA could be connected. The cause is the failure which is the most
+ * informative, it is either an {@link java.io.IOException} or an
+ * {@link org.subethamail.smtp.client.SMTPException}.
+ */
+public class ConnectionFailedException extends Exception {
+    private static final long serialVersionUID = -6030958393236432567L;
+
+    /**
+     * The address which produced the failure returned by {@link #getCause()}.
+     */
+    public final MtaAddress remoteMta;
+
+    public ConnectionFailedException(MtaAddress remoteMta, Exception cause) {
+        super(cause);
+        this.remoteMta = remoteMta;
+    }
+}
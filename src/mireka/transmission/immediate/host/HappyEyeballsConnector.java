@@ -0,0 +1,262 @@
+package mireka.transmission.immediate.host;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+import mireka.smtp.client.SmtpClient;
+import mireka.util.NamedThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.subethamail.smtp.client.SMTPException;
+
+/**
+ * HappyEyeballsConnector connects to one of the addresses of a remote MTA,
+ * typically to one of the IPv6 and IPv4 addresses of a single MX host. It does
+ * not wait for a connection attempt to fail before it starts the next one, but
+ * starts the attempts one after the other, separated by a short delay. The
+ * first host which sends a positive greeting and accepts the EHLO or HELO
+ * command wins, the other attempts are cancelled.
+ * <p>
+ * The addresses are tried alternating between the address families, starting
+ * with IPv6. If an attempt fails, then the next one is started immediately.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc8305">RFC 8305 Happy Eyeballs
+ *      Version 2: Better Connectivity Using Concurrency</a>
+ */
+@ThreadSafe
+public class HappyEyeballsConnector {
+    private final Logger logger = LoggerFactory
+            .getLogger(HappyEyeballsConnector.class);
+    /**
+     * The time in milliseconds to wait for the running attempts before the
+     * next one is started.
+     */
+    private long attemptDelay = 250;
+    /**
+     * The maximum count of connection attempts which may run concurrently.
+     */
+    private int maxConcurrentAttempts = 4;
+    /**
+     * Runs the connection attempts of all connectors. Idle threads terminate
+     * after a minute, so the pool does not need to be shut down.
+     */
+    private static final ExecutorService executor = Executors
+            .newCachedThreadPool(new NamedThreadFactory("ConnectionAttempt",
+                    true));
+
+    /**
+     * Connects to one of the specified clients.
+     *
+     * @param clients
+     *            unconnected, but otherwise fully initialized clients, each
+     *            one with a different address of the same remote MTA.
+     * @return the connected client, the other clients are closed.
+     * @throws ConnectionFailedException
+     *             if none of the clients could connect.
+     * @throws IllegalArgumentException
+     *             if the list of clients is empty.
+     */
+    public SmtpClient connect(List<SmtpClient> clients)
+            throws ConnectionFailedException {
+        if (clients.isEmpty())
+            throw new IllegalArgumentException("No clients to connect");
+        List<SmtpClient> orderedClients = interleaveAddressFamilies(clients);
+        CompletionService<SmtpClient> completionService =
+                new ExecutorCompletionService<SmtpClient>(executor);
+        Map<Future<SmtpClient>, SmtpClient> runningAttempts =
+                new HashMap<Future<SmtpClient>, SmtpClient>();
+        ConnectionFailedException failure = null;
+        int nextIndex = 0;
+        try {
+            while (true) {
+                boolean canStartMore =
+                        nextIndex < orderedClients.size()
+                                && runningAttempts.size() < maxConcurrentAttempts;
+                if (canStartMore) {
+                    SmtpClient client = orderedClients.get(nextIndex++);
+                    runningAttempts.put(completionService
+                            .submit(new ConnectionAttempt(client)), client);
+                    canStartMore =
+                            nextIndex < orderedClients.size()
+                                    && runningAttempts.size() < maxConcurrentAttempts;
+                }
+
+                Future<SmtpClient> completed;
+                if (canStartMore)
+                    completed =
+                            completionService.poll(attemptDelay,
+                                    TimeUnit.MILLISECONDS);
+                else if (runningAttempts.isEmpty())
+                    break;
+                else
+                    completed = completionService.take();
+                if (completed == null)
+                    continue;
+
+                SmtpClient client = runningAttempts.remove(completed);
+                try {
+                    completed.get();
+                    logger.debug("Connected to {}", client.getMtaAddress());
+                    return client;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    if (cause instanceof Error)
+                        throw (Error) cause;
+                    logger.debug("Connecting to {} failed: {}",
+                            client.getMtaAddress(), cause.toString());
+                    client.abort();
+                    failure =
+                            moreInformativeFailure(failure,
+                                    new ConnectionFailedException(
+                                            client.getMtaAddress(),
+                                            (Exception) cause));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectionFailedException(orderedClients.get(0)
+                    .getMtaAddress(), new InterruptedIOException(
+                    "Interrupted while connecting"));
+        } finally {
+            cancel(runningAttempts);
+        }
+        throw failure;
+    }
+
+    /**
+     * Reorders the clients so that IPv6 and IPv4 addresses follow each other
+     * alternately, starting with IPv6. The relative order within a single
+     * address family is retained.
+     */
+    private List<SmtpClient> interleaveAddressFamilies(List<SmtpClient> clients) {
+        List<SmtpClient> ipv6Clients = new ArrayList<SmtpClient>();
+        List<SmtpClient> ipv4Clients = new ArrayList<SmtpClient>();
+        for (SmtpClient client : clients) {
+            if (client.getMtaAddress().address instanceof Inet6Address)
+                ipv6Clients.add(client);
+            else
+                ipv4Clients.add(client);
+        }
+        List<SmtpClient> result = new ArrayList<SmtpClient>(clients.size());
+        for (int i = 0; i < Math.max(ipv6Clients.size(), ipv4Clients.size()); i++) {
+            if (i < ipv6Clients.size())
+                result.add(ipv6Clients.get(i));
+            if (i < ipv4Clients.size())
+                result.add(ipv4Clients.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the failure which is more useful for the postmaster. An SMTP
+     * error response is more specific than a network error, otherwise the
+     * first failure is kept.
+     */
+    private ConnectionFailedException moreInformativeFailure(
+            ConnectionFailedException previous,
+            ConnectionFailedException current) {
+        if (previous == null)
+            return current;
+        if (!(previous.getCause() instanceof SMTPException)
+                && current.getCause() instanceof SMTPException)
+            return current;
+        return previous;
+    }
+
+    /**
+     * Aborts the still running attempts and waits until they terminate. An
+     * attempt may complete successfully before the abort takes effect, these
+     * connections are closed.
+     */
+    private void cancel(Map<Future<SmtpClient>, SmtpClient> runningAttempts) {
+        for (SmtpClient client : runningAttempts.values())
+            client.abort();
+        boolean interrupted = false;
+        for (Map.Entry<Future<SmtpClient>, SmtpClient> entry : runningAttempts
+                .entrySet()) {
+            while (true) {
+                try {
+                    entry.getKey().get();
+                    entry.getValue().close();
+                    break;
+                } catch (ExecutionException e) {
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public long getAttemptDelay() {
+        return attemptDelay;
+    }
+
+    /**
+     * Sets the time in milliseconds to wait for the running attempts before
+     * the next one is started. The default is 250 ms, as recommended by RFC
+     * 8305.
+     *
+     * @x.category GETSET
+     */
+    public void setAttemptDelay(long attemptDelay) {
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public int getMaxConcurrentAttempts() {
+        return maxConcurrentAttempts;
+    }
+
+    /**
+     * Sets the maximum count of connection attempts to a single MX host which
+     * may run concurrently. The default is 4. Value 1 means that the addresses
+     * are tried one after the other.
+     *
+     * @x.category GETSET
+     */
+    public void setMaxConcurrentAttempts(int maxConcurrentAttempts) {
+        if (maxConcurrentAttempts < 1)
+            throw new IllegalArgumentException();
+        this.maxConcurrentAttempts = maxConcurrentAttempts;
+    }
+
+    private static class ConnectionAttempt implements Callable<SmtpClient> {
+        private final SmtpClient client;
+
+        ConnectionAttempt(SmtpClient client) {
+            this.client = client;
+        }
+
+        @Override
+        public SmtpClient call() throws SMTPException, IOException {
+            client.connect();
+            return client;
+        }
+    }
+}
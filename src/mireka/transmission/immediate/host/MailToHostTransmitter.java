@@ -22,13 +22,15 @@ import org.subethamail.smtp.client.SmartClient;
 
 /**
  * MailToHostTransmitter transmits a mail to a specific host specified by its IP
- * address.
+ * address, or to the first responding one of the addresses of a multi-homed
+ * host.
  */
 public class MailToHostTransmitter {
     private final Logger logger = LoggerFactory
             .getLogger(MailToHostTransmitter.class);
     private OutgoingConnectionsRegistry outgoingConnectionRegistry;
     private LogIdFactory logIdFactory;
+    private HappyEyeballsConnector connector = new HappyEyeballsConnector();
 
     /**
      * Delivers the mail to the SMTP server running on the specified host.
@@ -52,47 +54,14 @@ public class MailToHostTransmitter {
         }
         try {
             client.connect();
-            client.from(mail.from.getSmtpText());
-            List<RecipientRejection> recipientRejections =
-                    new ArrayList<RecipientRejection>();
-            List<Recipient> acceptedRecipients = new ArrayList<Recipient>();
-            for (Recipient recipient : mail.recipients) {
-                try {
-                    client.to(recipient.sourceRouteStripped());
-                    acceptedRecipients.add(recipient);
-                } catch (SMTPException e) {
-                    RemoteMtaErrorResponseException sendException =
-                            new RemoteMtaErrorResponseException(e, remoteMta);
-                    recipientRejections.add(new RecipientRejection(recipient,
-                            sendException));
-                    String logId = logIdFactory.next();
-                    sendException.initLogId(logId);
-                    logger.debug("Recipient " + recipient
-                            + " was rejected/failed. Log-ID=" + logId
-                            + ". Continuing with the next recipient if one "
-                            + "exists. " + e.getResponse());
-                }
-            }
-            if (acceptedRecipients.isEmpty()) {
-                logger.debug("All recipients were rejected");
-                throw new RecipientsWereRejectedException(recipientRejections);
-            }
-            client.dataStart();
-            writeMailConent(mail, client);
-            client.dataEnd();
-            if (!recipientRejections.isEmpty())
-                throw new RecipientsWereRejectedException(recipientRejections);
-            else
-                return;
+            transmitOnConnection(mail, client);
         } catch (SMTPException e) {
             throw new RemoteMtaErrorResponseException(e, remoteMta);
         } catch (UnknownHostException e) {
             // impossible
             throw new RuntimeException(e);
         } catch (IOException e) {
-            throw new SendException("Connection failed: " + e.toString(), e,
-                    new EnhancedStatus(450, "4.4.0",
-                            "No answer from host or bad connection"));
+            throw connectionFailedException(e);
         } finally {
             if (client != null) {
                 client.quit();
@@ -101,6 +70,130 @@ public class MailToHostTransmitter {
         }
     }
 
+    /**
+     * Delivers the mail to the SMTP server running on one of the specified
+     * hosts, which are typically the IPv6 and IPv4 addresses of a single MX
+     * host. The connection attempts are made by the {@link #connector}, the
+     * mail is transmitted to the first host which answers.
+     * 
+     * @param clients
+     *            unconnected, but otherwise fully initialized
+     *            {@link SmtpClient} instances, one for each address.
+     * @throws PostponeException
+     *             if it has not even tried connecting to any of the hosts,
+     *             because it is likely that all of them are busy at this
+     *             moment.
+     * @throws IllegalArgumentException
+     *             if the list of clients is empty.
+     */
+    public void transmit(Mail mail, List<SmtpClient> clients)
+            throws SendException, RecipientsWereRejectedException,
+            PostponeException {
+        if (clients.isEmpty())
+            throw new IllegalArgumentException("No hosts to transmit to");
+        if (clients.size() == 1) {
+            transmit(mail, clients.get(0));
+            return;
+        }
+
+        List<SmtpClient> reservedClients = reserveConnections(clients);
+        SmtpClient client = null;
+        try {
+            client = connector.connect(reservedClients);
+        } catch (ConnectionFailedException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SMTPException)
+                throw new RemoteMtaErrorResponseException(
+                        (SMTPException) cause, e.remoteMta);
+            throw connectionFailedException((IOException) cause);
+        } finally {
+            for (SmtpClient reservedClient : reservedClients) {
+                if (reservedClient != client)
+                    outgoingConnectionRegistry
+                            .releaseConnection(reservedClient.getMtaAddress().address);
+            }
+        }
+
+        MtaAddress remoteMta = client.getMtaAddress();
+        try {
+            transmitOnConnection(mail, client);
+        } catch (SMTPException e) {
+            throw new RemoteMtaErrorResponseException(e, remoteMta);
+        } catch (IOException e) {
+            throw connectionFailedException(e);
+        } finally {
+            client.quit();
+            outgoingConnectionRegistry.releaseConnection(remoteMta.address);
+        }
+    }
+
+    /**
+     * Registers a connection to each host which is not busy.
+     * 
+     * @return the clients whose connection was registered
+     * @throws PostponeException
+     *             if all hosts are busy
+     */
+    private List<SmtpClient> reserveConnections(List<SmtpClient> clients)
+            throws PostponeException {
+        List<SmtpClient> result = new ArrayList<SmtpClient>(clients.size());
+        PostponeException lastPostponeException = null;
+        for (SmtpClient client : clients) {
+            try {
+                outgoingConnectionRegistry
+                        .openConnection(client.getMtaAddress().address);
+                result.add(client);
+            } catch (PostponeException e) {
+                e.setRemoteMta(client.getMtaAddress());
+                lastPostponeException = e;
+            }
+        }
+        if (result.isEmpty())
+            throw lastPostponeException;
+        return result;
+    }
+
+    private void transmitOnConnection(Mail mail, SmtpClient client)
+            throws SMTPException, IOException, RecipientsWereRejectedException {
+        MtaAddress remoteMta = client.getMtaAddress();
+        client.from(mail.from.getSmtpText());
+        List<RecipientRejection> recipientRejections =
+                new ArrayList<RecipientRejection>();
+        List<Recipient> acceptedRecipients = new ArrayList<Recipient>();
+        for (Recipient recipient : mail.recipients) {
+            try {
+                client.to(recipient.sourceRouteStripped());
+                acceptedRecipients.add(recipient);
+            } catch (SMTPException e) {
+                RemoteMtaErrorResponseException sendException =
+                        new RemoteMtaErrorResponseException(e, remoteMta);
+                recipientRejections.add(new RecipientRejection(recipient,
+                        sendException));
+                String logId = logIdFactory.next();
+                sendException.initLogId(logId);
+                logger.debug("Recipient " + recipient
+                        + " was rejected/failed. Log-ID=" + logId
+                        + ". Continuing with the next recipient if one "
+                        + "exists. " + e.getResponse());
+            }
+        }
+        if (acceptedRecipients.isEmpty()) {
+            logger.debug("All recipients were rejected");
+            throw new RecipientsWereRejectedException(recipientRejections);
+        }
+        client.dataStart();
+        writeMailConent(mail, client);
+        client.dataEnd();
+        if (!recipientRejections.isEmpty())
+            throw new RecipientsWereRejectedException(recipientRejections);
+    }
+
+    private SendException connectionFailedException(IOException e) {
+        return new SendException("Connection failed: " + e.toString(), e,
+                new EnhancedStatus(450, "4.4.0",
+                        "No answer from host or bad connection"));
+    }
+
     private void writeMailConent(Mail mail, SmartClient smartClient)
             throws IOException {
         SmartClientOutputStreamAdapter out =
@@ -129,4 +222,18 @@ public class MailToHostTransmitter {
     public void setLogIdFactory(LogIdFactory logIdFactory) {
         this.logIdFactory = logIdFactory;
     }
+
+    /**
+     * @x.category GETSET
+     */
+    public HappyEyeballsConnector getConnector() {
+        return connector;
+    }
+
+    /**
+     * @x.category GETSET
+     */
+    public void setConnector(HappyEyeballsConnector connector) {
+        this.connector = connector;
+    }
 }
@@ -8,12 +8,14 @@ import java.util.Random;
 import javax.annotation.concurrent.GuardedBy;
 
 import mireka.smtp.EnhancedStatus;
+import mireka.startup.ReusedOnReload;
 import mireka.transmission.immediate.PostponeException;
 
 /**
  * OutgoingConnectionsRegistry can tell if too many connections are open to a
  * specific host at the moment.
  */
+@ReusedOnReload
 public class OutgoingConnectionsRegistry {
     /**
      * 0 means no limit
@@ -10,6 +10,8 @@ import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.NavigableSet;
 import java.util.Properties;
@@ -19,6 +21,7 @@ import javax.annotation.concurrent.GuardedBy;
 
 import mireka.maildata.Maildata;
 import mireka.smtp.EnhancedStatus;
+import mireka.startup.ReusedOnReload;
 import mireka.transmission.Mail;
 import mireka.transmission.queue.dataprop.DataProperties;
 import mireka.util.StreamCopier;
@@ -38,6 +41,7 @@ import org.slf4j.LoggerFactory;
  * scheduled date with an additional serial number if it is necessary, so it
  * become a unique.
  */
+@ReusedOnReload
 public class FileDirStore {
     private final Logger logger = LoggerFactory.getLogger(FileDirStore.class);
     private File dir;
@@ -124,12 +128,28 @@ public class FileDirStore {
     }
 
     public MailName save(Mail srcMail) throws QueueStorageException {
+        return save(srcMail, null);
+    }
+
+    /**
+     * Saves the mail, but instead of writing its content again, it creates a
+     * hard link to the content file of a mail which is already in the store
+     * and has the same content, if the file system supports it.
+     * 
+     * @param contentSource
+     *            the name of a stored mail which has exactly the same mail
+     *            data, or null if the content must be written
+     */
+    public MailName save(Mail srcMail, MailName contentSource)
+            throws QueueStorageException {
         MailName mailName = allocateMailName(srcMail);
         File contentFile = contentFileForName(mailName);
         File envelopeFile = envelopeFileForName(mailName);
         try {
-            writeMessageContentIntoFile(srcMail.maildata,
-                    contentFileForName(mailName));
+            if (contentSource == null
+                    || !linkMessageContentFile(contentFileForName(contentSource),
+                            contentFile))
+                writeMessageContentIntoFile(srcMail.maildata, contentFile);
         } catch (IOException e) {
             if (contentFile.exists() && !contentFile.delete()) {
                 logger.error("Writing to the message content file failed, the "
@@ -212,6 +232,24 @@ public class FileDirStore {
         return new File(dir, mailName.envelopeFileName());
     }
 
+    /**
+     * @return false if the file system does not support hard links
+     */
+    private boolean linkMessageContentFile(File sourceFile, File targetFile)
+            throws IOException {
+        try {
+            Files.createLink(targetFile.toPath(), sourceFile.toPath());
+            return true;
+        } catch (UnsupportedOperationException e) {
+            logger.debug("Hard links are not supported, writing "
+                    + targetFile, e);
+            return false;
+        } catch (FileSystemException e) {
+            logger.debug("Cannot create hard link, writing " + targetFile, e);
+            return false;
+        }
+    }
+
     private void writeMessageContentIntoFile(Maildata maildata,
             File messageContentFile) throws IOException {
         FileOutputStream out = new FileOutputStream(messageContentFile);
@@ -1,11 +1,15 @@
 package mireka.transmission.queue;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 
+import mireka.startup.ReappliedOnReload;
+import mireka.startup.ReusedOnReload;
 import mireka.transmission.Mail;
 
 import org.slf4j.LoggerFactory;
@@ -15,11 +19,12 @@ import org.slf4j.LoggerFactory;
  * processors according to the schedule. The schedule is defined by the time
  * point in {@link Mail#scheduleDate} in each mail.
  */
+@ReusedOnReload
 public class ScheduleFileDirQueue {
     private final org.slf4j.Logger logger = LoggerFactory
             .getLogger(ScheduleFileDirQueue.class);
     private FileDirStore store;
-    private MailProcessorFactory mailProcessorFactory;
+    private volatile MailProcessorFactory mailProcessorFactory;
     private ScheduledThreadPoolExecutor executor;
 
     /**
@@ -86,6 +91,39 @@ public class ScheduleFileDirQueue {
                 srcMail);
     }
 
+    /**
+     * Stores copies of the mails in the queue and schedules them. Mails which
+     * have the same mail data object as the first mail share its content file
+     * in the store, if the file system supports hard links. The mails are
+     * scheduled only after all of them are stored, so the shared content file
+     * is not deleted in the meantime.
+     * 
+     * @throws QueueStorageException
+     *             if a mail cannot be stored, the mails which were stored
+     *             before it are still scheduled
+     */
+    public void addAll(List<Mail> srcMails) throws QueueStorageException {
+        List<MailName> mailNames = new ArrayList<>(srcMails.size());
+        try {
+            Mail first = null;
+            for (Mail srcMail : srcMails) {
+                if (srcMail.scheduleDate == null)
+                    srcMail.scheduleDate = new Date();
+                MailName contentSource = null;
+                if (first == null)
+                    first = srcMail;
+                else if (srcMail.maildata == first.maildata)
+                    contentSource = mailNames.get(0);
+                mailNames.add(store.save(srcMail, contentSource));
+            }
+        } finally {
+            for (MailName mailName : mailNames)
+                scheduleMailName(mailName);
+            logger.debug("{} mails were scheduled for processing",
+                    mailNames.size());
+        }
+    }
+
     /**
      * Initiates an orderly shutdown, no new mails will be accepted and
      * processing of mails which are not yet started will not be started
@@ -108,6 +146,7 @@ public class ScheduleFileDirQueue {
     /**
      * @x.category GETSET
      */
+    @ReappliedOnReload
     public void setMailProcessorFactory(
             MailProcessorFactory mailProcessorFactory) {
         this.mailProcessorFactory = mailProcessorFactory;
@@ -7,6 +7,7 @@ import javax.annotation.PostConstruct;
 import javax.management.JMException;
 import javax.management.ObjectName;
 
+import mireka.startup.ReusedOnReload;
 import mireka.transmission.queuing.QueuingTransmitter;
 
 import com.yammer.metrics.Metrics;
@@ -17,6 +18,7 @@ import com.yammer.metrics.core.MetricName;
  * TransmitterSummary holds and publishes statistics data about the mail
  * transactions of a {@link QueuingTransmitter}.
  */
+@ReusedOnReload
 public class TransmitterSummary implements TransmitterSummaryMBean {
     private String name;
     private Meter mailTransactions;
@@ -3,6 +3,7 @@ package mireka.transmission.queuing;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import mireka.smtp.EnhancedStatus;
@@ -42,24 +43,51 @@ public class QueuingTransmitter implements Transmitter, MailProcessorFactory {
     }
 
     private void queueByRemotePart(Mail mail) throws QueueStorageException {
+        List<Mail> mails = splitByRemotePart(mail);
+        // the mails share the mail data, so they share the content file too
+        queue.addAll(mails);
+        logger.debug("Mail addressed to {} domains was added to queue: {}",
+                mails.size(), mail);
+    }
+
+    /**
+     * Queues the mails, those which have the same mail data share a single
+     * content file in the queue.
+     */
+    @Override
+    public void transmit(List<Mail> mails) throws QueueStorageException {
+        List<Mail> queuedMails = new ArrayList<Mail>(mails.size());
+        for (Mail mail : mails) {
+            if (immediateSender.singleDomainOnly())
+                queuedMails.addAll(splitByRemotePart(mail));
+            else
+                queuedMails.add(mail);
+        }
+        queue.addAll(queuedMails);
+        logger.debug("{} mails were added to queue", queuedMails.size());
+    }
+
+    private List<Mail> splitByRemotePart(Mail mail)
+            throws QueueStorageException {
         List<List<Recipient>> recipientsByDomain =
                 groupRecipientsByDomain(mail.recipients);
         if (recipientsByDomain.isEmpty())
             throw new IllegalArgumentException("No recipients");
+        List<Mail> result = new ArrayList<Mail>(recipientsByDomain.size());
         for (List<Recipient> recipients : recipientsByDomain) {
             Mail mailToSingleDomain = mail.copy();
             mailToSingleDomain.recipients.clear();
             mailToSingleDomain.recipients.addAll(recipients);
-            queue.add(mailToSingleDomain);
+            result.add(mailToSingleDomain);
         }
-        logger.debug("Mail addressed to {} domains was added to queue: {}",
-                recipientsByDomain.size(), mail);
+        return result;
     }
 
     private List<List<Recipient>> groupRecipientsByDomain(
             List<Recipient> recipients) throws QueueStorageException {
-        Map<RemotePart, List<Recipient>> map =
-                new LinkedHashMap<RemotePart, List<Recipient>>();
+        // domain names are case insensitive
+        Map<String, List<Recipient>> map =
+                new LinkedHashMap<String, List<Recipient>>();
         for (Recipient recipient : recipients) {
             if (recipient.isGlobalPostmaster())
                 throw new QueueStorageException("System is incorrectly " +
@@ -70,10 +98,11 @@ public class QueuingTransmitter implements Transmitter, MailProcessorFactory {
             RemotePart remotePart =
                     ((RemotePartContainingRecipient) recipient).getMailbox()
                             .getRemotePart();
-            List<Recipient> remotePartRecipientList = map.get(remotePart);
+            String key = remotePart.smtpText().toLowerCase(Locale.US);
+            List<Recipient> remotePartRecipientList = map.get(key);
             if (remotePartRecipientList == null) {
                 remotePartRecipientList = new ArrayList<Recipient>();
-                map.put(remotePart, remotePartRecipientList);
+                map.put(key, remotePartRecipientList);
             }
             remotePartRecipientList.add(recipient);
         }
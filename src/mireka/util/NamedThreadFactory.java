@@ -0,0 +1,39 @@
+package mireka.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * NamedThreadFactory creates threads which are named after the component
+ * which runs them, so they can be recognized in thread dumps. The name of a
+ * thread consists of the prefix and the sequence number of the thread, for
+ * example "LocalDelivery-3".
+ */
+@ThreadSafe
+public class NamedThreadFactory implements ThreadFactory {
+    private final String namePrefix;
+    private final boolean daemon;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    /**
+     * @param namePrefix
+     *            the beginning of the thread names
+     * @param daemon
+     *            true if the threads must not prevent the JVM from exiting
+     */
+    public NamedThreadFactory(String namePrefix, boolean daemon) {
+        this.namePrefix = namePrefix;
+        this.daemon = daemon;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread =
+                new Thread(r, namePrefix + "-"
+                        + threadNumber.incrementAndGet());
+        thread.setDaemon(daemon);
+        return thread;
+    }
+}
@@ -6,7 +6,10 @@ import org.junit.runner.RunWith;
 
 @RunWith(ClasspathSuite.class)
 @ClassnameFilters({ "!mireka.transmission.queue.DirectoryListSpeedTest",
-        "!mireka.transmission.dsn.DnsMailCreatorLargeOriginalTest" })
+        "!mireka.transmission.dsn.DnsMailCreatorLargeOriginalTest",
+        "!mireka.pop.command.RetrSpeedTest",
+        "!mireka.filter.local.table.RegexRuleSpeedTest",
+        "!mireka.forward.SrsSpeedTest" })
 public class QuickTests {
     // only annotations are relevant
 }
@@ -0,0 +1,193 @@
+package mireka.destination;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import mireka.ByteArrayMaildataFile;
+import mireka.filter.FilterSession;
+import mireka.filter.MailTransaction;
+import mireka.filter.RecipientContext;
+import mireka.maildata.Maildata;
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.RejectExceptionExt;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.transmission.Mail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DestinationProcessorFilterTest {
+    private static final long DELAY = 300;
+    private final Set<String> calledDestinations = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private DestinationProcessorFilter filter;
+    private MailTransaction transaction;
+    private FilterSession session;
+
+    @Before
+    public void initialize() {
+        filter = new DestinationProcessorFilter();
+        transaction = new MailTransaction(null);
+        transaction.data =
+                new Maildata(new ByteArrayMaildataFile("Subject: hello\r\n"
+                        + "\r\n" + "Hello World!\r\n"));
+        session = filter.createSession();
+        session.setMailTransaction(transaction);
+    }
+
+    @After
+    public void shutdown() {
+        session.close();
+        transaction.data.close();
+        filter.shutdown();
+    }
+
+    @Test
+    public void testIndependentDestinationsRunConcurrently() throws Exception {
+        addRecipient("jane@example.com", new SlowDestination("jane", false));
+        addRecipient("john@example.com", new SlowDestination("john", false));
+        addRecipient("joe@example.com", new SlowDestination("joe", false));
+
+        long start = System.currentTimeMillis();
+        session.data();
+        long duration = System.currentTimeMillis() - start;
+
+        assertEquals(3, calledDestinations.size());
+        assertTrue("Destinations were processed sequentially",
+                duration < 3 * DELAY - 50);
+    }
+
+    @Test
+    public void testFailureIsReportedAfterAllCompleted() throws Exception {
+        addRecipient("jane@example.com", new SlowDestination("jane", false));
+        addRecipient("john@example.com", new SlowDestination("john", true));
+        addRecipient("joe@example.com", new SlowDestination("joe", false));
+
+        try {
+            session.data();
+            fail("Exception expected");
+        } catch (RejectExceptionExt e) {
+            // expected
+        }
+        assertEquals(3, calledDestinations.size());
+    }
+
+    @Test
+    public void testInlineFailureDoesNotSkipOtherDestinations()
+            throws Exception {
+        addRecipient("jane@example.com", new InlineDestination("jane", true));
+        addRecipient("john@example.com", new SlowDestination("john", false));
+        addRecipient("joe@example.com", new InlineDestination("joe", false));
+
+        try {
+            session.data();
+            fail("Exception expected");
+        } catch (RejectExceptionExt e) {
+            // expected
+        }
+        assertEquals(3, calledDestinations.size());
+    }
+
+    @Test
+    public void testConcurrentDestinationsReceiveOwnMaildata()
+            throws Exception {
+        final Set<Maildata> maildatas = Collections
+                .newSetFromMap(new ConcurrentHashMap<Maildata, Boolean>());
+        for (final String name : new String[] { "jane", "john", "joe" }) {
+            addRecipient(name + "@example.com", new SlowDestination(name,
+                    false) {
+                @Override
+                public void data(Mail mail) throws RejectExceptionExt {
+                    mail.maildata.setSubject(name);
+                    maildatas.add(mail.maildata);
+                    super.data(mail);
+                }
+            });
+        }
+
+        session.data();
+
+        assertEquals(3, maildatas.size());
+        assertFalse(maildatas.contains(transaction.data));
+        assertEquals("hello", transaction.data.getSubject());
+    }
+
+    @Test
+    public void testSequentialIfThreadsAreDisabled() throws Exception {
+        filter.setThreads(0);
+        addRecipient("jane@example.com", new SlowDestination("jane", false));
+        addRecipient("john@example.com", new SlowDestination("john", false));
+
+        long start = System.currentTimeMillis();
+        session.data();
+        long duration = System.currentTimeMillis() - start;
+
+        assertEquals(2, calledDestinations.size());
+        assertTrue(duration >= 2 * DELAY);
+    }
+
+    private void addRecipient(String recipient, MailDestination destination)
+            throws Exception {
+        RecipientContext recipientContext =
+                new RecipientContext(transaction,
+                        new MailAddressFactory().createRecipient(recipient));
+        recipientContext.setDestination(destination);
+        session.recipient(recipientContext);
+    }
+
+    private class InlineDestination implements MailDestination {
+        private final String name;
+        private final boolean failing;
+
+        InlineDestination(String name, boolean failing) {
+            this.name = name;
+            this.failing = failing;
+        }
+
+        @Override
+        public void data(Mail mail) throws RejectExceptionExt {
+            calledDestinations.add(name);
+            if (failing)
+                throw new RejectExceptionExt(
+                        EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+
+        @Override
+        public String toString() {
+            return "InlineDestination [name=" + name + "]";
+        }
+    }
+
+    private class SlowDestination implements MailDestination,
+            IndependentDestination {
+        private final String name;
+        private final boolean failing;
+
+        SlowDestination(String name, boolean failing) {
+            this.name = name;
+            this.failing = failing;
+        }
+
+        @Override
+        public void data(Mail mail) throws RejectExceptionExt {
+            try {
+                Thread.sleep(DELAY);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            calledDestinations.add(name);
+            if (failing)
+                throw new RejectExceptionExt(
+                        EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING);
+        }
+
+        @Override
+        public String toString() {
+            return "SlowDestination [name=" + name + "]";
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package mireka.dmarc;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mireka.maildata.DotAtomDomainPart;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.junit.Test;
+
+public class PolicyCacheTest {
+    private final DotAtomDomainPart domain = new DotAtomDomainPart(
+            "example.com");
+
+    @Mocked
+    private PolicyDiscovery policyDiscovery;
+
+    @Test
+    public void testRecordIsCached() throws RecoverableDmarcException {
+        final PolicyRecord record = new PolicyRecord();
+        record.request = PolicyRecord.Request.reject;
+        new Expectations() {
+            {
+                policyDiscovery.discoverPolicy((DotAtomDomainPart) any);
+                result = record;
+                times = 1;
+            }
+        };
+
+        PolicyCache cache = new PolicyCache();
+        assertSame(record, cache.getPolicy(domain));
+        assertSame(record,
+                cache.getPolicy(new DotAtomDomainPart("Example.COM")));
+    }
+
+    @Test
+    public void testMissingRecordIsCached() throws RecoverableDmarcException {
+        new Expectations() {
+            {
+                policyDiscovery.discoverPolicy((DotAtomDomainPart) any);
+                result = null;
+                times = 1;
+            }
+        };
+
+        PolicyCache cache = new PolicyCache();
+        assertNull(cache.getPolicy(domain));
+        assertNull(cache.getPolicy(domain));
+    }
+
+    @Test
+    public void testTemporaryFailureIsNotCached()
+            throws RecoverableDmarcException {
+        new Expectations() {
+            {
+                policyDiscovery.discoverPolicy((DotAtomDomainPart) any);
+                result = new RecoverableDmarcException("Example failure");
+                result = null;
+            }
+        };
+
+        PolicyCache cache = new PolicyCache();
+        try {
+            cache.getPolicy(domain);
+            fail("An exception must have been thrown");
+        } catch (RecoverableDmarcException e) {
+            // expected
+        }
+        assertNull(cache.getPolicy(domain));
+    }
+
+    @Test
+    public void testPopularEntryIsRefreshedInBackground() throws Exception {
+        final CountDownLatch refreshed = new CountDownLatch(1);
+        new Expectations() {
+            {
+                policyDiscovery.discoverPolicy((DotAtomDomainPart) any);
+                result = null;
+                result = new Delegate<PolicyRecord>() {
+                    @SuppressWarnings("unused")
+                    PolicyRecord discoverPolicy(DotAtomDomainPart domainPart) {
+                        refreshed.countDown();
+                        return null;
+                    }
+                };
+            }
+        };
+
+        PolicyCache cache = new PolicyCache();
+        cache.setRefreshAhead(cache.getTimeToLive());
+        cache.setPopularityThreshold(2);
+
+        cache.getPolicy(domain);
+        cache.getPolicy(domain);
+        cache.getPolicy(domain);
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS));
+        cache.stop();
+    }
+
+    @Test
+    public void testFailedRefreshIsRetried() throws Exception {
+        final CountDownLatch retried = new CountDownLatch(1);
+        new Expectations() {
+            {
+                policyDiscovery.discoverPolicy((DotAtomDomainPart) any);
+                result = null;
+                result = new RecoverableDmarcException("Example failure");
+                result = new Delegate<PolicyRecord>() {
+                    @SuppressWarnings("unused")
+                    PolicyRecord discoverPolicy(DotAtomDomainPart domainPart) {
+                        retried.countDown();
+                        return null;
+                    }
+                };
+            }
+        };
+
+        PolicyCache cache = new PolicyCache();
+        cache.setRefreshAhead(cache.getTimeToLive());
+        cache.setPopularityThreshold(1);
+
+        cache.getPolicy(domain);
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            cache.getPolicy(domain);
+        } while (!retried.await(10, TimeUnit.MILLISECONDS)
+                && System.currentTimeMillis() < deadline);
+        assertEquals(0, retried.getCount());
+        cache.stop();
+    }
+}
@@ -0,0 +1,148 @@
+package mireka.filter;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.RejectExceptionExt;
+
+import org.junit.Test;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+
+public class FilterPipelineTest {
+    private final List<String> calls = new ArrayList<String>();
+    private final MailTransaction transaction = new MailTransaction(null);
+
+    @Test
+    public void testStatelessFiltersAreCalledInOrder()
+            throws RejectExceptionExt {
+        FilterPipeline pipeline =
+                new FilterPipeline(Arrays.<Filter> asList(new FromFilter(
+                        "a"), new RecipientFilter(), new FromFilter("b")));
+
+        FilterPipeline.Transaction pipelineTransaction =
+                pipeline.newTransaction(transaction);
+        pipelineTransaction.begin();
+        pipelineTransaction.from();
+        pipelineTransaction.close();
+
+        assertEquals(Arrays.asList("a.from", "b.from"), calls);
+    }
+
+    @Test
+    public void testAcceptStopsVerification() throws RejectExceptionExt {
+        FilterPipeline pipeline =
+                new FilterPipeline(Arrays.<Filter> asList(
+                        new RecipientFilter(), new RecipientFilter()));
+
+        RecipientVerificationResult result =
+                pipeline.newTransaction(transaction).verifyRecipient(null);
+
+        assertEquals(RecipientVerificationResult.ACCEPT, result);
+        assertEquals(Arrays.asList("verifyRecipient"), calls);
+    }
+
+    @Test
+    public void testStatefulSessionContinuesWithNextStage()
+            throws RejectExceptionExt {
+        FilterPipeline pipeline =
+                new FilterPipeline(Arrays.<Filter> asList(new FromFilter(
+                        "a"), new StatefulFilter(), new FromFilter("b")));
+
+        pipeline.newTransaction(transaction).from();
+
+        assertEquals(
+                Arrays.asList("a.from", "session.before", "b.from",
+                        "session.after"), calls);
+    }
+
+    @Test
+    public void testEmptyPipeline() throws RejectExceptionExt {
+        FilterPipeline.Transaction pipelineTransaction =
+                new FilterPipeline(new ArrayList<Filter>())
+                        .newTransaction(transaction);
+
+        pipelineTransaction.from();
+        assertEquals(RecipientVerificationResult.NEUTRAL,
+                pipelineTransaction.verifyRecipient(null));
+    }
+
+    @Test
+    public void testMetricsAreAttributedToTheRejectingFilter() {
+        FilterPipeline pipeline =
+                new FilterPipeline(Arrays.<Filter> asList(
+                        new StatefulFilter(), new RejectingFilter()), "test");
+
+        try {
+            pipeline.newTransaction(transaction).from();
+            fail("An exception must have been thrown");
+        } catch (RejectExceptionExt e) {
+            // expected
+        }
+
+        assertEquals(1, ((Timer) metric("StatefulFilter.from.latency"))
+                .count());
+        assertEquals(0, ((Meter) metric("StatefulFilter.from.rejections"))
+                .count());
+        assertEquals(1, ((Meter) metric("RejectingFilter.from.rejections"))
+                .count());
+    }
+
+    private Metric metric(String name) {
+        return Metrics.defaultRegistry().allMetrics()
+                .get(new MetricName("mireka", "FilterChain", name, "test"));
+    }
+
+    private class RejectingFilter extends StatelessFilter {
+        @Override
+        protected void from(MailTransaction transaction)
+                throws RejectExceptionExt {
+            throw new RejectExceptionExt(
+                    EnhancedStatus.BAD_DESTINATION_SYSTEM_ADDRESS);
+        }
+    }
+
+    private class FromFilter extends StatelessFilter {
+        private final String name;
+
+        FromFilter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        protected void from(MailTransaction transaction) {
+            calls.add(name + ".from");
+        }
+    }
+
+    private class RecipientFilter extends StatelessFilter {
+        @Override
+        protected RecipientVerificationResult verifyRecipient(
+                MailTransaction transaction, RecipientContext recipientContext) {
+            calls.add("verifyRecipient");
+            return RecipientVerificationResult.ACCEPT;
+        }
+    }
+
+    private class StatefulFilter implements Filter {
+        @Override
+        public FilterSession createSession() {
+            return new FilterSession() {
+                @Override
+                public void from() throws RejectExceptionExt {
+                    calls.add("session.before");
+                    super.from();
+                    calls.add("session.after");
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package mireka.filter.local.table;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class LocalPartPatternSetTest {
+    private static final String[] REGEXES = { "sales-.*", "jane\\+.*",
+            "(?i)x.*", "info|contact", "no-?reply", "[a-z]+\\.admin",
+            "abuse", "ab+use", "list-(announce|devel)-request", ".*",
+            "x{2,3}mas", "bounce-[0-9]+-.*", "\\w+\\.\\w+" };
+    private static final String[] LOCAL_PARTS = { "sales-europe", "SALES-x",
+            "jane+news", "Jane", "xylophone", "contact", "noreply",
+            "no-reply", "web.admin", "abuse", "abbbuse", "ABUSE",
+            "list-devel-request", "xxmas", "xxxmas", "bounce-12-john",
+            "john.doe", "kKelvin", "", "s" };
+
+    @Test
+    public void testRequiredLiteral() {
+        assertEquals("sales-", literal("sales-.*"));
+        assertEquals("jane+", literal("jane\\+.*"));
+        assertNull(literal("(?i)x.*"));
+        assertNull(literal("info|contact"));
+        assertEquals("reply", literal("no-?reply"));
+        assertEquals(".admin", literal("[a-z]+\\.admin"));
+        assertEquals("use", literal("ab+use"));
+        assertEquals("-request", literal("list-(announce|devel)-request"));
+        assertNull(literal(".*"));
+        assertEquals("mas", literal("x{2,3}mas"));
+        assertEquals("bounce-", literal("bounce-[0-9]+-.*"));
+        assertEquals("abc", literal("ABC"));
+        assertEquals("admin", literal("\\d+admin"));
+    }
+
+    @Test
+    public void testMultiCharacterEscapeIsNotLiteral() {
+        assertNull(literal("\\x2Bx"));
+        assertNull(literal("\\u0041bc"));
+        assertNull(literal("\\0101bc"));
+        assertNull(literal("\\cAbc"));
+        assertNull(literal("(?<n>a)\\k<n>bc"));
+        assertNull(literal("(a)\\1bc"));
+        assertNull(literal("\\p{Lu}bc"));
+
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        patterns.add(Pattern.compile("\\x2Bx", Pattern.CASE_INSENSITIVE));
+        patterns.add(Pattern.compile("\\u0041bc", Pattern.CASE_INSENSITIVE));
+        patterns.add(Pattern.compile("\\0101bc", Pattern.CASE_INSENSITIVE));
+        LocalPartPatternSet set = new LocalPartPatternSet(patterns);
+        assertTrue(set.candidates("+x").get(0));
+        assertTrue(set.candidates("Abc").get(1));
+        assertTrue(set.candidates("Abc").get(2));
+    }
+
+    @Test
+    public void testEveryMatchingPatternIsCandidate() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        for (String regex : REGEXES)
+            patterns.add(Pattern.compile(regex, Pattern.CASE_INSENSITIVE
+                    | Pattern.UNICODE_CASE));
+        LocalPartPatternSet set = new LocalPartPatternSet(patterns);
+        for (String localPart : LOCAL_PARTS) {
+            BitSet candidates = set.candidates(localPart);
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(localPart).matches())
+                    assertTrue(REGEXES[i] + " " + localPart,
+                            candidates.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCandidatesAreFiltered() {
+        List<Pattern> patterns = new ArrayList<Pattern>();
+        patterns.add(Pattern.compile("sales-.*", Pattern.CASE_INSENSITIVE));
+        patterns.add(Pattern.compile("support-.*", Pattern.CASE_INSENSITIVE));
+        patterns.add(Pattern.compile(".*-owner", Pattern.CASE_INSENSITIVE));
+        LocalPartPatternSet set = new LocalPartPatternSet(patterns);
+        BitSet candidates = set.candidates("Support-list-owner");
+        assertFalse(candidates.get(0));
+        assertTrue(candidates.get(1));
+        assertTrue(candidates.get(2));
+        assertTrue(set.candidates("").isEmpty());
+    }
+
+    private String literal(String regex) {
+        return LocalPartPatternSet.requiredLiteral(Pattern.compile(regex));
+    }
+}
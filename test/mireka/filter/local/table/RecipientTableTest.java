@@ -0,0 +1,134 @@
+package mireka.filter.local.table;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import mireka.destination.AliasDestination;
+import mireka.destination.Destination;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Recipient;
+
+import org.junit.Test;
+
+public class RecipientTableTest {
+    private final AliasDestination regexDestination = new AliasDestination();
+    private final AliasDestination janeDestination = new AliasDestination();
+    private final AliasDestination postmasterDestination =
+            new AliasDestination();
+    private final AliasDestination anyDomainDestination =
+            new AliasDestination();
+
+    @Test
+    public void testExactMatch() throws Exception {
+        RecipientTable table = new RecipientTable();
+        table.addMapper(pair("jane@example.com", janeDestination));
+        assertSame(janeDestination, table.lookup(recipient("JANE@example.com")));
+        assertNull(table.lookup(recipient("jane@example.net")));
+        assertNull(table.lookup(recipient("john@example.com")));
+    }
+
+    @Test
+    public void testRegexPrecedingExactMatchWins() throws Exception {
+        RecipientTable table = new RecipientTable();
+        table.addMapper(regexPair("j.*", "example.com"));
+        table.addMapper(pair("jane@example.com", janeDestination));
+        assertSame(regexDestination, table.lookup(recipient("jane@example.com")));
+        assertNull(table.lookup(recipient("jane@example.net")));
+    }
+
+    @Test
+    public void testExactMatchPrecedingRegexWins() throws Exception {
+        RecipientTable table = new RecipientTable();
+        table.addMapper(pair("jane@example.com", janeDestination));
+        table.addMapper(regexPair("j.*", "example.com"));
+        assertSame(janeDestination, table.lookup(recipient("jane@example.com")));
+        assertSame(regexDestination, table.lookup(recipient("john@example.com")));
+    }
+
+    @Test
+    public void testPostmasters() throws Exception {
+        RecipientTable table = new RecipientTable();
+        AnyDomainRecipient anyDomainPostmaster = new AnyDomainRecipient();
+        anyDomainPostmaster
+                .setLocalPart(new CaseInsensitiveLocalPartSpecification(
+                        "postmaster"));
+        table.addMapper(pair(anyDomainPostmaster, anyDomainDestination));
+        PostmasterAliasMapper postmasterAliasMapper =
+                new PostmasterAliasMapper();
+        postmasterAliasMapper.setCanonical("jane@example.com");
+        table.addMapper(postmasterAliasMapper);
+        assertSame(anyDomainDestination, table.lookup(recipient("Postmaster")));
+        assertSame(anyDomainDestination,
+                table.lookup(recipient("postmaster@example.com")));
+
+        table.setMappers(Arrays.<RecipientDestinationMapper> asList(
+                pair("Postmaster@example.com", postmasterDestination),
+                postmasterAliasMapper));
+        assertSame(postmasterDestination,
+                table.lookup(recipient("POSTMASTER@example.com")));
+        Destination destination = table.lookup(recipient("Postmaster"));
+        assertTrue(destination instanceof AliasDestination);
+        assertNotSame(postmasterDestination, destination);
+    }
+
+    @Test
+    public void testMapperWhichIsNotIndexable() throws Exception {
+        RecipientTable table = new RecipientTable();
+        table.addMapper(new RecipientDestinationMapper() {
+            @Override
+            public Destination lookup(Recipient recipient) {
+                return recipient.localPart().displayableName()
+                        .startsWith("j") ? regexDestination : null;
+            }
+        });
+        table.addMapper(pair("jane@example.com", janeDestination));
+        table.addMapper(pair("nancy@example.com", janeDestination));
+        assertSame(regexDestination, table.lookup(recipient("jane@example.com")));
+        assertSame(janeDestination, table.lookup(recipient("nancy@example.com")));
+    }
+
+    @Test
+    public void testInlineRecipientRegistry() throws Exception {
+        InlineRecipientRegistry registry = new InlineRecipientRegistry();
+        registry.setAddresses(Arrays.asList("jane@example.com",
+                "Postmaster@example.com", "Postmaster"));
+        assertTrue(registry.isSatisfiedBy(recipient("Jane@Example.com")));
+        assertTrue(registry.isSatisfiedBy(recipient("postmaster@example.com")));
+        assertTrue(registry.isSatisfiedBy(recipient("postmaster")));
+        assertFalse(registry.isSatisfiedBy(recipient("postmaster@example.net")));
+        assertFalse(registry.isSatisfiedBy(recipient("john@example.com")));
+        registry.addAddress("john@example.com");
+        assertTrue(registry.isSatisfiedBy(recipient("john@example.com")));
+    }
+
+    private RecipientDestinationPair pair(String recipient,
+            Destination destination) {
+        RecipientDestinationPair pair = new RecipientDestinationPair();
+        pair.setRecipient(recipient);
+        pair.setDestination(destination);
+        return pair;
+    }
+
+    private RecipientSpecificationDestinationPair pair(
+            RecipientSpecification specification, Destination destination) {
+        RecipientSpecificationDestinationPair pair =
+                new RecipientSpecificationDestinationPair();
+        pair.setRecipientSpecification(specification);
+        pair.setDestination(destination);
+        return pair;
+    }
+
+    private RecipientSpecificationDestinationPair regexPair(String regex,
+            String remotePart) {
+        RegexAddressSpecification specification =
+                new RegexAddressSpecification();
+        specification.setLocalPartRegex(regex);
+        specification.setRemotePart(remotePart);
+        return pair(specification, regexDestination);
+    }
+
+    private Recipient recipient(String recipient) throws Exception {
+        return new MailAddressFactory().createRecipient(recipient);
+    }
+}
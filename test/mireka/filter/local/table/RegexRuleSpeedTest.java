@@ -0,0 +1,98 @@
+package mireka.filter.local.table;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Recipient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares the sequential execution of many regular expression rules with
+ * the lookup in a compiled {@link RecipientSpecifications}, which preselects
+ * the rules by their literals.
+ */
+public class RegexRuleSpeedTest {
+    private static final int RULES = 500;
+    private static final int ROUNDS = 200;
+    private final List<RecipientSpecification> specifications =
+            new ArrayList<RecipientSpecification>();
+    private final RecipientSpecifications compiled =
+            new RecipientSpecifications();
+    private final List<Recipient> recipients = new ArrayList<Recipient>();
+
+    @Before
+    public void createRules() throws Exception {
+        for (int i = 0; i < RULES; i++) {
+            RegexAddressSpecification specification =
+                    new RegexAddressSpecification();
+            if (i % 2 == 0)
+                specification.setLocalPartRegex("role" + i + "-.*");
+            else
+                specification.setLocalPartRegex("user" + i + "\\+[a-z]+");
+            specification.setRemotePart("example.com");
+            specifications.add(specification);
+        }
+        compiled.setSpecifications(specifications);
+        MailAddressFactory factory = new MailAddressFactory();
+        for (int i = 0; i < 100; i++) {
+            recipients.add(factory.createRecipient("user" + (i * 2 + 1)
+                    + "+news@example.com"));
+            recipients.add(factory.createRecipient("role" + (i * 4)
+                    + "-sales@example.com"));
+            recipients.add(factory.createRecipient("unknown" + i
+                    + "@example.com"));
+        }
+    }
+
+    @Test
+    public void measure() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            report("sequential", measureSequential());
+            report("compiled", measureCompiled());
+        }
+    }
+
+    private long measureSequential() {
+        long start = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            for (Recipient recipient : recipients) {
+                for (RecipientSpecification specification : specifications) {
+                    if (specification.isSatisfiedBy(recipient)) {
+                        matched++;
+                        break;
+                    }
+                }
+            }
+        }
+        check(matched);
+        return System.nanoTime() - start;
+    }
+
+    private long measureCompiled() {
+        long start = System.nanoTime();
+        int matched = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            for (Recipient recipient : recipients) {
+                if (compiled.isSatisfiedBy(recipient))
+                    matched++;
+            }
+        }
+        check(matched);
+        return System.nanoTime() - start;
+    }
+
+    private void check(int matched) {
+        if (matched != ROUNDS * 200)
+            throw new AssertionError("Unexpected count of matches: "
+                    + matched);
+    }
+
+    private void report(String name, long nanos) {
+        System.out.println(name + ": " + nanos / 1000000 + " ms for "
+                + ROUNDS * recipients.size() + " lookups");
+    }
+}
@@ -0,0 +1,101 @@
+package mireka.filter.spf;
+
+import static org.junit.Assert.*;
+
+import mockit.Expectations;
+import mockit.Mocked;
+
+import org.apache.james.jspf.core.exceptions.SPFErrorConstants;
+import org.apache.james.jspf.executor.SPFResult;
+import org.apache.james.jspf.impl.DefaultSPF;
+import org.junit.Test;
+
+public class SpfEngineTest {
+    private static final String IP = "192.0.2.1";
+    private static final String HELO = "mail.example.com";
+
+    @Mocked
+    private DefaultSPF spf;
+
+    @Test
+    public void testResultIsCachedForSameDomain() {
+        new Expectations() {
+            {
+                spf.checkSPF(IP, anyString, HELO);
+                result = exampleResult(SPFErrorConstants.PASS_CONV,
+                        "jane@example.com");
+                times = 1;
+            }
+        };
+
+        SpfEngine engine = new SpfEngine();
+        engine.check(IP, "jane@example.com", HELO);
+        SPFResult result = engine.check(IP, "john@Example.com", HELO);
+
+        assertEquals(SPFErrorConstants.PASS_CONV, result.getResult());
+        assertTrue(result.getHeaderText().contains(
+                "envelope-from=john@Example.com;"));
+    }
+
+    @Test
+    public void testDifferentIpIsNotCached() {
+        new Expectations() {
+            {
+                spf.checkSPF(anyString, anyString, anyString);
+                result = exampleResult(SPFErrorConstants.PASS_CONV,
+                        "jane@example.com");
+                times = 2;
+            }
+        };
+
+        SpfEngine engine = new SpfEngine();
+        engine.check(IP, "jane@example.com", HELO);
+        engine.check("192.0.2.2", "jane@example.com", HELO);
+    }
+
+    @Test
+    public void testTemporaryErrorIsNotCached() {
+        new Expectations() {
+            {
+                spf.checkSPF(anyString, anyString, anyString);
+                result = exampleResult(SPFErrorConstants.TEMP_ERROR_CONV,
+                        "jane@example.com");
+                times = 2;
+            }
+        };
+
+        SpfEngine engine = new SpfEngine();
+        engine.check(IP, "jane@example.com", HELO);
+        engine.check(IP, "jane@example.com", HELO);
+    }
+
+    @Test
+    public void testZeroTimeToLiveSwitchesOffCache() {
+        new Expectations() {
+            {
+                spf.checkSPF(anyString, anyString, anyString);
+                result = exampleResult(SPFErrorConstants.PASS_CONV,
+                        "jane@example.com");
+                times = 2;
+            }
+        };
+
+        SpfEngine engine = new SpfEngine();
+        engine.setCacheTimeToLive(0);
+        engine.check(IP, "jane@example.com", HELO);
+        engine.check(IP, "jane@example.com", HELO);
+    }
+
+    private SPFResult exampleResult(final String resultCode,
+            final String mailFrom) {
+        return new SPFResult() {
+            {
+                result = resultCode;
+                headerTextAsString =
+                        resultCode + " (spfCheck: example) client-ip=" + IP
+                                + "; envelope-from=" + mailFrom + "; helo="
+                                + HELO + ";";
+            }
+        };
+    }
+}
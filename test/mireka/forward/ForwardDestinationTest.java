@@ -0,0 +1,65 @@
+package mireka.forward;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import mireka.ExampleMail;
+import mireka.filter.local.table.InlineDomainRegistry;
+import mireka.smtp.address.DomainPart;
+import mireka.transmission.Mail;
+import mireka.transmission.Transmitter;
+import mockit.Injectable;
+import mockit.Verifications;
+
+import org.junit.Test;
+
+public class ForwardDestinationTest {
+    @Injectable
+    private Transmitter transmitter;
+
+    @Test
+    public void testDisabledMemberIsSkipped() throws Exception {
+        ForwardDestination destination = new ForwardDestination();
+        destination.setTransmitter(transmitter);
+        destination.setSrs(createSrs());
+        destination.setMembers(Arrays.asList(member("jane@example.org",
+                false), member("john@example.org", true), member(
+                "joe@example.net", false)));
+
+        destination.forward(ExampleMail.simple());
+        destination.forward(ExampleMail.simple());
+
+        new Verifications() {
+            {
+                Mail mail;
+                transmitter.transmit(mail = withCapture());
+                times = 2;
+                assertEquals(2, mail.recipients.size());
+                assertEquals("jane@example.org",
+                        mail.recipients.get(0).toString());
+                assertEquals("joe@example.net",
+                        mail.recipients.get(1).toString());
+                // the recipient list of the mail can be modified
+                mail.recipients.clear();
+            }
+        };
+    }
+
+    private Srs createSrs() {
+        InlineDomainRegistry localDomains = new InlineDomainRegistry();
+        localDomains.addDomain("example.com");
+        Srs srs = new Srs();
+        srs.setLocalDomains(localDomains);
+        srs.setDefaultRemotePart(new DomainPart("example.com"));
+        srs.setSecretKeyString("secret");
+        return srs;
+    }
+
+    private Member member(String address, boolean disabled) {
+        Member member = new Member();
+        member.setAddress(address);
+        member.setDisabled(disabled);
+        return member;
+    }
+}
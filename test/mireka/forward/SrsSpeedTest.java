@@ -0,0 +1,80 @@
+package mireka.forward;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mireka.filter.local.table.InlineDomainRegistry;
+import mireka.smtp.address.DomainPart;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Recipient;
+import mireka.smtp.address.ReversePath;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the forward and reverse rewriting of {@link Srs}, the latter both
+ * with distinct addresses and with repeated addresses, which are typical for
+ * bounces.
+ */
+public class SrsSpeedTest {
+    private static final int ADDRESSES = 1000;
+    private static final int ROUNDS = 100;
+    private final Srs srs = new Srs();
+    private final Recipient originalRecipient = new MailAddressFactory()
+            .createRecipientAlreadyVerified("jane@example.com");
+    private final List<ReversePath> reversePaths = new ArrayList<>();
+    private final List<Recipient> srsRecipients = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        InlineDomainRegistry localDomains = new InlineDomainRegistry();
+        localDomains.addDomain("example.com");
+        srs.setLocalDomains(localDomains);
+        srs.setDefaultRemotePart(new DomainPart("example.com"));
+        srs.setSecretKeyString("secret");
+        MailAddressFactory factory = new MailAddressFactory();
+        for (int i = 0; i < ADDRESSES; i++) {
+            ReversePath reversePath =
+                    factory.createReversePathAlreadyVerified("user" + i
+                            + "@third-party" + i % 10 + ".example.org");
+            reversePaths.add(reversePath);
+            srsRecipients.add(factory.createRecipientAlreadyVerified(srs
+                    .forward(reversePath, originalRecipient).getSmtpText()));
+        }
+    }
+
+    @Test
+    public void measure() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            report("forward", measureForward());
+            srs.setCacheSize(0);
+            report("reverse", measureReverse());
+            srs.setCacheSize(ADDRESSES);
+            report("reverse cached", measureReverse());
+        }
+    }
+
+    private long measureForward() {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (ReversePath reversePath : reversePaths)
+                srs.forward(reversePath, originalRecipient);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureReverse() throws InvalidSrsException {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (Recipient recipient : srsRecipients)
+                srs.reverse(recipient);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void report(String name, long nanos) {
+        System.out.println(name + ": " + nanos / 1000000 + " ms for "
+                + ROUNDS * ADDRESSES + " rewrites");
+    }
+}
@@ -167,6 +167,65 @@ public class SrsTest {
         assertEquals(rp0, reverse(srs, rp2));
     }
 
+    @Test
+    public final void testReversedRecipientExpiresFromCache()
+            throws InvalidSrsException {
+        Srs srs = new Srs();
+        srs.setDefaultRemotePart(new DomainPart("hostb.com"));
+        srs.setLocalDomains(localDomains);
+        srs.setSecretKeyString("secret");
+        srs.setMaximumAge(10);
+
+        String rp0 = "SRS0=VtG6=2I=hosta.com=usera@hostb.com";
+        assertEquals("usera@hosta.com", reverse(srs, rp0));
+        assertEquals("usera@hosta.com", reverse(srs, rp0));
+
+        DateTimeUtils.setCurrentMillisFixed(new Instant("2011-08-21T12:00Z")
+                .getMillis());
+        try {
+            reverse(srs, rp0);
+            fail("Expired timestamp must be rejected even if cached");
+        } catch (InvalidSrsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public final void testForwardedReversePathIsReusedOnTheSameDay() {
+        Srs srs = new Srs();
+        srs.setDefaultRemotePart(new DomainPart("hostb.com"));
+        srs.setLocalDomains(localDomains);
+        srs.setSecretKeyString("secret");
+        ReversePath reversePath =
+                new MailAddressFactory()
+                        .createReversePathAlreadyVerified("usera@hosta.com");
+        Recipient recipient =
+                new MailAddressFactory()
+                        .createRecipientAlreadyVerified("userb@hostb.com");
+
+        ReversePath first = srs.forward(reversePath, recipient);
+        assertSame(first, srs.forward(reversePath, recipient));
+
+        DateTimeUtils.setCurrentMillisFixed(new Instant("2011-07-22T12:00Z")
+                .getMillis());
+        ReversePath nextDay = srs.forward(reversePath, recipient);
+        assertEquals("SRS0=VtG6=2I=hosta.com=usera@hostb.com",
+                first.getSmtpText());
+        assertFalse(first.getSmtpText().equals(nextDay.getSmtpText()));
+    }
+
+    @Test
+    public final void testHashIsCaseInsensitive() {
+        Srs srs = new Srs();
+        srs.setDefaultRemotePart(new DomainPart("hostb.com"));
+        srs.setLocalDomains(localDomains);
+        srs.setSecretKeyString("secret");
+
+        assertEquals(forward(srs, "UserA@HostA.com", "userb@hostb.com")
+                .substring(0, 9), forward(srs, "usera@hosta.com",
+                "userb@hostb.com").substring(0, 9));
+    }
+
     private String forward(Srs srs, String originalReversePath,
             String originalRecipient) {
         ReversePath originalReversePathObject =
@@ -0,0 +1,133 @@
+package mireka.list;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import mireka.ByteArrayMaildataFile;
+import mireka.dmarc.PolicyCache;
+import mireka.maildata.Maildata;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.ReversePath;
+import mireka.transmission.Mail;
+import mireka.transmission.Transmitter;
+import mockit.Injectable;
+import mockit.Verifications;
+
+import org.junit.Test;
+
+public class ListDestinationTest {
+    @Injectable
+    private Transmitter transmitter;
+
+    @Injectable
+    private PolicyCache dmarcPolicyCache;
+
+    @Test
+    public void testMemberIndex() throws Exception {
+        ListDestination list = new ListDestination();
+        ListMember disabled = member("disabled@example.com");
+        disabled.setDisabled(true);
+        ListMember noDelivery = member("nodelivery@example.com");
+        noDelivery.setNoDelivery(true);
+        list.setMembers(Arrays.asList(member("Jane@example.com"), disabled,
+                noDelivery, member("john@Example.COM")));
+
+        MemberIndex index = list.getMemberIndex();
+        assertTrue(index.isMember(reversePath("jane@Example.com")));
+        assertTrue(index.isMember(reversePath("NoDelivery@example.com")));
+        assertFalse(index.isMember(reversePath("joe@example.com")));
+        assertEquals("[Jane@example.com, john@Example.COM]", index
+                .getDeliverableRecipients().toString());
+        assertEquals(1, index.getDeliverableRecipientsByDomain().size());
+        assertSame(index, list.getMemberIndex());
+
+        list.addMember(member("joe@example.com"));
+        index = list.getMemberIndex();
+        assertTrue(index.isMember(reversePath("joe@example.com")));
+        assertEquals(3, index.getDeliverableRecipients().size());
+    }
+
+    @Test
+    public void testBatchesByDomain() throws Exception {
+        ListDestination list = createList();
+        list.setRecipientsPerMail(2);
+
+        list.data(post());
+
+        final List<List<Mail>> batches = new ArrayList<>();
+        new Verifications() {
+            {
+                transmitter.transmit(withCapture(batches));
+            }
+        };
+        List<Mail> mails = batches.get(0);
+        assertEquals(3, mails.size());
+        assertEquals("[jane@example.com, john@example.com]",
+                mails.get(0).recipients.toString());
+        assertEquals("[joe@example.com]", mails.get(1).recipients.toString());
+        assertEquals("[nancy@example.net]", mails.get(2).recipients.toString());
+        assertSame(mails.get(0).maildata, mails.get(2).maildata);
+        assertEquals("list-bounces@example.org", mails.get(0).from.toString());
+    }
+
+    @Test
+    public void testVerp() throws Exception {
+        ListDestination list = createList();
+        list.setVerp(true);
+
+        list.data(post());
+
+        final List<List<Mail>> batches = new ArrayList<>();
+        new Verifications() {
+            {
+                transmitter.transmit(withCapture(batches));
+            }
+        };
+        List<Mail> mails = batches.get(0);
+        assertEquals(4, mails.size());
+        assertEquals("[nancy@example.net]", mails.get(3).recipients.toString());
+        assertEquals("list-bounces+nancy=example.net@example.org", mails
+                .get(3).from.toString());
+    }
+
+    private ListDestination createList() {
+        ListDestination list = new ListDestination();
+        list.setAddress("list@example.org");
+        list.setReversePath("list-bounces@example.org");
+        list.setMembersOnly(false);
+        list.setTransmitter(transmitter);
+        list.setDmarcPolicyCache(dmarcPolicyCache);
+        list.setMembers(Arrays.asList(member("jane@example.com"),
+                member("john@example.com"), member("nancy@example.net"),
+                member("joe@example.com")));
+        list.setDefaults();
+        return list;
+    }
+
+    private Mail post() throws Exception {
+        Mail mail = new Mail();
+        mail.from = reversePath("jane@example.com");
+        mail.recipients.add(new MailAddressFactory()
+                .createRecipient("list@example.org"));
+        mail.arrivalDate = new Date();
+        mail.maildata =
+                new Maildata(new ByteArrayMaildataFile(
+                        "From: jane@example.com\r\n" + "Subject: hello\r\n"
+                                + "\r\n" + "Hello World!\r\n"));
+        return mail;
+    }
+
+    private ListMember member(String address) {
+        ListMember member = new ListMember();
+        member.setAddress(address);
+        return member;
+    }
+
+    private ReversePath reversePath(String address) throws Exception {
+        return new MailAddressFactory().createReversePath(address);
+    }
+}
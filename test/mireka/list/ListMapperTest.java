@@ -0,0 +1,53 @@
+package mireka.list;
+
+import static org.junit.Assert.*;
+
+import mireka.destination.AliasDestination;
+import mireka.destination.Destination;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.smtp.address.Recipient;
+
+import org.junit.Test;
+
+public class ListMapperTest {
+
+    @Test
+    public void testVerpBouncesAreMappedToReversePath() throws Exception {
+        ListMapper mapper = createMapper(true);
+
+        assertTrue(mapper.lookup(recipient("list@example.org"))
+                instanceof ListDestination);
+        Destination destination =
+                mapper.lookup(recipient("List-Bounces+jane=example.com"
+                        + "@example.org"));
+        assertTrue(destination instanceof AliasDestination);
+        assertEquals("list-bounces@example.org",
+                ((AliasDestination) destination).getRecipient().toString());
+        assertNull(mapper.lookup(recipient("list-bounces+@example.org")));
+        assertNull(mapper.lookup(recipient("list-bounces+jane=example.com"
+                + "@example.com")));
+        assertNull(mapper.lookup(recipient("list-bouncesx@example.org")));
+    }
+
+    @Test
+    public void testVerpBouncesAreNotMappedWithoutVerp() throws Exception {
+        ListMapper mapper = createMapper(false);
+
+        assertNull(mapper.lookup(recipient("list-bounces+jane=example.com"
+                + "@example.org")));
+    }
+
+    private ListMapper createMapper(boolean verp) {
+        ListDestination list = new ListDestination();
+        list.setAddress("list@example.org");
+        list.setReversePath("list-bounces@example.org");
+        list.setVerp(verp);
+        ListMapper mapper = new ListMapper();
+        mapper.setList(list);
+        return mapper;
+    }
+
+    private Recipient recipient(String address) throws Exception {
+        return new MailAddressFactory().createRecipient(address);
+    }
+}
@@ -0,0 +1,158 @@
+package mireka.login;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import mireka.TempDirectory;
+import mireka.destination.AliasDestination;
+import mireka.destination.Destination;
+import mireka.destination.TemporaryFailureDestination;
+import mireka.pop.MaildropDestination;
+import mireka.smtp.EnhancedStatus;
+import mireka.smtp.address.MailAddressFactory;
+import mireka.transmission.LocalMailSystemException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UserDirectoryTest extends TempDirectory {
+    private File file;
+    private UserDirectory userDirectory;
+
+    @Before
+    public void initialize() throws Exception {
+        file = new File(directory, "users.txt");
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < 1000; i++)
+            lines.add("user" + i + "\tuser\tpassword" + i);
+        lines.add("sales\talias\tuser1@example.com");
+        lines.add("info@example.com\talias\tuser2@example.com");
+        writeSorted(lines);
+        userDirectory = new UserDirectory();
+        userDirectory.setFile(file.getPath());
+        userDirectory.setCheckPeriod(0);
+        userDirectory.start();
+    }
+
+    @After
+    public void stop() {
+        userDirectory.stop();
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            UserDirectory.Entry entry = userDirectory.lookup("User" + i);
+            assertNotNull(entry);
+            assertEquals("user" + i, entry.getKey());
+            assertEquals(UserDirectory.Type.USER, entry.getType());
+            assertEquals("password" + i, entry.getValue());
+        }
+        assertNull(userDirectory.lookup("user"));
+        assertNull(userDirectory.lookup("user1000"));
+        assertNull(userDirectory.lookup("aaa"));
+        assertNull(userDirectory.lookup("zzz"));
+        assertEquals(UserDirectory.Type.ALIAS, userDirectory.lookup("sales")
+                .getType());
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        assertNull(userDirectory.lookup("jane"));
+        assertNotNull(userDirectory.lookup("user1"));
+        List<String> lines = new ArrayList<String>();
+        lines.add("jane\tuser\tsecret");
+        File newFile = new File(directory, "users.txt.new");
+        write(newFile, lines);
+        newFile.setLastModified(file.lastModified() + 2000);
+        assertTrue(newFile.renameTo(file));
+
+        assertEquals("secret", userDirectory.lookup("jane").getValue());
+        assertNull(userDirectory.lookup("user1"));
+    }
+
+    @Test
+    public void testDestinationMapper() throws Exception {
+        UserDirectoryDestinationMapper mapper =
+                new UserDirectoryDestinationMapper();
+        mapper.setDirectory(userDirectory);
+        MailAddressFactory factory = new MailAddressFactory();
+
+        Destination destination =
+                mapper.lookup(factory.createRecipient("User5@example.com"));
+        assertEquals("user5",
+                ((MaildropDestination) destination).getMaildropName());
+        destination =
+                mapper.lookup(factory.createRecipient("sales@example.net"));
+        assertEquals("user1@example.com", ((AliasDestination) destination)
+                .getRecipient().toString());
+        destination =
+                mapper.lookup(factory.createRecipient("info@example.com"));
+        assertEquals("user2@example.com", ((AliasDestination) destination)
+                .getRecipient().toString());
+        assertNull(mapper.lookup(factory.createRecipient("info@example.net")));
+    }
+
+    @Test
+    public void testLogin() throws Exception {
+        UserDirectoryLoginSpecification specification =
+                new UserDirectoryLoginSpecification();
+        specification.setDirectory(userDirectory);
+        LoginResult result = specification.evaluatePlain("USER7", "password7");
+        assertEquals(LoginDecision.VALID, result.decision);
+        assertEquals("user7", result.principal.getName());
+        assertEquals(LoginDecision.PASSWORD_DOES_NOT_MATCH,
+                specification.evaluatePlain("user7", "password8").decision);
+        assertEquals(LoginDecision.USERNAME_NOT_EXISTS,
+                specification.evaluatePlain("sales", "user1@example.com").decision);
+    }
+
+    @Test
+    public void testReadErrorIsTransient() throws Exception {
+        userDirectory.stop();
+        try {
+            userDirectory.lookup("user1");
+            fail();
+        } catch (LocalMailSystemException e) {
+            assertEquals(EnhancedStatus.TRANSIENT_LOCAL_ERROR_IN_PROCESSING,
+                    e.errorStatus());
+        }
+
+        UserDirectoryDestinationMapper mapper =
+                new UserDirectoryDestinationMapper();
+        mapper.setDirectory(userDirectory);
+        Destination destination =
+                mapper.lookup(new MailAddressFactory()
+                        .createRecipient("user1@example.com"));
+        assertTrue(destination instanceof TemporaryFailureDestination);
+
+        UserDirectoryLoginSpecification specification =
+                new UserDirectoryLoginSpecification();
+        specification.setDirectory(userDirectory);
+        assertEquals(LoginDecision.TEMPORARY_FAILURE,
+                specification.evaluatePlain("user1", "password1").decision);
+    }
+
+    private void writeSorted(List<String> lines) throws Exception {
+        Collections.sort(lines);
+        write(file, lines);
+    }
+
+    private void write(File target, List<String> lines) throws Exception {
+        try (Writer writer =
+                new OutputStreamWriter(new FileOutputStream(target),
+                        StandardCharsets.UTF_8)) {
+            for (String line : lines)
+                writer.write(line + "\n");
+        }
+    }
+}
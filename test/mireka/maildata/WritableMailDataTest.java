@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
+import mireka.ByteArrayMaildataFile;
 import mireka.ExampleMaildata;
 import mireka.ExampleMaildataFile;
 import mireka.maildata.field.UnstructuredField;
@@ -33,4 +34,28 @@ public class WritableMailDataTest {
                 resultBuffer.toByteArray());
     }
 
+    @Test
+    public void testOverlayLeavesSourceUnchanged() throws IOException {
+        String source =
+                "Subject: hello\r\n" + "X-Test: 1\r\n" + "\r\n"
+                        + "Hello World!\r\n";
+        Maildata maildata = new Maildata(new ByteArrayMaildataFile(source));
+        maildata.headers();
+        Maildata overlay = maildata.overlay();
+        overlay.setSubject("[list] hello");
+        overlay.close();
+
+        ByteArrayOutputStream overlayBuffer = new ByteArrayOutputStream();
+        maildata.overlay().writeTo(overlayBuffer);
+        assertEquals(source, overlayBuffer.toString("ASCII"));
+
+        Maildata modified = maildata.overlay();
+        modified.setSubject("[list] hello");
+        ByteArrayOutputStream resultBuffer = new ByteArrayOutputStream();
+        modified.writeTo(resultBuffer);
+        assertEquals("Subject: [list] hello\r\n" + "X-Test: 1\r\n" + "\r\n"
+                + "Hello World!\r\n", resultBuffer.toString("ASCII"));
+        assertEquals("hello", maildata.getSubject());
+        maildata.close();
+    }
 }
@@ -0,0 +1,31 @@
+package mireka.pop;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import mireka.TempDirectory;
+
+import org.junit.Test;
+
+public class ImportCheckpointTest extends TempDirectory {
+
+    @Test
+    public void testUidsSurviveRestart() throws Exception {
+        File file = new File(directory, "jane.uids");
+        ImportCheckpoint checkpoint = new ImportCheckpoint(file);
+        checkpoint.load();
+        assertFalse(checkpoint.contains("uid-1"));
+        checkpoint.add("uid-1");
+        checkpoint.add("uid-2");
+        checkpoint.close();
+
+        checkpoint = new ImportCheckpoint(file);
+        checkpoint.load();
+        assertTrue(checkpoint.contains("uid-1"));
+        assertTrue(checkpoint.contains("uid-2"));
+        assertFalse(checkpoint.contains("uid-3"));
+        checkpoint.delete();
+        assertFalse(file.exists());
+    }
+}
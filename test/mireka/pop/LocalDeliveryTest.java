@@ -0,0 +1,140 @@
+package mireka.pop;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import mireka.ExampleMail;
+import mireka.TempDirectory;
+import mireka.destination.GroupedMailDestination;
+import mireka.pop.store.MailContent;
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropRepository;
+import mireka.transmission.Mail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalDeliveryTest extends TempDirectory {
+    private MaildropRepository repository;
+    private LocalDelivery localDelivery;
+
+    @Before
+    public void initialize() {
+        repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        localDelivery = new LocalDelivery();
+        localDelivery.setThreads(3);
+    }
+
+    @Test
+    public void testCopies() throws Exception {
+        deliverToMaildrops(10);
+    }
+
+    @Test
+    public void testHardLinks() throws Exception {
+        localDelivery.setHardLinks(true);
+        deliverToMaildrops(10);
+    }
+
+    @Test
+    public void testSingleInstanceStorage() throws Exception {
+        localDelivery.setSingleInstanceStorage(true);
+        deliverToMaildrops(10);
+        deliverToMaildrops(10);
+        File blobsDir = new File(directory, ".blobs");
+        assertEquals(1, countFiles(blobsDir, ".eml"));
+
+        for (int i = 0; i < 10; i++) {
+            Maildrop maildrop = repository.borrowMaildrop("user" + i);
+            maildrop.beginTransaction();
+            assertEquals(2, maildrop.getCountOfMessages());
+            try (MailContent content = maildrop.getMailContent(2)) {
+                byte[] bytes = new byte[(int) content.size()];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining())
+                    assertTrue(content.read(buffer, buffer.position()) > 0);
+                assertArrayEquals(readMail(maildrop, 2), bytes);
+            }
+            maildrop.delete(1);
+            maildrop.delete(2);
+            maildrop.commitTransaction();
+            repository.releaseMaildrop(maildrop);
+            assertEquals(i == 9 ? 0 : 1, countFiles(blobsDir, ".eml"));
+        }
+        assertEquals(0, countFiles(blobsDir, ".refs"));
+    }
+
+    private int countFiles(File dir, String suffix) {
+        int result = 0;
+        for (File file : dir.listFiles()) {
+            if (file.getName().endsWith(suffix))
+                result++;
+        }
+        return result;
+    }
+
+    private byte[] readMail(Maildrop maildrop, int messageNumber)
+            throws Exception {
+        try (InputStream in = maildrop.getMailAsStream(messageNumber)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int cRead;
+            while (-1 != (cRead = in.read(buffer)))
+                out.write(buffer, 0, cRead);
+            return out.toByteArray();
+        }
+    }
+
+    private void deliverToMaildrops(int count) throws Exception {
+        List<GroupedMailDestination> destinations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MaildropDestination destination = new MaildropDestination();
+            destination.setMaildropRepository(repository);
+            destination.setMaildropName("user" + i);
+            destination.setLocalDelivery(localDelivery);
+            destinations.add(destination);
+        }
+        Mail mail = ExampleMail.simple();
+
+        localDelivery.data(mail, destinations);
+
+        byte[] expected = null;
+        for (int i = 0; i < count; i++) {
+            Maildrop maildrop = repository.borrowMaildrop("user" + i);
+            maildrop.beginTransaction();
+            int messageNumber = (int) maildrop.getCountOfMessages();
+            byte[] content = readMail(maildrop, messageNumber);
+            assertEquals(maildrop.getScanListing(messageNumber).length,
+                    content.length);
+            if (expected == null)
+                expected = content;
+            else
+                assertArrayEquals(expected, content);
+            assertTrue(new String(content, "US-ASCII")
+                    .startsWith("Return-Path: <" + mail.from + ">\r\n"));
+            maildrop.rollbackTransaction();
+            repository.releaseMaildrop(maildrop);
+        }
+        for (File file : directory.listFiles())
+            assertFalse(file.getName().startsWith("temp.spool."));
+    }
+
+    @After
+    public void deleteMaildropDirectories() {
+        localDelivery.shutdown();
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+            }
+        }
+    }
+}
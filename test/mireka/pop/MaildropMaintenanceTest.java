@@ -0,0 +1,100 @@
+package mireka.pop;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import mireka.TempDirectory;
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropAppender;
+import mireka.pop.store.MaildropRepository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MaildropMaintenanceTest extends TempDirectory {
+    private MaildropRepository repository;
+    private MaildropMaintenance maintenance;
+
+    @Before
+    public void initialize() {
+        repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        maintenance = new MaildropMaintenance();
+        maintenance.setMaildropRepository(repository);
+        maintenance.setMaxAge(1);
+        maintenance.setMaxSize(40);
+    }
+
+    @Test
+    public void testExpiredMailsAreRemovedWithinLimits() throws Exception {
+        append("jane", 3);
+        for (int i = 0; i < 3; i++)
+            append("john" + i, 1);
+        makeOld(new File(directory, "jane"));
+        makeOld(new File(directory, "john0"));
+        makeOld(new File(directory, "john1"));
+        maintenance.setDeletionsPerRun(4);
+
+        maintenance.runOnce();
+        assertEquals(2, countMails());
+        assertEquals(0, repository.getUsage("jane"));
+        maintenance.runOnce();
+        assertEquals(1, countMails());
+        assertEquals(20, repository.getUsage("john2"));
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        append("jane", 1);
+        assertFalse(maintenance.isOverQuota("jane"));
+        append("jane", 1);
+        assertTrue(maintenance.isOverQuota("jane"));
+        assertFalse(maintenance.isOverQuota("john"));
+    }
+
+    private void append(String maildropName, int count) throws Exception {
+        Maildrop maildrop = repository.borrowMaildrop(maildropName);
+        try {
+            for (int i = 0; i < count; i++) {
+                MaildropAppender appender = maildrop.allocateAppender();
+                appender.getOutputStream().write(
+                        "Subject: 1\r\n\r\nBody\r\n".getBytes("US-ASCII"));
+                appender.commit();
+            }
+        } finally {
+            repository.releaseMaildrop(maildrop);
+        }
+    }
+
+    private void makeOld(File maildropDir) {
+        for (File file : maildropDir.listFiles()) {
+            if (file.getName().endsWith(".eml"))
+                assertTrue(file.setLastModified(System.currentTimeMillis()
+                        - 2 * 24 * 3600 * 1000L));
+        }
+    }
+
+    private int countMails() {
+        int result = 0;
+        for (File dir : directory.listFiles()) {
+            for (File file : dir.listFiles()) {
+                if (file.getName().endsWith(".eml"))
+                    result++;
+            }
+        }
+        return result;
+    }
+
+    @After
+    public void deleteMaildropDirectories() {
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+}
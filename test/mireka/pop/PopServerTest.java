@@ -0,0 +1,77 @@
+package mireka.pop;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PopServerTest {
+    private static final int PORT = 8027;
+    private PopServer popServer;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void startServer() {
+        popServer = new PopServer();
+        popServer.setPort(PORT);
+        popServer.setMaximumThreads(2);
+        popServer.start();
+    }
+
+    @Test
+    public void testIdleSessionsDoNotOccupyThreads() throws Exception {
+        List<BufferedReader> readers = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Socket socket = new Socket("localhost", PORT);
+            sockets.add(socket);
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(
+                            socket.getInputStream(), "US-ASCII"));
+            readers.add(reader);
+            assertTrue(reader.readLine().startsWith("+OK"));
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < sockets.size(); i++) {
+                send(sockets.get(i), "NOOP");
+                assertEquals("+OK", readers.get(i).readLine());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedCommands() throws Exception {
+        Socket socket = new Socket("localhost", PORT);
+        sockets.add(socket);
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), "US-ASCII"));
+        assertTrue(reader.readLine().startsWith("+OK"));
+        send(socket, "NOOP\r\nNOOP\r\nQUIT");
+        assertEquals("+OK", reader.readLine());
+        assertEquals("+OK", reader.readLine());
+        assertTrue(reader.readLine().startsWith("+OK"));
+        assertNull(reader.readLine());
+    }
+
+    private void send(Socket socket, String lines) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((lines + "\r\n").getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        for (Socket socket : sockets)
+            socket.close();
+        popServer.shutdown();
+    }
+}
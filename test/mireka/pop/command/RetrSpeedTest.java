@@ -0,0 +1,174 @@
+package mireka.pop.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import mireka.TempDirectory;
+import mireka.pop.Pop3Exception;
+import mireka.pop.store.MailContent;
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropAppender;
+import mireka.pop.store.MaildropRepository;
+import mireka.pop.store.MessageLayout;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.io.ExtraDotOutputStream;
+
+/**
+ * Compares the throughput of the RETR implementations: the byte by byte
+ * conversion through the SubEthaSMTP streams, the buffered copy used on TLS
+ * connections and the transferTo based copy used on plain TCP connections.
+ */
+public class RetrSpeedTest extends TempDirectory {
+    private static final int MAIL_SIZE = 20 * 1024 * 1024;
+    private static final int ROUNDS = 10;
+    private Maildrop maildrop;
+    private MessageLayout layout;
+
+    @Before
+    public void createMail() throws Exception {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        maildrop = repository.borrowMaildrop("jane");
+        MaildropAppender appender = maildrop.allocateAppender();
+        OutputStream out = appender.getOutputStream();
+        byte[] line =
+                "VGhpcyBpcyBhIGJhc2U2NCBlbmNvZGVkIGF0dGFjaG1lbnQgbGluZQ==\r\n"
+                        .getBytes("US-ASCII");
+        byte[] dotLine = ".\r\n".getBytes("US-ASCII");
+        out.write("Subject: attachment\r\n\r\n".getBytes("US-ASCII"));
+        for (int written = 0; written < MAIL_SIZE; written += line.length) {
+            out.write(line);
+            if (written % 100000 < line.length)
+                out.write(dotLine);
+        }
+        appender.commit();
+        maildrop.beginTransaction();
+        layout = maildrop.getMessageLayout(1);
+    }
+
+    @After
+    public void deleteSubdirectories() {
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    @Test
+    public void measure() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            report("converting streams", measureConvertingStreams());
+            report("buffered copy", measureBufferedCopy());
+            report("transferTo", measureTransferTo());
+        }
+        maildrop.rollbackTransaction();
+    }
+
+    private long measureConvertingStreams() throws IOException,
+            Pop3Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            try (InputStream in = maildrop.getMailAsStream(1)) {
+                DotTerminatedOutputStream dotTerminatedOutputStream =
+                        new DotTerminatedOutputStream(new NullOutputStream());
+                @SuppressWarnings("resource")
+                ExtraDotOutputStream dotOutputStream =
+                        new ExtraDotOutputStream(dotTerminatedOutputStream);
+                byte[] buffer = new byte[4096];
+                int cRead;
+                while (-1 != (cRead = in.read(buffer)))
+                    dotOutputStream.write(buffer, 0, cRead);
+                dotOutputStream.flush();
+                dotTerminatedOutputStream.writeTerminatingSequence();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureBufferedCopy() throws IOException,
+            Pop3Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            try (MailContent mail = maildrop.getMailContent(1)) {
+                new StuffedMailWriter(null, new NullOutputStream()).write(
+                        mail, layout);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private long measureTransferTo() throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel client =
+                    SocketChannel.open(server.getLocalAddress())) {
+                Thread drain = new DrainThread(client);
+                drain.start();
+                long elapsed;
+                // closing the accepted channel ends the drain thread
+                try (SocketChannel accepted = server.accept()) {
+                    long start = System.nanoTime();
+                    for (int i = 0; i < ROUNDS; i++) {
+                        try (MailContent mail = maildrop.getMailContent(1)) {
+                            new StuffedMailWriter(accepted, null).write(mail,
+                                    layout);
+                        }
+                    }
+                    elapsed = System.nanoTime() - start;
+                }
+                drain.join();
+                return elapsed;
+            }
+        }
+    }
+
+    private void report(String name, long nanos) {
+        double megabytes = (double) MAIL_SIZE * ROUNDS / 1024 / 1024;
+        System.out.printf("%-20s %8.1f MB/s%n", name, megabytes
+                / (nanos / 1e9));
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            // discard
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    }
+
+    private static class DrainThread extends Thread {
+        private final SocketChannel channel;
+
+        DrainThread(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            try {
+                while (channel.read(buffer) != -1)
+                    buffer.clear();
+            } catch (IOException e) {
+                // connection closed
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package mireka.pop.command;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import mireka.TempDirectory;
+import mireka.pop.store.MailContent;
+import mireka.pop.store.Maildrop;
+import mireka.pop.store.MaildropAppender;
+import mireka.pop.store.MaildropRepository;
+import mireka.pop.store.MessageLayout;
+
+import org.junit.After;
+import org.junit.Test;
+import org.subethamail.smtp.io.DotTerminatedOutputStream;
+import org.subethamail.smtp.io.ExtraDotOutputStream;
+
+public class StuffedMailWriterTest extends TempDirectory {
+
+    @Test
+    public void testDotStuffing() throws Exception {
+        assertSameAsConverted("Subject: a\r\n\r\n.\r\nb\r\n..c\r\n");
+    }
+
+    @Test
+    public void testDotInFirstLine() throws Exception {
+        assertSameAsConverted(".a\r\n");
+    }
+
+    @Test
+    public void testUnterminatedLastLine() throws Exception {
+        assertSameAsConverted("Subject: a\r\n\r\n.b");
+    }
+
+    @Test
+    public void testBareLfIsNotCanonical() throws Exception {
+        Maildrop maildrop = appendMail("Subject: a\n\nb\n");
+        maildrop.beginTransaction();
+        assertFalse(maildrop.getMessageLayout(1).isCanonical());
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testTopWithoutBodyLines() throws Exception {
+        assertTop("Subject: a\r\n\r\n.b\r\nc\r\n", 0,
+                "Subject: a\r\n\r\n.\r\n");
+    }
+
+    @Test
+    public void testTopWithBodyLines() throws Exception {
+        assertTop("Subject: a\r\n\r\n.b\r\nc\r\nd\r\n", 2,
+                "Subject: a\r\n\r\n..b\r\nc\r\n.\r\n");
+    }
+
+    @Test
+    public void testTopOfMailWithoutBody() throws Exception {
+        assertTop("Subject: a\r\nTo: b", 5,
+                "Subject: a\r\nTo: b\r\n.\r\n");
+    }
+
+    @Test
+    public void testTopBeyondCheckpoints() throws Exception {
+        StringBuilder mail = new StringBuilder("Subject: a\r\n\r\n");
+        for (int i = 0; i < 1000; i++)
+            mail.append("line ").append(i).append("\r\n");
+        String body = mail.substring("Subject: a\r\n\r\n".length());
+        for (int lines : new int[] { 255, 256, 257, 600, 1000, 1200 }) {
+            int end = 0;
+            for (int i = 0; i < Math.min(lines, 1000); i++)
+                end = body.indexOf("\r\n", end) + 2;
+            assertTop(mail.toString(), lines, "Subject: a\r\n\r\n"
+                    + body.substring(0, end) + ".\r\n");
+        }
+    }
+
+    private void assertTop(String mail, int lines, String expected)
+            throws Exception {
+        Maildrop maildrop = appendMail(mail);
+        maildrop.beginTransaction();
+        MessageLayout layout = maildrop.getMessageLayout(1);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (MailContent channel = maildrop.getMailContent(1)) {
+            long end = layout.findEndOfTop(channel, lines);
+            new StuffedMailWriter(null, actual).write(channel, layout, end);
+        }
+        maildrop.rollbackTransaction();
+
+        assertEquals(expected, actual.toString("US-ASCII"));
+    }
+
+    private void assertSameAsConverted(String mail) throws Exception {
+        Maildrop maildrop = appendMail(mail);
+        maildrop.beginTransaction();
+        MessageLayout layout = maildrop.getMessageLayout(1);
+        assertTrue(layout.isCanonical());
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        try (MailContent channel = maildrop.getMailContent(1)) {
+            new StuffedMailWriter(null, actual).write(channel, layout);
+        }
+        maildrop.rollbackTransaction();
+
+        assertArrayEquals(converted(mail), actual.toByteArray());
+    }
+
+    @After
+    public void deleteSubdirectories() {
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    private Maildrop appendMail(String mail) throws Exception {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        Maildrop maildrop = repository.borrowMaildrop("jane");
+        MaildropAppender appender = maildrop.allocateAppender();
+        appender.getOutputStream().write(mail.getBytes("US-ASCII"));
+        appender.commit();
+        return maildrop;
+    }
+
+    static byte[] converted(String mail) throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        DotTerminatedOutputStream dotTerminatedOutputStream =
+                new DotTerminatedOutputStream(expected);
+        ExtraDotOutputStream dotOutputStream =
+                new ExtraDotOutputStream(dotTerminatedOutputStream);
+        dotOutputStream.write(mail.getBytes("US-ASCII"));
+        dotOutputStream.flush();
+        dotTerminatedOutputStream.writeTerminatingSequence();
+        dotTerminatedOutputStream.flush();
+        return expected.toByteArray();
+    }
+}
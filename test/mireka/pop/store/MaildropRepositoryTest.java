@@ -0,0 +1,106 @@
+package mireka.pop.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import mireka.TempDirectory;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MaildropRepositoryTest extends TempDirectory {
+
+    @After
+    public void deleteSubdirectories() {
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNameStartingWithDotIsRejected() {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        repository.borrowMaildrop(".blobs");
+    }
+
+    @Test
+    public void testBlobDirectoryIsNotListedAsMaildrop() {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        new File(directory, "jane").mkdir();
+        new File(directory, "blobs").mkdir();
+        new File(directory, ".blobs").mkdir();
+
+        assertEquals(2, repository.listMaildropNames().size());
+        assertTrue(repository.listMaildropNames().contains("blobs"));
+    }
+
+    @Test
+    public void testStaleSpooledMailsAreDeletedOnStart() throws Exception {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        SpooledMail spooledMail = repository.createSpooledMail();
+        writeText(spooledMail.getFile(), "Subject: a\r\n\r\nb\r\n");
+        writeText("unrelated.txt", "c");
+
+        repository.start();
+
+        assertFalse(spooledMail.getFile().exists());
+        assertTrue(new File(directory, "unrelated.txt").exists());
+    }
+
+    @Test
+    public void testStaleBlobStoreFilesAreDeletedOnStart() throws Exception {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        SharedBody body = storeSharedBody(repository, 1);
+        body.close();
+        File blobDir = new File(directory, ".blobs");
+        writeText(new File(blobDir, "temp.0123.refs"), "1");
+        writeText(new File(blobDir, "4567.eml"), "Subject: a\r\n\r\nb\r\n");
+        writeText(new File(blobDir, "89ab.refs"), "1");
+
+        repository.start();
+
+        assertEquals(0, blobDir.listFiles().length);
+    }
+
+    @Test
+    public void testReferenceCountsAreRebuiltOnRequest() throws Exception {
+        MaildropRepository repository = new MaildropRepository();
+        repository.setDir(directory.getPath());
+        SharedBody body = storeSharedBody(repository, 3);
+        Maildrop maildrop = repository.borrowMaildrop("jane");
+        maildrop.allocateAppender().commitSharedBody(body, new byte[0]);
+        repository.releaseMaildrop(maildrop);
+        SharedBody unreferencedBody = storeSharedBody(repository, 1);
+        File blobDir = new File(directory, ".blobs");
+
+        repository.setRecountSharedBodies(true);
+        repository.start();
+
+        assertEquals("1", textFileContent(new File(blobDir, body.getHash()
+                + ".refs")));
+        assertFalse(new File(blobDir, unreferencedBody.getHash() + ".eml")
+                .exists());
+        assertEquals(2, blobDir.listFiles().length);
+    }
+
+    private SharedBody storeSharedBody(MaildropRepository repository,
+            int references) throws Exception {
+        SpooledMail spooledMail = repository.createSpooledMail();
+        spooledMail.getOutputStream().write(
+                ("Subject: " + Math.random() + "\r\n\r\nBody\r\n")
+                        .getBytes("US-ASCII"));
+        spooledMail.close();
+        SharedBody body = repository.createSharedBody(spooledMail, references);
+        spooledMail.delete();
+        return body;
+    }
+}
@@ -0,0 +1,201 @@
+package mireka.pop.store;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import mireka.TempDirectory;
+import mireka.transmission.LocalMailSystemException;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MaildropTest extends TempDirectory {
+
+    @Test
+    public void testIndexIsUsedInsteadOfDirectoryScan() throws Exception {
+        Maildrop maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 1\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 2\r\n\r\nBody\r\n");
+        maildrop.saveIndex();
+        assertTrue(new File(directory, "index").exists());
+        writeText("100.eml", "Not indexed\r\n");
+
+        maildrop = new Maildrop("jane", directory);
+        maildrop.beginTransaction();
+        assertEquals(2, maildrop.getCountOfMessages());
+        assertEquals(2, maildrop.getUidListing(2).uid);
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testAppendInvalidatesIndex() throws Exception {
+        Maildrop maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 1\r\n\r\nBody\r\n");
+        maildrop.saveIndex();
+
+        maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 2\r\n\r\nBody\r\n");
+        assertFalse(new File(directory, "index").exists());
+        maildrop.saveIndex();
+
+        maildrop = new Maildrop("jane", directory);
+        maildrop.beginTransaction();
+        assertEquals(2, maildrop.getCountOfMessages());
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testDeletionInvalidatesIndex() throws Exception {
+        Maildrop maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 1\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 2\r\n\r\nBody\r\n");
+        maildrop.saveIndex();
+
+        maildrop.beginTransaction();
+        maildrop.delete(1);
+        maildrop.commitTransaction();
+        assertFalse(new File(directory, "index").exists());
+        maildrop.saveIndex();
+
+        maildrop = new Maildrop("jane", directory);
+        maildrop.beginTransaction();
+        assertEquals(1, maildrop.getCountOfMessages());
+        assertEquals(2, maildrop.getUidListing(1).uid);
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testAggregatesFollowDeletions() throws Exception {
+        Maildrop maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 1\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 22\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 333\r\n\r\nBody\r\n");
+
+        maildrop.beginTransaction();
+        assertEquals(3, maildrop.getCountOfMessages());
+        assertEquals(20 + 21 + 22, maildrop.getTotalOctets());
+        maildrop.delete(2);
+        assertEquals(2, maildrop.getCountOfMessages());
+        assertEquals(20 + 22, maildrop.getTotalOctets());
+        final StringBuilder listing = new StringBuilder();
+        maildrop.visitListings(new ListingVisitor() {
+            @Override
+            public void visit(int messageNumber, long uid, long length) {
+                listing.append(messageNumber + ":" + uid + ":" + length + " ");
+            }
+        });
+        assertEquals("1:1:20 3:3:22 ", listing.toString());
+        maildrop.resetDeletions();
+        assertEquals(20 + 21 + 22, maildrop.getTotalOctets());
+        maildrop.delete(1);
+        append(maildrop, "Subject: 4\r\n\r\nBody\r\n");
+        maildrop.commitTransaction();
+
+        maildrop.beginTransaction();
+        assertEquals(3, maildrop.getCountOfMessages());
+        assertEquals(21 + 22 + 20, maildrop.getTotalOctets());
+        assertEquals(4, maildrop.getUidListing(3).uid);
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testExpireMessages() throws Exception {
+        Maildrop maildrop = new Maildrop("jane", directory);
+        append(maildrop, "Subject: 1\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 2\r\n\r\nBody\r\n");
+        append(maildrop, "Subject: 3\r\n\r\nBody\r\n");
+        long now = System.currentTimeMillis();
+        assertTrue(new File(directory, "1.eml").setLastModified(now - 20000));
+        assertTrue(new File(directory, "2.eml").setLastModified(now - 20000));
+
+        assertEquals(1, maildrop.expireMessages(now - 10000, 1));
+        assertEquals(1, maildrop.expireMessages(now - 10000, 10));
+        assertEquals(0, maildrop.expireMessages(now - 10000, 10));
+        assertEquals(20, maildrop.getUsage());
+        maildrop.beginTransaction();
+        assertEquals(-1, maildrop.expireMessages(now + 10000, 10));
+        assertEquals(3, maildrop.getUidListing(1).uid);
+        maildrop.rollbackTransaction();
+    }
+
+    @Test
+    public void testSharedMailIsReadFromIndexAndDirectory() throws Exception {
+        BlobStore blobStore = new BlobStore(new File(directory, ".blobs"));
+        File maildropDir = new File(directory, "jane");
+        SpooledMail spooledMail =
+                new SpooledMail(new File(directory, "temp.spool.eml"));
+        spooledMail.getOutputStream().write(
+                "Subject: 1\r\n\r\n.Body\r\n".getBytes("US-ASCII"));
+        spooledMail.close();
+        SharedBody body = blobStore.store(spooledMail, 1);
+        byte[] prefix =
+                "Return-Path: <john@example.com>\r\n".getBytes("US-ASCII");
+        Maildrop maildrop = new Maildrop("jane", maildropDir, blobStore);
+        maildrop.allocateAppender().commitSharedBody(body, prefix);
+        body.close();
+        maildrop.saveIndex();
+
+        assertSharedMail(new Maildrop("jane", maildropDir, blobStore),
+                prefix.length);
+        assertTrue(new File(maildropDir, "index").delete());
+        assertSharedMail(new Maildrop("jane", maildropDir, blobStore),
+                prefix.length);
+    }
+
+    @Test
+    public void testMailWithMissingSharedBodyIsSkipped() throws Exception {
+        File blobDir = new File(directory, ".blobs");
+        BlobStore blobStore = new BlobStore(blobDir);
+        File maildropDir = new File(directory, "jane");
+        SpooledMail spooledMail =
+                new SpooledMail(new File(directory, "temp.spool.eml"));
+        spooledMail.getOutputStream().write(
+                "Subject: 1\r\n\r\nBody\r\n".getBytes("US-ASCII"));
+        spooledMail.close();
+        SharedBody body = blobStore.store(spooledMail, 1);
+        Maildrop maildrop = new Maildrop("jane", maildropDir, blobStore);
+        append(maildrop, "Subject: 2\r\n\r\nBody\r\n");
+        maildrop.allocateAppender().commitSharedBody(body, new byte[0]);
+        body.close();
+        for (File file : blobDir.listFiles()) {
+            if (file.getName().endsWith(".eml"))
+                assertTrue(file.delete());
+        }
+
+        maildrop = new Maildrop("jane", maildropDir, blobStore);
+        maildrop.beginTransaction();
+        assertEquals(1, maildrop.getCountOfMessages());
+        maildrop.rollbackTransaction();
+    }
+
+    private void assertSharedMail(Maildrop maildrop, int prefixLength)
+            throws Exception {
+        maildrop.beginTransaction();
+        assertEquals(prefixLength + 21, maildrop.getScanListing(1).length);
+        MessageLayout layout = maildrop.getMessageLayout(1);
+        assertEquals(prefixLength + 14, layout.getHeaderLength());
+        assertArrayEquals(new long[] { prefixLength + 14 },
+                layout.getDotOffsets());
+        maildrop.rollbackTransaction();
+    }
+
+    @After
+    public void deleteSubdirectories() {
+        for (File dir : directory.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles())
+                    file.delete();
+                dir.delete();
+            }
+        }
+    }
+
+    private void append(Maildrop maildrop, String content)
+            throws LocalMailSystemException, IOException {
+        MaildropAppender appender = maildrop.allocateAppender();
+        appender.getOutputStream().write(content.getBytes("US-ASCII"));
+        appender.commit();
+    }
+}
@@ -21,7 +21,24 @@ public class UidManagerTest extends TempDirectory {
 
         uidManager = new UidManager(directory);
         uidManager.init();
-        assertEquals(2, uidManager.allocateUid());
+        assertTrue(uidManager.allocateUid() > 1);
+    }
+
+    @Test
+    public void testUidsAreReservedInBatches() throws InvalidUidFileException,
+            IOException {
+        UidManager uidManager = new UidManager(directory, 10);
+        uidManager.createInitialUidFile();
+        uidManager.init();
+        for (int i = 1; i <= 10; i++)
+            assertEquals(i, uidManager.allocateUid());
+        assertEquals("10+", textFileContent("uid.txt"));
+        assertEquals(11, uidManager.allocateUid());
+        assertEquals("20+", textFileContent("uid.txt"));
+
+        uidManager = new UidManager(directory, 10);
+        uidManager.init();
+        assertEquals(21, uidManager.allocateUid());
     }
 
     @Test
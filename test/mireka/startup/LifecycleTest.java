@@ -0,0 +1,60 @@
+package mireka.startup;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import javax.annotation.PreDestroy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LifecycleTest {
+    private int managedObjectCount;
+
+    @Before
+    public void initialize() {
+        managedObjectCount = Lifecycle.countManagedObjects();
+    }
+
+    @After
+    public void cleanUp() {
+        Lifecycle.discardManagedObjects(managedObjectCount);
+    }
+
+    @Test
+    public void testRetiredObjectsAreStoppedOnRequest() throws Exception {
+        StoppableObject reused = new StoppableObject();
+        StoppableObject retired = new StoppableObject();
+        Lifecycle.addManagedObject(reused);
+        Lifecycle.addManagedObject(retired);
+        Lifecycle.callPostConstructMethods();
+
+        Set<Object> objects =
+                Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        objects.add(reused);
+        Lifecycle.RetiredObjects retiredObjects =
+                Lifecycle.retainManagedObjects(objects);
+        assertEquals(1, retiredObjects.size());
+        assertEquals(managedObjectCount + 1, Lifecycle.countManagedObjects());
+        assertEquals(0, retired.stopCount);
+
+        retiredObjects.stop();
+        assertEquals(1, retired.stopCount);
+        retiredObjects.stop();
+        assertEquals(1, retired.stopCount);
+        assertEquals(0, reused.stopCount);
+    }
+
+    public static class StoppableObject {
+        int stopCount;
+
+        @PreDestroy
+        public void stop() {
+            stopCount++;
+        }
+    }
+}
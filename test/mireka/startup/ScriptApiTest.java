@@ -0,0 +1,93 @@
+package mireka.startup;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import mireka.destination.AliasDestination;
+import mireka.smtp.server.MessageHandlerFactoryImpl;
+import mireka.transmission.queue.ScheduleFileDirQueue;
+
+import org.junit.Test;
+
+public class ScriptApiTest {
+
+    @Test
+    public void testReuseMatchesClassAndCreationOrder() {
+        ScriptApi first = new ScriptApi();
+        Object handler1 = first.manage(new MessageHandlerFactoryImpl());
+        first.manage(new AliasDestination());
+        Object handler2 = first.manage(new MessageHandlerFactoryImpl());
+
+        ScriptApi next = new ScriptApi(first);
+        assertNull(next.reuse(new AliasDestination()));
+        assertSame(handler1, next.reuse(new MessageHandlerFactoryImpl()));
+        assertSame(handler2, next.reuse(new MessageHandlerFactoryImpl()));
+        assertNull(next.reuse(new MessageHandlerFactoryImpl()));
+        assertTrue(next.configuredObjects.contains(handler1));
+        assertTrue(next.configuredObjects.contains(handler2));
+
+        ScriptApi third = new ScriptApi(next);
+        assertSame(handler1, third.reuse(new MessageHandlerFactoryImpl()));
+    }
+
+    @Test
+    public void testNoReuseOnStartup() {
+        assertNull(new ScriptApi().reuse(new MessageHandlerFactoryImpl()));
+    }
+
+    @Test
+    public void testIsReappliedOnReload() {
+        ScriptApi scriptApi = new ScriptApi();
+        assertTrue(scriptApi.isReappliedOnReload(
+                new MessageHandlerFactoryImpl(), "filters"));
+        assertTrue(scriptApi.isReappliedOnReload(new ScheduleFileDirQueue(),
+                "mailProcessorFactory"));
+        assertFalse(scriptApi.isReappliedOnReload(new ScheduleFileDirQueue(),
+                "store"));
+    }
+
+    @Test
+    public void testFailedDeferredAssignmentIsReverted() throws Exception {
+        ScriptEngine engine =
+                new ScriptEngineManager().getEngineByName("rhino");
+        try (Reader reader =
+                new InputStreamReader(new FileInputStream(
+                        "setup/lib/configuration.js"), StandardCharsets.UTF_8)) {
+            engine.eval(reader);
+        }
+        Bean bean = new Bean();
+        bean.setName("old");
+        engine.put("bean", bean);
+        engine.eval("deferredAssignments.push("
+                + "{object: bean, propertyName: 'name', value: 'new'}, "
+                + "{object: bean, propertyName: 'missing', value: 'new'})");
+        try {
+            ((Invocable) engine).invokeFunction("applyDeferredAssignments");
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+        assertEquals("old", bean.getName());
+    }
+
+    public static class Bean {
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package mireka.transmission.immediate;
+
+import static mireka.ExampleAddress.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import mireka.smtp.client.MtaAddress;
+import mireka.smtp.client.SmtpClient;
+import mireka.transmission.immediate.host.ConnectionFailedException;
+import mireka.transmission.immediate.host.HappyEyeballsConnector;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.subethamail.smtp.client.SMTPClient;
+import org.subethamail.smtp.client.SMTPException;
+
+public class HappyEyeballsConnectorTest {
+    private HappyEyeballsConnector connector;
+    private final List<FakeClient> connectOrder = Collections
+            .synchronizedList(new ArrayList<FakeClient>());
+
+    @Before
+    public void initialize() {
+        connector = new HappyEyeballsConnector();
+        connector.setAttemptDelay(100);
+    }
+
+    @Test
+    public void testHangingFirstAddressDoesNotDelayConnection()
+            throws ConnectionFailedException {
+        FakeClient hanging = new FakeClient(IPV6, 10000, null);
+        FakeClient working = new FakeClient(IP1, 0, null);
+
+        long start = System.currentTimeMillis();
+        SmtpClient result =
+                connector.connect(Arrays.<SmtpClient> asList(hanging, working));
+
+        assertSame(working, result);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(hanging.aborted.getCount() == 0);
+    }
+
+    @Test
+    public void testFailedAttemptStartsNextImmediately()
+            throws ConnectionFailedException {
+        connector.setAttemptDelay(10000);
+        FakeClient failing =
+                new FakeClient(IPV6, 0, new SocketException("unreachable"));
+        FakeClient working = new FakeClient(IP1, 0, null);
+
+        long start = System.currentTimeMillis();
+        SmtpClient result =
+                connector.connect(Arrays.<SmtpClient> asList(failing, working));
+
+        assertSame(working, result);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testSmtpErrorIsPreferredOverNetworkError() {
+        SMTPException smtpException =
+                new SMTPException(new SMTPClient.Response(554, "Go away"));
+        FakeClient networkError =
+                new FakeClient(IPV6, 0, new SocketException("unreachable"));
+        FakeClient smtpError = new FakeClient(IP1, 0, smtpException);
+
+        try {
+            connector.connect(Arrays.<SmtpClient> asList(networkError,
+                    smtpError));
+            fail("An exception must have been thrown");
+        } catch (ConnectionFailedException e) {
+            assertSame(smtpException, e.getCause());
+            assertEquals(smtpError.getMtaAddress(), e.remoteMta);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyClientListIsRejected() throws Exception {
+        connector.connect(Collections.<SmtpClient> emptyList());
+    }
+
+    @Test
+    public void testAddressFamiliesAreInterleaved() {
+        connector.setMaxConcurrentAttempts(1);
+        FakeClient ipv4First =
+                new FakeClient(IP1, 0, new SocketException("unreachable"));
+        FakeClient ipv4Second =
+                new FakeClient(IP2, 0, new SocketException("unreachable"));
+        FakeClient ipv6 =
+                new FakeClient(IPV6, 0, new SocketException("unreachable"));
+
+        try {
+            connector.connect(Arrays.<SmtpClient> asList(ipv4First,
+                    ipv4Second, ipv6));
+            fail("An exception must have been thrown");
+        } catch (ConnectionFailedException e) {
+            // expected
+        }
+
+        assertEquals(Arrays.asList(ipv6, ipv4First, ipv4Second), connectOrder);
+    }
+
+    private class FakeClient extends SmtpClient {
+        private final long connectTime;
+        private final Exception failure;
+        final CountDownLatch aborted = new CountDownLatch(1);
+
+        FakeClient(InetAddress address, long connectTime, Exception failure) {
+            setMtaAddress(new MtaAddress(HOST1_EXAMPLE_COM, address));
+            this.connectTime = connectTime;
+            this.failure = failure;
+        }
+
+        @Override
+        public void connect() throws SMTPException, IOException {
+            connectOrder.add(this);
+            try {
+                if (aborted.await(connectTime, TimeUnit.MILLISECONDS))
+                    throw new SocketException("Socket closed");
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (failure instanceof SMTPException)
+                throw (SMTPException) failure;
+            if (failure instanceof IOException)
+                throw (IOException) failure;
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+
+        @Override
+        public void close() {
+            // nothing to do
+        }
+    }
+}
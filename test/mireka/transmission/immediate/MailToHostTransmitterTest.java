@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 
 import mireka.ExampleMail;
 import mireka.smtp.EnhancedStatus;
@@ -106,6 +107,11 @@ public class MailToHostTransmitterTest {
         };
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testSendToEmptyHostList() throws Exception {
+        sender.transmit(mail, Collections.<SmtpClient> emptyList());
+    }
+
     @Test
     public void testSendFirstAddressRejectedFromTwo()
             throws IllegalArgumentException, SendException, SMTPException,
@@ -191,4 +197,26 @@ public class MailToHostTransmitterTest {
 
         sender.transmit(mail, client);
     }
+
+    @Test
+    public void testConnectionRegistryMaintenanceMultipleAddresses()
+            throws Exception {
+        new Expectations() {
+            {
+                outgoingConnectionsRegistry.openConnection(IP1);
+                times = 2;
+                outgoingConnectionsRegistry.releaseConnection(IP1);
+                times = 2;
+            }
+        };
+
+        sender.transmit(mail, Arrays.asList(client, new SmtpClient()));
+
+        new Verifications() {
+            {
+                client.dataEnd();
+                times = 1;
+            }
+        };
+    }
 }
@@ -5,6 +5,8 @@ import static org.junit.Assert.*;
 
 import java.net.InetAddress;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import mireka.ExampleMail;
 import mireka.smtp.EnhancedStatus;
@@ -54,6 +56,12 @@ public class DirectImmediateSenderTest {
     @Injectable
     private MailToHostTransmitter mailToHostTransmitter;
 
+    /**
+     * Typed argument for matching any client list.
+     */
+    private static final List<SmtpClient> NO_CLIENTS = Collections
+            .emptyList();
+
     private final Mail mail = ExampleMail.simple();
     private Mail adaAddressLiteralMail;
     private Mail janeJoeMail;
@@ -101,7 +109,7 @@ public class DirectImmediateSenderTest {
                 addressLookup.queryAddresses((Name) any);
                 times = 0;
 
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any, (SmtpClient) any);
 
                 client.setMtaAddress(new MtaAddress(ADDRESS_LITERAL, IP));
             }
@@ -121,13 +129,40 @@ public class DirectImmediateSenderTest {
 
                 client.setMtaAddress(new MtaAddress("host1.example.com", IP));
 
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
             }
         };
 
         sender.send(mail);
     }
 
+    @Test
+    public void testSendToMultihomedHost() throws SendException,
+            RecipientsWereRejectedException, PostponeException {
+        new Expectations() {
+            {
+                mxLookup.queryMxTargets((Domain) any);
+                result = new Name[] { HOST1_EXAMPLE_COM_NAME };
+
+                addressLookup.queryAddresses((Name) any);
+                result = new InetAddress[] { IP1, IPV6 };
+            }
+        };
+
+        sender.send(mail);
+
+        new Verifications() {
+            {
+                List<SmtpClient> clients;
+                mailToHostTransmitter.transmit((Mail) any,
+                        clients = withCapture());
+                times = 1;
+                assertEquals(2, clients.size());
+            }
+        };
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testSendToDifferentDomain() throws SendException,
             RecipientsWereRejectedException, PostponeException {
@@ -160,7 +195,8 @@ public class DirectImmediateSenderTest {
 
                 client.setMtaAddress(new MtaAddress("host2.example.com", IP2));
 
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
             }
         };
 
@@ -174,7 +210,8 @@ public class DirectImmediateSenderTest {
 
         new Expectations() {
             {
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = transientSendException;
                 result = null;
             }
@@ -214,7 +251,8 @@ public class DirectImmediateSenderTest {
                 addressLookup.queryAddresses((Name) any);
                 result = new InetAddress[] { IP1 };
 
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = permanentSendException;
             }
         };
@@ -229,7 +267,8 @@ public class DirectImmediateSenderTest {
         twoMxDnsExpectation();
         new Expectations() {
             {
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = transientSendException;
                 result = permanentSendException;
             }
@@ -250,7 +289,8 @@ public class DirectImmediateSenderTest {
         twoMxDnsExpectation();
         new Expectations() {
             {
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = POSTPONE_EXCEPTION;
                 result = null;
             }
@@ -267,7 +307,8 @@ public class DirectImmediateSenderTest {
         twoMxDnsExpectation();
         new Expectations() {
             {
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = POSTPONE_EXCEPTION;
                 result = transientSendException;
             }
@@ -287,7 +328,8 @@ public class DirectImmediateSenderTest {
         twoMxDnsExpectation();
         new Expectations() {
             {
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = POSTPONE_EXCEPTION;
                 result = POSTPONE_EXCEPTION;
             }
@@ -351,7 +393,8 @@ public class DirectImmediateSenderTest {
                 addressLookup.queryAddresses((Name) any);
                 result = new InetAddress[] { IP1 };
 
-                mailToHostTransmitter.transmit((Mail) any, null);
+                mailToHostTransmitter.transmit((Mail) any,
+                        withAny(NO_CLIENTS));
                 result = POSTPONE_EXCEPTION;
             }
         };
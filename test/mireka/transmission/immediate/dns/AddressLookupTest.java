@@ -35,7 +35,11 @@ public class AddressLookupTest {
                                 new ARecord(HOST1_EXAMPLE_COM_NAME, 0, 0, IP2)
 
                         };
+                result = null;
 
+                lookup.getResult();
+                result = Lookup.SUCCESSFUL;
+                result = Lookup.TYPE_NOT_FOUND;
             }
         };
 
@@ -51,12 +55,16 @@ public class AddressLookupTest {
         new Expectations() {
             {
                 lookup.run();
+                result = null;
                 result =
                         new Record[] { new AAAARecord(HOST6_EXAMPLE_COM_NAME,
                                 0, 0, IPV6)
 
                         };
 
+                lookup.getResult();
+                result = Lookup.TYPE_NOT_FOUND;
+                result = Lookup.SUCCESSFUL;
             }
         };
 
@@ -67,6 +75,27 @@ public class AddressLookupTest {
         assertArrayEquals(expected, addresses);
     }
 
+    @Test
+    public void testQueryAddressesDualStack() throws SendException {
+        new Expectations() {
+            {
+                lookup.run();
+                result =
+                        new Record[] { new ARecord(HOST1_EXAMPLE_COM_NAME, 0,
+                                0, IP1) };
+                result =
+                        new Record[] { new AAAARecord(HOST1_EXAMPLE_COM_NAME,
+                                0, 0, IPV6) };
+            }
+        };
+
+        InetAddress[] addresses =
+                addressLookup.queryAddresses(HOST1_EXAMPLE_COM_NAME);
+
+        InetAddress[] expected = new InetAddress[] { IP1, IPV6 };
+        assertArrayEquals(expected, addresses);
+    }
+
     @Test
     public void testTransientDnsFailure() {
         new Expectations() {
@@ -43,6 +43,25 @@ public class FileDirStoreTest extends TempDirectory {
         assertEquals(2, mailNames.length);
     }
 
+    @Test
+    public void testSaveWithSharedContent() throws Exception {
+        FileDirStore store = new FileDirStore(directory, 10);
+        store.initializeAndQueryMailNamesOrderedBySchedule();
+
+        Mail mail = ExampleMail.simple();
+        MailName first = store.save(mail);
+        mail.from = ExampleAddress.JANE_AS_REVERSE_PATH;
+        MailName second = store.save(mail, first);
+        store.delete(first);
+
+        Mail mailRead = store.read(second);
+        assertEquals(ExampleAddress.JANE_AS_REVERSE_PATH.getSmtpText(),
+                mailRead.from.getSmtpText());
+        assertEquals(0,
+                new File(directory, first.contentFileName()).length());
+        assertTrue(new File(directory, second.contentFileName()).length() > 0);
+    }
+
     @Test
     public void testRead() throws Exception {
         FileDirStore store = new FileDirStore(directory, 10);
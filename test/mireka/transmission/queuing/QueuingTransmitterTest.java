@@ -1,10 +1,13 @@
 package mireka.transmission.queuing;
 
 import static mireka.ExampleAddress.*;
+import static org.junit.Assert.*;
 
 import java.util.Arrays;
+import java.util.List;
 
 import mireka.ExampleMail;
+import mireka.smtp.address.MailAddressFactory;
 import mireka.transmission.Mail;
 import mireka.transmission.immediate.ImmediateSender;
 import mireka.transmission.queue.QueueStorageException;
@@ -12,6 +15,7 @@ import mireka.transmission.queue.ScheduleFileDirQueue;
 import mockit.Expectations;
 import mockit.Injectable;
 import mockit.Tested;
+import mockit.Verifications;
 
 import org.junit.Test;
 
@@ -36,11 +40,45 @@ public class QueuingTransmitterTest {
                 immediateSender.singleDomainOnly();
                 result = true;
 
-                queue.add((Mail)any);
             }
         };
 
         transmitter.transmit(mail);
+
+        new Verifications() {
+            {
+                List<Mail> mails;
+                queue.addAll(mails = withCapture());
+                assertEquals(1, mails.size());
+                assertEquals(2, mails.get(0).recipients.size());
+            }
+        };
+    }
+
+    @Test
+    public void testTransmitTwoToSameDomainInDifferentCase()
+            throws Exception {
+        mail.recipients =
+                Arrays.asList(JANE_AS_RECIPIENT, new MailAddressFactory()
+                        .createRecipient("John@EXAMPLE.com"));
+
+        new Expectations() {
+            {
+                immediateSender.singleDomainOnly();
+                result = true;
+            }
+        };
+
+        transmitter.transmit(mail);
+
+        new Verifications() {
+            {
+                List<Mail> mails;
+                queue.addAll(mails = withCapture());
+                assertEquals(1, mails.size());
+                assertEquals(2, mails.get(0).recipients.size());
+            }
+        };
     }
 
     @Test
@@ -52,13 +90,19 @@ public class QueuingTransmitterTest {
             {
                 immediateSender.singleDomainOnly();
                 result = true;
-
-                queue.add((Mail) any);
-                times = 2;
             }
         };
 
         transmitter.transmit(mail);
+
+        new Verifications() {
+            {
+                List<Mail> mails;
+                queue.addAll(mails = withCapture());
+                assertEquals(2, mails.size());
+                assertSame(mails.get(0).maildata, mails.get(1).maildata);
+            }
+        };
     }
 
     @Test